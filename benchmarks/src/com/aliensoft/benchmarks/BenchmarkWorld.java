@@ -0,0 +1,177 @@
+package com.aliensoft.benchmarks;
+
+import com.aliensoft.core.BulletScene;
+import com.aliensoft.core.GameObject;
+import com.aliensoft.core.GameObjectRenderer;
+import com.aliensoft.core.physics.ShapeRegistry;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.Mesh.VertexDataType;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes.Usage;
+import com.badlogic.gdx.graphics.g3d.Material;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.utils.ModelBuilder;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.physics.bullet.Bullet;
+import com.badlogic.gdx.physics.bullet.collision.Collision;
+import com.badlogic.gdx.physics.bullet.collision.btBroadphaseInterface;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionConfiguration;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionDispatcher;
+import com.badlogic.gdx.physics.bullet.collision.btDbvtBroadphase;
+import com.badlogic.gdx.physics.bullet.collision.btDefaultCollisionConfiguration;
+import com.badlogic.gdx.physics.bullet.collision.btDispatcher;
+import com.badlogic.gdx.physics.bullet.dynamics.btConstraintSolver;
+import com.badlogic.gdx.physics.bullet.dynamics.btDiscreteDynamicsWorld;
+import com.badlogic.gdx.physics.bullet.dynamics.btSequentialImpulseConstraintSolver;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.GdxNativesLoader;
+
+/**
+ * A bullet world and scene set up like the game, without a window.<br>
+ * Models are built on vertex arrays instead of buffer objects, so they can be
+ * created and rendered by a {@link NoopModelBatch} without a GL context.
+ */
+public class BenchmarkWorld implements Disposable {
+
+	public static final short			GROUND_FLAG	= 1 << 8;
+	public static final short			OBJECT_FLAG	= 1 << 9;
+	public static final short			ALL_FLAG	= -1;
+
+	private static boolean				nativesLoaded;
+
+	public final btCollisionConfiguration	collisionConfig;
+	public final btDispatcher				dispatcher;
+	public final btBroadphaseInterface		broadphase;
+	public final btConstraintSolver			solver;
+	public final btDiscreteDynamicsWorld	world;
+	public final BulletScene				scene;
+	public final ShapeRegistry				shapes;
+	public final Model						boxModel;
+
+	/** Objects added by {@link #addBoxes(int, boolean, float)} */
+	public final Array<GameObject>			objects		= new Array<>();
+
+	private final Vector3					tmp			= new Vector3();
+
+	public BenchmarkWorld() {
+		loadNatives();
+
+		collisionConfig = new btDefaultCollisionConfiguration();
+		dispatcher = new btCollisionDispatcher(collisionConfig);
+		broadphase = new btDbvtBroadphase();
+		solver = new btSequentialImpulseConstraintSolver();
+		world = new btDiscreteDynamicsWorld(dispatcher, broadphase, solver, collisionConfig);
+		world.setGravity(tmp.set(0, -10f, 0));
+
+		shapes = new ShapeRegistry();
+		boxModel = createBox(1f);
+
+		scene = new BulletScene(world);
+		scene.create(new NoopModelBatch());
+		scene.registerRenderer(new GameObjectRenderer());
+	}
+
+	/**
+	 * Loads the gdx and bullet natives once per process
+	 */
+	public static synchronized void loadNatives() {
+		if (nativesLoaded)
+			return;
+
+		GdxNativesLoader.load();
+		Bullet.init();
+		nativesLoaded = true;
+	}
+
+	/**
+	 * Adds boxes on a grid far enough apart that they never touch, so the
+	 * step cost is integration and sync, not collisions.
+	 *
+	 * @param count
+	 *            The number of boxes
+	 * @param motionStates
+	 *            Sync the boxes with motion states instead of polling them
+	 * @param mass
+	 *            The box mass, 0 for static boxes
+	 */
+	public void addBoxes(int count, boolean motionStates, float mass) {
+		int side = (int) Math.ceil(Math.cbrt(count));
+		for (int i = 0; i < count; i++) {
+			GameObject obj = new GameObject(boxModel, shapes.getInfo(shapes.box(0.5f, 0.5f, 0.5f), mass));
+			if (motionStates)
+				obj.enableMotionState();
+			obj.translate(tmp.set(i % side, (i / side) % side, i / (side * side)).scl(4f));
+			// Keep falling instead of going to sleep after two seconds
+			obj.body.setActivationState(Collision.DISABLE_DEACTIVATION);
+			scene.addObject(obj, OBJECT_FLAG, GROUND_FLAG);
+			objects.add(obj);
+		}
+	}
+
+	/**
+	 * Builds a unit box with positions and normals on vertex arrays
+	 */
+	public static Model createBox(float size) {
+		float h = size / 2f;
+		float[] faces = {
+				// normal, then the axes of the face
+				1, 0, 0, 0, 1, 0, 0, 0, 1,
+				-1, 0, 0, 0, 1, 0, 0, 0, -1,
+				0, 1, 0, 0, 0, 1, 1, 0, 0,
+				0, -1, 0, 0, 0, -1, 1, 0, 0,
+				0, 0, 1, 1, 0, 0, 0, 1, 0,
+				0, 0, -1, -1, 0, 0, 0, 1, 0 };
+		float[] vertices = new float[6 * 4 * 6];
+		short[] indices = new short[6 * 6];
+		int v = 0;
+		for (int face = 0; face < 6; face++) {
+			int f = face * 9;
+			for (int corner = 0; corner < 4; corner++) {
+				float u = corner == 1 || corner == 2 ? h : -h;
+				float w = corner >= 2 ? h : -h;
+				for (int axis = 0; axis < 3; axis++)
+					vertices[v++] = faces[f + axis] * h + faces[f + 3 + axis] * u + faces[f + 6 + axis] * w;
+				for (int axis = 0; axis < 3; axis++)
+					vertices[v++] = faces[f + axis];
+			}
+			short base = (short) (face * 4);
+			int i = face * 6;
+			indices[i] = base;
+			indices[i + 1] = (short) (base + 1);
+			indices[i + 2] = (short) (base + 2);
+			indices[i + 3] = (short) (base + 2);
+			indices[i + 4] = (short) (base + 3);
+			indices[i + 5] = base;
+		}
+
+		Mesh mesh = new Mesh(VertexDataType.VertexArray, true, 24, 36, new VertexAttribute(Usage.Position, 3,
+				"a_position"), new VertexAttribute(Usage.Normal, 3, "a_normal"));
+		mesh.setVertices(vertices);
+		mesh.setIndices(indices);
+
+		ModelBuilder builder = new ModelBuilder();
+		builder.begin();
+		builder.part("box", mesh, GL20.GL_TRIANGLES, 0, indices.length, new Material());
+		builder.manage(mesh);
+		return builder.end();
+	}
+
+	@Override
+	public void dispose() {
+		for (GameObject obj : objects) {
+			scene.removeObject(obj);
+			obj.dispose();
+		}
+		objects.clear();
+		scene.dispose();
+		world.dispose();
+		solver.dispose();
+		broadphase.dispose();
+		dispatcher.dispose();
+		collisionConfig.dispose();
+		boxModel.dispose();
+		shapes.dispose();
+	}
+}
@@ -0,0 +1,81 @@
+package com.aliensoft.benchmarks;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.aliensoft.core.GameObject;
+import com.aliensoft.core.crowd.Crowd;
+import com.badlogic.gdx.ai.steer.limiters.LinearLimiter;
+import com.badlogic.gdx.math.Vector3;
+
+/**
+ * Steers a dense horde towards a point, on one thread or on every core. The
+ * world is not stepped, so every invocation sees the same neighbors.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CrowdBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int				agents;
+
+	/** Threads of the pool, 0 for one per core */
+	@Param({ "1", "0" })
+	public int				threads;
+
+	private BenchmarkWorld	world;
+	private ForkJoinPool	pool;
+	private Crowd			crowd;
+
+	private final Vector3	tmp	= new Vector3();
+
+	@Setup
+	public void setup() {
+		world = new BenchmarkWorld();
+		pool = threads > 0 ? new ForkJoinPool(threads) : new ForkJoinPool();
+		crowd = new Crowd(world.scene, new LinearLimiter(20f, 4f), pool);
+
+		// One agent per meter, about 30 in the neighbor radius
+		int side = (int) Math.ceil(Math.sqrt(agents));
+		for (int i = 0; i < agents; i++) {
+			GameObject obj = new GameObject(world.boxModel,
+					world.shapes.getInfo(world.shapes.box(0.25f, 0.5f, 0.25f), 70f));
+			obj.translate(tmp.set(i % side, 0.5f, i / side));
+			world.scene.addObject(obj, BenchmarkWorld.OBJECT_FLAG, BenchmarkWorld.GROUND_FLAG);
+			world.objects.add(obj);
+			crowd.add(obj, 0.25f);
+		}
+		crowd.addObstacle(side / 2f, side / 2f, 4f);
+		crowd.setTarget(side / 2f, side * 2f);
+	}
+
+	@Benchmark
+	public int update() {
+		crowd.update(1f / 30f);
+		return crowd.size();
+	}
+
+	@TearDown
+	public void tearDown() {
+		crowd.dispose();
+		pool.shutdown();
+		world.dispose();
+	}
+}
@@ -0,0 +1,98 @@
+package com.aliensoft.benchmarks;
+
+import com.aliensoft.core.StateSorter;
+import com.badlogic.gdx.graphics.GLTexture;
+import com.badlogic.gdx.graphics.g3d.ModelBatch;
+import com.badlogic.gdx.graphics.g3d.Renderable;
+import com.badlogic.gdx.graphics.g3d.Shader;
+import com.badlogic.gdx.graphics.g3d.utils.RenderContext;
+import com.badlogic.gdx.graphics.g3d.utils.ShaderProvider;
+import com.badlogic.gdx.graphics.g3d.utils.TextureBinder;
+import com.badlogic.gdx.graphics.g3d.utils.TextureDescriptor;
+
+/**
+ * A model batch that does everything but drawing.<br>
+ * Renderables are collected and sorted like the game batch does, then counted
+ * and dropped instead of being sent to shaders, so the dispatch cost of the
+ * scene can be measured without a GL context.
+ */
+public class NoopModelBatch extends ModelBatch {
+
+	private int	renderedCount;
+
+	public NoopModelBatch() {
+		super(new RenderContext(new NoopTextureBinder()), new NoopShaderProvider(), new StateSorter());
+	}
+
+	@Override
+	public void flush() {
+		sorter.sort(camera, renderables);
+		renderedCount += renderables.size;
+		renderables.clear();
+		renderablesPool.flush();
+	}
+
+	@Override
+	public void end() {
+		flush();
+		camera = null;
+	}
+
+	/**
+	 * @return The number of renderables flushed since created
+	 */
+	public int getRenderedCount() {
+		return renderedCount;
+	}
+
+	@Override
+	public void dispose() {
+	}
+
+	private static class NoopShaderProvider implements ShaderProvider {
+		@Override
+		public Shader getShader(Renderable renderable) {
+			return null;
+		}
+
+		@Override
+		public void dispose() {
+		}
+	}
+
+	private static class NoopTextureBinder implements TextureBinder {
+		@Override
+		public void begin() {
+		}
+
+		@Override
+		public void end() {
+		}
+
+		/** The interface takes a raw descriptor in libGDX 1.4.1, so the override must too */
+		@Override
+		@SuppressWarnings("rawtypes")
+		public int bind(TextureDescriptor textureDescriptor) {
+			return 0;
+		}
+
+		@Override
+		public int bind(GLTexture texture) {
+			return 0;
+		}
+
+		@Override
+		public int getBindCount() {
+			return 0;
+		}
+
+		@Override
+		public int getReuseCount() {
+			return 0;
+		}
+
+		@Override
+		public void resetCounts() {
+		}
+	}
+}
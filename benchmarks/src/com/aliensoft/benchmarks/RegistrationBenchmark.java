@@ -0,0 +1,62 @@
+package com.aliensoft.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.aliensoft.core.GameObject;
+import com.badlogic.gdx.utils.Array;
+
+/**
+ * Adds a batch of objects to the scene and the world and removes them again,
+ * the cost of loading and unloading a level worth of objects.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RegistrationBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int					objects;
+
+	private BenchmarkWorld		world;
+	private Array<GameObject>	batch;
+
+	@Setup
+	public void setup() {
+		world = new BenchmarkWorld();
+		world.addBoxes(objects, true, 1f);
+		// Take them out, every invocation adds them back
+		batch = new Array<>(world.objects);
+		for (GameObject obj : batch)
+			world.scene.removeObject(obj);
+	}
+
+	@Benchmark
+	public int addAndRemove() {
+		for (GameObject obj : batch)
+			world.scene.addObject(obj, BenchmarkWorld.OBJECT_FLAG, BenchmarkWorld.GROUND_FLAG);
+		for (GameObject obj : batch)
+			world.scene.removeObject(obj);
+		return batch.size;
+	}
+
+	@TearDown
+	public void tearDown() {
+		world.dispose();
+	}
+}
@@ -0,0 +1,74 @@
+package com.aliensoft.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.graphics.g3d.Environment;
+import com.badlogic.gdx.graphics.g3d.attributes.ColorAttribute;
+
+/**
+ * Renders a scene of static boxes through a {@link NoopModelBatch}: culling,
+ * render queue ordering, renderer dispatch, renderable collection and sorting,
+ * everything the render thread does before the GL calls.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RenderDispatchBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int					objects;
+
+	@Param({ "true", "false" })
+	public boolean				frustumCulling;
+
+	private BenchmarkWorld		world;
+	private PerspectiveCamera	cam;
+	private Environment			env;
+
+	@Setup
+	public void setup() {
+		world = new BenchmarkWorld();
+		world.addBoxes(objects, false, 0f);
+		world.scene.setFrustumCulling(frustumCulling);
+
+		env = new Environment();
+		env.set(new ColorAttribute(ColorAttribute.AmbientLight, 0.4f, 0.4f, 0.4f, 1f));
+
+		// Looks along the grid from its center, so about half of it is culled
+		float side = (float) Math.ceil(Math.cbrt(objects)) * 4f;
+		cam = new PerspectiveCamera(67, 1280, 720);
+		cam.position.set(side * 0.5f, side * 0.5f, side * 0.5f);
+		cam.lookAt(side, side * 0.5f, side * 0.5f);
+		cam.near = 0.1f;
+		cam.far = side;
+		cam.update();
+	}
+
+	@Benchmark
+	public int render() {
+		world.scene.render(env, cam, 1f / 60f);
+		return world.scene.getSubmittedCount();
+	}
+
+	@TearDown
+	public void tearDown() {
+		world.dispose();
+	}
+}
@@ -0,0 +1,101 @@
+package com.aliensoft.benchmarks;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.aliensoft.core.GameObject;
+import com.aliensoft.core.GameObjectRenderer;
+import com.aliensoft.core.SectorScene;
+import com.aliensoft.core.physics.ShapeRegistry;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.physics.bullet.collision.Collision;
+
+/**
+ * Steps boxes spread over a large floor, in one world or in a grid of
+ * sectors stepped on one thread or on every core. The boxes wander so some
+ * of them cross sector borders every tick.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SectorBenchmark {
+
+	private static final float	SIZE	= 256f;
+
+	@Param({ "1", "4" })
+	public int					grid;
+
+	/** Threads of the pool, 0 for one per core */
+	@Param({ "1", "0" })
+	public int					threads;
+
+	@Param({ "4000" })
+	public int					boxes;
+
+	private ForkJoinPool		pool;
+	private SectorScene			scene;
+	private ShapeRegistry		shapes;
+	private Model				boxModel;
+
+	private final Vector3		tmp		= new Vector3();
+
+	@Setup
+	public void setup() {
+		BenchmarkWorld.loadNatives();
+		pool = threads > 0 ? new ForkJoinPool(threads) : new ForkJoinPool();
+		scene = new SectorScene(-SIZE / 2f, -SIZE / 2f, grid, grid, SIZE / grid, 2f, 1f / 60f, pool);
+		scene.create(new NoopModelBatch());
+		scene.registerRenderer(new GameObjectRenderer());
+		scene.setGravity(tmp.set(0, -10f, 0));
+
+		shapes = new ShapeRegistry();
+		boxModel = BenchmarkWorld.createBox(1f);
+
+		GameObject floor = new GameObject(boxModel, shapes.getInfo(shapes.box(SIZE / 2f, 0.5f, SIZE / 2f), 0f));
+		floor.translate(tmp.set(0, -0.5f, 0));
+		scene.addObject(floor, BenchmarkWorld.GROUND_FLAG, BenchmarkWorld.ALL_FLAG);
+
+		MathUtils.random.setSeed(0);
+		float extent = SIZE / 2f - 8f;
+		for (int i = 0; i < boxes; i++) {
+			GameObject obj = new GameObject(boxModel, shapes.getInfo(shapes.box(0.5f, 0.5f, 0.5f), 1f));
+			obj.enableMotionState();
+			obj.translate(tmp.set(MathUtils.random(-extent, extent), 0.5f, MathUtils.random(-extent, extent)));
+			obj.body.setActivationState(Collision.DISABLE_DEACTIVATION);
+			scene.addObject(obj, BenchmarkWorld.OBJECT_FLAG, BenchmarkWorld.ALL_FLAG);
+			obj.body.setLinearVelocity(tmp.set(MathUtils.random(-2f, 2f), 0, MathUtils.random(-2f, 2f)));
+		}
+	}
+
+	@Benchmark
+	public int update() {
+		scene.update(1f / 60f);
+		return scene.getHandoffCount();
+	}
+
+	@TearDown
+	public void tearDown() {
+		scene.dispose();
+		pool.shutdown();
+		boxModel.dispose();
+		shapes.dispose();
+	}
+}
@@ -0,0 +1,68 @@
+package com.aliensoft.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.aliensoft.core.DespawnPolicy;
+import com.aliensoft.core.GameObject;
+import com.aliensoft.core.GameObjectPool;
+import com.badlogic.gdx.math.Vector3;
+
+/**
+ * Spawns balls from a pool the way the test game does on every click. The
+ * pool is full, so each spawn also recycles the oldest ball.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SpawnBenchmark {
+
+	private static final int	MAX_LIVE	= 500;
+
+	private BenchmarkWorld		world;
+	private GameObjectPool		pool;
+	private final Vector3		position	= new Vector3(0, 10f, 0);
+
+	@Setup
+	public void setup() {
+		world = new BenchmarkWorld();
+		pool = new GameObjectPool(world.scene, world.boxModel, world.shapes.getInfo(world.shapes.sphere(0.5f), 5f),
+				BenchmarkWorld.OBJECT_FLAG, BenchmarkWorld.ALL_FLAG, new DespawnPolicy().setMaxLive(MAX_LIVE));
+		pool.preallocate(MAX_LIVE + 1);
+		for (int i = 0; i < MAX_LIVE; i++)
+			pool.spawn(position);
+	}
+
+	@Benchmark
+	public GameObject spawn() {
+		return pool.spawn(position);
+	}
+
+	@Benchmark
+	public GameObject spawnAndUpdate() {
+		GameObject obj = pool.spawn(position);
+		world.scene.update();
+		pool.update(1f / 60f);
+		return obj;
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.dispose();
+		world.dispose();
+	}
+}
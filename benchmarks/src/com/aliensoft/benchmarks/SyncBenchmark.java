@@ -0,0 +1,64 @@
+package com.aliensoft.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Steps a world of moving bodies and syncs the scene with it, once per
+ * invocation like a frame of the game. The sync cost is the difference
+ * between {@link #stepAndSync()} and {@link #step()}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SyncBenchmark {
+
+	private static final float	TICK	= 1f / 60f;
+
+	@Param({ "1000", "10000", "50000" })
+	public int					bodies;
+
+	/** Sync through motion states or by polling every body */
+	@Param({ "true", "false" })
+	public boolean				motionStates;
+
+	private BenchmarkWorld		world;
+
+	@Setup
+	public void setup() {
+		world = new BenchmarkWorld();
+		world.addBoxes(bodies, motionStates, 1f);
+	}
+
+	@Benchmark
+	public int step() {
+		return world.world.stepSimulation(TICK, 1, TICK);
+	}
+
+	@Benchmark
+	public int stepAndSync() {
+		world.world.stepSimulation(TICK, 1, TICK);
+		world.scene.update();
+		return world.scene.getSyncedCount();
+	}
+
+	@TearDown
+	public void tearDown() {
+		world.dispose();
+	}
+}
@@ -137,6 +137,46 @@ float getShadow()
 }
 #endif //shadowMapFlag
 
+#ifdef shadowCascadesFlag
+#ifndef shadowMapFlag
+uniform sampler2D u_shadowTexture;
+#endif
+// Dynamic casters, drawn every frame over the cached static map
+uniform sampler2D u_shadowDynamicTexture;
+// Light space transform of each cascade, the cascades sit side by side in both maps
+uniform mat4 u_shadowCascadeTrans[shadowCascades];
+// x: size of a texel of a cascade, y: depth bias
+uniform vec2 u_shadowParams;
+varying vec3 v_shadowPosition;
+
+float getCascadeShadowness(vec2 uv, float depth)
+{
+	const vec4 bitShifts = vec4(1.0, 1.0 / 255.0, 1.0 / 65025.0, 1.0 / 160581375.0);
+	float occluder = min(dot(texture2D(u_shadowTexture, uv), bitShifts),
+			dot(texture2D(u_shadowDynamicTexture, uv), bitShifts));
+	return step(depth, occluder);
+}
+
+float getCascadedShadow()
+{
+	for (int i = 0; i < shadowCascades; i++) {
+		vec3 spos = (u_shadowCascadeTrans[i] * vec4(v_shadowPosition, 1.0)).xyz * 0.5 + 0.5;
+		// The first cascade holding the fragment, away from the border the filter reads past
+		if (all(greaterThan(spos.xy, u_shadowParams.xx)) && all(lessThan(spos.xy, 1.0 - u_shadowParams.xx))
+				&& spos.z < 1.0) {
+			vec2 uv = vec2((float(i) + spos.x) / float(shadowCascades), spos.y);
+			vec2 offset = vec2(0.5 / float(shadowCascades), 0.5) * u_shadowParams.x;
+			float depth = spos.z - u_shadowParams.y;
+			return (getCascadeShadowness(uv + offset, depth) +
+					getCascadeShadowness(uv + vec2(-offset.x, offset.y), depth) +
+					getCascadeShadowness(uv + vec2(offset.x, -offset.y), depth) +
+					getCascadeShadowness(uv - offset, depth)) * 0.25;
+		}
+	}
+	return 1.0;
+}
+#endif //shadowCascadesFlag
+
 #if defined(diffuseTextureFlag) && defined(diffuseColorFlag)
 #define fetchColorDiffuseTD(texCoord, defaultValue) texture2D(u_diffuseTexture, texCoord) * u_diffuseColor
 #elif defined(diffuseTextureFlag)
@@ -199,6 +239,60 @@ varying vec3 v_ambientLight;
 
 #define saturate(x) clamp( x, 0.0, 1.0 )
 
+//////////////////////////////////////////////////////
+////// CLUSTERED POINT LIGHTS
+//////////////////////////////////////////////////////
+#ifdef clusteredLightsFlag
+// Offset (rg) and count (b) of the light list of each cluster, depth slices side by side
+uniform sampler2D u_clusterTexture;
+// Light indices of every cluster, one per texel
+uniform sampler2D u_clusterIndexTexture;
+// xyz: number of clusters on each axis
+uniform vec4 u_clusterGrid;
+// x: camera near, y: depth slices per log unit, zw: viewport size
+uniform vec4 u_clusterParams;
+// xyz: world position, w: range
+uniform vec4 u_clusterLightPositions[maxClusterLights];
+// rgb: color times intensity
+uniform vec4 u_clusterLightColors[maxClusterLights];
+
+varying vec3 v_clusterPosition;
+varying vec3 v_clusterNormal;
+varying float v_clusterDepth;
+
+vec3 getClusteredLight() {
+	vec2 tile = min(floor(gl_FragCoord.xy / u_clusterParams.zw * u_clusterGrid.xy), u_clusterGrid.xy - 1.0);
+	float slice = floor(log(max(v_clusterDepth, u_clusterParams.x) / u_clusterParams.x) * u_clusterParams.y);
+	slice = min(slice, u_clusterGrid.z - 1.0);
+	
+	vec2 clusterUv = vec2((tile.x + slice * u_clusterGrid.x + 0.5) / (u_clusterGrid.x * u_clusterGrid.z),
+			(tile.y + 0.5) / u_clusterGrid.y);
+	vec4 cluster = texture2D(u_clusterTexture, clusterUv);
+	float offset = floor(cluster.r * 255.0 + 0.5) + floor(cluster.g * 255.0 + 0.5) * 256.0;
+	int count = int(cluster.b * 255.0 + 0.5);
+	
+	vec3 normal = normalize(v_clusterNormal);
+	vec3 light = vec3(0.0);
+	for (int i = 0; i < maxLightsPerCluster; i++) {
+		if (i >= count)
+			break;
+		float index = offset + float(i);
+		vec2 indexUv = vec2((mod(index, clusterIndexWidth) + 0.5) / clusterIndexWidth,
+				(floor(index / clusterIndexWidth) + 0.5) / clusterIndexHeight);
+		int l = int(texture2D(u_clusterIndexTexture, indexUv).a * 255.0 + 0.5);
+		
+		vec4 position = u_clusterLightPositions[l];
+		vec3 toLight = position.xyz - v_clusterPosition;
+		float dist2 = dot(toLight, toLight);
+		// Fades to zero at the range so the cluster bounds don't show
+		float window = saturate(1.0 - (dist2 * dist2) / (position.w * position.w * position.w * position.w));
+		float NL = max(0.0, dot(normal, toLight * inversesqrt(dist2)));
+		light += u_clusterLightColors[l].rgb * (NL * window * window / (1.0 + dist2));
+	}
+	return light;
+}
+#endif //clusteredLightsFlag
+
 void main() {
 	pullColor();
 	pullTexCoord0();
@@ -236,11 +330,16 @@ void main() {
 	#endif
 	#endif
 	
-	#ifdef shadowMapFlag
+	#if defined(shadowCascadesFlag)
+	gl_FragColor = vec4(saturate((v_lightCol * diffuse.rgb) * NL * getCascadedShadow()), diffuse.w);
+	#elif defined(shadowMapFlag)
 	gl_FragColor = vec4(saturate((v_lightCol * diffuse.rgb) * NL * getShadow()), diffuse.w);
 	#else
 	gl_FragColor = vec4(saturate((v_lightCol * diffuse.rgb) * NL), diffuse.w);
 	#endif
 	gl_FragColor.rgb += v_ambientLight * diffuse.rgb;
+	#ifdef clusteredLightsFlag
+	gl_FragColor.rgb += getClusteredLight() * diffuse.rgb;
+	#endif
 	gl_FragColor.rgb += (selfShadow * spec) * specular;
 }
@@ -119,9 +119,33 @@ vec2 g_texCoord0 = vec2(0.0, 0.0);
 
 // Uniforms which are always available
 uniform mat4 u_projViewTrans;
-uniform mat4 u_worldTrans;
 uniform vec4 u_cameraPosition;
+
+////////////////////////////////////////////////////////////////////////////////////
+////////// INSTANCING
+///////////////////////////////////////////////////////////////////////////////////
+#ifdef instancedFlag
+// One world transform per instance, the columns are streamed as attributes
+attribute vec4 a_instanceTrans0;
+attribute vec4 a_instanceTrans1;
+attribute vec4 a_instanceTrans2;
+attribute vec4 a_instanceTrans3;
+uniform mat4 u_nodeTrans;
+mat4 g_worldTrans;
+mat3 g_normalMatrix;
+// Assumes uniform scaling, like the rigid bodies it is used for.
+// Not a macro, GLSL 1.10 has no line continuation
+void calculateWorldTrans() {
+	g_worldTrans = mat4(a_instanceTrans0, a_instanceTrans1, a_instanceTrans2, a_instanceTrans3) * u_nodeTrans;
+	g_normalMatrix = mat3(g_worldTrans[0].xyz, g_worldTrans[1].xyz, g_worldTrans[2].xyz);
+}
+#else
+uniform mat4 u_worldTrans;
 uniform mat3 u_normalMatrix;
+#define g_worldTrans u_worldTrans
+#define g_normalMatrix u_normalMatrix
+#define calculateWorldTrans() nop()
+#endif //instancedFlag
 
 // Other uniforms
 #ifdef blendedFlag
@@ -289,6 +313,10 @@ varying vec3 v_shadowMapUv;
 #define separateAmbientFlag
 #endif //shadowMapFlag
 
+#ifdef shadowCascadesFlag
+varying vec3 v_shadowPosition;
+#endif //shadowCascadesFlag
+
 #if defined(normalFlag) && defined(binormalFlag) && defined(tangentFlag)
 #define calculateTangentVectors() nop()
 #elif defined(normalFlag) && defined(binormalFlag)
@@ -401,6 +429,25 @@ vec3 direction;
 uniform DirectionalLight u_dirLights[numDirectionalLights];
 #endif
 
+//////////////////////////////////////////////////////
+////// CLUSTERED POINT LIGHTS
+//////////////////////////////////////////////////////
+#ifdef clusteredLightsFlag
+uniform vec3 u_clusterCameraDirection;
+varying vec3 v_clusterPosition;
+varying vec3 v_clusterNormal;
+varying float v_clusterDepth;
+// The fragment picks its depth slice with the view depth.
+// Not a macro, GLSL 1.10 has no line continuation
+void passClusterValues() {
+	v_clusterPosition = g_position.xyz;
+	v_clusterNormal = g_normal;
+	v_clusterDepth = dot(g_position.xyz - u_cameraPosition.xyz, u_clusterCameraDirection);
+}
+#else
+#define passClusterValues() nop()
+#endif //clusteredLightsFlag
+
 varying vec3 v_lightDir;
 varying vec3 v_lightCol;
 varying vec3 v_viewDir;
@@ -412,21 +459,27 @@ varying vec3 v_reflect;
 varying vec3 v_ambientLight;
 
 void main() {
+	calculateWorldTrans();
 	calculateTangentVectors();
 	
 	g_position = applySkinning(g_position);
-	g_normal = normalize(u_normalMatrix * applySkinning(g_normal));
-	g_binormal = normalize(u_normalMatrix * applySkinning(g_binormal));
-	g_tangent = normalize(u_normalMatrix * applySkinning(g_tangent));
+	g_normal = normalize(g_normalMatrix * applySkinning(g_normal));
+	g_binormal = normalize(g_normalMatrix * applySkinning(g_binormal));
+	g_tangent = normalize(g_normalMatrix * applySkinning(g_tangent));
 	
-	g_position = u_worldTrans * g_position;
+	g_position = g_worldTrans * g_position;
 	gl_Position = u_projViewTrans * g_position;
+	passClusterValues();
 	
 #ifdef shadowMapFlag
 	vec4 spos = u_shadowMapProjViewTrans * g_position;
 	v_shadowMapUv.xy = (spos.xy / spos.w) * 0.5 + 0.5;
 	v_shadowMapUv.z = min(spos.z * 0.5 + 0.5, 0.998);
 #endif //shadowMapFlag
+
+#ifdef shadowCascadesFlag
+	v_shadowPosition = g_position.xyz;
+#endif //shadowCascadesFlag
 	
 	mat3 worldToTangent;
 	worldToTangent[0] = g_tangent;
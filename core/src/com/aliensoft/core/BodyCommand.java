@@ -0,0 +1,74 @@
+package com.aliensoft.core;
+
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.physics.bullet.dynamics.btDynamicsWorld;
+
+/**
+ * Adds or removes a body from a world. Executed right away by a
+ * {@link BulletScene}, or queued to run on its {@link PhysicsThread}.
+ */
+class BodyCommand implements Runnable {
+
+	static final int	ADD		= 0;
+	static final int	REMOVE	= 1;
+	/** Gives a slot to a object already in the world */
+	static final int	ADOPT	= 2;
+
+	int					type;
+	GameObject			object;
+	short				group, mask;
+	int					generation;
+
+	/** Reset the body to this transform and stop it before adding */
+	boolean				reset;
+	final Matrix4		transform	= new Matrix4();
+
+	boolean				hasImpulse;
+	final Vector3		impulse		= new Vector3();
+
+	btDynamicsWorld		world;
+	PhysicsThread		physics;
+
+	BodyCommand set(int type, GameObject object) {
+		this.type = type;
+		this.object = object;
+		this.reset = false;
+		this.hasImpulse = false;
+		return this;
+	}
+
+	BodyCommand setImpulse(Vector3 impulse) {
+		hasImpulse = impulse != null;
+		if (hasImpulse)
+			this.impulse.set(impulse);
+		return this;
+	}
+
+	@Override
+	public void run() {
+		switch (type) {
+			case ADD:
+				if (reset)
+					object.resetBody(transform);
+				world.addRigidBody(object.body, group, mask);
+				object.body.activate(true);
+				if (hasImpulse)
+					object.body.applyCentralImpulse(impulse);
+				if (physics != null)
+					physics.addSlot(object, generation);
+				break;
+			case REMOVE:
+				if (physics != null)
+					physics.removeSlot(object);
+				world.removeRigidBody(object.body);
+				break;
+			case ADOPT:
+				physics.addSlot(object, generation);
+				break;
+		}
+
+		if (physics != null)
+			physics.free(this);
+	}
+}
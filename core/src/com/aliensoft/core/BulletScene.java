@@ -1,11 +1,354 @@
 package com.aliensoft.core;
 
+import com.aliensoft.core.profiling.FrameProfiler;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.physics.bullet.dynamics.btDynamicsWorld;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntMap;
+
 public class BulletScene extends SceneRender {
 
+	/** The world the scene objects are simulated in */
+	protected final btDynamicsWorld	world;
+
+	/** Objects without a motion state, read from bullet every frame */
+	private final Array<GameObject>	polledObjects	= new Array<>(false, 64);
+
+	/** Objects moved by bullet since the last update */
+	private final Array<GameObject>	dirtyObjects	= new Array<>(false, 64);
+
+	private int						syncedObjects;
+	private int						syncScope;
+
+	/** Not null while the world is stepped on its own thread */
+	private PhysicsThread			physicsThread;
+
+	/** Used to run body commands right away when there is no physics thread */
+	private final BodyCommand		directCommand	= new BodyCommand();
+
+	/** Objects by the user value of their body */
+	private final IntMap<GameObject>	bodies		= new IntMap<>();
+
+	/** Null until {@link #enableContactEvents(int)} */
+	private ContactEvents			contactEvents;
+
+	/**
+	 * @param world
+	 *            The world the objects are added to. Not owned by the scene.
+	 */
+	public BulletScene(btDynamicsWorld world) {
+		this.world = world;
+		directCommand.world = world;
+	}
+
+	/**
+	 * Syncs the objects with the bullet world. Objects with a motion state are
+	 * only touched if bullet moved them during the last step.<br>
+	 * When the world runs on a physics thread the objects are moved to the
+	 * transforms interpolated from its snapshots instead.<br>
+	 * Contact events of the steps since the last update are dispatched last.
+	 */
 	public void update() {
+		FrameProfiler profiler = this.profiler;
+		if (profiler != null)
+			profiler.begin(syncScope);
+
+		if (physicsThread != null)
+			physicsThread.interpolate(this);
+		else
+			sync();
+
+		if (profiler != null)
+			profiler.end(syncScope);
+
+		if (contactEvents != null) {
+			// Without physics thread the world was stepped by the caller
+			if (physicsThread == null)
+				contactEvents.endStep();
+			contactEvents.dispatch();
+		}
+	}
+
+	private void sync() {
+		for (GameObject obj : polledObjects) {
+			obj.update();
+			updateBounds(obj);
+		}
+
+		for (GameObject obj : dirtyObjects) {
+			obj.dirty = false;
+			updateBounds(obj);
+		}
+
+		syncedObjects = polledObjects.size + dirtyObjects.size;
+		dirtyObjects.clear();
+	}
+
+	/**
+	 * Also times {@link #update()} as the sync scope
+	 */
+	@Override
+	public void setProfiler(FrameProfiler profiler) {
+		super.setProfiler(profiler);
+		if (profiler != null)
+			syncScope = profiler.scope("sync");
+	}
+
+	@Override
+	public boolean registerObject(GameObject object) {
+		if (!super.registerObject(object))
+			return false;
+
+		bodies.put(object.body.getUserValue(), object);
+		if (object.hasMotionState())
+			object.setDirtyList(dirtyObjects);
+		else
+			polledObjects.add(object);
+		return true;
+	}
+
+	@Override
+	public boolean unregisterObject(GameObject object) {
+		if (!super.unregisterObject(object))
+			return false;
+
+		bodies.remove(object.body.getUserValue());
+		if (object.hasMotionState()) {
+			object.setDirtyList(null);
+			if (object.dirty) {
+				dirtyObjects.removeValue(object, true);
+				object.dirty = false;
+			}
+		} else
+			polledObjects.removeValue(object, true);
+		return true;
+	}
+
+	/**
+	 * Registers a object and adds its body to the world
+	 * 
+	 * @param object
+	 *            The object to add
+	 * @param group
+	 *            The collision group of the body
+	 * @param mask
+	 *            The groups the body collides with
+	 * @return False if the object was already registered
+	 */
+	public boolean addObject(GameObject object, short group, short mask) {
+		return addObject(object, group, mask, false, null);
+	}
+
+	/**
+	 * Registers a object and adds its body to the world
+	 * 
+	 * @param object
+	 *            The object to add
+	 * @param group
+	 *            The collision group of the body
+	 * @param mask
+	 *            The groups the body collides with
+	 * @param reset
+	 *            Stop the body and move it to the model transform before adding it
+	 * @param impulse
+	 *            Impulse applied once the body is in the world, can be null
+	 * @return False if the object was already registered
+	 */
+	public boolean addObject(GameObject object, short group, short mask, boolean reset, Vector3 impulse) {
+		if (!registerObject(object))
+			return false;
+
+		object.generation++;
+		object.snapshotActive = true;
+		// Matched against the contact filters of watched bodies
+		object.body.setContactCallbackFlag(group);
+		BodyCommand command = obtainCommand().set(BodyCommand.ADD, object).setImpulse(impulse);
+		command.group = group;
+		command.mask = mask;
+		command.reset = reset;
+		command.generation = object.generation;
+		if (reset)
+			command.transform.set(object.getTransform());
+		execute(command);
+		return true;
+	}
+
+	/**
+	 * Removes the body of a object from the world and unregisters it.
+	 * The object is not disposed, so it can be added again.
+	 * 
+	 * @param object
+	 *            The object to remove
+	 * @return False if the object wasn't registered
+	 */
+	public boolean removeObject(GameObject object) {
+		if (!unregisterObject(object))
+			return false;
+
+		execute(obtainCommand().set(BodyCommand.REMOVE, object));
+		return true;
+	}
+
+	/**
+	 * Tells if bullet keeps the body of a object awake. With a physics thread
+	 * the state comes from the last snapshot, so the body is never read
+	 * while it is stepped.
+	 * 
+	 * @return False once the body fell asleep
+	 */
+	public boolean isActive(GameObject object) {
+		if (physicsThread != null)
+			return object.snapshotActive;
+		return object.body.isActive();
+	}
+
+	/**
+	 * Starts stepping the world on its own thread. From now on the world must only
+	 * be changed through {@link #addObject}, {@link #removeObject} and {@link #post(Runnable)}.
+	 * 
+	 * @param tickSeconds
+	 *            The fixed time step of the simulation
+	 */
+	public void startPhysicsThread(float tickSeconds) {
+		if (physicsThread != null)
+			return;
+
+		physicsThread = new PhysicsThread(world, tickSeconds);
+		physicsThread.contactEvents = contactEvents;
+		// Objects already in the world need a snapshot slot
+		for (GameObject obj : objects.values()) {
+			BodyCommand command = physicsThread.obtain().set(BodyCommand.ADOPT, obj);
+			command.generation = obj.generation;
+			physicsThread.post(command);
+		}
+		physicsThread.start();
+	}
+
+	/**
+	 * Stops the physics thread. The world must be stepped by the caller again.
+	 */
+	public void stopPhysicsThread() {
+		if (physicsThread == null)
+			return;
+
+		physicsThread.stop();
+		physicsThread = null;
+		// Bring every object to the final simulated state
 		for (GameObject obj : objects.values()) {
 			obj.update();
+			updateBounds(obj);
+		}
+	}
+
+	/**
+	 * @return The physics thread, null if the world is stepped by the caller
+	 */
+	public PhysicsThread getPhysicsThread() {
+		return physicsThread;
+	}
+
+	/**
+	 * Runs a command that touches the world. With a physics thread it is queued
+	 * to run before its next tick, otherwise it runs right away.
+	 * 
+	 * @param command
+	 */
+	public void post(Runnable command) {
+		if (physicsThread != null)
+			physicsThread.post(command);
+		else
+			command.run();
+	}
+
+	/**
+	 * Runs the rays and sweeps of a batch. With a physics thread they run on
+	 * it before its next tick, while the world isn't changing, and the results
+	 * are ready once {@link QueryBatch#isDone()}. Otherwise they run right away.
+	 */
+	public void query(final QueryBatch batch) {
+		batch.queue(this);
+		if (physicsThread == null) {
+			batch.execute(world);
+			return;
 		}
+		physicsThread.post(new Runnable() {
+			@Override
+			public void run() {
+				batch.execute(world);
+			}
+		});
+	}
+
+	private BodyCommand obtainCommand() {
+		return physicsThread != null ? physicsThread.obtain() : directCommand;
+	}
+
+	private void execute(BodyCommand command) {
+		if (physicsThread != null)
+			physicsThread.post(command);
+		else
+			command.run();
+	}
+
+	public btDynamicsWorld getWorld() {
+		return world;
+	}
+
+	/**
+	 * @return The object whose body has a user value, null if it isn't in the scene
+	 */
+	public GameObject getObject(int userValue) {
+		return bodies.get(userValue);
+	}
+
+	/**
+	 * Starts collecting the contacts of watched bodies, see {@link ContactEvents}
+	 *
+	 * @param capacity
+	 *            Contact events kept between two updates, more are dropped
+	 * @return The contact events of the scene
+	 */
+	public ContactEvents enableContactEvents(int capacity) {
+		if (contactEvents == null) {
+			if (physicsThread != null)
+				throw new IllegalStateException("Enable contact events before starting the physics thread");
+			contactEvents = new ContactEvents(this, capacity);
+		}
+		return contactEvents;
+	}
+
+	/**
+	 * @return The contact events, null unless enabled
+	 */
+	public ContactEvents getContactEvents() {
+		return contactEvents;
+	}
+
+	/**
+	 * Removes every body from the world, then frees the objects with their
+	 * bodies and motion states
+	 */
+	@Override
+	public void dispose() {
+		stopPhysicsThread();
+		for (GameObject obj : objects.values())
+			if (obj.body != null)
+				world.removeRigidBody(obj.body);
+		polledObjects.clear();
+		dirtyObjects.clear();
+		bodies.clear();
+		if (contactEvents != null) {
+			contactEvents.dispose();
+			contactEvents = null;
+		}
+		super.dispose();
+	}
+
+	/**
+	 * @return The number of objects synced in the last update
+	 */
+	public int getSyncedCount() {
+		return syncedObjects;
 	}
 
 }
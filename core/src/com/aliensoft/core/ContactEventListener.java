@@ -0,0 +1,24 @@
+package com.aliensoft.core;
+
+/**
+ * Receives the contacts of a {@link ContactEvents}, on the thread that updates
+ * the scene. The first object is the one whose contact filter matched the
+ * other, see {@link ContactEvents#watch(GameObject, int)}.
+ */
+public interface ContactEventListener {
+
+	/**
+	 * Two objects started touching
+	 */
+	public void contactBegin(GameObject object, GameObject other);
+
+	/**
+	 * Two objects are still touching, once per update after the one they started in
+	 */
+	public void contactPersist(GameObject object, GameObject other);
+
+	/**
+	 * Two objects stopped touching
+	 */
+	public void contactEnd(GameObject object, GameObject other);
+}
@@ -0,0 +1,261 @@
+package com.aliensoft.core;
+
+import com.aliensoft.core.physics.NativeTracker;
+import com.badlogic.gdx.physics.bullet.collision.ContactListener;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.LongMap;
+import com.badlogic.gdx.utils.Pool;
+
+/**
+ * Collects the contacts bullet starts and ends during a step and hands them to
+ * listeners after it.<br>
+ * Only contacts of watched bodies are reported (see
+ * {@link #watch(GameObject, int)}): bullet matches the contact filter of a body
+ * against the contact flag of the other, which {@link BulletScene} sets to the
+ * collision group of the body, so filtered out contacts never leave native
+ * code. Reported contacts are stored as body user values in a buffer
+ * allocated once, and resolved to objects with an int map of the scene when
+ * dispatched. Pairs still touching get a persist event on every dispatch.<br>
+ * Created by {@link BulletScene#enableContactEvents(int)}. Bullet has one
+ * contact listener per process, so only one scene can have contact events.
+ */
+public class ContactEvents implements Disposable {
+
+	private static final int			BEGIN		= 0;
+	private static final int			END			= 1;
+	private static final int			PERSIST		= 2;
+
+	private static ContactEvents		enabled;
+
+	private final BulletScene			scene;
+	private final Listener				listener;
+
+	/* Events of the current step, written by the thread stepping the world */
+	private final EventBuffer			back;
+	/* Steps not dispatched yet */
+	private final EventBuffer			pending;
+	private final EventBuffer			front;
+	private final Object				lock		= new Object();
+	private volatile int				dropped;
+
+	/* Dispatch, on the thread updating the scene */
+	private final LongMap<Pair>			touching	= new LongMap<>();
+	private final Pool<Pair>			pairPool	= new Pool<Pair>() {
+														@Override
+														protected Pair newObject() {
+															return new Pair();
+														}
+													};
+	private long						dispatches;
+	private final Array<ContactEventListener>	listeners	= new Array<>();
+
+	/**
+	 * @param capacity
+	 *            Events kept between two dispatches, more are dropped
+	 */
+	ContactEvents(BulletScene scene, int capacity) {
+		if (enabled != null)
+			throw new GdxRuntimeException("Contact events are already enabled for another scene");
+		enabled = this;
+
+		this.scene = scene;
+		back = new EventBuffer(capacity);
+		pending = new EventBuffer(capacity);
+		front = new EventBuffer(capacity);
+		listener = NativeTracker.track(new Listener());
+	}
+
+	/**
+	 * Reports the contacts of a body with the bodies of some collision groups.
+	 * The body is the first object of the events. Takes effect on the next step.
+	 *
+	 * @param object
+	 *            An object with a body
+	 * @param groups
+	 *            The collision groups to report contacts with, 0 to stop watching
+	 */
+	public void watch(GameObject object, int groups) {
+		object.body.setContactCallbackFilter(groups);
+	}
+
+	public void addListener(ContactEventListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(ContactEventListener listener) {
+		listeners.removeValue(listener, true);
+	}
+
+	/**
+	 * Publishes the events of the step that just ended. Called by the thread
+	 * that stepped the world.
+	 */
+	void endStep() {
+		synchronized (lock) {
+			dropped += pending.addAll(back);
+		}
+		back.clear();
+	}
+
+	/**
+	 * Sends the published events to the listeners, then a persist event for
+	 * every pair that was already touching
+	 */
+	void dispatch() {
+		synchronized (lock) {
+			front.addAll(pending);
+			pending.clear();
+		}
+
+		dispatches++;
+		for (int i = 0; i < front.size; i++) {
+			int a = front.objects[i * 2], b = front.objects[i * 2 + 1];
+			long key = (long) a << 32 | (b & 0xFFFFFFFFL);
+			if (front.types[i] == BEGIN) {
+				if (touching.containsKey(key))
+					continue;
+				Pair pair = pairPool.obtain();
+				pair.a = a;
+				pair.b = b;
+				pair.began = dispatches;
+				touching.put(key, pair);
+				send(BEGIN, a, b);
+			} else {
+				Pair pair = touching.remove(key);
+				if (pair == null)
+					continue;
+				pairPool.free(pair);
+				send(END, a, b);
+			}
+		}
+		front.clear();
+
+		LongMap.Entries<Pair> entries = touching.entries();
+		while (entries.hasNext()) {
+			Pair pair = entries.next().value;
+			if (pair.began == dispatches)
+				continue;
+			// A body left the scene without bullet ending its contacts
+			if (!send(PERSIST, pair.a, pair.b)) {
+				entries.remove();
+				pairPool.free(pair);
+			}
+		}
+	}
+
+	/**
+	 * @return False if one of the bodies is not in the scene anymore
+	 */
+	private boolean send(int type, int a, int b) {
+		GameObject object = scene.getObject(a), other = scene.getObject(b);
+		if (object == null || other == null)
+			return false;
+
+		for (int i = 0; i < listeners.size; i++) {
+			ContactEventListener listener = listeners.get(i);
+			if (type == BEGIN)
+				listener.contactBegin(object, other);
+			else if (type == END)
+				listener.contactEnd(object, other);
+			else
+				listener.contactPersist(object, other);
+		}
+		return true;
+	}
+
+	/**
+	 * @return The events dropped because the buffer was full, since created
+	 */
+	public int getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * @return The number of pairs touching after the last dispatch
+	 */
+	public int getTouchingCount() {
+		return touching.size;
+	}
+
+	/**
+	 * Stops listening to bullet, called by the scene
+	 */
+	@Override
+	public void dispose() {
+		NativeTracker.free(listener);
+		if (enabled == this)
+			enabled = null;
+	}
+
+	private void record(int type, int userValue0, boolean match0, int userValue1) {
+		// The object that watched the other goes first
+		if (match0) {
+			if (!back.add(type, userValue0, userValue1))
+				dropped++;
+		} else if (!back.add(type, userValue1, userValue0))
+			dropped++;
+	}
+
+	/**
+	 * The callbacks with user values and filter matches, bullet only calls
+	 * them if one of the bodies matches the other
+	 */
+	private class Listener extends ContactListener {
+		@Override
+		public void onContactStarted(int userValue0, boolean match0, int userValue1, boolean match1) {
+			record(BEGIN, userValue0, match0, userValue1);
+		}
+
+		@Override
+		public void onContactEnded(int userValue0, boolean match0, int userValue1, boolean match1) {
+			record(END, userValue0, match0, userValue1);
+		}
+	}
+
+	/**
+	 * Events as user value pairs in flat arrays
+	 */
+	private static class EventBuffer {
+		final int[]	types;
+		final int[]	objects;
+		int			size;
+
+		EventBuffer(int capacity) {
+			types = new int[capacity];
+			objects = new int[capacity * 2];
+		}
+
+		boolean add(int type, int a, int b) {
+			if (size == types.length)
+				return false;
+			types[size] = type;
+			objects[size * 2] = a;
+			objects[size * 2 + 1] = b;
+			size++;
+			return true;
+		}
+
+		/**
+		 * @return The number of events that didn't fit
+		 */
+		int addAll(EventBuffer other) {
+			int count = Math.min(other.size, types.length - size);
+			System.arraycopy(other.types, 0, types, size, count);
+			System.arraycopy(other.objects, 0, objects, size * 2, count * 2);
+			size += count;
+			return other.size - count;
+		}
+
+		void clear() {
+			size = 0;
+		}
+	}
+
+	private static class Pair {
+		int		a, b;
+		/** Dispatch the pair began in */
+		long	began;
+	}
+}
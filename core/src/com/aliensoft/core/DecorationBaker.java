@@ -0,0 +1,329 @@
+package com.aliensoft.core;
+
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.graphics.VertexAttributes.Usage;
+import com.badlogic.gdx.graphics.g3d.Material;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.graphics.g3d.model.MeshPart;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.graphics.g3d.utils.ModelBuilder;
+import com.badlogic.gdx.math.Matrix3;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.IntIntMap;
+import com.badlogic.gdx.utils.ObjectMap;
+import com.badlogic.gdx.utils.ShortArray;
+
+/**
+ * Merges static decoration models into a few big meshes.<br>
+ * The world is split in cubic chunks, and the triangle parts of every decoration
+ * in a chunk that share a material and vertex layout are pre-transformed to world
+ * space and merged into one mesh. Each chunk becomes one model instance, so it is
+ * still culled as a unit, but costs one draw call per material instead of one per
+ * decoration part. Parts that can't be merged are kept as they are, parts too
+ * big for one mesh are split between several.
+ */
+public class DecorationBaker implements Disposable {
+
+	/**
+	 * Indices are shorts, and the bounds calculation of the mesh reads them
+	 * signed, so a merged mesh can't address more vertices
+	 */
+	private static final int		MAX_VERTICES	= Short.MAX_VALUE;
+
+	/** Placeholder material used to key whole chunks */
+	private static final Material	CHUNK_MATERIAL	= new Material("chunk");
+
+	/** Identifies the parts that can be merged together */
+	private static class BatchKey {
+		int			chunkX, chunkY, chunkZ;
+		long		attributesMask;
+		Material	material;
+
+		BatchKey set(int x, int y, int z, long mask, Material material) {
+			chunkX = x;
+			chunkY = y;
+			chunkZ = z;
+			attributesMask = mask;
+			this.material = material;
+			return this;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = chunkX * 73856093 ^ chunkY * 19349663 ^ chunkZ * 83492791;
+			result = 31 * result + (int) (attributesMask ^ (attributesMask >>> 32));
+			return 31 * result + material.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof BatchKey))
+				return false;
+			BatchKey other = (BatchKey) obj;
+			return chunkX == other.chunkX && chunkY == other.chunkY && chunkZ == other.chunkZ
+					&& attributesMask == other.attributesMask && material.equals(other.material);
+		}
+	}
+
+	/** Geometry being merged for one key */
+	private static class Batch {
+		final Material			material;
+		final VertexAttributes	attributes;
+		final FloatArray		vertices	= new FloatArray();
+		final ShortArray		indices		= new ShortArray();
+		final Array<Mesh>		meshes		= new Array<>();
+
+		Batch(Material material, VertexAttributes attributes) {
+			this.material = material;
+			this.attributes = attributes;
+		}
+
+		int vertexCount() {
+			return vertices.size / (attributes.vertexSize / 4);
+		}
+	}
+
+	private final float						chunkSize;
+
+	/** Models created by the last bake, owned by the baker */
+	private final Array<Model>				bakedModels		= new Array<>();
+
+	private final ObjectMap<BatchKey, Batch>	batches			= new ObjectMap<>();
+	private final BatchKey					lookup			= new BatchKey();
+
+	private final Matrix4					partTransform	= new Matrix4();
+	private final Matrix3					normalMatrix	= new Matrix3();
+	private final BoundingBox				bounds			= new BoundingBox();
+	private final Vector3					tmp				= new Vector3();
+	private final IntIntMap					remap			= new IntIntMap();
+
+	private float[]							sourceVertices	= new float[0];
+	private short[]							sourceIndices	= new short[0];
+
+	private int								mergedParts;
+
+	/**
+	 * @param chunkSize
+	 *            Size of the cubic chunks the merged meshes are split in
+	 */
+	public DecorationBaker(float chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Bakes a set of decorations. The source instances are not changed.
+	 *
+	 * @param decorations
+	 *            The static decorations to merge
+	 * @param unmerged
+	 *            Receives the decorations that couldn't be merged (non triangle parts)
+	 * @return One instance per chunk, already in world space
+	 */
+	public Array<ModelInstance> bake(Array<ModelInstance> decorations, Array<ModelInstance> unmerged) {
+		mergedParts = 0;
+		for (ModelInstance instance : decorations) {
+			if (!canMerge(instance)) {
+				unmerged.add(instance);
+				continue;
+			}
+
+			instance.calculateBoundingBox(bounds).mul(instance.transform);
+			bounds.getCenter(tmp);
+			int cx = (int) Math.floor(tmp.x / chunkSize);
+			int cy = (int) Math.floor(tmp.y / chunkSize);
+			int cz = (int) Math.floor(tmp.z / chunkSize);
+
+			for (Node node : instance.nodes)
+				addNode(instance, node, cx, cy, cz);
+		}
+
+		Array<ModelInstance> baked = buildChunks();
+		batches.clear();
+		return baked;
+	}
+
+	/**
+	 * @return The number of decoration parts merged by the last bake
+	 */
+	public int getMergedParts() {
+		return mergedParts;
+	}
+
+	/**
+	 * Only instances made of triangle parts can be merged
+	 */
+	private boolean canMerge(ModelInstance instance) {
+		for (Node node : instance.nodes)
+			if (!canMerge(node))
+				return false;
+		return true;
+	}
+
+	private boolean canMerge(Node node) {
+		for (NodePart part : node.parts)
+			if (part.meshPart.primitiveType != GL20.GL_TRIANGLES || part.bones != null)
+				return false;
+		for (Node child : node.children)
+			if (!canMerge(child))
+				return false;
+		return true;
+	}
+
+	private void addNode(ModelInstance instance, Node node, int cx, int cy, int cz) {
+		for (NodePart part : node.parts) {
+			if (!part.enabled)
+				continue;
+			partTransform.set(instance.transform).mul(node.globalTransform);
+			addPart(part, cx, cy, cz);
+		}
+		for (Node child : node.children)
+			addNode(instance, child, cx, cy, cz);
+	}
+
+	private void addPart(NodePart part, int cx, int cy, int cz) {
+		MeshPart meshPart = part.meshPart;
+		Mesh mesh = meshPart.mesh;
+		VertexAttributes attributes = mesh.getVertexAttributes();
+
+		Batch batch = batches.get(lookup.set(cx, cy, cz, attributes.getMask(), part.material));
+		if (batch == null) {
+			batch = new Batch(part.material, attributes);
+			batches.put(new BatchKey().set(cx, cy, cz, attributes.getMask(), part.material), batch);
+		}
+
+		int stride = mesh.getVertexSize() / 4;
+		if (sourceVertices.length < mesh.getNumVertices() * stride)
+			sourceVertices = new float[mesh.getNumVertices() * stride];
+		mesh.getVertices(sourceVertices);
+
+		// Keep the part in one mesh when it fits in one
+		int count = meshPart.numVertices;
+		if (count <= MAX_VERTICES && batch.vertexCount() + count > MAX_VERTICES)
+			flush(batch);
+
+		normalMatrix.set(partTransform).inv().transpose();
+		VertexAttribute position = attributes.findByUsage(Usage.Position);
+		VertexAttribute normal = attributes.findByUsage(Usage.Normal);
+
+		remap.clear();
+		if (mesh.getNumIndices() > 0) {
+			if (sourceIndices.length < mesh.getNumIndices())
+				sourceIndices = new short[mesh.getNumIndices()];
+			mesh.getIndices(sourceIndices);
+			for (int i = meshPart.indexOffset; i < meshPart.indexOffset + count; i++) {
+				if ((i - meshPart.indexOffset) % 3 == 0 && batch.vertexCount() + 3 > MAX_VERTICES) {
+					// Split the part at a triangle boundary
+					flush(batch);
+					remap.clear();
+				}
+				int source = sourceIndices[i] & 0xFFFF;
+				int merged = remap.get(source, -1);
+				if (merged == -1) {
+					merged = batch.vertexCount();
+					remap.put(source, merged);
+					copyVertex(batch, source * stride, stride, position, normal);
+				}
+				batch.indices.add((short) merged);
+			}
+		} else {
+			for (int i = meshPart.indexOffset; i < meshPart.indexOffset + count; i++) {
+				if ((i - meshPart.indexOffset) % 3 == 0 && batch.vertexCount() + 3 > MAX_VERTICES)
+					flush(batch);
+				batch.indices.add((short) batch.vertexCount());
+				copyVertex(batch, i * stride, stride, position, normal);
+			}
+		}
+		mergedParts++;
+	}
+
+	private void copyVertex(Batch batch, int offset, int stride, VertexAttribute position, VertexAttribute normal) {
+		int start = batch.vertices.size;
+		batch.vertices.addAll(sourceVertices, offset, stride);
+		float[] items = batch.vertices.items;
+
+		if (position != null) {
+			int p = start + position.offset / 4;
+			tmp.set(items[p], items[p + 1], position.numComponents > 2 ? items[p + 2] : 0f).mul(partTransform);
+			items[p] = tmp.x;
+			items[p + 1] = tmp.y;
+			if (position.numComponents > 2)
+				items[p + 2] = tmp.z;
+		}
+		if (normal != null) {
+			int n = start + normal.offset / 4;
+			tmp.set(items[n], items[n + 1], items[n + 2]).mul(normalMatrix).nor();
+			items[n] = tmp.x;
+			items[n + 1] = tmp.y;
+			items[n + 2] = tmp.z;
+		}
+	}
+
+	/**
+	 * Turns the geometry collected so far into a mesh and starts a new one
+	 */
+	private void flush(Batch batch) {
+		if (batch.indices.size == 0)
+			return;
+
+		Mesh mesh = new Mesh(true, batch.vertexCount(), batch.indices.size, batch.attributes);
+		mesh.setVertices(batch.vertices.toArray());
+		mesh.setIndices(batch.indices.toArray());
+		batch.meshes.add(mesh);
+		batch.vertices.clear();
+		batch.indices.clear();
+	}
+
+	private Array<ModelInstance> buildChunks() {
+		// Group the batches of each chunk in one model
+		ObjectMap<BatchKey, Array<Batch>> chunks = new ObjectMap<>();
+		for (ObjectMap.Entry<BatchKey, Batch> entry : batches.entries()) {
+			BatchKey key = entry.key;
+			BatchKey chunkKey = new BatchKey().set(key.chunkX, key.chunkY, key.chunkZ, 0, CHUNK_MATERIAL);
+			Array<Batch> chunk = chunks.get(chunkKey);
+			if (chunk == null) {
+				chunk = new Array<>();
+				chunks.put(chunkKey, chunk);
+			}
+			chunk.add(entry.value);
+		}
+
+		Array<ModelInstance> baked = new Array<>();
+		ModelBuilder builder = new ModelBuilder();
+		for (Array<Batch> chunk : chunks.values()) {
+			builder.begin();
+			builder.node();
+			int part = 0;
+			for (Batch batch : chunk) {
+				flush(batch);
+				for (Mesh mesh : batch.meshes) {
+					builder.part("baked" + (part++), mesh, GL20.GL_TRIANGLES, 0, mesh.getNumIndices(), batch.material);
+					builder.manage(mesh);
+				}
+			}
+			Model model = builder.end();
+			bakedModels.add(model);
+			baked.add(new ModelInstance(model));
+		}
+		return baked;
+	}
+
+	/**
+	 * Disposes the baked models
+	 */
+	@Override
+	public void dispose() {
+		for (Model model : bakedModels)
+			model.dispose();
+		bakedModels.clear();
+	}
+}
@@ -0,0 +1,42 @@
+package com.aliensoft.core;
+
+import com.badlogic.gdx.math.collision.BoundingBox;
+
+/**
+ * Rules used by a {@link GameObjectPool} to despawn live objects.<br>
+ * Every rule is disabled by default.
+ */
+public class DespawnPolicy {
+
+	/** Maximum live objects, the oldest is despawned to make room. 0 for no limit. */
+	public int			maxLive;
+
+	/** Seconds a object lives. 0 to live forever. */
+	public float		timeToLive;
+
+	/** Despawn objects once bullet puts their body to sleep */
+	public boolean		despawnWhenAsleep;
+
+	/** Objects that leave these bounds are despawned. Null to disable. */
+	public BoundingBox	bounds;
+
+	public DespawnPolicy setMaxLive(int maxLive) {
+		this.maxLive = maxLive;
+		return this;
+	}
+
+	public DespawnPolicy setTimeToLive(float timeToLive) {
+		this.timeToLive = timeToLive;
+		return this;
+	}
+
+	public DespawnPolicy setDespawnWhenAsleep(boolean despawnWhenAsleep) {
+		this.despawnWhenAsleep = despawnWhenAsleep;
+		return this;
+	}
+
+	public DespawnPolicy setBounds(BoundingBox bounds) {
+		this.bounds = bounds;
+		return this;
+	}
+}
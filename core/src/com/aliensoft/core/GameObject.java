@@ -1,71 +1,418 @@
 package com.aliensoft.core;
 
+import com.aliensoft.core.physics.NativeTracker;
+import com.aliensoft.core.physics.ShapeRegistry;
+import com.badlogic.gdx.graphics.Camera;
 import com.badlogic.gdx.graphics.g3d.Model;
 import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.math.Matrix4;
 import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
 import com.badlogic.gdx.physics.bullet.collision.btCollisionShape;
 import com.badlogic.gdx.physics.bullet.dynamics.btRigidBody;
+import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.FloatArray;
 
 public class GameObject implements Disposable {
 
 	/* Bullet */
 	public btRigidBody								body;
 	private btRigidBody.btRigidBodyConstructionInfo	constructionInfo;
+	/** True when the construction info was created for this object alone */
+	private boolean									ownsInfo;
+	private GameObjectMotionState					motionState;
+	/** True while queued in the dirty list of a scene */
+	boolean											dirty;
+
+	/* physics thread */
+	/** Slot in the snapshots of the physics thread, only used on that thread */
+	int												snapshotSlot	= -1;
+	/** Incremented on every add to a scene, tells respawns apart */
+	int												generation;
+	/** Activation of the body in the last snapshot, only used on the render thread */
+	boolean											snapshotActive	= true;
+
+	/** World transform, the transform of the model when there is one */
+	private Matrix4									transform;
 
 	/* 3d api */
+	/** Null for objects that are only simulated, like on a server */
 	private ModelInstance							model;
+	/** Bounds of the model in model space */
+	private final BoundingBox						localBounds	= new BoundingBox();
+
+	/* level of detail */
+	/** Models ordered from the nearest to the farthest, null when there is a single level */
+	private Array<ModelInstance>					lodModels;
+	private FloatArray								lodDistances;
+	/** Squared camera distance to switch to a farther level, per level */
+	private float[]									lodFarther;
+	/** Squared camera distance to switch back to a nearer level, per level */
+	private float[]									lodNearer;
+	private float									lodHysteresis	= 0.1f;
+	private int										lodLevel;
+	/** The farthest level is a billboard facing the camera */
+	private boolean									lodImpostor;
+	/** Model shown this frame */
+	private ModelInstance							current;
+	private final Vector3							lodPosition		= new Vector3();
+
+	/* culling */
+	int												cullingProxy	= -1;
+
+	/* render queue */
+	IObjectRenderer									renderer;
+	long											sortKey;
+	int												visibleFrame;
 
 	/* game api */
 	private String				objectID;
 	private static int								UID;
 
 	public GameObject() {
+		transform = new Matrix4();
 		makeID();
 	}
 
+	/**
+	 * Creates a object with a construction info of its own, freed with it.
+	 * 
+	 * @param mdl
+	 * @param shape
+	 * @param mass
+	 * @deprecated Calculates the inertia and allocates a construction info per
+	 *             object. Take a shared info from a {@link ShapeRegistry}
+	 *             instead (see {@link ShapeRegistry#getInfo(btCollisionShape, float)}).
+	 */
+	@Deprecated
 	public GameObject(Model mdl, btCollisionShape shape, float mass) {
-		model = new ModelInstance(mdl);
-		Vector3 localInertia = new Vector3(0, 0, 0);
-		if (mass > 0f)
-			shape.calculateLocalInertia(mass, localInertia);
-		constructionInfo = new btRigidBody.btRigidBodyConstructionInfo(mass, null, shape, localInertia);
-		body = new btRigidBody(constructionInfo);
-		body.setUserValue(UID);
-		makeID();
+		this(mdl, createInfo(shape, mass));
+		ownsInfo = true;
+	}
+
+	/**
+	 * Creates a object that is only simulated, it has no model to render.
+	 * Used by servers, which don't have a GL context.
+	 * 
+	 * @param shape
+	 * @param mass
+	 * @deprecated Like {@link #GameObject(Model, btCollisionShape, float)},
+	 *             pass a null model and a shared info instead.
+	 */
+	@Deprecated
+	public GameObject(btCollisionShape shape, float mass) {
+		this((Model) null, shape, mass);
+	}
+
+	/**
+	 * Creates a object from a construction info. The info isn't owned by the object.
+	 * 
+	 * @param mdl
+	 *            The model to render, null if the object is only simulated
+	 * @param info
+	 */
+	public GameObject(Model mdl, btRigidBody.btRigidBodyConstructionInfo info) {
+		if (mdl != null) {
+			model = new ModelInstance(mdl);
+			model.calculateBoundingBox(localBounds);
+			current = model;
+			transform = model.transform;
+		} else
+			transform = new Matrix4();
+		constructionInfo = info;
+		body = NativeTracker.track(new btRigidBody(constructionInfo));
+		body.setUserValue(makeID());
+	}
+
+	/**
+	 * Lets bullet push the transform of this object after each step instead of
+	 * reading it every frame in {@link #update()}. Only bodies that moved are
+	 * synced. Must be called before the object is registered in a scene.
+	 */
+	public void enableMotionState() {
+		if (motionState != null)
+			return;
+
+		motionState = NativeTracker.track(new GameObjectMotionState(this));
+		body.setMotionState(motionState);
+	}
+
+	/**
+	 * @return True if bullet pushes the transform of this object
+	 */
+	public boolean hasMotionState() {
+		return motionState != null;
+	}
+
+	/**
+	 * Sets the list this object is queued in when bullet moves it
+	 */
+	void setDirtyList(Array<GameObject> dirtyList) {
+		if (motionState != null)
+			motionState.dirtyList = dirtyList;
+	}
+
+	/**
+	 * Moves the body to a transform and stops it. Used to reuse a object
+	 * removed from the world. The model transform is not changed.
+	 * 
+	 * @param transform
+	 *            The new body transform
+	 */
+	public void resetBody(Matrix4 transform) {
+		body.setWorldTransform(transform);
+		body.setInterpolationWorldTransform(transform);
+		body.setLinearVelocity(Vector3.Zero);
+		body.setAngularVelocity(Vector3.Zero);
+		body.clearForces();
+	}
+
+	void setPhysicsThread(PhysicsThread physics, int slot) {
+		snapshotSlot = slot;
+		if (motionState != null)
+			motionState.physics = physics;
+	}
+
+	/**
+	 * Adds a level of detail used when the camera is farther than a distance.
+	 * Levels must be added from the nearest to the farthest, the model given in
+	 * the constructor is the level used below the first distance. Every level
+	 * shares the transform of the object.
+	 * 
+	 * @param mdl
+	 *            The model of the level
+	 * @param distance
+	 *            The camera distance the level starts at
+	 */
+	public void addLod(Model mdl, float distance) {
+		if (model == null)
+			throw new IllegalStateException("Objects without a model have no levels of detail");
+		if (lodImpostor)
+			throw new IllegalStateException("The impostor must be the farthest level");
+
+		ModelInstance lod = new ModelInstance(mdl);
+		lod.transform = transform;
+		addLod(lod, distance);
+	}
+
+	/**
+	 * Adds a billboard as the farthest level of detail. The model should be a
+	 * quad facing +Z, it is turned towards the camera every frame it is shown.
+	 * 
+	 * @param quad
+	 *            The impostor model, usually a textured quad
+	 * @param distance
+	 *            The camera distance the impostor starts at
+	 */
+	public void setImpostor(Model quad, float distance) {
+		if (model == null)
+			throw new IllegalStateException("Objects without a model have no levels of detail");
+		if (lodImpostor)
+			throw new IllegalStateException("The object already has an impostor");
+
+		addLod(new ModelInstance(quad), distance);
+		lodImpostor = true;
+	}
+
+	private void addLod(ModelInstance lod, float distance) {
+		if (lodModels == null) {
+			lodModels = new Array<>(true, 4, ModelInstance.class);
+			lodDistances = new FloatArray(4);
+			lodModels.add(model);
+			lodDistances.add(0f);
+		} else if (distance <= lodDistances.peek())
+			throw new IllegalArgumentException("Levels must be added from the nearest to the farthest");
+
+		lodModels.add(lod);
+		lodDistances.add(distance);
+		updateLodThresholds();
+	}
+
+	/**
+	 * Sets how far past a level distance the camera has to go before the level
+	 * changes, so objects on a threshold don't flicker between two levels.
+	 * 
+	 * @param hysteresis
+	 *            Fraction of the level distance, 0.1 by default
+	 */
+	public void setLodHysteresis(float hysteresis) {
+		lodHysteresis = hysteresis;
+		updateLodThresholds();
+	}
+
+	private void updateLodThresholds() {
+		if (lodModels == null)
+			return;
+
+		int levels = lodDistances.size;
+		if (lodFarther == null || lodFarther.length != levels) {
+			lodFarther = new float[levels];
+			lodNearer = new float[levels];
+		}
+		for (int i = 0; i < levels; i++) {
+			float farther = lodDistances.get(i) * (1f + lodHysteresis);
+			float nearer = lodDistances.get(i) * (1f - lodHysteresis);
+			lodFarther[i] = farther * farther;
+			lodNearer[i] = nearer * nearer;
+		}
+	}
+
+	/**
+	 * Picks the level of detail for this frame. Called by the scene before the
+	 * object is rendered.
+	 * 
+	 * @param cam
+	 *            The camera the object is rendered to
+	 * @return True if the level changed, the model to render is then a
+	 *         different one (see {@link #getRenderModel()})
+	 */
+	boolean updateLod(Camera cam) {
+		if (lodModels == null)
+			return false;
+
+		float dst2 = cam.position.dst2(transform.getTranslation(lodPosition));
+		int level = lodLevel;
+		int last = lodModels.size - 1;
+		while (level < last && dst2 > lodFarther[level + 1])
+			level++;
+		while (level > 0 && dst2 < lodNearer[level])
+			level--;
+
+		boolean changed = level != lodLevel;
+		lodLevel = level;
+		current = lodModels.get(level);
+		if (lodImpostor && level == last)
+			current.transform.setToWorld(lodPosition, cam.direction, cam.up);
+		return changed;
+	}
+
+	/**
+	 * @return The level of detail picked in the last render, 0 is the nearest
+	 */
+	public int getLodLevel() {
+		return lodLevel;
 	}
 
 	public void translate(Vector3 pos) {
-		model.transform.trn(pos);
-		body.setWorldTransform(model.transform);
+		transform.trn(pos);
+		setBodyTransform();
 	}
 
 	public void setAngles(float pitch, float yaw, float roll) {
-		model.transform.setFromEulerAngles(pitch, yaw, roll);
-		body.setWorldTransform(model.transform);
+		transform.setFromEulerAngles(pitch, yaw, roll);
+		setBodyTransform();
+	}
+
+	private void setBodyTransform() {
+		body.setWorldTransform(transform);
+		if (motionState != null) {
+			// Bullet syncs the motion state from the interpolation transform
+			body.setInterpolationWorldTransform(transform);
+			motionState.markDirty();
+		}
 	}
 
 	/**
-	 * Updates the model transform from the bullet rigidbody transform
+	 * Updates the transform from the bullet rigidbody transform
 	 */
 	public void update() {
-		body.getWorldTransform(model.transform);
+		body.getWorldTransform(transform);
+	}
+
+	/**
+	 * Calculates the world space bounds of this object model
+	 * 
+	 * @param out
+	 *            The box to store the bounds
+	 * @return out
+	 */
+	public BoundingBox getBounds(BoundingBox out) {
+		return out.set(localBounds).mul(transform);
+	}
+
+	/**
+	 * @return The world transform of this object, shared with its model
+	 */
+	public Matrix4 getTransform() {
+		return transform;
 	}
 
+	/**
+	 * @return The model holding the transform of this object, the nearest level
+	 *         of detail. Null if the object is only simulated.
+	 */
 	public ModelInstance getModel() {
 		return model;
 	}
 
+	/**
+	 * @return The model of the level of detail picked in the last render
+	 */
+	public ModelInstance getRenderModel() {
+		return current;
+	}
+
+	private static btRigidBody.btRigidBodyConstructionInfo createInfo(btCollisionShape shape, float mass) {
+		Vector3 inertia = new Vector3();
+		if (mass > 0f)
+			shape.calculateLocalInertia(mass, inertia);
+		return NativeTracker.track(new btRigidBody.btRigidBodyConstructionInfo(mass, null, shape, inertia));
+	}
+
+	/**
+	 * Frees the body and motion state. The body must be out of its world, with
+	 * a physics thread the removal must have run (see {@link BulletScene#post(Runnable)}).
+	 */
 	@Override
 	public void dispose() {
-		constructionInfo.dispose();
+		NativeTracker.free(body);
+		NativeTracker.free(motionState);
+		if (ownsInfo)
+			NativeTracker.free(constructionInfo);
 	}
 
 	public String getObjectID() {
 		return objectID;
 	}
 
-	private void makeID() {
-		objectID = "OBJ_" + (UID++);
+	/**
+	 * @return The number of the generated ID, unique among the objects
+	 */
+	private int makeID() {
+		int id = nextID();
+		objectID = "OBJ_" + id;
+		return id;
+	}
+
+	/** Objects are also created on the loader threads of the world streamer */
+	private static synchronized int nextID() {
+		return UID++;
+	}
+
+	private static synchronized void skipID(int id) {
+		UID = Math.max(UID, id + 1);
+	}
+
+	/**
+	 * Names an object or restores the ID of a saved one, before it is
+	 * registered in a scene. Generated IDs skip restored ones.
+	 */
+	public void setObjectID(String id) {
+		objectID = id;
+		if (id.startsWith("OBJ_")) {
+			try {
+				skipID(Integer.parseInt(id.substring(4)));
+			} catch (NumberFormatException e) {
+				// Not a generated ID
+			}
+		}
+	}
+
+	/**
+	 * @return The mass of the body, 0 for static bodies
+	 */
+	public float getMass() {
+		return constructionInfo.getMass();
 	}
 }
@@ -0,0 +1,53 @@
+package com.aliensoft.core;
+
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.physics.bullet.linearmath.btMotionState;
+import com.badlogic.gdx.utils.Array;
+
+/**
+ * Motion state that lets bullet push the transform of a {@link GameObject}.<br>
+ * Bullet only calls {@link #setWorldTransform(Matrix4)} for active bodies that
+ * moved during the step, so sleeping and static bodies cost nothing.
+ */
+class GameObjectMotionState extends btMotionState {
+
+	private final GameObject	owner;
+
+	/** Where the owner is queued when it moves, null when not in a scene */
+	Array<GameObject>			dirtyList;
+
+	/** Set while the owner is simulated on a physics thread */
+	volatile PhysicsThread		physics;
+
+	GameObjectMotionState(GameObject owner) {
+		this.owner = owner;
+	}
+
+	@Override
+	public void getWorldTransform(Matrix4 worldTrans) {
+		worldTrans.set(owner.getTransform());
+	}
+
+	@Override
+	public void setWorldTransform(Matrix4 worldTrans) {
+		PhysicsThread physics = this.physics;
+		if (physics != null) {
+			// The model belongs to the render thread, it reads the snapshot instead
+			physics.capture(owner, worldTrans);
+			return;
+		}
+
+		owner.getTransform().set(worldTrans);
+		markDirty();
+	}
+
+	/**
+	 * Queues the owner once until the dirty list is consumed
+	 */
+	void markDirty() {
+		if (!owner.dirty && dirtyList != null) {
+			owner.dirty = true;
+			dirtyList.add(owner);
+		}
+	}
+}
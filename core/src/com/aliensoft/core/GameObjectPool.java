@@ -0,0 +1,216 @@
+package com.aliensoft.core;
+
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.physics.bullet.dynamics.btRigidBody.btRigidBodyConstructionInfo;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.FloatArray;
+
+/**
+ * Recycles {@link GameObject}s of one kind (model and construction info) in a {@link BulletScene}.<br>
+ * Despawned objects keep their rigid body and model instance and are reused by the
+ * next spawn, so once the pool is warm spawning doesn't create native objects.
+ * Live objects are despawned by the rules of a {@link DespawnPolicy} on {@link #update(float)}.
+ */
+public class GameObjectPool implements Disposable {
+
+	private final BulletScene		scene;
+	private final Model				model;
+	private final btRigidBodyConstructionInfo	info;
+	private final short				group, mask;
+	private final DespawnPolicy		policy;
+
+	/** Live objects, oldest first */
+	private final Array<GameObject>	live		= new Array<>(true, 64);
+	/** Time each live object was spawned */
+	private final FloatArray		spawnTimes	= new FloatArray(true, 64);
+	private final Array<GameObject>	free		= new Array<>(false, 64);
+
+	private boolean					motionStates	= true;
+	private float					time;
+
+	private final Vector3			tmp			= new Vector3();
+
+	/**
+	 * @param scene
+	 *            The scene the objects are spawned in
+	 * @param model
+	 *            The model of the objects, null on servers where they are only simulated
+	 * @param info
+	 *            The shape and mass, shared by the objects, usually from
+	 *            {@link com.aliensoft.core.physics.ShapeRegistry#getInfo}
+	 * @param group
+	 *            The collision group of the bodies
+	 * @param mask
+	 *            The groups the bodies collide with
+	 * @param policy
+	 *            The despawn rules
+	 */
+	public GameObjectPool(BulletScene scene, Model model, btRigidBodyConstructionInfo info, short group,
+			short mask, DespawnPolicy policy) {
+		this.scene = scene;
+		this.model = model;
+		this.info = info;
+		this.group = group;
+		this.mask = mask;
+		this.policy = policy;
+	}
+
+	/**
+	 * Sets if new objects use a motion state (see {@link GameObject#enableMotionState()}).
+	 * Defaults to true.
+	 */
+	public void setMotionStates(boolean motionStates) {
+		this.motionStates = motionStates;
+	}
+
+	/**
+	 * Creates some objects up front so the first spawns don't allocate
+	 * 
+	 * @param count
+	 *            How many free objects the pool should have
+	 */
+	public void preallocate(int count) {
+		while (free.size < count)
+			free.add(newObject());
+	}
+
+	/**
+	 * Spawns a object at a position. If the policy limits the live count the
+	 * oldest object is despawned to make room.
+	 * 
+	 * @param position
+	 *            The world position of the new object
+	 * @return The spawned object
+	 */
+	public GameObject spawn(Vector3 position) {
+		return spawn(position, null);
+	}
+
+	/**
+	 * Spawns a object at a position and pushes it.
+	 * 
+	 * @param position
+	 *            The world position of the new object
+	 * @param impulse
+	 *            Impulse applied to the body once it is in the world, can be null
+	 * @return The spawned object
+	 */
+	public GameObject spawn(Vector3 position, Vector3 impulse) {
+		if (policy.maxLive > 0 && live.size >= policy.maxLive)
+			despawnAt(0);
+
+		GameObject obj = free.size > 0 ? free.pop() : newObject();
+		obj.getTransform().setToTranslation(position);
+		scene.addObject(obj, group, mask, true, impulse);
+
+		live.add(obj);
+		spawnTimes.add(time);
+		return obj;
+	}
+
+	/**
+	 * Despawns a live object and keeps it for reuse
+	 * 
+	 * @param obj
+	 *            The object to despawn
+	 * @return False if the object isn't live in this pool
+	 */
+	public boolean despawn(GameObject obj) {
+		int index = live.indexOf(obj, true);
+		if (index == -1)
+			return false;
+
+		despawnAt(index);
+		return true;
+	}
+
+	/**
+	 * Applies the despawn policy to the live objects
+	 * 
+	 * @param delta
+	 *            Seconds since the last update
+	 */
+	public void update(float delta) {
+		time += delta;
+
+		// Compact survivors in place so despawning many doesn't shift the arrays many times
+		int kept = 0;
+		for (int i = 0; i < live.size; i++) {
+			GameObject obj = live.get(i);
+			if (shouldDespawn(obj, spawnTimes.get(i))) {
+				release(obj);
+			} else {
+				live.set(kept, obj);
+				spawnTimes.set(kept, spawnTimes.get(i));
+				kept++;
+			}
+		}
+		live.truncate(kept);
+		spawnTimes.size = kept;
+	}
+
+	private boolean shouldDespawn(GameObject obj, float spawnTime) {
+		if (policy.timeToLive > 0 && time - spawnTime >= policy.timeToLive)
+			return true;
+
+		if (policy.despawnWhenAsleep && !scene.isActive(obj))
+			return true;
+
+		if (policy.bounds != null && !policy.bounds.contains(obj.getTransform().getTranslation(tmp)))
+			return true;
+
+		return false;
+	}
+
+	private void despawnAt(int index) {
+		release(live.removeIndex(index));
+		spawnTimes.removeIndex(index);
+	}
+
+	private void release(GameObject obj) {
+		scene.removeObject(obj);
+		free.add(obj);
+	}
+
+	private GameObject newObject() {
+		GameObject obj = new GameObject(model, info);
+		if (motionStates)
+			obj.enableMotionState();
+		return obj;
+	}
+
+	/**
+	 * @return The number of spawned objects
+	 */
+	public int getLiveCount() {
+		return live.size;
+	}
+
+	/**
+	 * @return The number of objects waiting for reuse
+	 */
+	public int getFreeCount() {
+		return free.size;
+	}
+
+	/**
+	 * Despawns every live object and disposes all of them. The bodies are
+	 * freed after the physics thread removed them from the world.
+	 */
+	@Override
+	public void dispose() {
+		while (live.size > 0)
+			despawnAt(live.size - 1);
+		final Array<GameObject> disposed = new Array<>(free);
+		free.clear();
+		scene.post(new Runnable() {
+			@Override
+			public void run() {
+				for (GameObject obj : disposed)
+					obj.dispose();
+			}
+		});
+	}
+}
@@ -12,7 +12,7 @@ public class GameObjectRenderer implements IObjectRenderer {
 
 	@Override
 	public void render(GameObject obj, Environment env, ModelBatch batch) {
-		batch.render(obj.getModel(), env);
+		batch.render(obj.getRenderModel(), env);
 	}
 
 }
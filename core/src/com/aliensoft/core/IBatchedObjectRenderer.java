@@ -0,0 +1,14 @@
+package com.aliensoft.core;
+
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.graphics.g3d.Environment;
+
+/**
+ * A renderer that collects objects during {@link #render} and draws them all
+ * at once when the scene calls {@link #flush}, after the model batch ended.
+ */
+public interface IBatchedObjectRenderer extends IObjectRenderer {
+
+	public void flush(Environment env, Camera cam);
+
+}
@@ -0,0 +1,599 @@
+package com.aliensoft.core;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import com.aliensoft.core.lighting.CascadedShadows;
+import com.aliensoft.core.lighting.ClusteredLights;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.g3d.Environment;
+import com.badlogic.gdx.graphics.g3d.Material;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.ModelBatch;
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.graphics.g3d.Renderable;
+import com.badlogic.gdx.graphics.g3d.attributes.BlendingAttribute;
+import com.badlogic.gdx.graphics.g3d.attributes.ColorAttribute;
+import com.badlogic.gdx.graphics.g3d.attributes.DepthTestAttribute;
+import com.badlogic.gdx.graphics.g3d.attributes.FloatAttribute;
+import com.badlogic.gdx.graphics.g3d.attributes.IntAttribute;
+import com.badlogic.gdx.graphics.g3d.attributes.TextureAttribute;
+import com.badlogic.gdx.graphics.g3d.environment.AmbientCubemap;
+import com.badlogic.gdx.graphics.g3d.environment.DirectionalLight;
+import com.badlogic.gdx.graphics.g3d.model.MeshPart;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.graphics.g3d.shaders.DefaultShader;
+import com.badlogic.gdx.graphics.g3d.utils.TextureDescriptor;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.BufferUtils;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.IdentityMap;
+import com.badlogic.gdx.utils.ObjectMap;
+
+/**
+ * Draws {@link GameObject}s sharing a {@link Model} with one instanced draw call per
+ * mesh part.<br>
+ * The world transforms of all instances are streamed to the GPU with a single
+ * buffer update per frame. Needs the instanced draws of {@link Instancing},
+ * without them the objects are rendered through the model batch like
+ * {@link GameObjectRenderer}.
+ * Uses the lighting shaders with the instancedFlag defined, compiled for the
+ * attributes of each part like {@link DefaultShader} does. Blended parts are
+ * drawn with their instances unsorted.
+ */
+public class InstancedModelRenderer implements IBatchedObjectRenderer, Disposable {
+
+	private static final int					FLOATS_PER_INSTANCE	= 16;
+	private static final int					BYTES_PER_INSTANCE	= FLOATS_PER_INSTANCE * 4;
+
+	/** Units 0 to 3 hold the light clusters and the shadow maps */
+	private static final int					FIRST_MATERIAL_UNIT	= 4;
+
+	/** A program compiled for one prefix */
+	private static class Program {
+		final ShaderProgram	shader;
+		final int[]			instanceLocations	= new int[4];
+
+		Program(ShaderProgram shader) {
+			this.shader = shader;
+			for (int i = 0; i < 4; i++)
+				instanceLocations[i] = shader.getAttributeLocation("a_instanceTrans" + i);
+		}
+	}
+
+	/** Instances of one model collected this frame */
+	private static class Group {
+		final Model	model;
+		float[]		transforms	= new float[FLOATS_PER_INSTANCE * 16];
+		int			count;
+		/** First instance of the group in the instance buffer */
+		int			offset;
+
+		Group(Model model) {
+			this.model = model;
+		}
+
+		void add(float[] transform) {
+			if ((count + 1) * FLOATS_PER_INSTANCE > transforms.length) {
+				float[] grown = new float[transforms.length * 2];
+				System.arraycopy(transforms, 0, grown, 0, count * FLOATS_PER_INSTANCE);
+				transforms = grown;
+			}
+			System.arraycopy(transform, 0, transforms, count * FLOATS_PER_INSTANCE, FLOATS_PER_INSTANCE);
+			count++;
+		}
+	}
+
+	private final Class<?>						renderClass;
+
+	private final ObjectMap<Model, Group>		groups				= new ObjectMap<>();
+	private final Array<Group>					activeGroups		= new Array<>(false, 16);
+	private int									instanceCount;
+
+	/** Point light clusters, the shader reads them when set */
+	private ClusteredLights						clusteredLights;
+
+	/** Shadows of the directional light, the shader reads them when set */
+	private CascadedShadows						shadows;
+
+	/** Point lights come from the clusters, like the shaders of the batch */
+	private final DefaultShader.Config			config				= new DefaultShader.Config();
+	/** Programs by prefix, and the program of each part for the current environment */
+	private final ObjectMap<String, Program>	programs			= new ObjectMap<>();
+	private final IdentityMap<NodePart, Program>	partPrograms	= new IdentityMap<>();
+	private Environment							partEnvironment;
+	private long								partEnvironmentMask;
+	private final Renderable					renderable			= new Renderable();
+	/** Told about every program compiled, null to not record them */
+	private ShaderVariantRegistry				variants;
+
+	/** Program in use during a flush */
+	private Program								program;
+	private ShaderProgram						shader;
+	private int									instanceBuffer;
+	private int									instanceBufferCapacity;
+	private FloatBuffer							instanceData;
+	private final IntBuffer						handle				= BufferUtils.newIntBuffer(1);
+
+	private final Color							tmpColor			= new Color();
+	private final AmbientCubemap				ambientCubemap		= new AmbientCubemap();
+
+	/** The instanced draws of the context, resolved on the first render */
+	private Instancing							instancing;
+	private boolean								instancingChecked;
+
+	private int									drawCalls;
+	private int									drawnInstances;
+
+	/**
+	 * @param renderClass
+	 *            The object class this renderer is registered for
+	 */
+	public InstancedModelRenderer(Class<? extends GameObject> renderClass) {
+		this.renderClass = renderClass;
+		config.numPointLights = 0;
+	}
+
+	@Override
+	public Class<?> getRenderClass() {
+		return renderClass;
+	}
+
+	@Override
+	public void render(GameObject obj, Environment env, ModelBatch batch) {
+		ModelInstance instance = obj.getRenderModel();
+		if (!isSupported()) {
+			batch.render(instance, env);
+			return;
+		}
+
+		Model model = instance.model;
+		Group group = groups.get(model);
+		if (group == null) {
+			group = new Group(model);
+			groups.put(model, group);
+		}
+		if (group.count == 0)
+			activeGroups.add(group);
+		group.add(instance.transform.val);
+		instanceCount++;
+	}
+
+	@Override
+	public void flush(Environment env, Camera cam) {
+		drawCalls = 0;
+		drawnInstances = instanceCount;
+		if (instanceCount == 0)
+			return;
+
+		prepare();
+
+		uploadInstances();
+
+		if (env != partEnvironment || (env != null && env.getMask() != partEnvironmentMask)) {
+			// Fog and cubemaps of the environment change the prefixes
+			partPrograms.clear();
+			partEnvironment = env;
+			partEnvironmentMask = env != null ? env.getMask() : 0;
+		}
+
+		for (Group group : activeGroups) {
+			for (Node node : group.model.nodes)
+				drawNode(node, group, env, cam);
+			group.count = 0;
+		}
+		if (program != null) {
+			shader.end();
+			program = null;
+			shader = null;
+		}
+
+		// The RenderContext of the model batch expects these disabled
+		GL20 gl = Gdx.gl20;
+		gl.glDisable(GL20.GL_DEPTH_TEST);
+		gl.glDisable(GL20.GL_CULL_FACE);
+		gl.glDisable(GL20.GL_BLEND);
+		gl.glDepthMask(true);
+
+		activeGroups.clear();
+		instanceCount = 0;
+	}
+
+	/**
+	 * Lights the instances with the point lights of a cluster grid. Set by the
+	 * scene when the renderer is registered.
+	 * 
+	 * @param clusteredLights
+	 *            The clusters updated by the scene every frame, null to disable
+	 */
+	public void setClusteredLights(ClusteredLights clusteredLights) {
+		this.clusteredLights = clusteredLights;
+		// Recompiled with the cluster defines on the next flush
+		disposePrograms();
+	}
+
+	/**
+	 * Shadows the instances with the cascades of the scene. Set by the scene
+	 * when the renderer is registered.
+	 * 
+	 * @param shadows
+	 *            The shadows rendered by the scene every frame, null to disable
+	 */
+	public void setShadows(CascadedShadows shadows) {
+		this.shadows = shadows;
+		// Recompiled with the shadow defines on the next flush
+		disposePrograms();
+	}
+
+	/**
+	 * @param variants
+	 *            Registry recording the variants compiled by this renderer
+	 */
+	public void setVariantRegistry(ShaderVariantRegistry variants) {
+		this.variants = variants;
+	}
+
+	/**
+	 * Must be called with the context current
+	 * 
+	 * @return True if the objects are drawn with instanced draw calls, false
+	 *         if they go through the model batch
+	 */
+	public boolean isSupported() {
+		if (!instancingChecked) {
+			instancing = Instancing.get();
+			instancingChecked = true;
+		}
+		return instancing != null;
+	}
+
+	/**
+	 * Creates the instance buffer now instead of on the first flush. Does
+	 * nothing without instanced draws.
+	 */
+	public void prepare() {
+		if (!isSupported())
+			return;
+		if (instanceBuffer == 0)
+			createInstanceBuffer();
+	}
+
+	/**
+	 * Compiles the programs of the parts of a model now instead of on the
+	 * first flush. Does nothing without instanced draws.
+	 * 
+	 * @param env
+	 *            The environment the model will be rendered in
+	 */
+	public void prepare(Model model, Environment env) {
+		if (!isSupported())
+			return;
+		prepare();
+		for (Node node : model.nodes)
+			prepare(node, env);
+	}
+
+	private void prepare(Node node, Environment env) {
+		for (NodePart part : node.parts)
+			getProgram(part, env);
+		for (Node child : node.children)
+			prepare(child, env);
+	}
+
+	/**
+	 * Compiles the program for the mesh, material and environment of a
+	 * renderable now, for the variants of a {@link ShaderVariantRegistry}.
+	 * Does nothing without instanced draws.
+	 */
+	public void prepare(Renderable variant) {
+		if (!isSupported())
+			return;
+		getProgram(variant.mesh, variant.material, variant.environment);
+	}
+
+	/**
+	 * @return The number of programs compiled for the current lights and shadows
+	 */
+	public int getProgramCount() {
+		return programs.size;
+	}
+
+	/**
+	 * @return The number of instanced draw calls issued in the last flush
+	 */
+	public int getDrawCalls() {
+		return drawCalls;
+	}
+
+	/**
+	 * @return The number of instances drawn in the last flush
+	 */
+	public int getDrawnInstances() {
+		return drawnInstances;
+	}
+
+	private void uploadInstances() {
+		int floats = instanceCount * FLOATS_PER_INSTANCE;
+		if (instanceData == null || instanceData.capacity() < floats)
+			instanceData = BufferUtils.newFloatBuffer(Math.max(floats, FLOATS_PER_INSTANCE * 256) * 2);
+
+		instanceData.clear();
+		int offset = 0;
+		for (Group group : activeGroups) {
+			group.offset = offset;
+			instanceData.put(group.transforms, 0, group.count * FLOATS_PER_INSTANCE);
+			offset += group.count;
+		}
+		instanceData.flip();
+
+		GL20 gl = Gdx.gl20;
+		gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, instanceBuffer);
+		if (instanceBufferCapacity < floats) {
+			// Orphan and grow
+			instanceBufferCapacity = instanceData.capacity();
+			gl.glBufferData(GL20.GL_ARRAY_BUFFER, instanceBufferCapacity * 4, null, GL20.GL_STREAM_DRAW);
+		}
+		gl.glBufferSubData(GL20.GL_ARRAY_BUFFER, 0, floats * 4, instanceData);
+		gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, 0);
+	}
+
+	private void setEnvironment(Environment env, Camera cam) {
+		shader.setUniformMatrix(shader.fetchUniformLocation("u_projViewTrans", false), cam.combined);
+		shader.setUniformf(shader.fetchUniformLocation("u_cameraPosition", false), cam.position.x,
+				cam.position.y, cam.position.z, 1.1881f / (cam.far * cam.far));
+
+		ColorAttribute ambient = env == null ? null : (ColorAttribute) env.get(ColorAttribute.AmbientLight);
+		if (ambient != null)
+			tmpColor.set(ambient.color);
+		else
+			tmpColor.set(0, 0, 0, 1);
+		shader.setUniformf(shader.fetchUniformLocation("u_ambientLight", false), tmpColor.r, tmpColor.g,
+				tmpColor.b);
+		int location = shader.fetchUniformLocation("u_ambientCubemap", false);
+		if (location >= 0) {
+			ambientCubemap.clear().add(tmpColor);
+			shader.setUniform3fv(location, ambientCubemap.data, 0, ambientCubemap.data.length);
+		}
+
+		for (int i = 0; i < config.numDirectionalLights; i++) {
+			DirectionalLight light = env == null || i >= env.directionalLights.size ? null
+					: env.directionalLights.get(i);
+			if (light != null) {
+				shader.setUniformf(shader.fetchUniformLocation("u_dirLights[" + i + "].color", false),
+						light.color.r, light.color.g, light.color.b);
+				shader.setUniformf(shader.fetchUniformLocation("u_dirLights[" + i + "].direction", false),
+						light.direction);
+			} else
+				shader.setUniformf(shader.fetchUniformLocation("u_dirLights[" + i + "].color", false), 0, 0, 0);
+		}
+
+		if (clusteredLights != null)
+			clusteredLights.apply(shader, 0, 1);
+		if (shadows != null)
+			shadows.apply(shader, 2, 3);
+	}
+
+	private void drawNode(Node node, Group group, Environment env, Camera cam) {
+		for (NodePart part : node.parts)
+			if (part.enabled)
+				drawPart(node, part, group, env, cam);
+		for (Node child : node.children)
+			drawNode(child, group, env, cam);
+	}
+
+	private void drawPart(Node node, NodePart part, Group group, Environment env, Camera cam) {
+		Program partProgram = getProgram(part, env);
+		if (partProgram != program) {
+			if (program != null)
+				shader.end();
+			program = partProgram;
+			shader = partProgram.shader;
+			shader.begin();
+			setEnvironment(env, cam);
+		}
+		shader.setUniformMatrix(shader.fetchUniformLocation("u_nodeTrans", false), node.globalTransform);
+		setMaterial(part.material);
+
+		MeshPart meshPart = part.meshPart;
+		Mesh mesh = meshPart.mesh;
+		mesh.bind(shader);
+		bindInstances(group.offset);
+
+		if (mesh.getNumIndices() > 0)
+			instancing.glDrawElementsInstanced(meshPart.primitiveType, meshPart.numVertices, GL20.GL_UNSIGNED_SHORT,
+					meshPart.indexOffset * 2, group.count);
+		else
+			instancing.glDrawArraysInstanced(meshPart.primitiveType, meshPart.indexOffset, meshPart.numVertices,
+					group.count);
+		drawCalls++;
+
+		unbindInstances();
+		mesh.unbind(shader);
+	}
+
+	/**
+	 * Binds the attributes of a material like the setters of {@link DefaultShader}
+	 */
+	private void setMaterial(Material material) {
+		setColor("u_diffuseColor", material, ColorAttribute.Diffuse);
+		setColor("u_specularColor", material, ColorAttribute.Specular);
+		setColor("u_emissiveColor", material, ColorAttribute.Emissive);
+		setColor("u_reflectionColor", material, ColorAttribute.Reflection);
+
+		int unit = FIRST_MATERIAL_UNIT;
+		unit = setTexture("u_diffuseTexture", material, TextureAttribute.Diffuse, unit);
+		unit = setTexture("u_specularTexture", material, TextureAttribute.Specular, unit);
+		unit = setTexture("u_normalTexture", material, TextureAttribute.Normal, unit);
+
+		GL20 gl = Gdx.gl20;
+		BlendingAttribute blending = (BlendingAttribute) material.get(BlendingAttribute.Type);
+		if (blending != null && blending.blended) {
+			gl.glEnable(GL20.GL_BLEND);
+			gl.glBlendFunc(blending.sourceFunction, blending.destFunction);
+			shader.setUniformf(shader.fetchUniformLocation("u_opacity", false), blending.opacity);
+		} else
+			gl.glDisable(GL20.GL_BLEND);
+
+		FloatAttribute alphaTest = (FloatAttribute) material.get(FloatAttribute.AlphaTest);
+		if (alphaTest != null)
+			shader.setUniformf(shader.fetchUniformLocation("u_alphaTest", false), alphaTest.value);
+		FloatAttribute shininess = (FloatAttribute) material.get(FloatAttribute.Shininess);
+		if (shininess != null)
+			shader.setUniformf(shader.fetchUniformLocation("u_shininess", false), shininess.value);
+
+		IntAttribute cullFace = (IntAttribute) material.get(IntAttribute.CullFace);
+		int face = cullFace != null ? cullFace.value : GL20.GL_BACK;
+		if (face == 0)
+			gl.glDisable(GL20.GL_CULL_FACE);
+		else {
+			gl.glEnable(GL20.GL_CULL_FACE);
+			gl.glCullFace(face);
+		}
+
+		DepthTestAttribute depthTest = (DepthTestAttribute) material.get(DepthTestAttribute.Type);
+		int depthFunc = depthTest != null ? depthTest.depthFunc : GL20.GL_LEQUAL;
+		if (depthFunc == 0)
+			gl.glDisable(GL20.GL_DEPTH_TEST);
+		else {
+			gl.glEnable(GL20.GL_DEPTH_TEST);
+			gl.glDepthFunc(depthFunc);
+		}
+		gl.glDepthMask(depthTest == null || depthTest.depthMask);
+	}
+
+	private void setColor(String uniform, Material material, long type) {
+		ColorAttribute color = (ColorAttribute) material.get(type);
+		int location = shader.fetchUniformLocation(uniform, false);
+		if (color != null && location >= 0)
+			shader.setUniformf(location, color.color);
+	}
+
+	/**
+	 * @return The next free texture unit
+	 */
+	private int setTexture(String uniform, Material material, long type, int unit) {
+		TextureAttribute attribute = (TextureAttribute) material.get(type);
+		int location = shader.fetchUniformLocation(uniform, false);
+		if (attribute == null || location < 0)
+			return unit;
+
+		TextureDescriptor<?> descriptor = attribute.textureDescription;
+		descriptor.texture.bind(unit);
+		if (descriptor.minFilter != null)
+			descriptor.texture.unsafeSetFilter(descriptor.minFilter, descriptor.magFilter);
+		if (descriptor.uWrap != null)
+			descriptor.texture.unsafeSetWrap(descriptor.uWrap, descriptor.vWrap);
+		shader.setUniformi(location, unit);
+		Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0);
+		return unit + 1;
+	}
+
+	/**
+	 * Returns the program for the attributes of a part
+	 */
+	private Program getProgram(NodePart part, Environment env) {
+		Program partProgram = partPrograms.get(part);
+		if (partProgram == null) {
+			partProgram = getProgram(part.meshPart.mesh, part.material, env);
+			partPrograms.put(part, partProgram);
+		}
+		return partProgram;
+	}
+
+	/**
+	 * Returns the program for the attributes of a mesh, material and
+	 * environment, compiled the first time its prefix is seen
+	 */
+	private Program getProgram(Mesh mesh, Material material, Environment env) {
+		renderable.mesh = mesh;
+		renderable.material = material;
+		renderable.environment = env;
+		renderable.bones = null;
+		String prefix = "#define instancedFlag\n" + DefaultShader.createPrefix(renderable, config);
+		if (clusteredLights != null)
+			prefix += clusteredLights.getDefines();
+		if (shadows != null)
+			prefix += shadows.getDefines();
+
+		Program compiled = programs.get(prefix);
+		if (compiled == null) {
+			if (variants != null)
+				variants.recordInstanced(renderable);
+			compiled = createProgram(prefix);
+			programs.put(prefix, compiled);
+		}
+		renderable.mesh = null;
+		renderable.material = null;
+		renderable.environment = null;
+		return compiled;
+	}
+
+	private void bindInstances(int firstInstance) {
+		GL20 gl = Gdx.gl20;
+		gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, instanceBuffer);
+		for (int i = 0; i < 4; i++) {
+			int location = program.instanceLocations[i];
+			if (location < 0)
+				continue;
+			gl.glEnableVertexAttribArray(location);
+			gl.glVertexAttribPointer(location, 4, GL20.GL_FLOAT, false, BYTES_PER_INSTANCE, firstInstance
+					* BYTES_PER_INSTANCE + i * 16);
+			instancing.glVertexAttribDivisor(location, 1);
+		}
+		gl.glBindBuffer(GL20.GL_ARRAY_BUFFER, 0);
+	}
+
+	private void unbindInstances() {
+		for (int location : program.instanceLocations) {
+			if (location < 0)
+				continue;
+			instancing.glVertexAttribDivisor(location, 0);
+			Gdx.gl20.glDisableVertexAttribArray(location);
+		}
+	}
+
+	private Program createProgram(String prefix) {
+		if (config.vertexShader == null) {
+			config.vertexShader = Gdx.files.internal("shaders/lighting.vertex.glsl").readString();
+			config.fragmentShader = Gdx.files.internal("shaders/lighting.fragment.glsl").readString();
+		}
+		ShaderProgram program = new ShaderProgram(prefix + config.vertexShader, prefix + config.fragmentShader);
+		if (!program.isCompiled())
+			throw new GdxRuntimeException("Couldn't compile instanced shader: " + program.getLog());
+		return new Program(program);
+	}
+
+	private void disposePrograms() {
+		for (Program program : programs.values())
+			program.shader.dispose();
+		programs.clear();
+		partPrograms.clear();
+	}
+
+	private void createInstanceBuffer() {
+		handle.clear();
+		Gdx.gl20.glGenBuffers(1, handle);
+		instanceBuffer = handle.get(0);
+		instanceBufferCapacity = 0;
+	}
+
+	@Override
+	public void dispose() {
+		disposePrograms();
+		if (instanceBuffer != 0) {
+			handle.clear();
+			handle.put(instanceBuffer).flip();
+			Gdx.gl20.glDeleteBuffers(1, handle);
+			instanceBuffer = 0;
+		}
+		groups.clear();
+		activeGroups.clear();
+	}
+}
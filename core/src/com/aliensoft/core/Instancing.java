@@ -0,0 +1,79 @@
+package com.aliensoft.core;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.GL30;
+
+/**
+ * The instanced draw calls used by {@link InstancedModelRenderer}.<br>
+ * GL ES 3.0/GL 3.x contexts have them in {@link GL30}. The desktop backend
+ * creates a GL 2.x context unless it is asked for GL30, and then it creates
+ * a core profile that the shaders of gdx don't compile on. On such a context
+ * the calls come from the ARB_instanced_arrays and ARB_draw_instanced
+ * extensions, which only the backend reaches, so its launcher sets them
+ * through {@link #setExtension(Instancing)}.
+ */
+public abstract class Instancing {
+
+	private static Instancing	extension;
+	private static Instancing	gl30;
+
+	/**
+	 * Sets the calls used when the context has no GL30
+	 *
+	 * @param instancing
+	 *            The calls of the backend, null if it has none
+	 */
+	public static void setExtension(Instancing instancing) {
+		extension = instancing;
+	}
+
+	/**
+	 * Must be called with the context current
+	 *
+	 * @return The calls of the current context, null if it can't draw instances
+	 */
+	public static Instancing get() {
+		if (Gdx.gl30 != null) {
+			if (gl30 == null)
+				gl30 = new GL30Instancing();
+			return gl30;
+		}
+		if (extension != null && extension.isSupported())
+			return extension;
+		return null;
+	}
+
+	/**
+	 * @return True if the current context has the calls
+	 */
+	public abstract boolean isSupported();
+
+	public abstract void glVertexAttribDivisor(int index, int divisor);
+
+	public abstract void glDrawElementsInstanced(int mode, int count, int type, int indicesOffset, int instanceCount);
+
+	public abstract void glDrawArraysInstanced(int mode, int first, int count, int instanceCount);
+
+	private static class GL30Instancing extends Instancing {
+
+		@Override
+		public boolean isSupported() {
+			return Gdx.gl30 != null;
+		}
+
+		@Override
+		public void glVertexAttribDivisor(int index, int divisor) {
+			Gdx.gl30.glVertexAttribDivisor(index, divisor);
+		}
+
+		@Override
+		public void glDrawElementsInstanced(int mode, int count, int type, int indicesOffset, int instanceCount) {
+			Gdx.gl30.glDrawElementsInstanced(mode, count, type, indicesOffset, instanceCount);
+		}
+
+		@Override
+		public void glDrawArraysInstanced(int mode, int first, int count, int instanceCount) {
+			Gdx.gl30.glDrawArraysInstanced(mode, first, count, instanceCount);
+		}
+	}
+}
@@ -0,0 +1,327 @@
+package com.aliensoft.core;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Quaternion;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.physics.bullet.dynamics.btDynamicsWorld;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.Pool;
+
+/**
+ * Steps a bullet world at a fixed tick on its own thread.<br>
+ * After each tick the transforms of the bodies are published as a snapshot.
+ * The render thread keeps the last two snapshots and interpolates between
+ * them, so it never touches the world and physics spikes don't stall frames.
+ * Everything that changes the world must be sent with {@link #post(Runnable)}.
+ * Started through {@link BulletScene#startPhysicsThread(float)}.
+ */
+public class PhysicsThread implements Runnable {
+
+	private static final int						MAX_TICKS_PER_LOOP	= 5;
+
+	private final btDynamicsWorld					world;
+	private final float								tick;
+
+	private final ConcurrentLinkedQueue<Runnable>	commands			= new ConcurrentLinkedQueue<>();
+	private final Pool<BodyCommand>					commandPool			= new Pool<BodyCommand>() {
+																			@Override
+																			protected BodyCommand newObject() {
+																				return new BodyCommand();
+																			}
+																		};
+
+	/* Snapshots, see publish() and take() */
+	private final Object							lock				= new Object();
+	private TransformSnapshot						back				= new TransformSnapshot();
+	private TransformSnapshot						pending				= new TransformSnapshot();
+	private TransformSnapshot						current				= new TransformSnapshot();
+	private TransformSnapshot						previous			= new TransformSnapshot();
+	private boolean									pendingTaken		= true;
+
+	/* Physics thread state */
+	private final IntArray							freeSlots			= new IntArray();
+	private final Array<GameObject>					polledObjects		= new Array<>(false, 64);
+	private final Matrix4							polledTransform		= new Matrix4();
+	private final Quaternion						captureRotation		= new Quaternion();
+	private final Vector3							capturePosition		= new Vector3();
+	private long									ticks;
+
+	/* Render thread state */
+	private final Vector3							position			= new Vector3();
+	private final Vector3							position2			= new Vector3();
+	private final Quaternion						rotation			= new Quaternion();
+	private final Quaternion						rotation2			= new Quaternion();
+	/** Simulation time shown, advanced by the frames between the last two snapshots */
+	private double									renderTime;
+	private long									lastFrameNanos;
+
+	/** Published after every tick, null if the scene has none */
+	ContactEvents									contactEvents;
+
+	private Thread									thread;
+	private volatile boolean						running;
+	private volatile float							lastStepMillis;
+
+	/**
+	 * @param world
+	 *            The world to step. Must not be used by other threads while running.
+	 * @param tickSeconds
+	 *            The fixed time step
+	 */
+	PhysicsThread(btDynamicsWorld world, float tickSeconds) {
+		this.world = world;
+		this.tick = tickSeconds;
+	}
+
+	void start() {
+		running = true;
+		thread = new Thread(this, "Physics");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the thread and waits for it. Pending commands are executed
+	 * so the world matches what the render thread asked for.
+	 */
+	void stop() {
+		running = false;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		runCommands();
+		for (int i = 0; i < back.count; i++) {
+			GameObject owner = back.owners[i];
+			if (owner != null)
+				owner.setPhysicsThread(null, -1);
+		}
+	}
+
+	/**
+	 * Queues a command to run on the physics thread before the next tick.
+	 * Commands run in the order they are posted.
+	 */
+	public void post(Runnable command) {
+		commands.add(command);
+	}
+
+	/**
+	 * @return How long the last tick took to simulate
+	 */
+	public float getLastStepMillis() {
+		return lastStepMillis;
+	}
+
+	@Override
+	public void run() {
+		long tickNanos = (long) (tick * 1000000000L);
+		long nextTick = System.nanoTime();
+		while (running) {
+			int steps = 0;
+			while (System.nanoTime() >= nextTick && steps < MAX_TICKS_PER_LOOP) {
+				step();
+				nextTick += tickNanos;
+				steps++;
+			}
+			// Too far behind, drop the missed ticks instead of spiraling
+			if (steps == MAX_TICKS_PER_LOOP)
+				nextTick = System.nanoTime() + tickNanos;
+
+			long wait = nextTick - System.nanoTime();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void step() {
+		// Set again by the captures of the bodies bullet keeps awake
+		Arrays.fill(back.active, 0, back.count, false);
+		runCommands();
+
+		long start = System.nanoTime();
+		world.stepSimulation(tick, 1, tick);
+		lastStepMillis = (System.nanoTime() - start) / 1000000f;
+		if (contactEvents != null)
+			contactEvents.endStep();
+
+		ticks++;
+		back.time = ticks * tick;
+		for (GameObject obj : polledObjects) {
+			obj.body.getWorldTransform(polledTransform);
+			capture(obj, polledTransform);
+			if (!obj.body.isActive())
+				back.active[obj.snapshotSlot] = false;
+		}
+		publish();
+	}
+
+	private void runCommands() {
+		Runnable command;
+		while ((command = commands.poll()) != null) {
+			try {
+				command.run();
+			} catch (Throwable t) {
+				Gdx.app.error("Physics", "Command failed", t);
+			}
+		}
+	}
+
+	/**
+	 * Hands the back snapshot to the render thread and starts a new one
+	 */
+	private void publish() {
+		TransformSnapshot published;
+		synchronized (lock) {
+			if (!pendingTaken)
+				back.mergeMoved(pending);
+			published = back;
+			back = pending;
+			pending = published;
+			pendingTaken = false;
+		}
+		// Only the physics thread writes snapshots, the render thread may swap
+		// the pending one meanwhile but never writes the published one
+		back.copyFrom(published);
+	}
+
+	/**
+	 * Writes the transform of a object in the back snapshot. Called on the physics thread.
+	 */
+	void capture(GameObject obj, Matrix4 transform) {
+		int slot = obj.snapshotSlot;
+		if (slot == -1)
+			return;
+
+		transform.getTranslation(capturePosition);
+		transform.getRotation(captureRotation, true);
+		back.positions[slot * 3] = capturePosition.x;
+		back.positions[slot * 3 + 1] = capturePosition.y;
+		back.positions[slot * 3 + 2] = capturePosition.z;
+		back.rotations[slot * 4] = captureRotation.x;
+		back.rotations[slot * 4 + 1] = captureRotation.y;
+		back.rotations[slot * 4 + 2] = captureRotation.z;
+		back.rotations[slot * 4 + 3] = captureRotation.w;
+		back.moved[slot] = true;
+		// Bullet only moves the bodies it keeps awake
+		back.active[slot] = true;
+	}
+
+	void addSlot(GameObject obj, int generation) {
+		int slot;
+		if (freeSlots.size > 0) {
+			slot = freeSlots.pop();
+		} else {
+			slot = back.count++;
+			back.ensureCapacity(back.count);
+		}
+		back.owners[slot] = obj;
+		back.generations[slot] = generation;
+		obj.setPhysicsThread(this, slot);
+
+		if (!obj.hasMotionState())
+			polledObjects.add(obj);
+
+		obj.body.getWorldTransform(polledTransform);
+		capture(obj, polledTransform);
+	}
+
+	void removeSlot(GameObject obj) {
+		int slot = obj.snapshotSlot;
+		if (slot == -1)
+			return;
+
+		back.owners[slot] = null;
+		freeSlots.add(slot);
+		obj.setPhysicsThread(null, -1);
+		if (!obj.hasMotionState())
+			polledObjects.removeValue(obj, true);
+	}
+
+	BodyCommand obtain() {
+		synchronized (commandPool) {
+			BodyCommand command = commandPool.obtain();
+			command.world = world;
+			command.physics = this;
+			return command;
+		}
+	}
+
+	void free(BodyCommand command) {
+		command.object = null;
+		synchronized (commandPool) {
+			commandPool.free(command);
+		}
+	}
+
+	/**
+	 * Moves the objects to their interpolated transforms. Called on the render thread.
+	 * Rendering runs one tick behind the simulation so there are always two
+	 * snapshots to interpolate between.
+	 * 
+	 * @param scene
+	 *            The scene the objects belong to
+	 */
+	void interpolate(BulletScene scene) {
+		synchronized (lock) {
+			if (!pendingTaken) {
+				TransformSnapshot old = previous;
+				previous = current;
+				current = pending;
+				pending = old;
+				pendingTaken = true;
+			}
+		}
+
+		// Render time follows the frames in simulation time, never the wall
+		// clock, so dropped ticks don't leave it behind the snapshots. It waits
+		// for late ticks and catches up when the frames fall behind.
+		long now = System.nanoTime();
+		if (lastFrameNanos != 0)
+			renderTime += (now - lastFrameNanos) / 1000000000.0;
+		lastFrameNanos = now;
+		renderTime = Math.max(previous.time, Math.min(current.time, renderTime));
+
+		double span = current.time - previous.time;
+		float alpha = span <= 0 ? 1f : (float) ((renderTime - previous.time) / span);
+		alpha = Math.max(0f, Math.min(1f, alpha));
+
+		for (int i = 0; i < current.count; i++) {
+			GameObject owner = current.owners[i];
+			if (owner == null || current.generations[i] != owner.generation)
+				continue;
+			owner.snapshotActive = current.active[i];
+
+			boolean inPrevious = i < previous.count && previous.owners[i] == owner
+					&& previous.generations[i] == owner.generation;
+			if (!current.moved[i] && !(inPrevious && previous.moved[i]))
+				continue;
+
+			read(current, i, position, rotation);
+			if (inPrevious) {
+				read(previous, i, position2, rotation2);
+				position.set(position2.lerp(position, alpha));
+				rotation.set(rotation2.slerp(rotation, alpha));
+			}
+			owner.getTransform().set(position, rotation);
+			scene.updateBounds(owner);
+		}
+	}
+
+	private static void read(TransformSnapshot snapshot, int slot, Vector3 pos, Quaternion rot) {
+		pos.set(snapshot.positions[slot * 3], snapshot.positions[slot * 3 + 1], snapshot.positions[slot * 3 + 2]);
+		rot.set(snapshot.rotations[slot * 4], snapshot.rotations[slot * 4 + 1], snapshot.rotations[slot * 4 + 2],
+				snapshot.rotations[slot * 4 + 3]);
+	}
+}
@@ -0,0 +1,323 @@
+package com.aliensoft.core;
+
+import com.aliensoft.core.physics.NativeTracker;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.physics.bullet.collision.ClosestConvexResultCallback;
+import com.badlogic.gdx.physics.bullet.collision.ClosestRayResultCallback;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionObject;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionWorld;
+import com.badlogic.gdx.physics.bullet.collision.btSphereShape;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+/**
+ * Rays and sphere sweeps against the world of a {@link BulletScene}, run
+ * together by {@link BulletScene#query(QueryBatch)}.<br>
+ * Queries and results live in flat arrays allocated once, and every query
+ * reuses the same native callbacks, so a query costs a couple of JNI calls
+ * plus a few more when it hits. Hits are kept as the user value of the body
+ * and resolved to objects when read. Keep the collision filters of
+ * consecutive queries equal when possible, they are only sent when they
+ * change.<br>
+ * Fill the batch, query it and read the results once {@link #isDone()}.
+ */
+public class QueryBatch implements Disposable {
+
+	private static final int					RAY				= 0;
+	private static final int					SWEEP			= 1;
+
+	private static final int					OPEN			= 0;
+	private static final int					QUEUED			= 1;
+	private static final int					DONE			= 2;
+
+	private final int							capacity;
+	private int									size;
+	private volatile int						state			= OPEN;
+	private BulletScene							scene;
+	private boolean								normals			= true;
+
+	/* Queries */
+	private final int[]							types;
+	/** From and to points, 6 per query */
+	private final float[]						segments;
+	private final float[]						radii;
+	private final short[]						groups;
+	private final short[]						masks;
+
+	/* Results */
+	private final float[]						fractions;
+	private final int[]							hitValues;
+	/** Hit point and normal, 6 per query */
+	private final float[]						hits;
+	private int									hitCount;
+
+	/* Native state, only touched by the thread that owns the world */
+	private ClosestRayResultCallback			rayCallback;
+	private ClosestConvexResultCallback			sweepCallback;
+	private btSphereShape						sphere;
+	private final Vector3						from			= new Vector3();
+	private final Vector3						to				= new Vector3();
+	private final Vector3						out				= new Vector3();
+	private final Matrix4						fromTransform	= new Matrix4();
+	private final Matrix4						toTransform		= new Matrix4();
+
+	/**
+	 * @param capacity
+	 *            Most queries the batch holds
+	 */
+	public QueryBatch(int capacity) {
+		this.capacity = capacity;
+		types = new int[capacity];
+		segments = new float[capacity * 6];
+		radii = new float[capacity];
+		groups = new short[capacity];
+		masks = new short[capacity];
+		fractions = new float[capacity];
+		hitValues = new int[capacity];
+		hits = new float[capacity * 6];
+	}
+
+	/**
+	 * Adds a ray that stops at the closest body it hits
+	 *
+	 * @param group
+	 *            The collision group of the ray
+	 * @param mask
+	 *            The groups the ray hits
+	 * @return The index of the query
+	 */
+	public int addRay(Vector3 from, Vector3 to, short group, short mask) {
+		return add(RAY, from, to, 0f, group, mask);
+	}
+
+	/**
+	 * Adds a sphere moved from a point to another, stopping at the closest body
+	 * it touches
+	 *
+	 * @return The index of the query
+	 */
+	public int addSweep(Vector3 from, Vector3 to, float radius, short group, short mask) {
+		return add(SWEEP, from, to, radius, group, mask);
+	}
+
+	private int add(int type, Vector3 from, Vector3 to, float radius, short group, short mask) {
+		if (state == QUEUED)
+			throw new GdxRuntimeException("The batch is being queried");
+		if (state == DONE)
+			clear();
+		if (size == capacity)
+			throw new GdxRuntimeException("The batch is full (" + capacity + " queries)");
+
+		int i = size++;
+		types[i] = type;
+		segments[i * 6] = from.x;
+		segments[i * 6 + 1] = from.y;
+		segments[i * 6 + 2] = from.z;
+		segments[i * 6 + 3] = to.x;
+		segments[i * 6 + 4] = to.y;
+		segments[i * 6 + 5] = to.z;
+		radii[i] = radius;
+		groups[i] = group;
+		masks[i] = mask;
+		return i;
+	}
+
+	/**
+	 * Removes the queries and their results
+	 */
+	public void clear() {
+		if (state == QUEUED)
+			throw new GdxRuntimeException("The batch is being queried");
+		size = 0;
+		hitCount = 0;
+		state = OPEN;
+	}
+
+	/**
+	 * @param normals
+	 *            Read the normals of the hits, one JNI call less per hit when
+	 *            false. Line of sight checks don't need them.
+	 */
+	public void setNormals(boolean normals) {
+		this.normals = normals;
+	}
+
+	/**
+	 * Called by the scene before running the batch
+	 */
+	void queue(BulletScene scene) {
+		if (state == QUEUED)
+			throw new GdxRuntimeException("The batch is already being queried");
+		this.scene = scene;
+		state = QUEUED;
+	}
+
+	/**
+	 * Runs the queries. Called by the thread that owns the world, between two
+	 * steps.
+	 */
+	void execute(btCollisionWorld world) {
+		if (rayCallback == null) {
+			rayCallback = NativeTracker.track(new ClosestRayResultCallback(Vector3.Zero, Vector3.Z));
+			sweepCallback = NativeTracker.track(new ClosestConvexResultCallback(Vector3.Zero, Vector3.Z));
+			sphere = NativeTracker.track(new btSphereShape(1f));
+		}
+
+		// Filters and callbacks are only reset when they changed
+		short rayGroup = rayCallback.getCollisionFilterGroup(), rayMask = rayCallback.getCollisionFilterMask();
+		short sweepGroup = sweepCallback.getCollisionFilterGroup(), sweepMask = sweepCallback.getCollisionFilterMask();
+		float radius = sphere.getRadius();
+		boolean rayDirty = true, sweepDirty = true;
+
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			from.set(segments[i * 6], segments[i * 6 + 1], segments[i * 6 + 2]);
+			to.set(segments[i * 6 + 3], segments[i * 6 + 4], segments[i * 6 + 5]);
+			btCollisionObject hit;
+
+			if (types[i] == RAY) {
+				if (groups[i] != rayGroup)
+					rayCallback.setCollisionFilterGroup(rayGroup = groups[i]);
+				if (masks[i] != rayMask)
+					rayCallback.setCollisionFilterMask(rayMask = masks[i]);
+				if (rayDirty) {
+					rayCallback.setCollisionObject(null);
+					rayCallback.setClosestHitFraction(1f);
+				}
+
+				world.rayTest(from, to, rayCallback);
+				hit = rayCallback.getCollisionObject();
+				rayDirty = hit != null;
+				if (hit != null) {
+					fractions[i] = rayCallback.getClosestHitFraction();
+					// The hit point of a ray is on the segment
+					out.set(from).lerp(to, fractions[i]);
+					setHitPoint(i, out);
+					if (normals)
+						rayCallback.getHitNormalWorld(out);
+				}
+			} else {
+				if (groups[i] != sweepGroup)
+					sweepCallback.setCollisionFilterGroup(sweepGroup = groups[i]);
+				if (masks[i] != sweepMask)
+					sweepCallback.setCollisionFilterMask(sweepMask = masks[i]);
+				if (radii[i] != radius)
+					sphere.setUnscaledRadius(radius = radii[i]);
+				if (sweepDirty) {
+					sweepCallback.setHitCollisionObject(null);
+					sweepCallback.setClosestHitFraction(1f);
+				}
+
+				fromTransform.setToTranslation(from);
+				toTransform.setToTranslation(to);
+				world.convexSweepTest(sphere, fromTransform, toTransform, sweepCallback);
+				hit = sweepCallback.getHitCollisionObject();
+				sweepDirty = hit != null;
+				if (hit != null) {
+					fractions[i] = sweepCallback.getClosestHitFraction();
+					sweepCallback.getHitPointWorld(out);
+					setHitPoint(i, out);
+					if (normals)
+						sweepCallback.getHitNormalWorld(out);
+				}
+			}
+
+			if (hit != null) {
+				hitValues[i] = hit.getUserValue();
+				if (!normals)
+					out.setZero();
+				hits[i * 6 + 3] = out.x;
+				hits[i * 6 + 4] = out.y;
+				hits[i * 6 + 5] = out.z;
+				count++;
+			} else
+				fractions[i] = -1f;
+		}
+		hitCount = count;
+		state = DONE;
+	}
+
+	private void setHitPoint(int i, Vector3 point) {
+		hits[i * 6] = point.x;
+		hits[i * 6 + 1] = point.y;
+		hits[i * 6 + 2] = point.z;
+	}
+
+	/**
+	 * @return False until the scene ran the queries
+	 */
+	public boolean isDone() {
+		return state == DONE;
+	}
+
+	/**
+	 * @return The number of queries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The number of queries that hit something
+	 */
+	public int getHitCount() {
+		return hitCount;
+	}
+
+	public boolean hasHit(int query) {
+		return fractions[query] >= 0f;
+	}
+
+	/**
+	 * @return Where the hit is along the query, from 0 to 1, -1 without hit
+	 */
+	public float getHitFraction(int query) {
+		return fractions[query];
+	}
+
+	/**
+	 * The point hit by a ray, or the point a sweep touched. The center of the
+	 * sphere when it touched is at the hit fraction of the sweep.
+	 */
+	public Vector3 getHitPoint(int query, Vector3 out) {
+		return out.set(hits[query * 6], hits[query * 6 + 1], hits[query * 6 + 2]);
+	}
+
+	/**
+	 * @return The normal of the hit surface, zero if normals weren't read
+	 */
+	public Vector3 getHitNormal(int query, Vector3 out) {
+		return out.set(hits[query * 6 + 3], hits[query * 6 + 4], hits[query * 6 + 5]);
+	}
+
+	/**
+	 * @return The user value of the body hit
+	 */
+	public int getHitUserValue(int query) {
+		return hitValues[query];
+	}
+
+	/**
+	 * @return The object hit, null without hit or if the body isn't an object
+	 *         of the scene anymore
+	 */
+	public GameObject getHitObject(int query) {
+		if (!hasHit(query))
+			return null;
+		return scene.getObject(hitValues[query]);
+	}
+
+	/**
+	 * Frees the native callbacks. Must not be queued.
+	 */
+	@Override
+	public void dispose() {
+		if (rayCallback == null)
+			return;
+		NativeTracker.free(rayCallback);
+		NativeTracker.free(sweepCallback);
+		NativeTracker.free(sphere);
+		rayCallback = null;
+	}
+}
@@ -0,0 +1,225 @@
+package com.aliensoft.core;
+
+import java.util.Comparator;
+import java.util.Map;
+
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.ObjectIntMap;
+import com.badlogic.gdx.utils.ObjectMap;
+
+/**
+ * Keeps the renderable objects of a scene sorted by render state.<br>
+ * The renderer of each object is resolved once when it is added, falling back
+ * to the renderers of its superclasses. Objects are ordered by renderer,
+ * shader attributes, material and mesh, so consecutive submissions change as
+ * little GL state as possible. The order is kept up to date incrementally as
+ * objects are added and removed.
+ */
+public class RenderQueue {
+
+	private static final Comparator<GameObject>		KEY_ORDER	= new Comparator<GameObject>() {
+																	@Override
+																	public int compare(GameObject o1, GameObject o2) {
+																		return o1.sortKey < o2.sortKey ? -1
+																				: (o1.sortKey > o2.sortKey ? 1 : 0);
+																	}
+																};
+
+	/** Renderers registered by class, shared with the scene */
+	private final Map<Class<?>, IObjectRenderer>	renderers;
+
+	/** Renderer resolved for each object class, including superclass fallback */
+	private final ObjectMap<Class<?>, IObjectRenderer>	resolved	= new ObjectMap<>();
+
+	/* Small ids used to build the sort keys */
+	private final ObjectIntMap<IObjectRenderer>		rendererIds	= new ObjectIntMap<>();
+	private final ObjectIntMap<Object>				stateIds	= new ObjectIntMap<>();
+
+	/** Objects ordered by sort key */
+	private final Array<GameObject>					queue		= new Array<>(true, 256);
+
+	private int										frame;
+
+	/**
+	 * @param renderers
+	 *            The renderers registered in the scene, by render class
+	 */
+	public RenderQueue(Map<Class<?>, IObjectRenderer> renderers) {
+		this.renderers = renderers;
+	}
+
+	/**
+	 * Resolves the renderer of a object and inserts it in order
+	 */
+	public void add(GameObject obj) {
+		obj.renderer = resolve(obj.getClass());
+		obj.sortKey = sortKey(obj);
+		queue.insert(upperBound(obj.sortKey), obj);
+	}
+
+	/**
+	 * Removes a object from the queue
+	 * 
+	 * @return False if the object wasn't queued
+	 */
+	public boolean remove(GameObject obj) {
+		for (int i = lowerBound(obj.sortKey); i < queue.size && queue.get(i).sortKey == obj.sortKey; i++) {
+			if (queue.get(i) == obj) {
+				queue.removeIndex(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Moves a object to the position of the model it renders now, after its
+	 * level of detail changed
+	 */
+	public void update(GameObject obj) {
+		if (remove(obj))
+			add(obj);
+	}
+
+	/**
+	 * Resolves every renderer again and sorts the queue.
+	 * Needed when the registered renderers change.
+	 */
+	public void rebuild() {
+		resolved.clear();
+		for (GameObject obj : queue) {
+			obj.renderer = resolve(obj.getClass());
+			obj.sortKey = sortKey(obj);
+		}
+		queue.sort(KEY_ORDER);
+	}
+
+	/**
+	 * Puts a set of visible objects in queue order. Small sets are sorted by their
+	 * cached keys, big ones are collected by walking the queue.
+	 * 
+	 * @param visible
+	 *            Objects of this queue, reordered in place
+	 */
+	public void order(Array<GameObject> visible) {
+		if (visible.size * 4 < queue.size) {
+			visible.sort(KEY_ORDER);
+			return;
+		}
+
+		frame++;
+		for (GameObject obj : visible)
+			obj.visibleFrame = frame;
+		visible.clear();
+		for (GameObject obj : queue)
+			if (obj.visibleFrame == frame)
+				visible.add(obj);
+	}
+
+	public void clear() {
+		queue.clear();
+		resolved.clear();
+		rendererIds.clear();
+		stateIds.clear();
+	}
+
+	/**
+	 * @return The number of queued objects
+	 */
+	public int size() {
+		return queue.size;
+	}
+
+	/**
+	 * Finds the renderer of a class, looking at its superclasses if it has none.
+	 * 
+	 * @return The renderer, null if no renderer can render the class
+	 */
+	public IObjectRenderer resolve(Class<?> type) {
+		if (resolved.containsKey(type))
+			return resolved.get(type);
+
+		IObjectRenderer renderer = null;
+		for (Class<?> c = type; c != null && renderer == null; c = c.getSuperclass())
+			renderer = renderers.get(c);
+		resolved.put(type, renderer);
+		return renderer;
+	}
+
+	/**
+	 * Builds the sort key of a object from the model it renders:
+	 * 8 bits renderer, 16 bits shader (vertex and material attributes), 20 bits material, 20 bits mesh
+	 */
+	private long sortKey(GameObject obj) {
+		long renderer = obj.renderer == null ? 0 : id(rendererIds, obj.renderer);
+
+		NodePart part = firstPart(obj.getRenderModel());
+		if (part == null)
+			return renderer << 56;
+
+		Mesh mesh = part.meshPart.mesh;
+		long shader = id(stateIds, Long.valueOf(mesh.getVertexAttributes().getMask() * 31 + part.material.getMask()));
+		long material = id(stateIds, part.material);
+		long meshId = id(stateIds, mesh);
+		return (renderer & 0xFF) << 56 | (shader & 0xFFFF) << 40 | (material & 0xFFFFF) << 20 | (meshId & 0xFFFFF);
+	}
+
+	private static <T> int id(ObjectIntMap<T> ids, T key) {
+		int id = ids.get(key, -1);
+		if (id == -1) {
+			id = ids.size + 1;
+			ids.put(key, id);
+		}
+		return id;
+	}
+
+	private static NodePart firstPart(ModelInstance instance) {
+		if (instance == null)
+			return null;
+		for (Node node : instance.nodes) {
+			NodePart part = firstPart(node);
+			if (part != null)
+				return part;
+		}
+		return null;
+	}
+
+	private static NodePart firstPart(Node node) {
+		if (node.parts.size > 0)
+			return node.parts.first();
+		for (Node child : node.children) {
+			NodePart part = firstPart(child);
+			if (part != null)
+				return part;
+		}
+		return null;
+	}
+
+	private int lowerBound(long key) {
+		int low = 0, high = queue.size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (queue.get(mid).sortKey < key)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	private int upperBound(long key) {
+		int low = 0, high = queue.size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (queue.get(mid).sortKey <= key)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+}
@@ -0,0 +1,487 @@
+package com.aliensoft.core;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import com.aliensoft.core.physics.ShapeDescriptor;
+import com.aliensoft.core.physics.ShapeRegistry;
+import com.badlogic.gdx.Files.FileType;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Quaternion;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.physics.bullet.collision.Collision;
+import com.badlogic.gdx.physics.bullet.collision.btBroadphaseProxy;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionShape;
+import com.badlogic.gdx.physics.bullet.dynamics.btRigidBody;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.ObjectIntMap;
+import com.badlogic.gdx.utils.ObjectMap;
+import com.badlogic.gdx.utils.StreamUtils;
+
+/**
+ * Saves and loads the objects and decorations of a scene in a compact binary file.<br>
+ * A file has a string table (object IDs and model names), a table of the
+ * distinct collision shapes, one fixed size record per object with its
+ * shape, model, mass, collision filter, transform and velocities, and one
+ * per decoration with its model and transform. Files are memory mapped when
+ * they are on disk and read with absolute offsets, so loading does no
+ * parsing beyond building the objects.<br>
+ * Models are referenced by name, they must be added with
+ * {@link #addModel(String, Model)} before saving or loading. Shapes must come
+ * from the {@link ShapeRegistry} given to the constructor.<br>
+ * Loading can be split: {@link #read(FileHandle)} maps the file and reads the
+ * string table without touching bullet or GL, so it can run on any thread,
+ * then the objects and decorations are created in as many calls as wanted.
+ */
+public class SceneFile {
+
+	private static final int		MAGIC			= 0x535A444C;
+	private static final int		VERSION			= 2;
+
+	private static final int		HEADER_SIZE		= 40;
+	/** Version 1 files have no decorations */
+	private static final int		HEADER_SIZE_V1	= 32;
+	private static final int		SHAPE_SIZE		= 16;
+	private static final int		RECORD_SIZE		= 72;
+	private static final int		DECORATION_SIZE	= 44;
+
+	/* Record flags */
+	private static final int		MOTION_STATE	= 1;
+	private static final int		SLEEPING		= 2;
+
+	private final ShapeRegistry		shapes;
+	private final ObjectMap<String, Model>	models		= new ObjectMap<>();
+	private final ObjectMap<Model, String>	modelNames	= new ObjectMap<>();
+
+	private final Vector3			position		= new Vector3();
+	private final Quaternion		rotation		= new Quaternion();
+	private final Vector3			scale			= new Vector3();
+	private final Vector3			velocity		= new Vector3();
+
+	/**
+	 * @param shapes
+	 *            The registry the shapes of the objects come from, loaded shapes are created in it
+	 */
+	public SceneFile(ShapeRegistry shapes) {
+		this.shapes = shapes;
+	}
+
+	/**
+	 * Names a model so objects using it can be saved and loaded
+	 */
+	public synchronized void addModel(String name, Model model) {
+		models.put(name, model);
+		modelNames.put(model, name);
+	}
+
+	/**
+	 * Forgets a model, for models unloaded from an asset manager
+	 */
+	public synchronized void removeModel(String name) {
+		Model model = models.remove(name);
+		if (model != null)
+			modelNames.remove(model);
+	}
+
+	/**
+	 * @return The model added with a name, null if there is none
+	 */
+	public synchronized Model getModel(String name) {
+		return models.get(name);
+	}
+
+	/**
+	 * Writes every object and decoration of a scene. The physics thread must
+	 * be stopped, the bodies are read directly.
+	 *
+	 * @param scene
+	 *            The scene to save
+	 * @param file
+	 *            The file to write
+	 */
+	public void save(BulletScene scene, FileHandle file) {
+		if (scene.getPhysicsThread() != null)
+			throw new IllegalStateException("Stop the physics thread before saving the scene");
+		save(scene.objects.values(), scene.getDecorations(new Array<ModelInstance>()), file);
+	}
+
+	/**
+	 * Writes some objects and decorations, like the ones of one part of the
+	 * world. Bodies out of a world are saved in the default collision group,
+	 * colliding with everything.
+	 *
+	 * @param objects
+	 *            Objects with a body, not simulated meanwhile
+	 * @param decorations
+	 *            Decorations with a named model
+	 * @param file
+	 *            The file to write
+	 */
+	public void save(Iterable<GameObject> objects, Iterable<ModelInstance> decorations, FileHandle file) {
+		Array<String> strings = new Array<>();
+		ObjectIntMap<String> stringIndices = new ObjectIntMap<>();
+		Array<ShapeDescriptor> shapeTable = new Array<>();
+		ObjectIntMap<ShapeDescriptor> shapeIndices = new ObjectIntMap<>();
+
+		int stringsSize = 0;
+		int objectCount = 0, decorationCount = 0;
+		for (GameObject obj : objects) {
+			stringsSize += addString(obj.getObjectID(), strings, stringIndices);
+			if (obj.getModel() != null)
+				stringsSize += addString(modelName(obj.getModel().model, obj.getObjectID()), strings, stringIndices);
+
+			ShapeDescriptor descriptor = shapes.getDescriptor(obj.body.getCollisionShape());
+			if (descriptor == null)
+				throw new GdxRuntimeException("The shape of " + obj.getObjectID() + " is not from the registry");
+			if (!shapeIndices.containsKey(descriptor)) {
+				shapeIndices.put(descriptor, shapeTable.size);
+				shapeTable.add(descriptor);
+			}
+			objectCount++;
+		}
+		for (ModelInstance decoration : decorations) {
+			stringsSize += addString(modelName(decoration.model, "a decoration"), strings, stringIndices);
+			decorationCount++;
+		}
+
+		int shapesOffset = HEADER_SIZE + stringsSize;
+		int objectsOffset = shapesOffset + shapeTable.size * SHAPE_SIZE;
+		int decorationsOffset = objectsOffset + objectCount * RECORD_SIZE;
+		ByteBuffer buffer = ByteBuffer.allocate(decorationsOffset + decorationCount * DECORATION_SIZE);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		buffer.putInt(MAGIC).putInt(VERSION);
+		buffer.putInt(strings.size).putInt(shapeTable.size).putInt(objectCount);
+		buffer.putInt(HEADER_SIZE).putInt(shapesOffset).putInt(objectsOffset);
+		buffer.putInt(decorationCount).putInt(decorationsOffset);
+
+		for (String string : strings) {
+			byte[] bytes = utf8(string);
+			buffer.putShort((short) bytes.length).put(bytes);
+		}
+
+		for (ShapeDescriptor descriptor : shapeTable)
+			buffer.putInt(descriptor.type.ordinal()).putFloat(descriptor.x).putFloat(descriptor.y)
+					.putFloat(descriptor.z);
+
+		for (GameObject obj : objects)
+			writeRecord(buffer, obj, stringIndices, shapeIndices);
+
+		for (ModelInstance decoration : decorations) {
+			buffer.putInt(stringIndices.get(modelName(decoration.model, "a decoration"), -1));
+			Matrix4 transform = decoration.transform;
+			transform.getTranslation(position);
+			transform.getRotation(rotation, true);
+			transform.getScale(scale);
+			buffer.putFloat(position.x).putFloat(position.y).putFloat(position.z);
+			buffer.putFloat(rotation.x).putFloat(rotation.y).putFloat(rotation.z).putFloat(rotation.w);
+			buffer.putFloat(scale.x).putFloat(scale.y).putFloat(scale.z);
+		}
+
+		file.writeBytes(buffer.array(), false);
+	}
+
+	private void writeRecord(ByteBuffer buffer, GameObject obj, ObjectIntMap<String> stringIndices,
+			ObjectIntMap<ShapeDescriptor> shapeIndices) {
+		btRigidBody body = obj.body;
+		short group = 1, mask = -1;
+		// Out of a world the wrapper of the handle holds a null pointer
+		btBroadphaseProxy proxy = body.getBroadphaseHandle();
+		if (proxy != null && btBroadphaseProxy.getCPtr(proxy) != 0) {
+			group = proxy.getCollisionFilterGroup();
+			mask = proxy.getCollisionFilterMask();
+		}
+		int flags = 0;
+		if (obj.hasMotionState())
+			flags |= MOTION_STATE;
+		if (body.getActivationState() == Collision.ISLAND_SLEEPING)
+			flags |= SLEEPING;
+
+		buffer.putInt(stringIndices.get(obj.getObjectID(), -1));
+		String model = obj.getModel() != null ? modelName(obj.getModel().model, obj.getObjectID()) : null;
+		buffer.putInt(model != null ? stringIndices.get(model, -1) : -1);
+		buffer.putShort((short) shapeIndices.get(shapes.getDescriptor(body.getCollisionShape()), -1));
+		buffer.putShort(group).putShort(mask);
+		buffer.put((byte) flags).put((byte) 0);
+		buffer.putFloat(obj.getMass());
+
+		Matrix4 transform = obj.getTransform();
+		transform.getTranslation(position);
+		transform.getRotation(rotation, true);
+		buffer.putFloat(position.x).putFloat(position.y).putFloat(position.z);
+		buffer.putFloat(rotation.x).putFloat(rotation.y).putFloat(rotation.z).putFloat(rotation.w);
+		velocity.set(body.getLinearVelocity());
+		buffer.putFloat(velocity.x).putFloat(velocity.y).putFloat(velocity.z);
+		velocity.set(body.getAngularVelocity());
+		buffer.putFloat(velocity.x).putFloat(velocity.y).putFloat(velocity.z);
+	}
+
+	private synchronized String modelName(Model model, String owner) {
+		String name = modelNames.get(model);
+		if (name == null)
+			throw new GdxRuntimeException("The model of " + owner + " was not added to the scene file");
+		return name;
+	}
+
+	/**
+	 * @return The bytes the string adds to the table, 0 if it is already in it
+	 */
+	private static int addString(String string, Array<String> strings, ObjectIntMap<String> indices) {
+		if (indices.containsKey(string))
+			return 0;
+		indices.put(string, strings.size);
+		strings.add(string);
+		return 2 + utf8(string).length;
+	}
+
+	/**
+	 * Creates the objects and decorations of a file and adds them to a scene,
+	 * with the IDs, transforms and velocities they were saved with
+	 *
+	 * @param file
+	 *            A file written by {@link #save(BulletScene, FileHandle)}
+	 * @param scene
+	 *            The scene to add the objects to
+	 * @return The loaded objects, owned by the caller
+	 * @throws GdxRuntimeException
+	 *             If an ID is already in the scene, the objects loaded before it stay in the scene
+	 */
+	public Array<GameObject> load(FileHandle file, BulletScene scene) {
+		Contents contents = read(file);
+		Array<GameObject> loaded = new Array<>(contents.objectCount);
+		createObjects(contents, 0, contents.objectCount, scene, loaded);
+		createDecorations(contents, 0, contents.decorationCount, scene, null);
+		return loaded;
+	}
+
+	/**
+	 * Maps a file and reads its string table. Doesn't create anything, so it
+	 * can be called from any thread.
+	 *
+	 * @param file
+	 *            A file written by {@link #save(BulletScene, FileHandle)}
+	 */
+	public static Contents read(FileHandle file) {
+		ByteBuffer buffer = map(file);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.getInt(0) != MAGIC)
+			throw new GdxRuntimeException(file + " is not a scene file");
+		int version = buffer.getInt(4);
+		if (version != 1 && version != VERSION)
+			throw new GdxRuntimeException(file + " has an unsupported version " + version);
+
+		Contents contents = new Contents(file, buffer);
+		int stringCount = buffer.getInt(8);
+		contents.shapeCount = buffer.getInt(12);
+		contents.objectCount = buffer.getInt(16);
+		int stringsOffset = buffer.getInt(20);
+		contents.shapesOffset = buffer.getInt(24);
+		contents.objectsOffset = buffer.getInt(28);
+		if (version > 1) {
+			contents.decorationCount = buffer.getInt(32);
+			contents.decorationsOffset = buffer.getInt(36);
+		} else
+			contents.decorationsOffset = HEADER_SIZE_V1;
+
+		contents.strings = new String[stringCount];
+		byte[] bytes = new byte[64];
+		for (int i = 0, offset = stringsOffset; i < stringCount; i++) {
+			int length = buffer.getShort(offset) & 0xFFFF;
+			if (bytes.length < length)
+				bytes = new byte[Math.max(length, bytes.length * 2)];
+			for (int b = 0; b < length; b++)
+				bytes[b] = buffer.get(offset + 2 + b);
+			contents.strings[i] = string(bytes, length);
+			offset += 2 + length;
+		}
+		return contents;
+	}
+
+	/**
+	 * Creates some of the objects of a read file and adds them to a scene
+	 *
+	 * @param first
+	 *            The index of the first object to create
+	 * @param count
+	 *            How many objects to create
+	 * @param out
+	 *            The array the objects are added to
+	 * @throws GdxRuntimeException
+	 *             If an ID is already in the scene, the objects created before it stay in the scene
+	 */
+	public void createObjects(Contents contents, int first, int count, BulletScene scene, Array<GameObject> out) {
+		ByteBuffer buffer = contents.buffer;
+		if (contents.shapeTable == null) {
+			btCollisionShape[] shapeTable = new btCollisionShape[contents.shapeCount];
+			ShapeDescriptor.Type[] types = ShapeDescriptor.Type.values();
+			for (int i = 0; i < shapeTable.length; i++) {
+				int offset = contents.shapesOffset + i * SHAPE_SIZE;
+				shapeTable[i] = shapes.get(types[buffer.getInt(offset)], buffer.getFloat(offset + 4),
+						buffer.getFloat(offset + 8), buffer.getFloat(offset + 12));
+			}
+			contents.shapeTable = shapeTable;
+		}
+
+		for (int i = first; i < first + count; i++) {
+			int offset = contents.objectsOffset + i * RECORD_SIZE;
+			int modelIndex = buffer.getInt(offset + 4);
+			Model model = modelIndex != -1 ? findModel(contents, modelIndex) : null;
+			btCollisionShape shape = contents.shapeTable[buffer.getShort(offset + 8)];
+			short group = buffer.getShort(offset + 10);
+			short mask = buffer.getShort(offset + 12);
+			int flags = buffer.get(offset + 14);
+			float mass = buffer.getFloat(offset + 16);
+
+			GameObject obj = new GameObject(model, shapes.getInfo(shape, mass));
+			obj.setObjectID(contents.strings[buffer.getInt(offset)]);
+			if ((flags & MOTION_STATE) != 0)
+				obj.enableMotionState();
+
+			position.set(buffer.getFloat(offset + 20), buffer.getFloat(offset + 24), buffer.getFloat(offset + 28));
+			rotation.set(buffer.getFloat(offset + 32), buffer.getFloat(offset + 36), buffer.getFloat(offset + 40),
+					buffer.getFloat(offset + 44));
+			obj.getTransform().set(position, rotation);
+
+			// The body isn't in the world yet, so it can be set up directly even with a physics thread
+			btRigidBody body = obj.body;
+			body.setWorldTransform(obj.getTransform());
+			body.setInterpolationWorldTransform(obj.getTransform());
+			body.setLinearVelocity(velocity.set(buffer.getFloat(offset + 48), buffer.getFloat(offset + 52),
+					buffer.getFloat(offset + 56)));
+			body.setAngularVelocity(velocity.set(buffer.getFloat(offset + 60), buffer.getFloat(offset + 64),
+					buffer.getFloat(offset + 68)));
+			if ((flags & SLEEPING) != 0)
+				body.setActivationState(Collision.ISLAND_SLEEPING);
+
+			if (!scene.addObject(obj, group, mask)) {
+				obj.dispose();
+				throw new GdxRuntimeException("Object " + obj.getObjectID() + " is already in the scene");
+			}
+			out.add(obj);
+		}
+	}
+
+	/**
+	 * Creates some of the decorations of a read file and registers them in a scene
+	 *
+	 * @param first
+	 *            The index of the first decoration to create
+	 * @param count
+	 *            How many decorations to create
+	 * @param out
+	 *            The array the decorations are added to, can be null
+	 */
+	public void createDecorations(Contents contents, int first, int count, SceneRender scene,
+			Array<ModelInstance> out) {
+		ByteBuffer buffer = contents.buffer;
+		for (int i = first; i < first + count; i++) {
+			int offset = contents.decorationsOffset + i * DECORATION_SIZE;
+			ModelInstance decoration = new ModelInstance(findModel(contents, buffer.getInt(offset)));
+			position.set(buffer.getFloat(offset + 4), buffer.getFloat(offset + 8), buffer.getFloat(offset + 12));
+			rotation.set(buffer.getFloat(offset + 16), buffer.getFloat(offset + 20), buffer.getFloat(offset + 24),
+					buffer.getFloat(offset + 28));
+			scale.set(buffer.getFloat(offset + 32), buffer.getFloat(offset + 36), buffer.getFloat(offset + 40));
+			decoration.transform.set(position, rotation, scale);
+			scene.registerDecorationObject(decoration);
+			if (out != null)
+				out.add(decoration);
+		}
+	}
+
+	private Model findModel(Contents contents, int nameIndex) {
+		Model model = getModel(contents.strings[nameIndex]);
+		if (model == null)
+			throw new GdxRuntimeException("Unknown model " + contents.strings[nameIndex] + " in " + contents.file);
+		return model;
+	}
+
+	/**
+	 * A file mapped by {@link SceneFile#read(FileHandle)}, ready to create its
+	 * objects and decorations
+	 */
+	public static class Contents {
+		final FileHandle		file;
+		final ByteBuffer		buffer;
+		String[]				strings;
+		int						shapeCount, objectCount, decorationCount;
+		int						shapesOffset, objectsOffset, decorationsOffset;
+		/** Resolved on the first objects created */
+		btCollisionShape[]		shapeTable;
+
+		Contents(FileHandle file, ByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+
+		public int getObjectCount() {
+			return objectCount;
+		}
+
+		public int getDecorationCount() {
+			return decorationCount;
+		}
+
+		/**
+		 * Adds the names of the models used by the objects and decorations
+		 *
+		 * @return out
+		 */
+		public Array<String> getModelNames(Array<String> out) {
+			for (int i = 0; i < objectCount; i++) {
+				int index = buffer.getInt(objectsOffset + i * RECORD_SIZE + 4);
+				if (index != -1 && !out.contains(strings[index], false))
+					out.add(strings[index]);
+			}
+			for (int i = 0; i < decorationCount; i++) {
+				int index = buffer.getInt(decorationsOffset + i * DECORATION_SIZE);
+				if (!out.contains(strings[index], false))
+					out.add(strings[index]);
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * Maps a file on disk, files that can only be streamed are read whole
+	 */
+	private static ByteBuffer map(FileHandle file) {
+		if (file.type() == FileType.Classpath || (file.type() == FileType.Internal && !file.file().exists()))
+			return ByteBuffer.wrap(file.readBytes());
+
+		RandomAccessFile input = null;
+		try {
+			input = new RandomAccessFile(file.file(), "r");
+			FileChannel channel = input.getChannel();
+			// The mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e) {
+			throw new GdxRuntimeException("Couldn't map " + file, e);
+		} finally {
+			StreamUtils.closeQuietly(input);
+		}
+	}
+
+	private static String string(byte[] bytes, int length) {
+		try {
+			return new String(bytes, 0, length, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new GdxRuntimeException(e);
+		}
+	}
+
+	private static byte[] utf8(String string) {
+		try {
+			return string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new GdxRuntimeException(e);
+		}
+	}
+}
@@ -2,30 +2,166 @@ package com.aliensoft.core;
 
 import java.util.HashMap;
 
+import com.aliensoft.core.lighting.CascadedShadows;
+import com.aliensoft.core.lighting.ClusteredLights;
+import com.aliensoft.core.lighting.ClusteredShaderProvider;
+import com.aliensoft.core.profiling.FrameProfiler;
+import com.aliensoft.core.spatial.DynamicAabbTree;
+import com.aliensoft.core.spatial.OcclusionBuffer;
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.g3d.Environment;
+import com.badlogic.gdx.graphics.g3d.Model;
 import com.badlogic.gdx.graphics.g3d.ModelBatch;
 import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
 import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.ObjectIntMap;
 
 public class SceneRender implements Disposable {
 
 	/** Renderers for game objects */
 	protected final HashMap<Class<?>, IObjectRenderer>	renderers	= new HashMap<>();
 
+	/** Renderers that draw their objects when flushed */
+	protected final Array<IBatchedObjectRenderer>		batchedRenderers	= new Array<>();
+
 	/** Game physics objects */
 	protected final HashMap<String, GameObject>			objects		= new HashMap<>();
 
+	/** Renderable objects in render state order */
+	protected final RenderQueue							renderQueue	= new RenderQueue(renderers);
+
 	/** Models for decoration */
 	protected final Array<ModelInstance>				models		= new Array<>();
 
+	/** Spatial index of the game objects, used for culling */
+	protected final DynamicAabbTree<GameObject>			objectTree	= new DynamicAabbTree<>();
+
+	/** Decorations merged by {@link #bakeDecorations(float)} and the instances they came from */
+	private final Array<ModelInstance>					bakedInstances	= new Array<>();
+	private final Array<ModelInstance>					bakedSources	= new Array<>();
+
+	/** Spatial index of the decoration models, used for culling */
+	protected final DynamicAabbTree<ModelInstance>		decorationTree	= new DynamicAabbTree<>();
+	private final ObjectIntMap<ModelInstance>			decorationProxies	= new ObjectIntMap<>();
+
+	/** Owns the merged decoration meshes, null until decorations are baked */
+	private DecorationBaker								decorationBaker;
+
+	/** Assigns the point lights of the environment to clusters for the shaders */
+	protected ClusteredLights							clusteredLights;
+
+	/** Shadows of the directional light, null without shadows */
+	protected CascadedShadows							shadows;
+	/** Changes when static shadow casters are added or removed */
+	private int											staticVersion;
+
+	/** File in the local storage the shader variants are kept in between runs */
+	public static final String							SHADER_VARIANTS_FILE	= "shader-variants.txt";
+
+	protected ClusteredShaderProvider					shaderProvider;
+	protected ShaderVariantRegistry						shaderVariants;
+
 	protected ModelBatch								batch;
 
+	private boolean										frustumCulling	= true;
+
+	/** Hides what is behind the occluders, null without occlusion culling */
+	protected OcclusionBuffer							occlusion;
+
+	/** Times the render phases, null when not profiled */
+	protected FrameProfiler								profiler;
+	private int											shadowScope, cullScope, dispatchScope, flushScope;
+
+	/* Render stats of the last frame */
+	private int											submittedObjects;
+	private int											culledObjects;
+	private int											occludedObjects;
+	private int											submittedTriangles;
+
+	/** Triangles in each model, counted the first time the model is rendered */
+	private final ObjectIntMap<Model>					triangleCounts		= new ObjectIntMap<>();
+
+	/* Reused every frame to avoid garbage */
+	private final Array<GameObject>						visibleObjects		= new Array<>(false, 256);
+	private final Array<ModelInstance>					visibleDecorations	= new Array<>(false, 256);
+	private final Array<GameObject>						shadowObjects		= new Array<>(false, 256);
+	private final Array<ModelInstance>					shadowDecorations	= new Array<>(false, 256);
+	private final Array<InstancedModelRenderer>			instancedRenderers	= new Array<>(false, 4);
+	private final BoundingBox							tmpBounds			= new BoundingBox();
+
+	/**
+	 * Creates the batch and the shaders, needs a GL context. A scene that is
+	 * never created doesn't touch GL, servers use it to simulate only.
+	 */
 	public void create() {
-		batch = new ModelBatch(Gdx.files.internal("shaders/lighting.vertex.glsl"),
+		if (ClusteredLights.isSupported())
+			clusteredLights = new ClusteredLights();
+		shaderVariants = new ShaderVariantRegistry();
+		shaderVariants.load(Gdx.files.local(SHADER_VARIANTS_FILE));
+
+		shaderProvider = new ClusteredShaderProvider(clusteredLights,
+				Gdx.files.internal("shaders/lighting.vertex.glsl"),
 				Gdx.files.internal("shaders/lighting.fragment.glsl"));
+		shaderProvider.setVariantRegistry(shaderVariants);
+		batch = new ModelBatch(shaderProvider, new StateSorter());
+	}
+
+	/**
+	 * Creates the scene with a batch of the caller, for custom shaders and
+	 * tools. Point lights are not clustered and shader variants are not kept.
+	 * 
+	 * @param batch
+	 *            The batch objects are rendered with, owned by the scene
+	 */
+	public void create(ModelBatch batch) {
+		this.batch = batch;
+	}
+
+	/**
+	 * Compiles the shaders of every known variant and of the renderers, so no
+	 * program is compiled in the middle of the game. Variants come from the
+	 * models added to {@link #getShaderVariants()} and from the variants
+	 * compiled late in previous runs.
+	 */
+	public void precompileShaders() {
+		precompileShaders(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Compiles a few shader variants. Call every frame of a loading screen
+	 * until it returns true.
+	 * 
+	 * @param count
+	 *            The number of variants to compile at most
+	 * @return True when every shader is compiled
+	 */
+	public boolean precompileShaders(int count) {
+		instancedRenderers.clear();
+		for (IObjectRenderer renderer : renderers.values())
+			if (renderer instanceof InstancedModelRenderer)
+				instancedRenderers.add((InstancedModelRenderer) renderer);
+
+		if (shaderVariants != null && !shaderVariants.precompile(shaderProvider, instancedRenderers, count))
+			return false;
+
+		for (InstancedModelRenderer renderer : instancedRenderers)
+			renderer.prepare();
+		return true;
+	}
+
+	/**
+	 * @return The shader variants precompiled by {@link #precompileShaders()}, null when
+	 *         created with a custom batch
+	 */
+	public ShaderVariantRegistry getShaderVariants() {
+		return shaderVariants;
 	}
 
 	/**
@@ -42,46 +178,226 @@ public class SceneRender implements Disposable {
 	 * @return the number of objects not rendered (# of obj that don't have a renderer)
 	 */
 	public int render(Environment env, Camera cam, float delta) {
+		FrameProfiler profiler = this.profiler;
+		if (shadows != null) {
+			if (profiler != null)
+				profiler.begin(shadowScope);
+			renderShadows(env, cam);
+			if (profiler != null)
+				profiler.end(shadowScope);
+		}
+		if (profiler != null)
+			profiler.begin(cullScope);
+
+		if (clusteredLights != null)
+			clusteredLights.update(env, cam);
 		batch.begin(cam);
 		int objectsIgnoredInRender = 0;
-		for (GameObject obj : objects.values()) {
-			IObjectRenderer renderer = renderers.get(obj.getClass());
+
+		visibleObjects.clear();
+		visibleDecorations.clear();
+		if (frustumCulling) {
+			objectTree.query(cam.frustum, visibleObjects);
+			decorationTree.query(cam.frustum, visibleDecorations);
+		} else {
+			for (GameObject obj : objects.values())
+				if (obj.cullingProxy != -1)
+					visibleObjects.add(obj);
+			visibleDecorations.addAll(models);
+		}
+		if (occlusion != null)
+			cullOccluded(cam);
+
+		if (profiler != null) {
+			profiler.end(cullScope);
+			profiler.begin(dispatchScope);
+		}
+
+		// Levels of detail are picked first, a new level changes the sort key
+		for (GameObject obj : visibleObjects)
+			if (obj.updateLod(cam))
+				renderQueue.update(obj);
+
+		renderQueue.order(visibleObjects);
+		int triangles = 0;
+		for (GameObject obj : visibleObjects) {
+			IObjectRenderer renderer = obj.renderer;
+			ModelInstance instance = obj.getRenderModel();
 
 			//Render if not null
 			if (renderer != null) {
 				renderer.render(obj, env, batch);
+				triangles += countTriangles(instance);
 			} else
 				objectsIgnoredInRender++;
 		}
 
 		// Render decoration objects
-		batch.render(models);
+		batch.render(visibleDecorations);
+		for (ModelInstance decoration : visibleDecorations)
+			triangles += countTriangles(decoration);
+
+		if (profiler != null) {
+			profiler.end(dispatchScope);
+			profiler.begin(flushScope);
+		}
 
 		batch.end();
 
+		for (IBatchedObjectRenderer renderer : batchedRenderers)
+			renderer.flush(env, cam);
+
+		if (profiler != null)
+			profiler.end(flushScope);
+
+		if (occlusion == null)
+			occludedObjects = 0;
+		submittedObjects = visibleObjects.size + visibleDecorations.size - objectsIgnoredInRender;
+		culledObjects = objectTree.size() + decorationTree.size() - visibleObjects.size - visibleDecorations.size;
+		submittedTriangles = triangles;
+
 		return objectsIgnoredInRender;
 	}
 
+	/**
+	 * Removes the visible objects and decorations hidden behind the
+	 * occluders, tested with their fattened culling bounds
+	 */
+	private void cullOccluded(Camera cam) {
+		occlusion.render(cam);
+		int visible = visibleObjects.size + visibleDecorations.size;
+
+		for (int i = visibleObjects.size - 1; i >= 0; i--) {
+			GameObject obj = visibleObjects.get(i);
+			if (!occlusion.isVisible(objectTree.getFatBounds(obj.cullingProxy, tmpBounds)))
+				visibleObjects.removeIndex(i);
+		}
+		for (int i = visibleDecorations.size - 1; i >= 0; i--) {
+			int proxy = decorationProxies.get(visibleDecorations.get(i), -1);
+			if (!occlusion.isVisible(decorationTree.getFatBounds(proxy, tmpBounds)))
+				visibleDecorations.removeIndex(i);
+		}
+		occludedObjects = visible - visibleObjects.size - visibleDecorations.size;
+	}
+
+	/**
+	 * Renders the static casters of the cascades that moved and the dynamic
+	 * casters of every cascade
+	 */
+	private void renderShadows(Environment env, Camera cam) {
+		if (!shadows.update(env, cam, staticVersion))
+			return;
+
+		for (int i = 0; i < shadows.getCascadeCount(); i++) {
+			shadowObjects.clear();
+			objectTree.query(shadows.getCamera(i).frustum, shadowObjects);
+
+			if (shadows.isStaticDirty(i)) {
+				shadowDecorations.clear();
+				decorationTree.query(shadows.getCamera(i).frustum, shadowDecorations);
+				ModelBatch shadowBatch = shadows.begin(i, false);
+				shadowBatch.render(shadowDecorations);
+				for (GameObject obj : shadowObjects)
+					if (isStatic(obj))
+						shadowBatch.render(obj.getModel());
+				shadows.end();
+			}
+
+			ModelBatch shadowBatch = shadows.begin(i, true);
+			for (GameObject obj : shadowObjects)
+				if (!isStatic(obj))
+					shadowBatch.render(obj.getModel());
+			shadows.end();
+		}
+	}
+
+	private static boolean isStatic(GameObject object) {
+		return object.body != null && object.body.isStaticObject();
+	}
+
 	public void dispose() {
 		for (GameObject obj : objects.values()) {
 			obj.dispose();
 		}
 		objects.clear();
+		for (IObjectRenderer renderer : renderers.values())
+			if (renderer instanceof Disposable)
+				((Disposable) renderer).dispose();
 		renderers.clear();
+		batchedRenderers.clear();
+		renderQueue.clear();
+		triangleCounts.clear();
+		objectTree.clear();
+		decorationTree.clear();
+		decorationProxies.clear();
+		models.clear();
+		if (decorationBaker != null) {
+			decorationBaker.dispose();
+			decorationBaker = null;
+		}
 
-		batch.dispose();
+		if (batch != null)
+			batch.dispose();
+		if (clusteredLights != null)
+			clusteredLights.dispose();
+		if (shaderVariants != null) {
+			shaderVariants.save(Gdx.files.local(SHADER_VARIANTS_FILE));
+			shaderVariants.dispose();
+		}
 	}
 
 	/**
 	 * Register a renderer to render a {@link GameObject} class. <br>
 	 * This will override an older renderer if the class is the same
-	 * as a already registered renderer
+	 * as a already registered renderer. Subclasses without a renderer
+	 * of their own use this one.
 	 * 
 	 * @param renderer
 	 *            The renderer to register
 	 */
 	public void registerRenderer(IObjectRenderer renderer) {
-		renderers.put(renderer.getRenderClass(), renderer);
+		IObjectRenderer old = renderers.put(renderer.getRenderClass(), renderer);
+		if (old instanceof IBatchedObjectRenderer)
+			batchedRenderers.removeValue((IBatchedObjectRenderer) old, true);
+		if (renderer instanceof IBatchedObjectRenderer)
+			batchedRenderers.add((IBatchedObjectRenderer) renderer);
+		if (renderer instanceof InstancedModelRenderer) {
+			((InstancedModelRenderer) renderer).setClusteredLights(clusteredLights);
+			((InstancedModelRenderer) renderer).setShadows(shadows);
+			((InstancedModelRenderer) renderer).setVariantRegistry(shaderVariants);
+		}
+		renderQueue.rebuild();
+	}
+
+	/**
+	 * Casts the shadows of the directional light of the environment with
+	 * cascades. Static objects and decorations are rendered in the cached
+	 * map, the other objects every frame. The shadows must also be the
+	 * shadow map of the environment, set before precompiling the shaders.
+	 * 
+	 * @param shadows
+	 *            The shadows, not owned by the scene, null to disable
+	 */
+	public void setShadows(CascadedShadows shadows) {
+		this.shadows = shadows;
+		if (shaderVariants != null)
+			shaderVariants.setShadowMap(shadows);
+		for (IObjectRenderer renderer : renderers.values())
+			if (renderer instanceof InstancedModelRenderer)
+				((InstancedModelRenderer) renderer).setShadows(shadows);
+	}
+
+	public CascadedShadows getShadows() {
+		return shadows;
+	}
+
+	/**
+	 * Renders the static shadow casters again on the next frame. Needed after
+	 * moving a static object or a decoration, adding and removing them is
+	 * detected.
+	 */
+	public void invalidateShadows() {
+		staticVersion++;
 	}
 
 	/**
@@ -96,6 +412,34 @@ public class SceneRender implements Disposable {
 			return false;
 
 		objects.put(object.getObjectID(), object);
+		if (object.getModel() != null) {
+			object.cullingProxy = objectTree.createProxy(object.getBounds(tmpBounds), object);
+			renderQueue.add(object);
+			if (isStatic(object))
+				staticVersion++;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a object from the scene. The object is not disposed.
+	 * 
+	 * @param object
+	 *            The object to be removed
+	 * @return False if the object wasn't registered
+	 */
+	public boolean unregisterObject(GameObject object) {
+		if (objects.get(object.getObjectID()) != object)
+			return false;
+
+		objects.remove(object.getObjectID());
+		if (object.cullingProxy != -1) {
+			objectTree.destroyProxy(object.cullingProxy);
+			object.cullingProxy = -1;
+			renderQueue.remove(object);
+			if (isStatic(object))
+				staticVersion++;
+		}
 		return true;
 	}
 
@@ -107,6 +451,226 @@ public class SceneRender implements Disposable {
 	 */
 	public void registerDecorationObject(ModelInstance model) {
 		models.add(model);
+		decorationProxies.put(model, decorationTree.createProxy(
+				model.calculateBoundingBox(tmpBounds).mul(model.transform), model));
+		staticVersion++;
+	}
+
+	/**
+	 * Removes a decoration from the scene. Baked decorations can't be removed,
+	 * they are part of the merged meshes.
+	 * 
+	 * @param model
+	 * @return False if the decoration isn't rendered on its own by the scene
+	 */
+	public boolean unregisterDecorationObject(ModelInstance model) {
+		int proxy = decorationProxies.remove(model, -1);
+		if (proxy == -1)
+			return false;
+
+		models.removeValue(model, true);
+		decorationTree.destroyProxy(proxy);
+		staticVersion++;
+		return true;
+	}
+
+	/**
+	 * Merges the registered decorations that share a material into a few
+	 * meshes, one model per chunk of the world. Decorations must be static,
+	 * moving the source instances after baking has no effect.<br>
+	 * Can be called again after registering more decorations, the previous
+	 * merged meshes are disposed and rebaked from the original instances.
+	 * 
+	 * @param chunkSize
+	 *            Size of the cubic chunks, each one is culled as a unit
+	 * @return The number of decoration instances rendered after baking
+	 */
+	public int bakeDecorations(float chunkSize) {
+		Array<ModelInstance> sources = bakedSources;
+		if (decorationBaker != null) {
+			// Rebake from the original instances, not the merged ones
+			for (ModelInstance model : models)
+				if (!bakedInstances.contains(model, true) && !sources.contains(model, true))
+					sources.add(model);
+			decorationBaker.dispose();
+		} else
+			sources.addAll(models);
+		decorationBaker = new DecorationBaker(chunkSize);
+
+		Array<ModelInstance> unmerged = new Array<>();
+		bakedInstances.clear();
+		bakedInstances.addAll(decorationBaker.bake(sources, unmerged));
+
+		models.clear();
+		decorationTree.clear();
+		decorationProxies.clear();
+		triangleCounts.clear();
+		for (ModelInstance model : bakedInstances)
+			registerDecorationObject(model);
+		for (ModelInstance model : unmerged)
+			registerDecorationObject(model);
+		return models.size;
+	}
+
+	/**
+	 * Collects the world bounds of the static level geometry: the
+	 * decorations, from their original instances if they were baked, and the
+	 * objects with a static body, from the body so objects without model are
+	 * included. The static bodies must not be changed meanwhile.
+	 *
+	 * @param out
+	 *            The array the new boxes are added to
+	 * @return out
+	 */
+	public Array<BoundingBox> getStaticBounds(Array<BoundingBox> out) {
+		for (ModelInstance model : getDecorations(new Array<ModelInstance>()))
+			out.add(model.calculateBoundingBox(new BoundingBox()).mul(model.transform));
+
+		Vector3 min = new Vector3(), max = new Vector3();
+		for (GameObject obj : objects.values()) {
+			if (obj.body != null && obj.body.isStaticObject()) {
+				obj.body.getAabb(min, max);
+				out.add(new BoundingBox(min, max));
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Collects the registered decorations, the original instances of the baked ones
+	 * 
+	 * @param out
+	 *            The array the decorations are added to
+	 * @return out
+	 */
+	public Array<ModelInstance> getDecorations(Array<ModelInstance> out) {
+		for (ModelInstance model : models)
+			if (!bakedInstances.contains(model, true))
+				out.add(model);
+		out.addAll(bakedSources);
+		return out;
+	}
+
+	/**
+	 * Refreshes the culling bounds of a object after it moved.
+	 * Cheap when the object is still inside its fattened bounds.
+	 * 
+	 * @param object
+	 *            The object that moved
+	 */
+	protected void updateBounds(GameObject object) {
+		if (object.cullingProxy != -1)
+			objectTree.moveProxy(object.cullingProxy, object.getBounds(tmpBounds));
+	}
+
+	private int countTriangles(ModelInstance instance) {
+		int count = triangleCounts.get(instance.model, -1);
+		if (count == -1) {
+			count = 0;
+			for (Node node : instance.model.nodes)
+				count += countTriangles(node);
+			triangleCounts.put(instance.model, count);
+		}
+		return count;
+	}
+
+	private static int countTriangles(Node node) {
+		int count = 0;
+		for (NodePart part : node.parts) {
+			if (part.meshPart.primitiveType == GL20.GL_TRIANGLES)
+				count += part.meshPart.numVertices / 3;
+			else if (part.meshPart.primitiveType == GL20.GL_TRIANGLE_STRIP
+					|| part.meshPart.primitiveType == GL20.GL_TRIANGLE_FAN)
+				count += Math.max(0, part.meshPart.numVertices - 2);
+		}
+		for (Node child : node.children)
+			count += countTriangles(child);
+		return count;
+	}
+
+	/**
+	 * Times the render phases of the scene in a profiler: shadows (the shadow
+	 * maps), cull (frustum and occlusion culling and light clusters), dispatch
+	 * (ordering and the renderers) and gl flush (the draw calls of the batch
+	 * and the batched renderers).
+	 * 
+	 * @param profiler
+	 *            The profiler of the render thread, null to stop profiling
+	 */
+	public void setProfiler(FrameProfiler profiler) {
+		this.profiler = profiler;
+		if (profiler != null) {
+			shadowScope = profiler.scope("shadows");
+			cullScope = profiler.scope("cull");
+			dispatchScope = profiler.scope("dispatch");
+			flushScope = profiler.scope("gl flush");
+		}
+	}
+
+	/**
+	 * Skips the objects and decorations hidden behind the occluders of a
+	 * buffer, rasterized from the camera every render after frustum culling.
+	 * Shadows are not affected.
+	 * 
+	 * @param occlusion
+	 *            The buffer and its occluders, not owned by the scene, null to disable
+	 */
+	public void setOcclusionBuffer(OcclusionBuffer occlusion) {
+		this.occlusion = occlusion;
+	}
+
+	public OcclusionBuffer getOcclusionBuffer() {
+		return occlusion;
+	}
+
+	/**
+	 * Enables or disables frustum culling. Useful to compare the counters.
+	 * 
+	 * @param frustumCulling
+	 */
+	public void setFrustumCulling(boolean frustumCulling) {
+		this.frustumCulling = frustumCulling;
+	}
+
+	public boolean isFrustumCulling() {
+		return frustumCulling;
+	}
+
+	/**
+	 * @return The number of objects and decorations sent to the batch in the last render
+	 */
+	public int getSubmittedCount() {
+		return submittedObjects;
+	}
+
+	/**
+	 * @return The point light clusters of the last render, null when the GL
+	 *         context can't use them
+	 */
+	public ClusteredLights getClusteredLights() {
+		return clusteredLights;
+	}
+
+	/**
+	 * @return The number of triangles sent to the batch in the last render
+	 */
+	public int getTriangleCount() {
+		return submittedTriangles;
+	}
+
+	/**
+	 * @return The number of objects and decorations skipped by culling in the last render
+	 */
+	public int getCulledCount() {
+		return culledObjects;
+	}
+
+	/**
+	 * @return The number of objects and decorations skipped by occlusion culling in the
+	 *         last render, included in {@link #getCulledCount()}
+	 */
+	public int getOccludedCount() {
+		return occludedObjects;
 	}
 
 }
@@ -0,0 +1,527 @@
+package com.aliensoft.core;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.aliensoft.core.physics.NativeTracker;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.physics.bullet.collision.Collision;
+import com.badlogic.gdx.physics.bullet.collision.btBroadphaseInterface;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionConfiguration;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionDispatcher;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionObject.CollisionFlags;
+import com.badlogic.gdx.physics.bullet.collision.btDbvtBroadphase;
+import com.badlogic.gdx.physics.bullet.collision.btDefaultCollisionConfiguration;
+import com.badlogic.gdx.physics.bullet.dynamics.btConstraintSolver;
+import com.badlogic.gdx.physics.bullet.dynamics.btDiscreteDynamicsWorld;
+import com.badlogic.gdx.physics.bullet.dynamics.btRigidBody;
+import com.badlogic.gdx.physics.bullet.dynamics.btRigidBody.btRigidBodyConstructionInfo;
+import com.badlogic.gdx.physics.bullet.dynamics.btSequentialImpulseConstraintSolver;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.ObjectMap;
+
+/**
+ * A scene simulated in many bullet worlds, one per sector of a grid laid on
+ * the XZ plane, so large maps step on every core.<br>
+ * Every tick the sectors step in parallel on a fork/join pool, then the
+ * objects that moved are synced on the calling thread. A body that left its
+ * sector is handed to the sector it entered. Bodies closer to a border than
+ * the margin get a kinematic ghost in the neighbor sector, so the bodies
+ * there collide with them; ghosts push but are never pushed. Static bodies
+ * get a static ghost in every sector they overlap, and must not be moved.<br>
+ * Objects are only simulated here, the scene is stepped by
+ * {@link #update(float)} and has no physics thread, contact events or queries.
+ */
+public class SectorScene extends SceneRender {
+
+	private static final int						MAX_TICKS		= 5;
+
+	private final Sector[]							sectors;
+	private final int								columns, rows;
+	private final float								originX, originZ;
+	private final float								sectorSize;
+	private final float								margin;
+	private final float								tick;
+	private float									accumulator;
+
+	private final ForkJoinPool						pool;
+	private final boolean							ownsPool;
+	private final StepAll							stepAll			= new StepAll();
+
+	private final ObjectMap<GameObject, Placement>	placements		= new ObjectMap<>();
+	/** Objects that moved during the last tick */
+	private final Array<GameObject>					moved			= new Array<>(false, 64);
+	private int										handoffs;
+
+	/** Ghosts out of any world, reused before creating new ones */
+	private final Array<btRigidBody>				freeGhosts		= new Array<>(false, 16);
+	private btRigidBodyConstructionInfo				ghostInfo;
+
+	private final Vector3							position		= new Vector3();
+	private final Vector3							min				= new Vector3();
+	private final Vector3							max				= new Vector3();
+
+	/**
+	 * Creates a scene stepped on its own pool, one thread per core
+	 *
+	 * @param originX
+	 *            The smallest x of the grid
+	 * @param originZ
+	 *            The smallest z of the grid
+	 * @param sectorSize
+	 *            The side of a sector
+	 * @param margin
+	 *            Distance to a border under which a body is ghosted in the
+	 *            neighbor sector, larger than the biggest dynamic body
+	 * @param tickSeconds
+	 *            The fixed time step of the simulation
+	 */
+	public SectorScene(float originX, float originZ, int columns, int rows, float sectorSize, float margin,
+			float tickSeconds) {
+		this(originX, originZ, columns, rows, sectorSize, margin, tickSeconds, new ForkJoinPool(), true);
+	}
+
+	/**
+	 * @param pool
+	 *            The pool the sectors are stepped on, shared with other systems
+	 */
+	public SectorScene(float originX, float originZ, int columns, int rows, float sectorSize, float margin,
+			float tickSeconds, ForkJoinPool pool) {
+		this(originX, originZ, columns, rows, sectorSize, margin, tickSeconds, pool, false);
+	}
+
+	private SectorScene(float originX, float originZ, int columns, int rows, float sectorSize, float margin,
+			float tickSeconds, ForkJoinPool pool, boolean ownsPool) {
+		if (margin * 2f > sectorSize)
+			throw new GdxRuntimeException("The margin must be under half the sector size");
+
+		this.originX = originX;
+		this.originZ = originZ;
+		this.columns = columns;
+		this.rows = rows;
+		this.sectorSize = sectorSize;
+		this.margin = margin;
+		this.tick = tickSeconds;
+		this.pool = pool;
+		this.ownsPool = ownsPool;
+
+		sectors = new Sector[columns * rows];
+		for (int i = 0; i < sectors.length; i++)
+			sectors[i] = new Sector(i);
+	}
+
+	/**
+	 * Sets the gravity of every sector
+	 */
+	public void setGravity(Vector3 gravity) {
+		for (Sector sector : sectors)
+			sector.world.setGravity(gravity);
+	}
+
+	/**
+	 * Registers a object and adds its body to the sector its center is in.
+	 * Objects outside the grid go to the nearest sector.
+	 *
+	 * @param group
+	 *            The collision group of the body
+	 * @param mask
+	 *            The groups the body collides with
+	 * @return False if the object was already registered
+	 */
+	public boolean addObject(GameObject object, short group, short mask) {
+		if (!registerObject(object))
+			return false;
+
+		object.body.getWorldTransform().getTranslation(position);
+		Placement placement = new Placement(object, group, mask, object.body.isStaticObject());
+		placements.put(object, placement);
+		Sector sector = sectors[sectorAt(position.x, position.z)];
+		sector.add(object, placement);
+
+		if (placement.isStatic) {
+			// Walls and floors are needed in every sector they cross
+			object.body.getAabb(min, max);
+			int fromColumn = column(min.x), toColumn = column(max.x);
+			int fromRow = row(min.z), toRow = row(max.z);
+			for (int r = fromRow; r <= toRow; r++)
+				for (int c = fromColumn; c <= toColumn; c++)
+					if (r * columns + c != sector.index)
+						addGhost(placement, sectors[r * columns + c], object.body.getWorldTransform());
+		} else
+			updateGhosts(placement);
+		return true;
+	}
+
+	/**
+	 * Removes the body and ghosts of a object and unregisters it. The object
+	 * is not disposed.
+	 *
+	 * @return False if the object wasn't registered
+	 */
+	public boolean removeObject(GameObject object) {
+		if (!unregisterObject(object))
+			return false;
+
+		Placement placement = placements.remove(object);
+		for (int i = placement.ghostCount - 1; i >= 0; i--)
+			removeGhost(placement, i);
+		sectors[placement.sector].remove(object);
+		return true;
+	}
+
+	/**
+	 * Steps the sectors by fixed ticks and syncs the objects after each one
+	 *
+	 * @param delta
+	 *            Seconds since the last update
+	 */
+	public void update(float delta) {
+		accumulator += delta;
+		int ticks = 0;
+		while (accumulator >= tick && ticks < MAX_TICKS) {
+			step();
+			accumulator -= tick;
+			ticks++;
+		}
+		// Too far behind, drop the missed ticks instead of spiraling
+		if (ticks == MAX_TICKS)
+			accumulator = 0f;
+	}
+
+	private void step() {
+		if (sectors.length == 1)
+			sectors[0].step();
+		else {
+			stepAll.reinitialize();
+			pool.invoke(stepAll);
+		}
+
+		for (Sector sector : sectors) {
+			for (GameObject obj : sector.polled) {
+				obj.update();
+				moved.add(obj);
+			}
+			for (GameObject obj : sector.dirty) {
+				obj.dirty = false;
+				moved.add(obj);
+			}
+			sector.dirty.clear();
+		}
+
+		for (GameObject obj : moved) {
+			updateBounds(obj);
+			Placement placement = placements.get(obj);
+			if (placement.isStatic)
+				continue;
+
+			obj.getTransform().getTranslation(position);
+			int home = sectorAt(position.x, position.z);
+			if (home != placement.sector)
+				handOff(placement, sectors[home]);
+			updateGhosts(placement);
+		}
+		moved.clear();
+	}
+
+	/**
+	 * Moves a body to the sector it entered, keeping its velocity
+	 */
+	private void handOff(Placement placement, Sector to) {
+		// The body must not meet its own ghost
+		for (int i = 0; i < placement.ghostCount; i++) {
+			if (placement.ghostSectors[i] == to.index) {
+				removeGhost(placement, i);
+				break;
+			}
+		}
+		sectors[placement.sector].remove(placement.object);
+		to.add(placement.object, placement);
+		handoffs++;
+	}
+
+	/**
+	 * Adds, moves and removes the ghosts of a dynamic body in the sectors
+	 * around its own
+	 */
+	private void updateGhosts(Placement placement) {
+		Matrix4 transform = placement.object.getTransform();
+		transform.getTranslation(position);
+		int home = placement.sector;
+		int column = home % columns, row = home / columns;
+		float localX = position.x - (originX + column * sectorSize);
+		float localZ = position.z - (originZ + row * sectorSize);
+		int nearX = localX < margin ? -1 : localX > sectorSize - margin ? 1 : 0;
+		int nearZ = localZ < margin ? -1 : localZ > sectorSize - margin ? 1 : 0;
+
+		// Drop the ghosts of the sectors the body isn't near anymore
+		for (int i = placement.ghostCount - 1; i >= 0; i--) {
+			int sector = placement.ghostSectors[i];
+			int dx = sector % columns - column, dz = sector / columns - row;
+			if ((dx != 0 && dx != nearX) || (dz != 0 && dz != nearZ))
+				removeGhost(placement, i);
+		}
+		if (nearX == 0 && nearZ == 0)
+			return;
+
+		for (int dz = Math.min(nearZ, 0); dz <= Math.max(nearZ, 0); dz++) {
+			for (int dx = Math.min(nearX, 0); dx <= Math.max(nearX, 0); dx++) {
+				int c = column + dx, r = row + dz;
+				if ((dx == 0 && dz == 0) || c < 0 || c >= columns || r < 0 || r >= rows)
+					continue;
+				int sector = r * columns + c;
+				int ghost = placement.findGhost(sector);
+				if (ghost == -1)
+					addGhost(placement, sectors[sector], transform);
+				else
+					placement.ghosts[ghost].setWorldTransform(transform);
+			}
+		}
+	}
+
+	private void addGhost(Placement placement, Sector sector, Matrix4 transform) {
+		btRigidBody ghost;
+		if (freeGhosts.size > 0) {
+			ghost = freeGhosts.pop();
+			ghost.setCollisionShape(placement.object.body.getCollisionShape());
+		} else {
+			if (ghostInfo == null)
+				ghostInfo = NativeTracker.track(new btRigidBodyConstructionInfo(0f, null, placement.object.body
+						.getCollisionShape(), Vector3.Zero));
+			else
+				ghostInfo.setCollisionShape(placement.object.body.getCollisionShape());
+			ghost = NativeTracker.track(new btRigidBody(ghostInfo));
+		}
+
+		if (placement.isStatic) {
+			ghost.setCollisionFlags(CollisionFlags.CF_STATIC_OBJECT);
+			ghost.setActivationState(Collision.ACTIVE_TAG);
+		} else {
+			// Moved by the scene, bullet derives its velocity from the motion
+			ghost.setCollisionFlags(CollisionFlags.CF_KINEMATIC_OBJECT);
+			ghost.setActivationState(Collision.DISABLE_DEACTIVATION);
+		}
+		ghost.setUserValue(placement.object.body.getUserValue());
+		ghost.setWorldTransform(transform);
+		ghost.setInterpolationWorldTransform(transform);
+		sector.world.addRigidBody(ghost, placement.group, placement.mask);
+		placement.addGhost(sector.index, ghost);
+	}
+
+	private void removeGhost(Placement placement, int i) {
+		btRigidBody ghost = placement.ghosts[i];
+		sectors[placement.ghostSectors[i]].world.removeRigidBody(ghost);
+		placement.removeGhost(i);
+		freeGhosts.add(ghost);
+	}
+
+	private int column(float x) {
+		return Math.min(columns - 1, Math.max(0, (int) Math.floor((x - originX) / sectorSize)));
+	}
+
+	private int row(float z) {
+		return Math.min(rows - 1, Math.max(0, (int) Math.floor((z - originZ) / sectorSize)));
+	}
+
+	private int sectorAt(float x, float z) {
+		return row(z) * columns + column(x);
+	}
+
+	/**
+	 * @return The world of a sector, by column and row
+	 */
+	public btDiscreteDynamicsWorld getWorld(int column, int row) {
+		return sectors[row * columns + column].world;
+	}
+
+	/**
+	 * @return The number of bodies a sector simulates, ghosts excluded
+	 */
+	public int getBodyCount(int column, int row) {
+		return sectors[row * columns + column].bodies;
+	}
+
+	/**
+	 * @return The number of ghosts in every sector
+	 */
+	public int getGhostCount() {
+		int count = 0;
+		for (Placement placement : placements.values())
+			count += placement.ghostCount;
+		return count;
+	}
+
+	/**
+	 * @return The bodies handed to another sector since the scene was created
+	 */
+	public int getHandoffCount() {
+		return handoffs;
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Removes every body from the sectors before disposing them and the objects
+	 */
+	@Override
+	public void dispose() {
+		for (Placement placement : placements.values()) {
+			for (int i = placement.ghostCount - 1; i >= 0; i--)
+				removeGhost(placement, i);
+			sectors[placement.sector].remove(placement.object);
+		}
+		placements.clear();
+		for (btRigidBody ghost : freeGhosts)
+			NativeTracker.free(ghost);
+		freeGhosts.clear();
+		NativeTracker.free(ghostInfo);
+		ghostInfo = null;
+		for (Sector sector : sectors)
+			sector.dispose();
+		if (ownsPool)
+			pool.shutdown();
+		super.dispose();
+	}
+
+	/**
+	 * Where a object is simulated and ghosted
+	 */
+	private static class Placement {
+		final GameObject	object;
+		final short			group, mask;
+		final boolean		isStatic;
+		int					sector	= -1;
+
+		int[]				ghostSectors	= new int[3];
+		btRigidBody[]		ghosts			= new btRigidBody[3];
+		int					ghostCount;
+
+		Placement(GameObject object, short group, short mask, boolean isStatic) {
+			this.object = object;
+			this.group = group;
+			this.mask = mask;
+			this.isStatic = isStatic;
+		}
+
+		int findGhost(int sector) {
+			for (int i = 0; i < ghostCount; i++)
+				if (ghostSectors[i] == sector)
+					return i;
+			return -1;
+		}
+
+		void addGhost(int sector, btRigidBody ghost) {
+			if (ghostCount == ghosts.length) {
+				int[] newSectors = new int[ghostCount * 2];
+				btRigidBody[] newGhosts = new btRigidBody[ghostCount * 2];
+				System.arraycopy(ghostSectors, 0, newSectors, 0, ghostCount);
+				System.arraycopy(ghosts, 0, newGhosts, 0, ghostCount);
+				ghostSectors = newSectors;
+				ghosts = newGhosts;
+			}
+			ghostSectors[ghostCount] = sector;
+			ghosts[ghostCount++] = ghost;
+		}
+
+		void removeGhost(int i) {
+			ghostCount--;
+			ghostSectors[i] = ghostSectors[ghostCount];
+			ghosts[i] = ghosts[ghostCount];
+			ghosts[ghostCount] = null;
+		}
+	}
+
+	/**
+	 * A world of its own, stepped by one pool thread at a time. Its motion
+	 * states queue into its own dirty list, so sectors never share state while
+	 * stepping.
+	 */
+	private class Sector extends RecursiveAction {
+		private static final long				serialVersionUID	= 1L;
+
+		final int								index;
+		final btCollisionConfiguration			collisionConfig;
+		final btCollisionDispatcher				dispatcher;
+		final btBroadphaseInterface				broadphase;
+		final btConstraintSolver				solver;
+		final btDiscreteDynamicsWorld			world;
+
+		/** Objects without a motion state, read after every tick */
+		final Array<GameObject>					polled	= new Array<>(false, 16);
+		/** Objects moved by the last step */
+		final Array<GameObject>					dirty	= new Array<>(false, 16);
+		int										bodies;
+
+		Sector(int index) {
+			this.index = index;
+			collisionConfig = NativeTracker.track(new btDefaultCollisionConfiguration());
+			dispatcher = NativeTracker.track(new btCollisionDispatcher(collisionConfig));
+			broadphase = NativeTracker.track(new btDbvtBroadphase());
+			solver = NativeTracker.track(new btSequentialImpulseConstraintSolver());
+			world = NativeTracker.track(new btDiscreteDynamicsWorld(dispatcher, broadphase, solver, collisionConfig));
+		}
+
+		void add(GameObject object, Placement placement) {
+			world.addRigidBody(object.body, placement.group, placement.mask);
+			placement.sector = index;
+			bodies++;
+			if (placement.isStatic)
+				return;
+			if (object.hasMotionState())
+				object.setDirtyList(dirty);
+			else
+				polled.add(object);
+		}
+
+		void remove(GameObject object) {
+			world.removeRigidBody(object.body);
+			bodies--;
+			if (object.hasMotionState()) {
+				object.setDirtyList(null);
+				if (object.dirty) {
+					dirty.removeValue(object, true);
+					object.dirty = false;
+				}
+			} else
+				polled.removeValue(object, true);
+		}
+
+		void step() {
+			world.stepSimulation(tick, 1, tick);
+		}
+
+		@Override
+		protected void compute() {
+			step();
+		}
+
+		void dispose() {
+			NativeTracker.free(world);
+			NativeTracker.free(solver);
+			NativeTracker.free(broadphase);
+			NativeTracker.free(dispatcher);
+			NativeTracker.free(collisionConfig);
+		}
+	}
+
+	/**
+	 * Forks a task per sector and waits for all of them
+	 */
+	private class StepAll extends RecursiveAction {
+		private static final long	serialVersionUID	= 1L;
+
+		@Override
+		protected void compute() {
+			for (Sector sector : sectors)
+				sector.reinitialize();
+			invokeAll(sectors);
+		}
+	}
+}
@@ -0,0 +1,388 @@
+package com.aliensoft.core;
+
+import com.aliensoft.core.lighting.EnvironmentShadows;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes;
+import com.badlogic.gdx.graphics.g3d.Attribute;
+import com.badlogic.gdx.graphics.g3d.Attributes;
+import com.badlogic.gdx.graphics.g3d.Environment;
+import com.badlogic.gdx.graphics.g3d.Material;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.Renderable;
+import com.badlogic.gdx.graphics.g3d.attributes.BlendingAttribute;
+import com.badlogic.gdx.graphics.g3d.attributes.ColorAttribute;
+import com.badlogic.gdx.graphics.g3d.attributes.DepthTestAttribute;
+import com.badlogic.gdx.graphics.g3d.attributes.FloatAttribute;
+import com.badlogic.gdx.graphics.g3d.attributes.IntAttribute;
+import com.badlogic.gdx.graphics.g3d.attributes.TextureAttribute;
+import com.badlogic.gdx.graphics.g3d.environment.ShadowMap;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.graphics.g3d.utils.ShaderProvider;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.ObjectMap;
+import com.badlogic.gdx.utils.ObjectSet;
+
+/**
+ * Keeps the shader variants a game needs so they can be compiled before the
+ * first frame instead of the first time a renderable needs them.<br>
+ * A variant is the vertex layout, the material and environment attributes and
+ * the skinning of a renderable, the inputs the shader provider picks a program
+ * with. Variants are added from the models the game will render and recorded
+ * when a program is compiled late. The registry is saved to a text file, so
+ * the next startups precompile what the last sessions used. The programs of
+ * {@link InstancedModelRenderer}s are kept as variants of their own.
+ */
+public class ShaderVariantRegistry implements Disposable {
+
+	/** Starts the keys of the variants drawn by an {@link InstancedModelRenderer} */
+	private static final char				INSTANCED		= 'i';
+
+	/** Variant keys in the order they were added */
+	private final Array<String>				variants		= new Array<>();
+	private final ObjectSet<String>			known			= new ObjectSet<>();
+	/** First variant not compiled yet */
+	private int								compiled;
+
+	/** Variants that had to be compiled while rendering */
+	private int								lateCompiles;
+	private boolean							changed;
+
+	/* Reused to build the renderables of each variant */
+	private final Renderable				renderable		= new Renderable();
+	private final ObjectMap<String, Mesh>	meshes			= new ObjectMap<>();
+	private Texture							placeholder;
+	private static final Matrix4[]			NO_BONES		= new Matrix4[0];
+
+	private final StringBuilder				builder			= new StringBuilder();
+
+	/** Given to the environments of shadowed variants, they are skipped without it */
+	private ShadowMap						shadowMap;
+
+	/**
+	 * Adds the variants of every part of a model
+	 *
+	 * @param model
+	 *            A model the game renders
+	 * @param env
+	 *            The environment it is rendered with, null when not lit
+	 */
+	public void addModel(Model model, Environment env) {
+		for (Node node : model.nodes)
+			addNode(node, env);
+	}
+
+	/**
+	 * Adds the variants of every part of a model drawn by an
+	 * {@link InstancedModelRenderer}
+	 *
+	 * @param model
+	 *            A model the game renders with instances
+	 * @param env
+	 *            The environment it is rendered with
+	 */
+	public void addInstancedModel(Model model, Environment env) {
+		for (Node node : model.nodes)
+			addInstancedNode(node, env);
+	}
+
+	private void addNode(Node node, Environment env) {
+		for (NodePart part : node.parts)
+			add(key(part.meshPart.mesh.getVertexAttributes(), part.material, env, part.bones != null));
+		for (Node child : node.children)
+			addNode(child, env);
+	}
+
+	private void addInstancedNode(Node node, Environment env) {
+		for (NodePart part : node.parts)
+			add(INSTANCED + key(part.meshPart.mesh.getVertexAttributes(), part.material, env, false));
+		for (Node child : node.children)
+			addInstancedNode(child, env);
+	}
+
+	/**
+	 * Records the variant of a renderable the shader provider had to compile
+	 * while rendering, it is precompiled on the next startup.
+	 *
+	 * @param renderable
+	 *            The renderable a program was created for
+	 */
+	public void record(Renderable renderable) {
+		if (add(key(renderable.mesh.getVertexAttributes(), renderable.material, renderable.environment,
+				renderable.bones != null)))
+			lateCompiles++;
+	}
+
+	/**
+	 * Records the variant of a renderable an {@link InstancedModelRenderer}
+	 * had to compile, it is precompiled on the next startup.
+	 *
+	 * @param renderable
+	 *            The renderable a program was created for
+	 */
+	public void recordInstanced(Renderable renderable) {
+		if (add(INSTANCED + key(renderable.mesh.getVertexAttributes(), renderable.material,
+				renderable.environment, false)))
+			lateCompiles++;
+	}
+
+	/**
+	 * @param shadowMap
+	 *            The shadow map of the environments variants are rendered with, null without shadows
+	 */
+	public void setShadowMap(ShadowMap shadowMap) {
+		this.shadowMap = shadowMap;
+	}
+
+	private boolean add(String key) {
+		if (!known.add(key))
+			return false;
+		variants.add(key);
+		changed = true;
+		return true;
+	}
+
+	/**
+	 * Compiles every variant not compiled yet
+	 *
+	 * @param provider
+	 *            The provider of the model batch
+	 */
+	public void precompile(ShaderProvider provider) {
+		precompile(provider, null, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Compiles a few variants, for loading screens that draw between steps
+	 *
+	 * @param provider
+	 *            The provider of the model batch
+	 * @param instancedRenderers
+	 *            The renderers compiling the instanced variants, null to skip them
+	 * @param count
+	 *            The number of variants to compile at most
+	 * @return True when every variant is compiled
+	 */
+	public boolean precompile(ShaderProvider provider, Array<InstancedModelRenderer> instancedRenderers, int count) {
+		for (int i = 0; i < count && compiled < variants.size; i++)
+			compile(provider, instancedRenderers, variants.get(compiled++));
+
+		if (compiled == variants.size)
+			disposeResources();
+		return compiled == variants.size;
+	}
+
+	/**
+	 * @return The fraction of the variants compiled, for loading screens
+	 */
+	public float getProgress() {
+		return variants.size == 0 ? 1f : compiled / (float) variants.size;
+	}
+
+	/**
+	 * @return The number of variants known
+	 */
+	public int size() {
+		return variants.size;
+	}
+
+	/**
+	 * @return The number of variants compiled while rendering since created
+	 */
+	public int getLateCompiles() {
+		return lateCompiles;
+	}
+
+	/**
+	 * Adds the variants saved by {@link #save(FileHandle)}. Does nothing if
+	 * the file doesn't exist.
+	 */
+	public void load(FileHandle file) {
+		if (!file.exists())
+			return;
+
+		boolean wasChanged = changed;
+		for (String line : file.readString("UTF-8").split("\n")) {
+			line = line.trim();
+			if (line.length() > 0 && !line.startsWith("#"))
+				add(line);
+		}
+		changed = wasChanged;
+	}
+
+	/**
+	 * Writes the variants to a file when new ones were added
+	 */
+	public void save(FileHandle file) {
+		if (!changed && file.exists())
+			return;
+
+		builder.setLength(0);
+		builder.append("# Shader variants precompiled at startup\n");
+		for (String key : variants)
+			builder.append(key).append('\n');
+		file.writeString(builder.toString(), false, "UTF-8");
+		changed = false;
+	}
+
+	/**
+	 * Builds the key of a variant:
+	 * lit|skinned|usage:components:alias:unit,...|material aliases|environment aliases<br>
+	 * Lit is 2 when the environment has a shadow map.
+	 */
+	private String key(VertexAttributes attributes, Material material, Environment env, boolean skinned) {
+		builder.setLength(0);
+		builder.append(env == null ? '0' : EnvironmentShadows.get(env) != null ? '2' : '1').append('|');
+		builder.append(skinned ? '1' : '0').append('|');
+		for (int i = 0; i < attributes.size(); i++) {
+			VertexAttribute attribute = attributes.get(i);
+			if (i > 0)
+				builder.append(',');
+			builder.append(attribute.usage).append(':').append(attribute.numComponents).append(':')
+					.append(attribute.alias).append(':').append(attribute.unit);
+		}
+		builder.append('|');
+		appendAliases(material);
+		builder.append('|');
+		if (env != null)
+			appendAliases(env);
+		return builder.toString();
+	}
+
+	private void appendAliases(Attributes attributes) {
+		boolean first = true;
+		for (Attribute attribute : attributes) {
+			if (!first)
+				builder.append(',');
+			builder.append(Attribute.getAttributeAlias(attribute.type));
+			first = false;
+		}
+	}
+
+	/**
+	 * Builds a renderable matching a key and asks the provider or the
+	 * instanced renderers for its shader
+	 */
+	private void compile(ShaderProvider provider, Array<InstancedModelRenderer> instancedRenderers, String key) {
+		boolean instanced = key.charAt(0) == INSTANCED;
+		if (instanced && instancedRenderers == null)
+			return;
+		String[] fields = (instanced ? key.substring(1) : key).split("\\|", -1);
+		if (fields.length != 5)
+			throw new GdxRuntimeException("Invalid shader variant: " + key);
+
+		Material material = new Material();
+		if (!setAttributes(material, fields[3]))
+			return;
+		Environment env = null;
+		if (fields[0].equals("1") || fields[0].equals("2")) {
+			env = new Environment();
+			if (!setAttributes(env, fields[4]))
+				return;
+			if (fields[0].equals("2")) {
+				if (shadowMap == null)
+					return;
+				EnvironmentShadows.set(env, shadowMap);
+			}
+		}
+
+		renderable.mesh = mesh(fields[2]);
+		renderable.material = material;
+		renderable.environment = env;
+		renderable.bones = fields[1].equals("1") ? NO_BONES : null;
+		renderable.primitiveType = GL20.GL_TRIANGLES;
+		renderable.meshPartOffset = 0;
+		renderable.meshPartSize = 0;
+		renderable.shader = null;
+		if (instanced)
+			for (InstancedModelRenderer renderer : instancedRenderers)
+				renderer.prepare(renderable);
+		else
+			provider.getShader(renderable);
+	}
+
+	private Mesh mesh(String layout) {
+		Mesh mesh = meshes.get(layout);
+		if (mesh == null) {
+			String[] entries = layout.split(",");
+			VertexAttribute[] attributes = new VertexAttribute[entries.length];
+			for (int i = 0; i < entries.length; i++) {
+				String[] values = entries[i].split(":");
+				attributes[i] = new VertexAttribute(Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+						values[2], Integer.parseInt(values[3]));
+			}
+			mesh = new Mesh(true, 1, 0, attributes);
+			meshes.put(layout, mesh);
+		}
+		return mesh;
+	}
+
+	/**
+	 * @return False when an attribute can't be created, the variant is skipped
+	 */
+	private boolean setAttributes(Attributes attributes, String aliases) {
+		if (aliases.length() == 0)
+			return true;
+
+		for (String alias : aliases.split(",")) {
+			Attribute attribute = create(alias);
+			if (attribute == null)
+				return false;
+			attributes.set(attribute);
+		}
+		return true;
+	}
+
+	/**
+	 * Creates a attribute of a type with placeholder values
+	 */
+	private Attribute create(String alias) {
+		long type = Attribute.getAttributeType(alias);
+		if (type == 0)
+			return null;
+
+		if (ColorAttribute.is(type))
+			return new ColorAttribute(type);
+		if (TextureAttribute.is(type)) {
+			if (placeholder == null)
+				placeholder = new Texture(1, 1, Format.RGBA8888);
+			return new TextureAttribute(type, placeholder);
+		}
+		if (type == FloatAttribute.Shininess || type == FloatAttribute.AlphaTest)
+			return new FloatAttribute(type);
+		if (type == IntAttribute.CullFace)
+			return IntAttribute.createCullFace(GL20.GL_BACK);
+		if (BlendingAttribute.is(type))
+			return new BlendingAttribute();
+		if (DepthTestAttribute.is(type))
+			return new DepthTestAttribute();
+		// Cubemaps and custom attributes can't be made up
+		return null;
+	}
+
+	private void disposeResources() {
+		for (Mesh mesh : meshes.values())
+			mesh.dispose();
+		meshes.clear();
+		if (placeholder != null) {
+			placeholder.dispose();
+			placeholder = null;
+		}
+		renderable.mesh = null;
+		renderable.material = null;
+		renderable.environment = null;
+	}
+
+	@Override
+	public void dispose() {
+		disposeResources();
+	}
+}
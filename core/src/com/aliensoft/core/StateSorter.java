@@ -0,0 +1,78 @@
+package com.aliensoft.core;
+
+import java.util.Comparator;
+
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.graphics.g3d.Material;
+import com.badlogic.gdx.graphics.g3d.Renderable;
+import com.badlogic.gdx.graphics.g3d.attributes.BlendingAttribute;
+import com.badlogic.gdx.graphics.g3d.utils.RenderableSorter;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IdentityMap;
+
+/**
+ * Sorts the renderables of a {@link com.badlogic.gdx.graphics.g3d.ModelBatch} to
+ * minimize state changes.<br>
+ * Opaque renderables are grouped by shader, material and mesh, then drawn front
+ * to back. Blended renderables are drawn last, back to front. Materials are
+ * compared by an id assigned the first time each one is seen in a sort, their
+ * hash code hashes every attribute and can collide.
+ * (The default sorter only sorts by distance, undoing any state ordering.)
+ */
+public class StateSorter implements RenderableSorter, Comparator<Renderable> {
+
+	private Camera									camera;
+	private final Vector3							tmp			= new Vector3();
+
+	/** Ids of the materials seen in the current sort */
+	private final IdentityMap<Material, Integer>	materialIds	= new IdentityMap<>();
+
+	@Override
+	public void sort(Camera camera, Array<Renderable> renderables) {
+		this.camera = camera;
+		// Renderables are recycled every frame, so ids only live for one sort
+		materialIds.clear();
+		for (int i = 0; i < renderables.size; i++) {
+			Material material = renderables.get(i).material;
+			if (!materialIds.containsKey(material))
+				materialIds.put(material, materialIds.size);
+		}
+		renderables.sort(this);
+	}
+
+	@Override
+	public int compare(Renderable o1, Renderable o2) {
+		boolean b1 = isBlended(o1.material);
+		boolean b2 = isBlended(o2.material);
+		if (b1 != b2)
+			return b1 ? 1 : -1;
+
+		if (b1)
+			return Float.compare(distance(o2), distance(o1));
+
+		int result = compareInts(System.identityHashCode(o1.shader), System.identityHashCode(o2.shader));
+		if (result != 0)
+			return result;
+		result = compareInts(materialIds.get(o1.material), materialIds.get(o2.material));
+		if (result != 0)
+			return result;
+		result = compareInts(System.identityHashCode(o1.mesh), System.identityHashCode(o2.mesh));
+		if (result != 0)
+			return result;
+		return Float.compare(distance(o1), distance(o2));
+	}
+
+	private float distance(Renderable renderable) {
+		return renderable.worldTransform.getTranslation(tmp).dst2(camera.position);
+	}
+
+	private static boolean isBlended(Material material) {
+		return material.has(BlendingAttribute.Type)
+				&& ((BlendingAttribute) material.get(BlendingAttribute.Type)).blended;
+	}
+
+	private static int compareInts(int a, int b) {
+		return a < b ? -1 : (a > b ? 1 : 0);
+	}
+}
@@ -0,0 +1,79 @@
+package com.aliensoft.core;
+
+import java.util.Arrays;
+
+/**
+ * Positions and rotations of the bodies simulated by a {@link PhysicsThread}
+ * at one tick. Each object owns a slot, slots of removed objects are null.
+ */
+class TransformSnapshot {
+
+	/** Simulation time of the tick in seconds */
+	double			time;
+	/** Number of slots in use (including freed ones) */
+	int				count;
+
+	float[]			positions	= new float[0];
+	float[]			rotations	= new float[0];
+	GameObject[]	owners		= new GameObject[0];
+	/** Spawn generation of the owner, detects slots reused by a respawn */
+	int[]			generations	= new int[0];
+	/** Slots written since the snapshot was last taken by the render thread */
+	boolean[]		moved		= new boolean[0];
+	/** Bodies bullet kept awake during the tick */
+	boolean[]		active		= new boolean[0];
+
+	void ensureCapacity(int capacity) {
+		if (owners.length >= capacity)
+			return;
+
+		capacity = Math.max(capacity, owners.length * 2);
+		float[] newPositions = new float[capacity * 3];
+		System.arraycopy(positions, 0, newPositions, 0, positions.length);
+		positions = newPositions;
+
+		float[] newRotations = new float[capacity * 4];
+		System.arraycopy(rotations, 0, newRotations, 0, rotations.length);
+		rotations = newRotations;
+
+		GameObject[] newOwners = new GameObject[capacity];
+		System.arraycopy(owners, 0, newOwners, 0, owners.length);
+		owners = newOwners;
+
+		int[] newGenerations = new int[capacity];
+		System.arraycopy(generations, 0, newGenerations, 0, generations.length);
+		generations = newGenerations;
+
+		boolean[] newMoved = new boolean[capacity];
+		System.arraycopy(moved, 0, newMoved, 0, moved.length);
+		moved = newMoved;
+
+		boolean[] newActive = new boolean[capacity];
+		System.arraycopy(active, 0, newActive, 0, active.length);
+		active = newActive;
+	}
+
+	/**
+	 * Copies the state of another snapshot. Moved flags are cleared.
+	 */
+	void copyFrom(TransformSnapshot other) {
+		ensureCapacity(other.count);
+		System.arraycopy(other.positions, 0, positions, 0, other.count * 3);
+		System.arraycopy(other.rotations, 0, rotations, 0, other.count * 4);
+		System.arraycopy(other.owners, 0, owners, 0, other.count);
+		System.arraycopy(other.generations, 0, generations, 0, other.count);
+		System.arraycopy(other.active, 0, active, 0, other.count);
+		Arrays.fill(moved, 0, other.count, false);
+		count = other.count;
+		time = other.time;
+	}
+
+	/**
+	 * Keeps the moved flags of a snapshot the render thread never took
+	 */
+	void mergeMoved(TransformSnapshot skipped) {
+		int n = Math.min(count, skipped.count);
+		for (int i = 0; i < n; i++)
+			moved[i] |= skipped.moved[i];
+	}
+}
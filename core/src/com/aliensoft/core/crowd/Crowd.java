@@ -0,0 +1,597 @@
+package com.aliensoft.core.crowd;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.aliensoft.core.BulletScene;
+import com.aliensoft.core.GameObject;
+import com.aliensoft.core.spatial.SpatialHash;
+import com.badlogic.gdx.ai.steer.Limiter;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.physics.bullet.dynamics.btRigidBody;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.ObjectIntMap;
+
+/**
+ * Steers a crowd of agents on the XZ plane, each agent moving the body of a
+ * {@link GameObject}.<br>
+ * Every agent blends the seek, separation and cohesion behaviors of gdx-ai
+ * with avoidance of static circular obstacles, limited by a gdx-ai
+ * {@link Limiter}. The state of the agents is kept in flat arrays instead of
+ * one steerable per agent, neighbors are found with a {@link SpatialHash} and
+ * the agents are steered in parallel on a fork/join pool. The new velocities
+ * are then set on the bodies by one command posted to the scene, so with a
+ * physics thread the world is only touched from it.<br>
+ * {@link #update(float)} must be called from the thread that owns the scene,
+ * usually the render thread.
+ */
+public class Crowd implements Disposable {
+
+	/** Agents steered by one task */
+	private static final int				CHUNK_SIZE			= 256;
+
+	private final BulletScene				scene;
+	private final Limiter					limiter;
+	private final ForkJoinPool				pool;
+	private final boolean					ownsPool;
+
+	/* Agents */
+	private int								count;
+	private GameObject[]					objects;
+	private final ObjectIntMap<GameObject>	indices				= new ObjectIntMap<>();
+	private float[]							px, pz, vx, vz, radii, tx, tz;
+	private boolean[]						hasTarget;
+
+	/* Obstacles */
+	private int								obstacleCount;
+	private float[]							ox					= new float[16];
+	private float[]							oz					= new float[16];
+	private float[]							obstacleRadii		= new float[16];
+	private float							maxObstacleRadius;
+	private boolean							obstaclesDirty;
+
+	/* Behaviors */
+	private float							seekWeight			= 1f;
+	private float							separationWeight	= 2f;
+	private float							cohesionWeight		= 0.3f;
+	private float							avoidanceWeight		= 3f;
+	private float							neighborRadius		= 3f;
+	private float							separationDistance	= 0.5f;
+	private float							avoidanceDistance	= 2f;
+
+	private final SpatialHash				agentHash			= new SpatialHash();
+	private final SpatialHash				obstacleHash		= new SpatialHash();
+
+	/* Per update, read by the tasks */
+	private float							delta;
+	private float							maxSpeed;
+	private float							maxAcceleration;
+
+	private SteerChunk[]					chunks				= new SteerChunk[0];
+	private final SteerAll					steerAll			= new SteerAll();
+	private final VelocityBatch				batch				= new VelocityBatch();
+
+	/**
+	 * Creates a crowd steered on its own pool, one thread per core
+	 *
+	 * @param scene
+	 *            The scene of the agent objects
+	 * @param limiter
+	 *            Maximum linear speed and acceleration of the agents, read on every update
+	 */
+	public Crowd(BulletScene scene, Limiter limiter) {
+		this(scene, limiter, new ForkJoinPool(), true);
+	}
+
+	/**
+	 * @param scene
+	 *            The scene of the agent objects
+	 * @param limiter
+	 *            Maximum linear speed and acceleration of the agents, read on every update
+	 * @param pool
+	 *            The pool the agents are steered on, shared with other systems
+	 */
+	public Crowd(BulletScene scene, Limiter limiter, ForkJoinPool pool) {
+		this(scene, limiter, pool, false);
+	}
+
+	private Crowd(BulletScene scene, Limiter limiter, ForkJoinPool pool, boolean ownsPool) {
+		this.scene = scene;
+		this.limiter = limiter;
+		this.pool = pool;
+		this.ownsPool = ownsPool;
+		allocate(64);
+	}
+
+	private void allocate(int capacity) {
+		objects = copy(objects, capacity);
+		px = copy(px, capacity);
+		pz = copy(pz, capacity);
+		vx = copy(vx, capacity);
+		vz = copy(vz, capacity);
+		radii = copy(radii, capacity);
+		tx = copy(tx, capacity);
+		tz = copy(tz, capacity);
+		boolean[] newHasTarget = new boolean[capacity];
+		if (hasTarget != null)
+			System.arraycopy(hasTarget, 0, newHasTarget, 0, count);
+		hasTarget = newHasTarget;
+	}
+
+	private float[] copy(float[] array, int capacity) {
+		float[] newArray = new float[capacity];
+		if (array != null)
+			System.arraycopy(array, 0, newArray, 0, count);
+		return newArray;
+	}
+
+	private GameObject[] copy(GameObject[] array, int capacity) {
+		GameObject[] newArray = new GameObject[capacity];
+		if (array != null)
+			System.arraycopy(array, 0, newArray, 0, count);
+		return newArray;
+	}
+
+	/**
+	 * Adds an agent. Its object must be in the scene with a dynamic body.
+	 *
+	 * @param object
+	 *            The object moved by the agent
+	 * @param radius
+	 *            Radius of the agent on the XZ plane
+	 * @return False if the object is already an agent
+	 */
+	public boolean add(GameObject object, float radius) {
+		if (indices.containsKey(object))
+			return false;
+		if (count == objects.length)
+			allocate(count * 2);
+
+		int i = count++;
+		indices.put(object, i);
+		objects[i] = object;
+		radii[i] = radius;
+		vx[i] = vz[i] = 0f;
+		hasTarget[i] = false;
+		return true;
+	}
+
+	/**
+	 * Removes an agent, its body keeps the last velocity it was given
+	 *
+	 * @return False if the object is not an agent
+	 */
+	public boolean remove(GameObject object) {
+		int i = indices.remove(object, -1);
+		if (i == -1)
+			return false;
+
+		// The last agent takes the free index
+		int last = --count;
+		if (i != last) {
+			objects[i] = objects[last];
+			radii[i] = radii[last];
+			vx[i] = vx[last];
+			vz[i] = vz[last];
+			tx[i] = tx[last];
+			tz[i] = tz[last];
+			hasTarget[i] = hasTarget[last];
+			indices.put(objects[i], i);
+		}
+		objects[last] = null;
+		return true;
+	}
+
+	/**
+	 * Makes an agent seek a point. Agents without target slow down to a stop.
+	 */
+	public void setTarget(GameObject object, float x, float z) {
+		int i = index(object);
+		tx[i] = x;
+		tz[i] = z;
+		hasTarget[i] = true;
+	}
+
+	/**
+	 * Makes every agent seek the same point
+	 */
+	public void setTarget(float x, float z) {
+		for (int i = 0; i < count; i++) {
+			tx[i] = x;
+			tz[i] = z;
+			hasTarget[i] = true;
+		}
+	}
+
+	public void clearTarget(GameObject object) {
+		hasTarget[index(object)] = false;
+	}
+
+	private int index(GameObject object) {
+		int i = indices.get(object, -1);
+		if (i == -1)
+			throw new GdxRuntimeException(object.getObjectID() + " is not an agent");
+		return i;
+	}
+
+	/**
+	 * Adds a static circular obstacle the agents steer around, like a pillar or a car
+	 */
+	public void addObstacle(float x, float z, float radius) {
+		if (obstacleCount == ox.length) {
+			int capacity = obstacleCount * 2;
+			ox = copy(ox, capacity, obstacleCount);
+			oz = copy(oz, capacity, obstacleCount);
+			obstacleRadii = copy(obstacleRadii, capacity, obstacleCount);
+		}
+		ox[obstacleCount] = x;
+		oz[obstacleCount] = z;
+		obstacleRadii[obstacleCount] = radius;
+		obstacleCount++;
+		maxObstacleRadius = Math.max(maxObstacleRadius, radius);
+		obstaclesDirty = true;
+	}
+
+	public void clearObstacles() {
+		obstacleCount = 0;
+		maxObstacleRadius = 0f;
+		obstaclesDirty = true;
+	}
+
+	private static float[] copy(float[] array, int capacity, int size) {
+		float[] newArray = new float[capacity];
+		System.arraycopy(array, 0, newArray, 0, size);
+		return newArray;
+	}
+
+	/**
+	 * Steers every agent and sends the new velocities to the bodies
+	 *
+	 * @param delta
+	 *            Seconds since the last update
+	 */
+	public void update(float delta) {
+		if (count == 0)
+			return;
+
+		this.delta = delta;
+		maxSpeed = limiter.getMaxLinearSpeed();
+		maxAcceleration = limiter.getMaxLinearAcceleration();
+
+		for (int i = 0; i < count; i++) {
+			float[] transform = objects[i].getTransform().val;
+			px[i] = transform[Matrix4.M03];
+			pz[i] = transform[Matrix4.M23];
+		}
+		agentHash.build(px, pz, count, neighborRadius);
+		if (obstaclesDirty) {
+			obstacleHash.build(ox, oz, obstacleCount, neighborRadius);
+			obstaclesDirty = false;
+		}
+
+		int chunkCount = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		if (chunks.length < chunkCount) {
+			SteerChunk[] newChunks = new SteerChunk[chunkCount];
+			System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+			for (int c = chunks.length; c < chunkCount; c++)
+				newChunks[c] = new SteerChunk();
+			chunks = newChunks;
+		}
+		for (int c = 0; c < chunkCount; c++) {
+			chunks[c].reinitialize();
+			chunks[c].from = c * CHUNK_SIZE;
+			chunks[c].to = Math.min(count, (c + 1) * CHUNK_SIZE);
+		}
+
+		if (chunkCount == 1)
+			chunks[0].compute();
+		else {
+			steerAll.reinitialize();
+			steerAll.chunkCount = chunkCount;
+			pool.invoke(steerAll);
+		}
+
+		batch.fill();
+	}
+
+	/**
+	 * Computes the new velocity of an agent. Only writes the velocity of that
+	 * agent, so agents can be steered in any order from any thread.
+	 */
+	private void steer(int i, SteerChunk chunk) {
+		float x = px[i], z = pz[i];
+		float radius = radii[i];
+
+		// Seek, the velocity change towards full speed to the target
+		float seekX, seekZ;
+		if (hasTarget[i]) {
+			float dx = tx[i] - x, dz = tz[i] - z;
+			float length = (float) Math.sqrt(dx * dx + dz * dz);
+			if (length > radius) {
+				seekX = dx / length * maxSpeed - vx[i];
+				seekZ = dz / length * maxSpeed - vz[i];
+			} else {
+				seekX = -vx[i];
+				seekZ = -vz[i];
+			}
+		} else {
+			seekX = -vx[i];
+			seekZ = -vz[i];
+		}
+
+		// Separation and cohesion from the neighbors
+		float separationX = 0f, separationZ = 0f;
+		float centerX = 0f, centerZ = 0f;
+		int neighbors = 0;
+		float neighborRadius2 = neighborRadius * neighborRadius;
+		int buckets = chunk.visit(agentHash, x, z, neighborRadius);
+		for (int b = 0; b < buckets; b++) {
+			int bucket = chunk.visited[b];
+			for (int e = agentHash.getStart(bucket), end = agentHash.getEnd(bucket); e < end; e++) {
+				int j = agentHash.getEntry(e);
+				if (j == i)
+					continue;
+				float dx = x - px[j], dz = z - pz[j];
+				float distance2 = dx * dx + dz * dz;
+				if (distance2 >= neighborRadius2)
+					continue;
+
+				neighbors++;
+				centerX += px[j];
+				centerZ += pz[j];
+
+				float spacing = radius + radii[j] + separationDistance;
+				if (distance2 < spacing * spacing) {
+					float distance = (float) Math.sqrt(distance2);
+					if (distance > 0.0001f) {
+						float strength = 1f - distance / spacing;
+						separationX += dx / distance * strength;
+						separationZ += dz / distance * strength;
+					} else {
+						// Stacked agents, push apart in a direction picked by index
+						separationX += i < j ? 1f : -1f;
+					}
+				}
+			}
+		}
+
+		float cohesionX = 0f, cohesionZ = 0f;
+		if (neighbors > 0) {
+			float dx = centerX / neighbors - x, dz = centerZ / neighbors - z;
+			float length = (float) Math.sqrt(dx * dx + dz * dz);
+			if (length > 0.0001f) {
+				cohesionX = dx / length;
+				cohesionZ = dz / length;
+			}
+		}
+
+		// Avoidance, pushed sideways around the obstacles the agent is heading into
+		float avoidX = 0f, avoidZ = 0f;
+		float speed = (float) Math.sqrt(vx[i] * vx[i] + vz[i] * vz[i]);
+		if (obstacleCount > 0 && speed > 0.0001f) {
+			float dirX = vx[i] / speed, dirZ = vz[i] / speed;
+			buckets = chunk.visit(obstacleHash, x, z, avoidanceDistance + radius + maxObstacleRadius);
+			for (int b = 0; b < buckets; b++) {
+				int bucket = chunk.visited[b];
+				for (int e = obstacleHash.getStart(bucket), end = obstacleHash.getEnd(bucket); e < end; e++) {
+					int o = obstacleHash.getEntry(e);
+					float dx = x - ox[o], dz = z - oz[o];
+					float distance = (float) Math.sqrt(dx * dx + dz * dz);
+					float gap = distance - obstacleRadii[o] - radius;
+					float ahead = -(dx * dirX + dz * dirZ);
+					if (gap >= avoidanceDistance || ahead <= 0f)
+						continue;
+
+					// The part of the offset across the heading, a side is picked when head on
+					float sideX = dx + dirX * ahead, sideZ = dz + dirZ * ahead;
+					float side = (float) Math.sqrt(sideX * sideX + sideZ * sideZ);
+					if (side < 0.0001f) {
+						sideX = (i & 1) == 0 ? -dirZ : dirZ;
+						sideZ = (i & 1) == 0 ? dirX : -dirX;
+						side = 1f;
+					}
+					float strength = 1f - Math.max(gap, 0f) / avoidanceDistance;
+					avoidX += sideX / side * strength;
+					avoidZ += sideZ / side * strength;
+				}
+			}
+		}
+
+		float ax = seekX * seekWeight
+				+ (separationX * separationWeight + cohesionX * cohesionWeight + avoidX * avoidanceWeight)
+				* maxAcceleration;
+		float az = seekZ * seekWeight
+				+ (separationZ * separationWeight + cohesionZ * cohesionWeight + avoidZ * avoidanceWeight)
+				* maxAcceleration;
+		float acceleration2 = ax * ax + az * az;
+		if (acceleration2 > maxAcceleration * maxAcceleration) {
+			float scale = maxAcceleration / (float) Math.sqrt(acceleration2);
+			ax *= scale;
+			az *= scale;
+		}
+
+		float newVx = vx[i] + ax * delta, newVz = vz[i] + az * delta;
+		float speed2 = newVx * newVx + newVz * newVz;
+		if (speed2 > maxSpeed * maxSpeed) {
+			float scale = maxSpeed / (float) Math.sqrt(speed2);
+			newVx *= scale;
+			newVz *= scale;
+		}
+		vx[i] = newVx;
+		vz[i] = newVz;
+	}
+
+	/**
+	 * Weights of the behaviors, 1, 2, 0.3 and 3 by default. Seek is weighted
+	 * against the velocity change, the others against the maximum
+	 * acceleration.
+	 */
+	public void setWeights(float seek, float separation, float cohesion, float avoidance) {
+		seekWeight = seek;
+		separationWeight = separation;
+		cohesionWeight = cohesion;
+		avoidanceWeight = avoidance;
+	}
+
+	/**
+	 * @param neighborRadius
+	 *            Distance agents see each other for cohesion and separation, 3 by default
+	 */
+	public void setNeighborRadius(float neighborRadius) {
+		this.neighborRadius = neighborRadius;
+		obstaclesDirty = true;
+	}
+
+	/**
+	 * @param separationDistance
+	 *            Space agents keep between their radii, 0.5 by default
+	 */
+	public void setSeparationDistance(float separationDistance) {
+		this.separationDistance = separationDistance;
+	}
+
+	/**
+	 * @param avoidanceDistance
+	 *            Distance from an obstacle agents start to steer away, 2 by default
+	 */
+	public void setAvoidanceDistance(float avoidanceDistance) {
+		this.avoidanceDistance = avoidanceDistance;
+	}
+
+	/**
+	 * @return The number of agents
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Gets the velocity an agent was last given, the Y is always 0
+	 */
+	public Vector3 getVelocity(GameObject object, Vector3 out) {
+		int i = index(object);
+		return out.set(vx[i], 0f, vz[i]);
+	}
+
+	/**
+	 * Shuts the pool down if the crowd created it
+	 */
+	@Override
+	public void dispose() {
+		if (ownsPool)
+			pool.shutdown();
+	}
+
+	/**
+	 * Steers a range of agents
+	 */
+	private class SteerChunk extends RecursiveAction {
+		private static final long	serialVersionUID	= 1L;
+
+		int							from, to;
+		/** Distinct buckets of the last query */
+		int[]						visited				= new int[9];
+
+		@Override
+		protected void compute() {
+			for (int i = from; i < to; i++)
+				steer(i, this);
+		}
+
+		/**
+		 * Collects the buckets of the cells a circle overlaps, each once
+		 *
+		 * @return The number of buckets in visited
+		 */
+		int visit(SpatialHash hash, float x, float z, float radius) {
+			int minX = hash.cell(x - radius), maxX = hash.cell(x + radius);
+			int minZ = hash.cell(z - radius), maxZ = hash.cell(z + radius);
+			int cells = (maxX - minX + 1) * (maxZ - minZ + 1);
+			if (visited.length < cells)
+				visited = new int[cells];
+
+			int size = 0;
+			for (int cx = minX; cx <= maxX; cx++) {
+				for (int cz = minZ; cz <= maxZ; cz++) {
+					int bucket = hash.bucket(cx, cz);
+					boolean seen = false;
+					for (int b = 0; b < size && !seen; b++)
+						seen = visited[b] == bucket;
+					if (!seen)
+						visited[size++] = bucket;
+				}
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * Forks every chunk of the update and waits for them
+	 */
+	private class SteerAll extends RecursiveAction {
+		private static final long	serialVersionUID	= 1L;
+
+		int							chunkCount;
+
+		@Override
+		protected void compute() {
+			for (int c = 1; c < chunkCount; c++)
+				chunks[c].fork();
+			chunks[0].compute();
+			for (int c = 1; c < chunkCount; c++)
+				chunks[c].join();
+		}
+	}
+
+	/**
+	 * Sets the velocities of the agents on their bodies in one command. Filled
+	 * on the caller thread and run where the scene touches the world. If the
+	 * physics thread didn't run the last batch yet, it is refilled instead of
+	 * posted again.
+	 */
+	private class VelocityBatch implements Runnable {
+		private GameObject[]	bodies		= new GameObject[0];
+		private float[]			velocities	= new float[0];
+		private int				size;
+		private boolean			queued;
+		private final Vector3	velocity	= new Vector3();
+
+		void fill() {
+			boolean post;
+			synchronized (this) {
+				if (bodies.length < count) {
+					bodies = new GameObject[objects.length];
+					velocities = new float[objects.length * 2];
+				}
+				for (int i = 0; i < size; i++)
+					bodies[i] = null;
+				System.arraycopy(objects, 0, bodies, 0, count);
+				for (int i = 0; i < count; i++) {
+					velocities[i * 2] = vx[i];
+					velocities[i * 2 + 1] = vz[i];
+				}
+				size = count;
+				post = !queued;
+				queued = true;
+			}
+			if (post)
+				scene.post(this);
+		}
+
+		@Override
+		public synchronized void run() {
+			queued = false;
+			for (int i = 0; i < size; i++) {
+				btRigidBody body = bodies[i].body;
+				velocity.set(body.getLinearVelocity());
+				velocity.x = velocities[i * 2];
+				velocity.z = velocities[i * 2 + 1];
+				body.setLinearVelocity(velocity);
+				if (velocity.x != 0f || velocity.z != 0f)
+					body.activate();
+			}
+		}
+	}
+}
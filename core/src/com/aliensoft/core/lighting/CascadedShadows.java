@@ -0,0 +1,382 @@
+package com.aliensoft.core.lighting;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.OrthographicCamera;
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.Texture.TextureFilter;
+import com.badlogic.gdx.graphics.Texture.TextureWrap;
+import com.badlogic.gdx.graphics.g3d.Environment;
+import com.badlogic.gdx.graphics.g3d.ModelBatch;
+import com.badlogic.gdx.graphics.g3d.environment.DirectionalLight;
+import com.badlogic.gdx.graphics.g3d.environment.ShadowMap;
+import com.badlogic.gdx.graphics.g3d.utils.DepthShaderProvider;
+import com.badlogic.gdx.graphics.g3d.utils.TextureDescriptor;
+import com.badlogic.gdx.graphics.glutils.FrameBuffer;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+/**
+ * Cascaded shadow maps of the first directional light of an
+ * {@link Environment}, split in a cached static map and a dynamic overlay.<br>
+ * The view frustum up to the shadow distance is split in cascades, each one
+ * covered by an orthographic light camera whose position is snapped to a grid
+ * in light space. Static casters are rendered in the static map only when a
+ * cascade moves to another grid step, the light turns or the level changes,
+ * so most frames reuse it as is. Dynamic casters are rendered every frame in
+ * their own map, and the lighting shaders compiled with {@link #getDefines()}
+ * take the closest occluder of both. Depth is packed in RGBA, the cascades sit
+ * side by side in both maps.<br>
+ * Set it as the shadow map of the environment and give it to the scene, which
+ * decides what is static and renders the casters through
+ * {@link #begin(int, boolean)}.
+ */
+public class CascadedShadows implements ShadowMap, Disposable {
+
+	/** Fraction of a cascade radius it may move before being placed again */
+	private static final float					SNAP				= 0.25f;
+	/** Light direction change that invalidates the static map */
+	private static final float					TURN_EPSILON		= 1e-4f;
+
+	private final int							size;
+	private final int							cascades;
+	private float								shadowDistance;
+	private final float							depthRange;
+	private float								splitLambda			= 0.75f;
+	private float								bias				= 0.002f;
+
+	private final FrameBuffer					staticMap;
+	private final FrameBuffer					dynamicMap;
+	private final TextureDescriptor<Texture>	staticDescriptor	= new TextureDescriptor<>();
+	private final TextureDescriptor<Texture>	dynamicDescriptor	= new TextureDescriptor<>();
+	private final ModelBatch					batch;
+
+	/* Cascades */
+	private final OrthographicCamera[]			cameras;
+	/** Light space transform of each cascade, 16 floats each */
+	private final float[]						transforms;
+	/** Snapped light space center and extent of each cascade, 4 floats each */
+	private final float[]						placements;
+	private final boolean[]						dirty;
+	private int									staticVersion		= -1;
+	private boolean								enabled;
+
+	/* Light basis */
+	private final Vector3						lightDirection		= new Vector3();
+	private final Vector3						direction			= new Vector3();
+	private final Vector3						right				= new Vector3();
+	private final Vector3						up					= new Vector3();
+
+	/* Rendering */
+	private FrameBuffer							bound;
+	private int									staticRenders;
+
+	private final Vector3						center				= new Vector3();
+
+	/**
+	 * @param size
+	 *            Side of each cascade in texels
+	 * @param cascades
+	 *            Number of cascades, 1 to 4
+	 * @param shadowDistance
+	 *            Distance from the camera shadows end at
+	 * @param depthRange
+	 *            Depth of the light cameras, casters farther along the light than
+	 *            half of it from a cascade don't cast
+	 */
+	public CascadedShadows(int size, int cascades, float shadowDistance, float depthRange) {
+		if (cascades < 1 || cascades > 4)
+			throw new GdxRuntimeException("1 to 4 cascades are supported: " + cascades);
+		this.size = size;
+		this.cascades = cascades;
+		this.shadowDistance = shadowDistance;
+		this.depthRange = depthRange;
+
+		staticMap = createMap();
+		dynamicMap = createMap();
+		staticDescriptor.set(staticMap.getColorBufferTexture(), TextureFilter.Nearest, TextureFilter.Nearest,
+				TextureWrap.ClampToEdge, TextureWrap.ClampToEdge);
+		dynamicDescriptor.set(dynamicMap.getColorBufferTexture(), TextureFilter.Nearest, TextureFilter.Nearest,
+				TextureWrap.ClampToEdge, TextureWrap.ClampToEdge);
+		batch = new ModelBatch(new DepthShaderProvider());
+
+		cameras = new OrthographicCamera[cascades];
+		for (int i = 0; i < cascades; i++)
+			cameras[i] = new OrthographicCamera();
+		transforms = new float[cascades * 16];
+		placements = new float[cascades * 4];
+		dirty = new boolean[cascades];
+	}
+
+	private FrameBuffer createMap() {
+		FrameBuffer map = new FrameBuffer(Format.RGBA8888, size * cascades, size, true);
+		// Packed depth can't be filtered
+		map.getColorBufferTexture().setFilter(TextureFilter.Nearest, TextureFilter.Nearest);
+		map.getColorBufferTexture().setWrap(TextureWrap.ClampToEdge, TextureWrap.ClampToEdge);
+		return map;
+	}
+
+	/**
+	 * @return The defines of the lighting shaders that read the cascades
+	 */
+	public String getDefines() {
+		return "#define shadowCascadesFlag\n"
+				+ "#define shadowCascades " + cascades + "\n";
+	}
+
+	/**
+	 * Places the cascades around the camera and finds the ones whose static
+	 * map must be rendered again. Called by the scene before rendering them.
+	 *
+	 * @param env
+	 *            The environment, its first directional light casts the shadows
+	 * @param cam
+	 *            The camera the frame is rendered with
+	 * @param staticVersion
+	 *            Changes whenever static casters are added or removed
+	 * @return False if there is no directional light to render shadows for
+	 */
+	public boolean update(Environment env, Camera cam, int staticVersion) {
+		DirectionalLight light = env == null || env.directionalLights.size == 0 ? null
+				: env.directionalLights.first();
+		enabled = light != null;
+		if (!enabled)
+			return false;
+
+		boolean invalid = staticVersion != this.staticVersion;
+		this.staticVersion = staticVersion;
+		if (!lightDirection.epsilonEquals(light.direction, TURN_EPSILON)) {
+			lightDirection.set(light.direction);
+			direction.set(light.direction).nor();
+			up.set(Math.abs(direction.y) > 0.99f ? Vector3.Z : Vector3.Y);
+			right.set(direction).crs(up).nor();
+			up.set(right).crs(direction).nor();
+			invalid = true;
+		}
+
+		// Practical split scheme, between uniform and logarithmic
+		float near = Math.max(cam.near, 0.01f), far = Math.min(shadowDistance, cam.far);
+		float tan2 = 1f;
+		if (cam instanceof PerspectiveCamera) {
+			float tanY = (float) Math.tan(((PerspectiveCamera) cam).fieldOfView * 0.5f * MathUtils.degreesToRadians);
+			float tanX = tanY * cam.viewportWidth / cam.viewportHeight;
+			tan2 = tanX * tanX + tanY * tanY;
+		}
+
+		float sliceNear = near;
+		for (int i = 0; i < cascades; i++) {
+			float p = (i + 1) / (float) cascades;
+			float sliceFar = MathUtils.lerp(near + (far - near) * p, near * (float) Math.pow(far / near, p),
+					splitLambda);
+
+			// Smallest sphere around the slice, its radius doesn't change when the camera turns
+			float z = Math.min((sliceFar + sliceNear) * (1f + tan2) * 0.5f, sliceFar);
+			float radius = (float) Math.sqrt((sliceFar - z) * (sliceFar - z) + sliceFar * sliceFar * tan2);
+			center.set(cam.direction).scl(z).add(cam.position);
+
+			// Moves in whole steps of whole texels, so the static map stays valid and edges don't crawl
+			float margin = radius * SNAP;
+			float extent = 2f * (radius + margin);
+			float texel = extent / size;
+			float step = Math.max(texel, Math.round(margin / texel) * texel);
+			float x = Math.round(center.dot(right) / step) * step;
+			float y = Math.round(center.dot(up) / step) * step;
+			float d = Math.round(center.dot(direction) / step) * step;
+
+			int p4 = i * 4;
+			if (invalid || placements[p4] != x || placements[p4 + 1] != y || placements[p4 + 2] != d
+					|| placements[p4 + 3] != extent) {
+				placements[p4] = x;
+				placements[p4 + 1] = y;
+				placements[p4 + 2] = d;
+				placements[p4 + 3] = extent;
+				dirty[i] = true;
+
+				OrthographicCamera camera = cameras[i];
+				camera.viewportWidth = extent;
+				camera.viewportHeight = extent;
+				camera.near = 0f;
+				camera.far = depthRange;
+				camera.direction.set(direction);
+				camera.up.set(up);
+				camera.position.set(right).scl(x).mulAdd(up, y).mulAdd(direction, d - depthRange * 0.5f);
+				camera.update();
+				System.arraycopy(camera.combined.val, 0, transforms, i * 16, 16);
+			}
+			sliceNear = sliceFar;
+		}
+		return true;
+	}
+
+	/**
+	 * @return True if the static casters of a cascade must be rendered this frame
+	 */
+	public boolean isStaticDirty(int cascade) {
+		return dirty[cascade];
+	}
+
+	/**
+	 * Renders the static map again on the next update
+	 */
+	public void invalidate() {
+		staticVersion = -1;
+	}
+
+	/**
+	 * Clears a cascade of one of the maps and starts rendering casters into it
+	 *
+	 * @param dynamic
+	 *            The dynamic overlay, rendered every frame, or the cached static map
+	 * @return The depth batch to render the casters with, until {@link #end()}
+	 */
+	public ModelBatch begin(int cascade, boolean dynamic) {
+		bound = dynamic ? dynamicMap : staticMap;
+		bound.begin();
+		Gdx.gl.glViewport(cascade * size, 0, size, size);
+		Gdx.gl.glEnable(GL20.GL_SCISSOR_TEST);
+		Gdx.gl.glScissor(cascade * size, 0, size, size);
+		// Packs to a depth past the far plane, nothing is in shadow
+		Gdx.gl.glClearColor(1f, 1f, 1f, 1f);
+		Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT | GL20.GL_DEPTH_BUFFER_BIT);
+		if (!dynamic) {
+			dirty[cascade] = false;
+			staticRenders++;
+		}
+		batch.begin(cameras[cascade]);
+		return batch;
+	}
+
+	public void end() {
+		batch.end();
+		Gdx.gl.glDisable(GL20.GL_SCISSOR_TEST);
+		bound.end();
+		bound = null;
+	}
+
+	/**
+	 * Sets the shadow uniforms of a shader compiled with {@link #getDefines()}.
+	 * Used by shaders that aren't rendered through the model batch.
+	 *
+	 * @param program
+	 *            The bound shader
+	 * @param staticUnit
+	 *            Texture unit for the static map
+	 * @param dynamicUnit
+	 *            Texture unit for the dynamic map
+	 */
+	public void apply(ShaderProgram program, int staticUnit, int dynamicUnit) {
+		staticMap.getColorBufferTexture().bind(staticUnit);
+		dynamicMap.getColorBufferTexture().bind(dynamicUnit);
+		Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0);
+
+		program.setUniformi(program.fetchUniformLocation("u_shadowTexture", false), staticUnit);
+		program.setUniformi(program.fetchUniformLocation("u_shadowDynamicTexture", false), dynamicUnit);
+		program.setUniformMatrix4fv(program.fetchUniformLocation("u_shadowCascadeTrans", false), transforms, 0,
+				transforms.length);
+		program.setUniformf(program.fetchUniformLocation("u_shadowParams", false), getTexelSize(), bias);
+	}
+
+	public int getCascadeCount() {
+		return cascades;
+	}
+
+	/**
+	 * @return The light camera of a cascade, placed by the last update
+	 */
+	public Camera getCamera(int cascade) {
+		return cameras[cascade];
+	}
+
+	/**
+	 * @return False if the last update found no directional light
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return The light space transforms of the cascades, 16 floats each
+	 */
+	public float[] getCascadeTransforms() {
+		return transforms;
+	}
+
+	/**
+	 * @return The size of a texel in the texture coordinates of a cascade
+	 */
+	public float getTexelSize() {
+		return 1f / size;
+	}
+
+	public float getBias() {
+		return bias;
+	}
+
+	/**
+	 * @param bias
+	 *            Packed depth subtracted from receivers, against shadow acne
+	 */
+	public void setBias(float bias) {
+		this.bias = bias;
+	}
+
+	/**
+	 * @param shadowDistance
+	 *            Distance from the camera shadows end at
+	 */
+	public void setShadowDistance(float shadowDistance) {
+		this.shadowDistance = shadowDistance;
+	}
+
+	/**
+	 * @param splitLambda
+	 *            0 splits the cascades uniformly, 1 logarithmically
+	 */
+	public void setSplitLambda(float splitLambda) {
+		this.splitLambda = splitLambda;
+	}
+
+	/**
+	 * @return The number of cascades rendered in the static map since created
+	 */
+	public int getStaticRenderCount() {
+		return staticRenders;
+	}
+
+	/**
+	 * The overlay of the dynamic casters
+	 */
+	public TextureDescriptor<Texture> getDynamicMap() {
+		return dynamicDescriptor;
+	}
+
+	/**
+	 * The transform of the first cascade, for shaders without cascades
+	 */
+	@Override
+	public Matrix4 getProjViewTrans() {
+		return cameras[0].combined;
+	}
+
+	/**
+	 * The static map
+	 */
+	@Override
+	public TextureDescriptor<Texture> getDepthMap() {
+		return staticDescriptor;
+	}
+
+	@Override
+	public void dispose() {
+		batch.dispose();
+		staticMap.dispose();
+		dynamicMap.dispose();
+	}
+}
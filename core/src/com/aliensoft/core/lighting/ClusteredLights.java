@@ -0,0 +1,424 @@
+package com.aliensoft.core.lighting;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import com.badlogic.gdx.Application.ApplicationType;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Pixmap.Format;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.graphics.Texture.TextureFilter;
+import com.badlogic.gdx.graphics.g3d.Environment;
+import com.badlogic.gdx.graphics.g3d.environment.PointLight;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.BufferUtils;
+import com.badlogic.gdx.utils.Disposable;
+
+/**
+ * Assigns the point lights of an {@link Environment} to view space clusters.<br>
+ * The view frustum is split in a grid of screen tiles and exponential depth
+ * slices. Every frame each light is added to the clusters its range overlaps,
+ * and the per cluster light lists are uploaded to two small textures. The
+ * lighting shaders compiled with {@link #getDefines()} look up the cluster of
+ * each fragment and only evaluate the lights in it, so the number of lights in
+ * the scene doesn't change the shaders or the per vertex cost.<br>
+ * The light data lives in uniform arrays indexed with values read from a
+ * texture, which GL ES 2 doesn't allow in fragment shaders and which takes
+ * more uniforms than it guarantees. Check {@link #isSupported()} first.
+ */
+public class ClusteredLights implements Disposable {
+
+	/** Size of the light uniform arrays, lights past this are ignored */
+	public static final int		MAX_LIGHTS				= 64;
+	/** Lights evaluated per fragment at most, extra lights in a cluster are dropped */
+	public static final int		MAX_LIGHTS_PER_CLUSTER	= 16;
+
+	/** Fragment uniform vectors the lighting shader needs besides the light arrays */
+	private static final int	RESERVED_UNIFORMS		= 64;
+	/** GL_MAX_FRAGMENT_UNIFORM_COMPONENTS, desktop GL only so missing from {@link GL20} */
+	private static final int	FRAGMENT_COMPONENTS		= 0x8B49;
+
+	/** Contribution a light range ends at */
+	private static final float	CUTOFF					= 0.02f;
+
+	/** Width of the light index texture, one index per texel */
+	private static final int	INDEX_WIDTH				= 256;
+	/** Offsets are 16 bits, enough for full clusters on the default grid */
+	private static final int	INDEX_HEIGHT			= 256;
+
+	private final int			clustersX, clustersY, clustersZ;
+
+	/* Per cluster offset (rg) and count (b) in the index texture */
+	private final Pixmap		clusterPixels;
+	private final Texture		clusterTexture;
+
+	/* Light indices of every cluster, packed one after the other */
+	private final Pixmap		indexPixels;
+	private final Texture		indexTexture;
+
+	/* Light uniforms, xyz position and w range, rgb color times intensity */
+	private final float[]		lightPositions			= new float[MAX_LIGHTS * 4];
+	private final float[]		lightColors				= new float[MAX_LIGHTS * 4];
+	private int					lightCount;
+	/** Light slots from the widest to the narrowest range */
+	private final int[]			order					= new int[MAX_LIGHTS];
+
+	/* Cluster lists built on the cpu */
+	private final int[]			clusterCounts;
+	private final byte[]		clusterLights;
+
+	/* Camera values the clusters were built with */
+	private final Vector3		cameraDirection			= new Vector3();
+	private float				near;
+	private float				slicesPerLog;
+	/** Pixel size of the render target, the shader finds its tile with gl_FragCoord */
+	private float				viewportWidth;
+	private float				viewportHeight;
+
+	private int					droppedLights;
+
+	private final Vector3		tmp						= new Vector3();
+	private final Vector3		corner					= new Vector3();
+
+	/**
+	 * Uses 16x9 screen tiles and 24 depth slices
+	 */
+	public ClusteredLights() {
+		this(16, 9, 24);
+	}
+
+	/**
+	 * @param clustersX
+	 *            Horizontal screen tiles
+	 * @param clustersY
+	 *            Vertical screen tiles
+	 * @param clustersZ
+	 *            Depth slices between the camera near and far planes
+	 */
+	public ClusteredLights(int clustersX, int clustersY, int clustersZ) {
+		this.clustersX = clustersX;
+		this.clustersY = clustersY;
+		this.clustersZ = clustersZ;
+
+		int clusters = clustersX * clustersY * clustersZ;
+		clusterCounts = new int[clusters];
+		clusterLights = new byte[clusters * MAX_LIGHTS_PER_CLUSTER];
+
+		// The depth slices are laid side by side
+		clusterPixels = new Pixmap(clustersX * clustersZ, clustersY, Format.RGBA8888);
+		clusterTexture = new Texture(clusterPixels);
+		clusterTexture.setFilter(TextureFilter.Nearest, TextureFilter.Nearest);
+
+		indexPixels = new Pixmap(INDEX_WIDTH, INDEX_HEIGHT, Format.Alpha);
+		indexTexture = new Texture(indexPixels);
+		indexTexture.setFilter(TextureFilter.Nearest, TextureFilter.Nearest);
+	}
+
+	/**
+	 * Clusters need desktop GL with room for the light arrays in the fragment
+	 * uniforms. Needs a GL context.
+	 * 
+	 * @return True if the lighting shaders can read the clusters
+	 */
+	public static boolean isSupported() {
+		if (Gdx.app.getType() != ApplicationType.Desktop)
+			return false;
+		IntBuffer components = BufferUtils.newIntBuffer(16);
+		Gdx.gl.glGetIntegerv(FRAGMENT_COMPONENTS, components);
+		return components.get(0) >= (MAX_LIGHTS * 2 + RESERVED_UNIFORMS) * 4;
+	}
+
+	/**
+	 * @return The defines the lighting shaders need to read the clusters
+	 */
+	public String getDefines() {
+		return "#define clusteredLightsFlag\n"
+				+ "#define maxClusterLights " + MAX_LIGHTS + "\n"
+				+ "#define maxLightsPerCluster " + MAX_LIGHTS_PER_CLUSTER + "\n"
+				+ "#define clusterIndexWidth " + INDEX_WIDTH + ".0\n"
+				+ "#define clusterIndexHeight " + INDEX_HEIGHT + ".0\n";
+	}
+
+	/**
+	 * Assigns the point lights of the environment to the clusters of the
+	 * camera and uploads the light lists, for a frame rendered to the whole
+	 * back buffer. Call once per frame before rendering.
+	 *
+	 * @param env
+	 *            The environment holding the point lights, can be null
+	 * @param cam
+	 *            The camera the frame is rendered with
+	 */
+	public void update(Environment env, Camera cam) {
+		update(env, cam, Gdx.graphics.getWidth(), Gdx.graphics.getHeight());
+	}
+
+	/**
+	 * Like {@link #update(Environment, Camera)} for a frame rendered to a
+	 * target of another size. The logical viewport of the camera doesn't
+	 * matter, the tiles follow the pixels.
+	 *
+	 * @param width
+	 *            The width in pixels of the viewport set with glViewport, which
+	 *            must start at the corner of the target
+	 * @param height
+	 *            The height in pixels of that viewport
+	 */
+	public void update(Environment env, Camera cam, int width, int height) {
+		Arrays.fill(clusterCounts, 0);
+		lightCount = 0;
+		droppedLights = 0;
+
+		near = cam.near;
+		slicesPerLog = clustersZ / (float) Math.log(cam.far / cam.near);
+		viewportWidth = width;
+		viewportHeight = height;
+		cameraDirection.set(cam.direction);
+
+		if (env != null)
+			for (PointLight light : env.pointLights)
+				collect(light, cam);
+		// Full clusters drop the weakest lights
+		for (int i = 0; i < lightCount; i++)
+			assign(order[i], cam);
+
+		upload();
+	}
+
+	/**
+	 * Keeps the light when its range is in the view
+	 */
+	private void collect(PointLight light, Camera cam) {
+		float brightest = Math.max(light.color.r, Math.max(light.color.g, light.color.b)) * light.intensity;
+		if (brightest <= CUTOFF)
+			return;
+
+		float range = (float) Math.sqrt(brightest / CUTOFF - 1f);
+		if (!cam.frustum.sphereInFrustum(light.position, range))
+			return;
+
+		if (lightCount == MAX_LIGHTS) {
+			droppedLights++;
+			return;
+		}
+
+		int slot = lightCount++;
+		lightPositions[slot * 4] = light.position.x;
+		lightPositions[slot * 4 + 1] = light.position.y;
+		lightPositions[slot * 4 + 2] = light.position.z;
+		lightPositions[slot * 4 + 3] = range;
+		lightColors[slot * 4] = light.color.r * light.intensity;
+		lightColors[slot * 4 + 1] = light.color.g * light.intensity;
+		lightColors[slot * 4 + 2] = light.color.b * light.intensity;
+		lightColors[slot * 4 + 3] = 1f;
+
+		// Insertion sort by range, the widest lights are assigned first
+		int i = slot;
+		while (i > 0 && lightPositions[order[i - 1] * 4 + 3] < range) {
+			order[i] = order[i - 1];
+			i--;
+		}
+		order[i] = slot;
+	}
+
+	/**
+	 * Adds a light to the clusters its range overlaps
+	 */
+	private void assign(int slot, Camera cam) {
+		float range = lightPositions[slot * 4 + 3];
+
+		// Depth slices the range overlaps
+		tmp.set(lightPositions[slot * 4], lightPositions[slot * 4 + 1], lightPositions[slot * 4 + 2]).mul(cam.view);
+		float depth = -tmp.z;
+		int minZ = slice(depth - range);
+		int maxZ = slice(depth + range);
+
+		// Screen tiles the range overlaps, all of them when it crosses the near plane
+		int minX = 0, minY = 0, maxX = clustersX - 1, maxY = clustersY - 1;
+		if (depth - range > cam.near) {
+			float left = 1f, bottom = 1f, right = -1f, top = -1f;
+			for (int i = 0; i < 8; i++) {
+				corner.set(tmp.x + ((i & 1) == 0 ? -range : range), tmp.y + ((i & 2) == 0 ? -range : range), tmp.z
+						+ ((i & 4) == 0 ? -range : range)).prj(cam.projection);
+				left = Math.min(left, corner.x);
+				right = Math.max(right, corner.x);
+				bottom = Math.min(bottom, corner.y);
+				top = Math.max(top, corner.y);
+			}
+			minX = tile(left, clustersX);
+			maxX = tile(right, clustersX);
+			minY = tile(bottom, clustersY);
+			maxY = tile(top, clustersY);
+		}
+
+		for (int z = minZ; z <= maxZ; z++)
+			for (int y = minY; y <= maxY; y++)
+				for (int x = minX; x <= maxX; x++) {
+					int cluster = (z * clustersY + y) * clustersX + x;
+					int count = clusterCounts[cluster];
+					if (count == MAX_LIGHTS_PER_CLUSTER)
+						continue;
+					clusterLights[cluster * MAX_LIGHTS_PER_CLUSTER + count] = (byte) slot;
+					clusterCounts[cluster] = count + 1;
+				}
+	}
+
+	private int slice(float depth) {
+		if (depth <= near)
+			return 0;
+		return Math.min(clustersZ - 1, (int) (Math.log(depth / near) * slicesPerLog));
+	}
+
+	private static int tile(float ndc, int tiles) {
+		return MathUtils.clamp((int) ((ndc * 0.5f + 0.5f) * tiles), 0, tiles - 1);
+	}
+
+	/**
+	 * Packs the cluster lists in the textures
+	 */
+	private void upload() {
+		ByteBuffer clusters = clusterPixels.getPixels();
+		ByteBuffer indices = indexPixels.getPixels();
+		int capacity = INDEX_WIDTH * INDEX_HEIGHT;
+		int offset = 0;
+
+		for (int z = 0; z < clustersZ; z++)
+			for (int y = 0; y < clustersY; y++)
+				for (int x = 0; x < clustersX; x++) {
+					int cluster = (z * clustersY + y) * clustersX + x;
+					int count = Math.min(clusterCounts[cluster], capacity - offset);
+					for (int i = 0; i < count; i++)
+						indices.put(offset + i, clusterLights[cluster * MAX_LIGHTS_PER_CLUSTER + i]);
+
+					int texel = (y * clustersX * clustersZ + z * clustersX + x) * 4;
+					clusters.put(texel, (byte) offset);
+					clusters.put(texel + 1, (byte) (offset >> 8));
+					clusters.put(texel + 2, (byte) count);
+					offset += count;
+				}
+
+		clusterTexture.draw(clusterPixels, 0, 0);
+
+		// Only the rows holding indices are uploaded
+		int rows = (offset + INDEX_WIDTH - 1) / INDEX_WIDTH;
+		if (rows > 0) {
+			indexTexture.bind();
+			Gdx.gl.glPixelStorei(GL20.GL_UNPACK_ALIGNMENT, 1);
+			Gdx.gl.glTexSubImage2D(GL20.GL_TEXTURE_2D, 0, 0, 0, INDEX_WIDTH, rows, indexPixels.getGLFormat(),
+					indexPixels.getGLType(), indices);
+		}
+	}
+
+	/**
+	 * Sets the cluster uniforms of a shader compiled with {@link #getDefines()}.
+	 * Used by shaders that aren't rendered through the model batch.
+	 *
+	 * @param program
+	 *            The bound shader
+	 * @param clusterUnit
+	 *            Texture unit for the cluster texture
+	 * @param indexUnit
+	 *            Texture unit for the light index texture
+	 */
+	public void apply(ShaderProgram program, int clusterUnit, int indexUnit) {
+		clusterTexture.bind(clusterUnit);
+		indexTexture.bind(indexUnit);
+		Gdx.gl.glActiveTexture(GL20.GL_TEXTURE0);
+
+		program.setUniformi(program.fetchUniformLocation("u_clusterTexture", false), clusterUnit);
+		program.setUniformi(program.fetchUniformLocation("u_clusterIndexTexture", false), indexUnit);
+		program.setUniformf(program.fetchUniformLocation("u_clusterGrid", false), clustersX, clustersY, clustersZ, 0f);
+		program.setUniformf(program.fetchUniformLocation("u_clusterParams", false), near, slicesPerLog,
+				viewportWidth, viewportHeight);
+		program.setUniformf(program.fetchUniformLocation("u_clusterCameraDirection", false), cameraDirection);
+		if (lightCount > 0) {
+			program.setUniform4fv(program.fetchUniformLocation("u_clusterLightPositions", false), lightPositions, 0,
+					lightCount * 4);
+			program.setUniform4fv(program.fetchUniformLocation("u_clusterLightColors", false), lightColors, 0,
+					lightCount * 4);
+		}
+	}
+
+	public Texture getClusterTexture() {
+		return clusterTexture;
+	}
+
+	public Texture getIndexTexture() {
+		return indexTexture;
+	}
+
+	public int getClustersX() {
+		return clustersX;
+	}
+
+	public int getClustersY() {
+		return clustersY;
+	}
+
+	public int getClustersZ() {
+		return clustersZ;
+	}
+
+	public float getNear() {
+		return near;
+	}
+
+	public float getSlicesPerLog() {
+		return slicesPerLog;
+	}
+
+	public float getViewportWidth() {
+		return viewportWidth;
+	}
+
+	public float getViewportHeight() {
+		return viewportHeight;
+	}
+
+	public Vector3 getCameraDirection() {
+		return cameraDirection;
+	}
+
+	/**
+	 * @return Positions and ranges of the lights assigned in the last update
+	 */
+	public float[] getLightPositions() {
+		return lightPositions;
+	}
+
+	/**
+	 * @return Colors of the lights assigned in the last update
+	 */
+	public float[] getLightColors() {
+		return lightColors;
+	}
+
+	/**
+	 * @return The number of lights assigned to clusters in the last update
+	 */
+	public int getLightCount() {
+		return lightCount;
+	}
+
+	/**
+	 * @return The number of visible lights ignored in the last update because
+	 *         there were more than {@link #MAX_LIGHTS}
+	 */
+	public int getDroppedLights() {
+		return droppedLights;
+	}
+
+	@Override
+	public void dispose() {
+		clusterTexture.dispose();
+		indexTexture.dispose();
+		clusterPixels.dispose();
+		indexPixels.dispose();
+	}
+}
@@ -0,0 +1,124 @@
+package com.aliensoft.core.lighting;
+
+import com.badlogic.gdx.graphics.g3d.Attributes;
+import com.badlogic.gdx.graphics.g3d.Renderable;
+import com.badlogic.gdx.graphics.g3d.environment.ShadowMap;
+import com.badlogic.gdx.graphics.g3d.shaders.BaseShader;
+import com.badlogic.gdx.graphics.g3d.shaders.DefaultShader;
+
+/**
+ * {@link DefaultShader} that lights fragments with the point lights assigned to
+ * their cluster by a {@link ClusteredLights}. The lights in the environment are
+ * not bound as uniforms, so the shader doesn't change when lights are added.
+ * Without clusters it is a default shader with point light uniforms.
+ * Environments whose shadow map is a {@link CascadedShadows} get shaders that
+ * read its cascades.
+ */
+public class ClusteredShader extends DefaultShader {
+
+	private final ClusteredLights	lights;
+	/** Shadows of the environment the shader was made for, null without */
+	private final CascadedShadows	shadows;
+
+	public ClusteredShader(Renderable renderable, Config config, final ClusteredLights lights) {
+		this(renderable, config, lights, getShadows(renderable));
+	}
+
+	private ClusteredShader(Renderable renderable, Config config, final ClusteredLights lights,
+			final CascadedShadows shadows) {
+		super(renderable, config, (lights != null ? lights.getDefines() : "")
+				+ (shadows != null ? shadows.getDefines() : "") + createPrefix(renderable, config));
+		this.lights = lights;
+		this.shadows = shadows;
+
+		if (lights != null) {
+			register(new Uniform("u_clusterTexture"), new GlobalSetter() {
+				@Override
+				public void set(BaseShader shader, int inputID, Renderable renderable, Attributes combinedAttributes) {
+					shader.set(inputID, shader.context.textureBinder.bind(lights.getClusterTexture()));
+				}
+			});
+			register(new Uniform("u_clusterIndexTexture"), new GlobalSetter() {
+				@Override
+				public void set(BaseShader shader, int inputID, Renderable renderable, Attributes combinedAttributes) {
+					shader.set(inputID, shader.context.textureBinder.bind(lights.getIndexTexture()));
+				}
+			});
+			register(new Uniform("u_clusterGrid"), new GlobalSetter() {
+				@Override
+				public void set(BaseShader shader, int inputID, Renderable renderable, Attributes combinedAttributes) {
+					shader.set(inputID, lights.getClustersX(), lights.getClustersY(), lights.getClustersZ(), 0f);
+				}
+			});
+			register(new Uniform("u_clusterParams"), new GlobalSetter() {
+				@Override
+				public void set(BaseShader shader, int inputID, Renderable renderable, Attributes combinedAttributes) {
+					shader.set(inputID, lights.getNear(), lights.getSlicesPerLog(), lights.getViewportWidth(),
+							lights.getViewportHeight());
+				}
+			});
+			register(new Uniform("u_clusterCameraDirection"), new GlobalSetter() {
+				@Override
+				public void set(BaseShader shader, int inputID, Renderable renderable, Attributes combinedAttributes) {
+					shader.set(inputID, lights.getCameraDirection());
+				}
+			});
+			register(new Uniform("u_clusterLightPositions"), new GlobalSetter() {
+				@Override
+				public void set(BaseShader shader, int inputID, Renderable renderable, Attributes combinedAttributes) {
+					setLights(shader, inputID, lights.getLightPositions());
+				}
+			});
+			register(new Uniform("u_clusterLightColors"), new GlobalSetter() {
+				@Override
+				public void set(BaseShader shader, int inputID, Renderable renderable, Attributes combinedAttributes) {
+					setLights(shader, inputID, lights.getLightColors());
+				}
+			});
+		}
+		if (shadows == null)
+			return;
+
+		// The static map is bound by the default shader as the shadow texture
+		register(new Uniform("u_shadowDynamicTexture"), new GlobalSetter() {
+			@Override
+			public void set(BaseShader shader, int inputID, Renderable renderable, Attributes combinedAttributes) {
+				shader.set(inputID, shader.context.textureBinder.bind(shadows.getDynamicMap()));
+			}
+		});
+		register(new Uniform("u_shadowCascadeTrans"), new GlobalSetter() {
+			@Override
+			public void set(BaseShader shader, int inputID, Renderable renderable, Attributes combinedAttributes) {
+				if (shader.has(inputID)) {
+					float[] transforms = shadows.getCascadeTransforms();
+					shader.program.setUniformMatrix4fv(shader.loc(inputID), transforms, 0, transforms.length);
+				}
+			}
+		});
+		register(new Uniform("u_shadowParams"), new GlobalSetter() {
+			@Override
+			public void set(BaseShader shader, int inputID, Renderable renderable, Attributes combinedAttributes) {
+				shader.set(inputID, shadows.getTexelSize(), shadows.getBias());
+			}
+		});
+	}
+
+	/**
+	 * Shaders with and without shadows can't be swapped
+	 */
+	@Override
+	public boolean canRender(Renderable renderable) {
+		return getShadows(renderable) == shadows && super.canRender(renderable);
+	}
+
+	private static CascadedShadows getShadows(Renderable renderable) {
+		ShadowMap shadowMap = EnvironmentShadows.get(renderable.environment);
+		return shadowMap instanceof CascadedShadows ? (CascadedShadows) shadowMap : null;
+	}
+
+	private void setLights(BaseShader shader, int inputID, float[] values) {
+		int count = lights.getLightCount();
+		if (count > 0 && shader.has(inputID))
+			shader.program.setUniform4fv(shader.loc(inputID), values, 0, count * 4);
+	}
+}
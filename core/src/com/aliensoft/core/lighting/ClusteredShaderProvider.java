@@ -0,0 +1,48 @@
+package com.aliensoft.core.lighting;
+
+import com.aliensoft.core.ShaderVariantRegistry;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.g3d.Renderable;
+import com.badlogic.gdx.graphics.g3d.Shader;
+import com.badlogic.gdx.graphics.g3d.utils.DefaultShaderProvider;
+
+/**
+ * Creates {@link ClusteredShader}s for lit renderables. Point lights are only
+ * read from the clusters, so none are compiled into the shaders. Without
+ * clusters the point lights are compiled in like in the default shaders.
+ */
+public class ClusteredShaderProvider extends DefaultShaderProvider {
+
+	private final ClusteredLights	lights;
+
+	/** Told about every program compiled, null to not record them */
+	private ShaderVariantRegistry	variants;
+
+	/**
+	 * @param lights
+	 *            The clusters, null where they aren't supported
+	 */
+	public ClusteredShaderProvider(ClusteredLights lights, FileHandle vertexShader, FileHandle fragmentShader) {
+		super(vertexShader, fragmentShader);
+		this.lights = lights;
+		if (lights != null)
+			config.numPointLights = 0;
+	}
+
+	/**
+	 * @param variants
+	 *            Registry recording the variants compiled by this provider
+	 */
+	public void setVariantRegistry(ShaderVariantRegistry variants) {
+		this.variants = variants;
+	}
+
+	@Override
+	protected Shader createShader(Renderable renderable) {
+		if (variants != null)
+			variants.record(renderable);
+		if (renderable.environment == null)
+			return super.createShader(renderable);
+		return new ClusteredShader(renderable, config, lights);
+	}
+}
@@ -0,0 +1,33 @@
+package com.aliensoft.core.lighting;
+
+import com.badlogic.gdx.graphics.g3d.Environment;
+import com.badlogic.gdx.graphics.g3d.environment.ShadowMap;
+
+/**
+ * Reads and sets the shadow map of an {@link Environment}.<br>
+ * libGDX 1.4.1 marks {@link Environment#shadowMap} deprecated as experimental,
+ * but it has no other way to give a shadow map to the shaders: the default
+ * shader only compiles and binds shadows for the shadow map of the environment.
+ * The warning is suppressed here so the field is used in one place only.
+ */
+@SuppressWarnings("deprecation")
+public final class EnvironmentShadows {
+
+	private EnvironmentShadows() {
+	}
+
+	/**
+	 * @return The shadow map of the environment, null if it has none or is null
+	 */
+	public static ShadowMap get(Environment env) {
+		return env == null ? null : env.shadowMap;
+	}
+
+	/**
+	 * @param shadowMap
+	 *            The shadow map the shaders read, null to disable shadows
+	 */
+	public static void set(Environment env, ShadowMap shadowMap) {
+		env.shadowMap = shadowMap;
+	}
+}
@@ -0,0 +1,116 @@
+package com.aliensoft.core.navigation;
+
+import com.badlogic.gdx.utils.IntArray;
+
+/**
+ * Indexed A* over the cells of a {@link NavGrid}, in the style of gdx-ai's
+ * IndexedAStarPathFinder.<br>
+ * The node records are flat arrays indexed by cell, stamped with the id of
+ * the search that wrote them so nothing is cleared between searches. A search
+ * can be run in slices, so it can be spread over frames.
+ */
+class AStarSearch {
+
+	/** Expansions between clock checks */
+	private static final int	CHECK_INTERVAL	= 64;
+
+	private final NavGrid		grid;
+	private final float[]		costs;
+	private final int[]			parents;
+	/** Search that last reached each cell */
+	private final int[]			visits;
+	/** Search that last closed each cell */
+	private final int[]			closed;
+	private int					searchId;
+
+	private final NodeHeap		open			= new NodeHeap();
+	private final int[]			neighbors		= new int[8];
+	private final float[]		stepCosts		= new float[8];
+
+	private int					goal;
+	private boolean				found;
+
+	AStarSearch(NavGrid grid) {
+		this.grid = grid;
+		int cells = grid.getCellCount();
+		costs = new float[cells];
+		parents = new int[cells];
+		visits = new int[cells];
+		closed = new int[cells];
+	}
+
+	/**
+	 * Starts a search, run it with {@link #run(long)}
+	 */
+	void begin(int start, int goal) {
+		this.goal = goal;
+		searchId++;
+		found = false;
+		open.clear();
+		costs[start] = 0f;
+		parents[start] = -1;
+		visits[start] = searchId;
+		open.push(start, grid.distance(start, goal));
+	}
+
+	/**
+	 * Expands cells until the goal is reached, there is nothing left to
+	 * expand or the deadline passes
+	 *
+	 * @param deadline
+	 *            {@link System#nanoTime()} to stop at
+	 * @return True when the search is over, see {@link #isFound()}
+	 */
+	boolean run(long deadline) {
+		int expanded = 0;
+		while (!open.isEmpty()) {
+			if (++expanded % CHECK_INTERVAL == 0 && System.nanoTime() >= deadline)
+				return false;
+
+			int cell = open.pop();
+			if (closed[cell] == searchId)
+				continue;
+			closed[cell] = searchId;
+			if (cell == goal) {
+				found = true;
+				return true;
+			}
+
+			float cost = costs[cell];
+			int count = grid.getNeighbors(cell, neighbors, stepCosts);
+			for (int i = 0; i < count; i++) {
+				int neighbor = neighbors[i];
+				if (closed[neighbor] == searchId)
+					continue;
+				float neighborCost = cost + stepCosts[i];
+				if (visits[neighbor] == searchId && costs[neighbor] <= neighborCost)
+					continue;
+
+				visits[neighbor] = searchId;
+				costs[neighbor] = neighborCost;
+				parents[neighbor] = cell;
+				open.push(neighbor, neighborCost + grid.distance(neighbor, goal));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return True if the finished search reached the goal
+	 */
+	boolean isFound() {
+		return found;
+	}
+
+	/**
+	 * Adds the cells of the found path, from the start to the goal
+	 */
+	void getPath(IntArray out) {
+		int first = out.size;
+		for (int cell = goal; cell != -1; cell = parents[cell])
+			out.add(cell);
+		// Collected from the goal, reverse in place
+		for (int i = first, j = out.size - 1; i < j; i++, j--)
+			out.swap(i, j);
+	}
+}
@@ -0,0 +1,123 @@
+package com.aliensoft.core.navigation;
+
+import java.util.Arrays;
+
+/**
+ * The cost to walk to one goal from every cell of a {@link NavGrid}, built by
+ * a Dijkstra search from the goal. Any number of agents heading to the goal
+ * find their way by stepping to the cheapest neighbor, so a horde chasing one
+ * player costs a single search.<br>
+ * Built in slices like {@link AStarSearch}. Once complete it is only read.
+ */
+public class FlowField {
+
+	private static final int	CHECK_INTERVAL	= 64;
+
+	private final NavGrid		grid;
+	private final float[]		costs;
+	private int					goal			= -1;
+	private boolean				complete;
+	/** Jobs reading the field, it isn't reused while read */
+	int							users;
+
+	private final NodeHeap		open			= new NodeHeap();
+	private final int[]			neighbors		= new int[8];
+	private final float[]		stepCosts		= new float[8];
+
+	FlowField(NavGrid grid) {
+		this.grid = grid;
+		costs = new float[grid.getCellCount()];
+	}
+
+	void begin(int goal) {
+		this.goal = goal;
+		complete = false;
+		Arrays.fill(costs, Float.POSITIVE_INFINITY);
+		costs[goal] = 0f;
+		open.clear();
+		open.push(goal, 0f);
+	}
+
+	/**
+	 * Settles cells until every reachable cell has its cost or the deadline passes
+	 *
+	 * @return True when the field is complete
+	 */
+	boolean run(long deadline) {
+		int expanded = 0;
+		while (!open.isEmpty()) {
+			if (++expanded % CHECK_INTERVAL == 0 && System.nanoTime() >= deadline)
+				return false;
+
+			float cost = open.peekKey();
+			int cell = open.pop();
+			// A cheaper entry of the cell was already settled
+			if (cost > costs[cell])
+				continue;
+
+			int count = grid.getNeighbors(cell, neighbors, stepCosts);
+			for (int i = 0; i < count; i++) {
+				int neighbor = neighbors[i];
+				float neighborCost = cost + stepCosts[i];
+				if (neighborCost < costs[neighbor]) {
+					costs[neighbor] = neighborCost;
+					open.push(neighbor, neighborCost);
+				}
+			}
+		}
+		complete = true;
+		return true;
+	}
+
+	/**
+	 * Can be called from many threads once the field is complete
+	 *
+	 * @return The next cell on the way to the goal, -1 at the goal or if the goal can't be reached
+	 */
+	public int next(int cell) {
+		if (cell == goal || costs[cell] == Float.POSITIVE_INFINITY)
+			return -1;
+
+		int width = grid.getWidth();
+		int x = cell % width, z = cell / width;
+		int best = -1;
+		float bestCost = costs[cell];
+		for (int dz = -1; dz <= 1; dz++) {
+			if (z + dz < 0 || z + dz >= grid.getDepth())
+				continue;
+			for (int dx = -1; dx <= 1; dx++) {
+				if (x + dx < 0 || x + dx >= width)
+					continue;
+				int neighbor = cell + dx + dz * width;
+				// Blocked cells are never reached so they cost infinity, corners can't be cut
+				if (dx != 0 && dz != 0
+						&& (!grid.isWalkable(cell + dx) || !grid.isWalkable(cell + dz * width)))
+					continue;
+				if (costs[neighbor] < bestCost) {
+					bestCost = costs[neighbor];
+					best = neighbor;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return The walking distance from a cell to the goal in cells, infinity if unreachable
+	 */
+	public float getCost(int cell) {
+		return costs[cell];
+	}
+
+	public int getGoal() {
+		return goal;
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public NavGrid getGrid() {
+		return grid;
+	}
+}
@@ -0,0 +1,262 @@
+package com.aliensoft.core.navigation;
+
+import com.aliensoft.core.SceneRender;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.utils.Array;
+
+/**
+ * The walkable area of a level as a grid of square cells on the XZ plane.<br>
+ * Cells are blocked by rasterizing the boxes of the static geometry that
+ * crosses the height band agents walk in, inflated by the agent radius. Cells
+ * are indexed x + z * width, the nodes of the path searches. Once built the
+ * grid is only read, so it can be searched from many threads.
+ */
+public class NavGrid {
+
+	/** Cost of a step to a side and to a corner, in cells */
+	static final float		STRAIGHT	= 1f;
+	static final float		DIAGONAL	= 1.4142135f;
+
+	private final float		originX, originZ;
+	private final float		cellSize;
+	private final int		width, depth;
+	private final boolean[]	blocked;
+
+	/**
+	 * Creates a grid with every cell walkable
+	 *
+	 * @param originX
+	 *            X of the corner of the first cell
+	 * @param originZ
+	 *            Z of the corner of the first cell
+	 * @param width
+	 *            Cells along X
+	 * @param depth
+	 *            Cells along Z
+	 * @param cellSize
+	 *            Side of a cell
+	 */
+	public NavGrid(float originX, float originZ, int width, int depth, float cellSize) {
+		this.originX = originX;
+		this.originZ = originZ;
+		this.width = width;
+		this.depth = depth;
+		this.cellSize = cellSize;
+		blocked = new boolean[width * depth];
+	}
+
+	/**
+	 * Builds the grid of a level from the static geometry of a scene, see
+	 * {@link SceneRender#getStaticBounds(Array)}. The floor is below the
+	 * walking band so it doesn't block.
+	 *
+	 * @param scene
+	 *            The level
+	 * @param area
+	 *            The walkable area on XZ, from the step height (min Y) to the
+	 *            agent height (max Y) over the floor
+	 * @param cellSize
+	 *            Side of a cell
+	 * @param agentRadius
+	 *            How much the geometry is inflated so agents don't clip it
+	 */
+	public static NavGrid build(SceneRender scene, BoundingBox area, float cellSize, float agentRadius) {
+		NavGrid grid = new NavGrid(area.min.x, area.min.z, MathUtils.ceil(area.getWidth() / cellSize),
+				MathUtils.ceil(area.getDepth() / cellSize), cellSize);
+		for (BoundingBox box : scene.getStaticBounds(new Array<BoundingBox>()))
+			if (box.max.y > area.min.y && box.min.y < area.max.y)
+				grid.block(box, agentRadius);
+		return grid;
+	}
+
+	/**
+	 * Blocks the cells a box covers on XZ
+	 *
+	 * @param box
+	 *            The box, its height is ignored
+	 * @param inflate
+	 *            How much the box is grown on every side
+	 */
+	public void block(BoundingBox box, float inflate) {
+		int minX = Math.max(0, cellX(box.min.x - inflate));
+		int maxX = Math.min(width - 1, cellX(box.max.x + inflate));
+		int minZ = Math.max(0, cellZ(box.min.z - inflate));
+		int maxZ = Math.min(depth - 1, cellZ(box.max.z + inflate));
+		for (int z = minZ; z <= maxZ; z++)
+			for (int x = minX; x <= maxX; x++)
+				blocked[x + z * width] = true;
+	}
+
+	public void setBlocked(int cell, boolean blocked) {
+		this.blocked[cell] = blocked;
+	}
+
+	public int cellX(float x) {
+		return MathUtils.floor((x - originX) / cellSize);
+	}
+
+	public int cellZ(float z) {
+		return MathUtils.floor((z - originZ) / cellSize);
+	}
+
+	/**
+	 * @return The cell of a position, -1 if outside the grid
+	 */
+	public int getCell(float x, float z) {
+		return getCell(cellX(x), cellZ(z));
+	}
+
+	/**
+	 * @return The cell of cell coordinates, -1 if outside the grid
+	 */
+	public int getCell(int cellX, int cellZ) {
+		if (cellX < 0 || cellZ < 0 || cellX >= width || cellZ >= depth)
+			return -1;
+		return cellX + cellZ * width;
+	}
+
+	public boolean isWalkable(int cell) {
+		return !blocked[cell];
+	}
+
+	/**
+	 * @return The walkable cell closest to a cell, the cell itself if walkable,
+	 *         -1 if there is none in the radius
+	 */
+	public int findWalkable(int cell, int radius) {
+		if (cell == -1 || !blocked[cell])
+			return cell;
+
+		int cx = cell % width, cz = cell / width;
+		for (int r = 1; r <= radius; r++) {
+			for (int z = cz - r; z <= cz + r; z++) {
+				// Only the ring at distance r
+				int step = z == cz - r || z == cz + r ? 1 : 2 * r;
+				for (int x = cx - r; x <= cx + r; x += step) {
+					int found = getCell(x, z);
+					if (found != -1 && !blocked[found])
+						return found;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the walkable neighbors of a cell. Diagonal steps need both cells
+	 * beside them walkable, so paths don't cut corners.
+	 *
+	 * @param neighbors
+	 *            Filled with the neighbor cells, at least 8 long
+	 * @param costs
+	 *            Filled with the step cost to each neighbor in cells, at least 8 long
+	 * @return The number of neighbors
+	 */
+	int getNeighbors(int cell, int[] neighbors, float[] costs) {
+		int x = cell % width, z = cell / width;
+		boolean left = x > 0 && !blocked[cell - 1];
+		boolean right = x < width - 1 && !blocked[cell + 1];
+		boolean down = z > 0 && !blocked[cell - width];
+		boolean up = z < depth - 1 && !blocked[cell + width];
+
+		int count = 0;
+		if (left)
+			count = add(neighbors, costs, count, cell - 1, STRAIGHT);
+		if (right)
+			count = add(neighbors, costs, count, cell + 1, STRAIGHT);
+		if (down)
+			count = add(neighbors, costs, count, cell - width, STRAIGHT);
+		if (up)
+			count = add(neighbors, costs, count, cell + width, STRAIGHT);
+		if (left && down && !blocked[cell - 1 - width])
+			count = add(neighbors, costs, count, cell - 1 - width, DIAGONAL);
+		if (right && down && !blocked[cell + 1 - width])
+			count = add(neighbors, costs, count, cell + 1 - width, DIAGONAL);
+		if (left && up && !blocked[cell - 1 + width])
+			count = add(neighbors, costs, count, cell - 1 + width, DIAGONAL);
+		if (right && up && !blocked[cell + 1 + width])
+			count = add(neighbors, costs, count, cell + 1 + width, DIAGONAL);
+		return count;
+	}
+
+	private static int add(int[] neighbors, float[] costs, int count, int cell, float cost) {
+		neighbors[count] = cell;
+		costs[count] = cost;
+		return count + 1;
+	}
+
+	/**
+	 * @return The octile distance between two cells, the cost of the shortest
+	 *         path without obstacles
+	 */
+	float distance(int from, int to) {
+		int dx = Math.abs(from % width - to % width);
+		int dz = Math.abs(from / width - to / width);
+		return STRAIGHT * Math.max(dx, dz) + (DIAGONAL - STRAIGHT) * Math.min(dx, dz);
+	}
+
+	/**
+	 * Checks if a straight walk between the centers of two cells only crosses walkable cells
+	 */
+	public boolean lineOfSight(int from, int to) {
+		int x = from % width, z = from / width;
+		int endX = to % width, endZ = to / width;
+		int dx = Math.abs(endX - x), dz = Math.abs(endZ - z);
+		int stepX = endX > x ? 1 : -1, stepZ = endZ > z ? 1 : -1;
+		// Walks every cell the segment touches, both cells when it crosses a corner
+		int error = dx - dz;
+		for (int n = dx + dz; n > 0; n--) {
+			if (blocked[x + z * width])
+				return false;
+			if (error > 0) {
+				x += stepX;
+				error -= 2 * dz;
+			} else if (error < 0) {
+				z += stepZ;
+				error += 2 * dx;
+			} else {
+				if (blocked[x + stepX + z * width] || blocked[x + (z + stepZ) * width])
+					return false;
+				x += stepX;
+				z += stepZ;
+				error += 2 * (dx - dz);
+				n--;
+			}
+		}
+		return !blocked[to];
+	}
+
+	/**
+	 * @return X of the center of a cell
+	 */
+	public float getCenterX(int cell) {
+		return originX + (cell % width + 0.5f) * cellSize;
+	}
+
+	/**
+	 * @return Z of the center of a cell
+	 */
+	public float getCenterZ(int cell) {
+		return originZ + (cell / width + 0.5f) * cellSize;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return The number of cells, width * depth
+	 */
+	public int getCellCount() {
+		return blocked.length;
+	}
+
+	public float getCellSize() {
+		return cellSize;
+	}
+}
@@ -0,0 +1,64 @@
+package com.aliensoft.core.navigation;
+
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.FloatArray;
+
+/**
+ * A path on the XZ plane, the start, the corners where the direction changes
+ * and the goal
+ */
+public class NavPath {
+
+	/** X and Z of each point */
+	final FloatArray	points	= new FloatArray();
+
+	/**
+	 * @return The number of points
+	 */
+	public int size() {
+		return points.size / 2;
+	}
+
+	public float getX(int index) {
+		return points.get(index * 2);
+	}
+
+	public float getZ(int index) {
+		return points.get(index * 2 + 1);
+	}
+
+	/**
+	 * Gets a point
+	 *
+	 * @param index
+	 *            From 0, the start, to {@link #size()} - 1, the goal
+	 * @param y
+	 *            The height of the point
+	 * @return out
+	 */
+	public Vector3 get(int index, float y, Vector3 out) {
+		return out.set(getX(index), y, getZ(index));
+	}
+
+	/**
+	 * @return The length of the path
+	 */
+	public float getLength() {
+		float length = 0f;
+		for (int i = 2; i < points.size; i += 2) {
+			float dx = points.get(i) - points.get(i - 2);
+			float dz = points.get(i + 1) - points.get(i - 1);
+			length += (float) Math.sqrt(dx * dx + dz * dz);
+		}
+		return length;
+	}
+
+	void add(float x, float z) {
+		points.add(x);
+		points.add(z);
+	}
+
+	void clear() {
+		points.clear();
+	}
+}
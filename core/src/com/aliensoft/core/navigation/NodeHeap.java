@@ -0,0 +1,78 @@
+package com.aliensoft.core.navigation;
+
+/**
+ * A binary min heap of grid cells keyed by cost, the open list of the
+ * searches. A cell can be pushed again with a lower cost, the stale entry is
+ * skipped by the search when popped.
+ */
+class NodeHeap {
+
+	private int[]	nodes	= new int[256];
+	private float[]	keys	= new float[256];
+	private int		size;
+
+	void push(int node, float key) {
+		if (size == nodes.length) {
+			int[] newNodes = new int[size * 2];
+			float[] newKeys = new float[size * 2];
+			System.arraycopy(nodes, 0, newNodes, 0, size);
+			System.arraycopy(keys, 0, newKeys, 0, size);
+			nodes = newNodes;
+			keys = newKeys;
+		}
+
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (keys[parent] <= key)
+				break;
+			nodes[i] = nodes[parent];
+			keys[i] = keys[parent];
+			i = parent;
+		}
+		nodes[i] = node;
+		keys[i] = key;
+	}
+
+	/**
+	 * @return The key of the cheapest entry, read before {@link #pop()}
+	 */
+	float peekKey() {
+		return keys[0];
+	}
+
+	/**
+	 * Removes the cheapest entry
+	 *
+	 * @return Its cell
+	 */
+	int pop() {
+		int top = nodes[0];
+		int node = nodes[--size];
+		float key = keys[size];
+
+		int i = 0;
+		int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			if (child + 1 < size && keys[child + 1] < keys[child])
+				child++;
+			if (key <= keys[child])
+				break;
+			nodes[i] = nodes[child];
+			keys[i] = keys[child];
+			i = child;
+		}
+		nodes[i] = node;
+		keys[i] = key;
+		return top;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	void clear() {
+		size = 0;
+	}
+}
@@ -0,0 +1,54 @@
+package com.aliensoft.core.navigation;
+
+/**
+ * A path asked to a {@link PathService}. The service fills it in one of its
+ * updates, poll {@link #isDone()} from the same thread.
+ */
+public class PathRequest {
+
+	public enum Status {
+		PENDING, FOUND, NOT_FOUND, CANCELLED
+	}
+
+	final float		startX, startZ;
+	final float		goalX, goalZ;
+	int				startCell, goalCell;
+
+	Status			status	= Status.PENDING;
+	final NavPath	path	= new NavPath();
+	/** Set by the worker that wrote the path, turned into the status by the service */
+	boolean			found;
+
+	PathRequest(float startX, float startZ, float goalX, float goalZ) {
+		this.startX = startX;
+		this.startZ = startZ;
+		this.goalX = goalX;
+		this.goalZ = goalZ;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return False while the path is being searched
+	 */
+	public boolean isDone() {
+		return status != Status.PENDING;
+	}
+
+	/**
+	 * @return The path, null unless the status is found
+	 */
+	public NavPath getPath() {
+		return status == Status.FOUND ? path : null;
+	}
+
+	/**
+	 * Drops the request, a search already running for it still finishes
+	 */
+	public void cancel() {
+		if (status == Status.PENDING)
+			status = Status.CANCELLED;
+	}
+}
@@ -0,0 +1,420 @@
+package com.aliensoft.core.navigation;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.IntMap;
+
+/**
+ * Finds paths on a {@link NavGrid} without stalling the frame.<br>
+ * Requests are grouped by goal cell. A goal asked by one agent is searched
+ * with A*, a goal asked by many agents at once gets a {@link FlowField} that
+ * answers all of them and is cached, so later requests to that goal only
+ * follow it. Paths are smoothed by skipping the cells in line of sight.<br>
+ * Searches and path building run on worker threads, each allowed a time
+ * budget per {@link #update()} so pathfinding spikes are spread over frames
+ * instead of competing with rendering and physics. Without workers they run
+ * inside {@link #update()} within the same budget.<br>
+ * Requests and updates must come from one thread, usually the render thread.
+ */
+public class PathService implements Disposable {
+
+	/** Cells searched around a blocked start or goal for a walkable one */
+	private static final int							SNAP_RADIUS			= 4;
+
+	private final NavGrid								grid;
+
+	/* Settings */
+	private volatile long								budgetNanos			= 2000000L;
+	private int											flowFieldThreshold	= 2;
+	private int											cacheSize			= 8;
+	private final int									maxSearches;
+
+	/* Caller thread */
+	private final IntMap<GoalGroup>						groups				= new IntMap<>();
+	private final Array<GoalGroup>						waiting				= new Array<>();
+	/** Complete flow fields, the most recently used last */
+	private final Array<FlowField>						cache				= new Array<>();
+	private final Array<FlowField>						freeFields			= new Array<>();
+	private final Array<AStarSearch>					freeSearches		= new Array<>();
+	private int											searches;
+	private final IntArray								cells				= new IntArray();
+
+	/* Shared with the workers */
+	private final ConcurrentLinkedQueue<Job>			runnable			= new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<Job>			completed			= new ConcurrentLinkedQueue<>();
+	private final Object								lock				= new Object();
+	private long										frame;
+	private volatile boolean							running				= true;
+	private final Thread[]								workers;
+
+	/**
+	 * @param grid
+	 *            The grid paths are searched on
+	 * @param workers
+	 *            Worker threads, 0 to search inside {@link #update()}
+	 */
+	public PathService(NavGrid grid, int workers) {
+		this.grid = grid;
+		this.workers = new Thread[workers];
+		maxSearches = Math.max(1, workers) * 4;
+		for (int i = 0; i < workers; i++) {
+			this.workers[i] = new Thread(new Worker(), "Pathfinding " + i);
+			this.workers[i].setDaemon(true);
+			this.workers[i].start();
+		}
+	}
+
+	/**
+	 * Asks for a path. Positions on blocked cells are moved to the closest walkable cell.
+	 *
+	 * @return The request, filled by a later {@link #update()}
+	 */
+	public PathRequest request(float startX, float startZ, float goalX, float goalZ) {
+		PathRequest request = new PathRequest(startX, startZ, goalX, goalZ);
+		request.startCell = grid.findWalkable(grid.getCell(startX, startZ), SNAP_RADIUS);
+		request.goalCell = grid.findWalkable(grid.getCell(goalX, goalZ), SNAP_RADIUS);
+		if (request.startCell == -1 || request.goalCell == -1) {
+			request.status = PathRequest.Status.NOT_FOUND;
+			return request;
+		}
+
+		GoalGroup group = groups.get(request.goalCell);
+		if (group == null) {
+			group = new GoalGroup(request.goalCell);
+			groups.put(request.goalCell, group);
+		}
+		group.requests.add(request);
+		if (group.job == null && !group.waiting) {
+			group.waiting = true;
+			waiting.add(group);
+		}
+		return request;
+	}
+
+	/**
+	 * @return The complete flow field to a position, null if it isn't cached.
+	 *         Valid until the next update.
+	 */
+	public FlowField getFlowField(float goalX, float goalZ) {
+		int goal = grid.findWalkable(grid.getCell(goalX, goalZ), SNAP_RADIUS);
+		return goal == -1 ? null : getCachedField(goal);
+	}
+
+	private FlowField getCachedField(int goal) {
+		for (int i = cache.size - 1; i >= 0; i--) {
+			FlowField field = cache.get(i);
+			if (field.getGoal() == goal) {
+				// Most recently used last
+				cache.removeIndex(i);
+				cache.add(field);
+				return field;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Starts the searches of new requests, gives the workers the budget of a
+	 * frame and fills the requests of the finished searches. Call once per frame.
+	 */
+	public void update() {
+		schedule();
+
+		if (workers.length == 0)
+			runJobs(budgetNanos);
+		else {
+			synchronized (lock) {
+				frame++;
+				lock.notifyAll();
+			}
+		}
+
+		Job job;
+		while ((job = completed.poll()) != null)
+			finish(job);
+	}
+
+	/**
+	 * Starts a job for each waiting group: the paths of every request if the
+	 * goal has a cached flow field, else a flow field if enough agents want
+	 * the goal, else A* for the first request
+	 */
+	private void schedule() {
+		for (int i = 0; i < waiting.size && searches < maxSearches; i++) {
+			GoalGroup group = waiting.get(i);
+			for (int r = group.requests.size - 1; r >= 0; r--)
+				if (group.requests.get(r).status == PathRequest.Status.CANCELLED)
+					group.requests.removeIndex(r);
+
+			waiting.removeIndex(i--);
+			group.waiting = false;
+			if (group.requests.size == 0) {
+				groups.remove(group.goal);
+				continue;
+			}
+
+			Job job = new Job(group);
+			FlowField field = getCachedField(group.goal);
+			if (field == null && group.requests.size >= flowFieldThreshold) {
+				field = obtainField();
+				field.begin(group.goal);
+			}
+			if (field != null) {
+				field.users++;
+				job.field = field;
+				job.requests.addAll(group.requests);
+				group.requests.clear();
+			} else {
+				job.requests.add(group.requests.removeIndex(0));
+				job.search = freeSearches.size > 0 ? freeSearches.pop() : new AStarSearch(grid);
+				job.search.begin(job.requests.first().startCell, group.goal);
+			}
+			group.job = job;
+			searches++;
+			runnable.add(job);
+		}
+	}
+
+	/**
+	 * @return A flow field evicted from the cache and not read by a job, or a new one
+	 */
+	private FlowField obtainField() {
+		for (int i = 0; i < freeFields.size; i++)
+			if (freeFields.get(i).users == 0)
+				return freeFields.removeIndex(i);
+		return new FlowField(grid);
+	}
+
+	/**
+	 * Runs queued jobs for a while, unfinished ones go back to the end of the queue
+	 */
+	private void runJobs(long budget) {
+		long deadline = System.nanoTime() + budget;
+		Job job;
+		while (System.nanoTime() < deadline && (job = runnable.poll()) != null) {
+			if (job.run(deadline))
+				completed.add(job);
+			else
+				runnable.add(job);
+		}
+	}
+
+	private void finish(Job job) {
+		GoalGroup group = job.group;
+		group.job = null;
+		searches--;
+
+		for (PathRequest request : job.requests)
+			if (request.status == PathRequest.Status.PENDING)
+				request.status = request.found ? PathRequest.Status.FOUND : PathRequest.Status.NOT_FOUND;
+
+		if (job.search != null)
+			freeSearches.add(job.search);
+		else {
+			FlowField field = job.field;
+			field.users--;
+			if (!cache.contains(field, true)) {
+				if (cache.size == cacheSize)
+					freeFields.add(cache.removeIndex(0));
+				cache.add(field);
+			}
+		}
+
+		// Requests that came while searching
+		if (group.requests.size > 0) {
+			group.waiting = true;
+			waiting.add(group);
+		} else
+			groups.remove(group.goal);
+	}
+
+	/**
+	 * @param budgetMillis
+	 *            Search time per worker and frame, 2 by default
+	 */
+	public void setBudget(float budgetMillis) {
+		budgetNanos = (long) (budgetMillis * 1000000f);
+	}
+
+	/**
+	 * @param requests
+	 *            Requests to the same goal that get a flow field instead of A*, 2 by default
+	 */
+	public void setFlowFieldThreshold(int requests) {
+		flowFieldThreshold = requests;
+	}
+
+	/**
+	 * @param fields
+	 *            Flow fields kept, each one float per cell, 8 by default
+	 */
+	public void setCacheSize(int fields) {
+		cacheSize = Math.max(1, fields);
+		while (cache.size > cacheSize)
+			freeFields.add(cache.removeIndex(0));
+	}
+
+	/**
+	 * Forgets the cached flow fields, needed after the grid changed
+	 */
+	public void clearCache() {
+		freeFields.addAll(cache);
+		cache.clear();
+	}
+
+	/**
+	 * @return The number of requests not filled yet
+	 */
+	public int getPendingCount() {
+		int count = 0;
+		for (GoalGroup group : groups.values()) {
+			count += group.requests.size;
+			if (group.job != null)
+				count += group.job.requests.size;
+		}
+		return count;
+	}
+
+	public NavGrid getGrid() {
+		return grid;
+	}
+
+	/**
+	 * Stops the workers, the pending requests are never filled
+	 */
+	@Override
+	public void dispose() {
+		running = false;
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The requests to one goal cell
+	 */
+	private static class GoalGroup {
+		final int					goal;
+		final Array<PathRequest>	requests	= new Array<>(false, 4);
+		/** The search running for the group, null if none */
+		Job							job;
+		boolean						waiting;
+
+		GoalGroup(int goal) {
+			this.goal = goal;
+		}
+	}
+
+	/**
+	 * A search of a group and the paths of its requests, an A* for one
+	 * request or a flow field for many. Runs on the workers.
+	 */
+	private class Job {
+		final GoalGroup				group;
+		final Array<PathRequest>	requests	= new Array<>(false, 4);
+		AStarSearch					search;
+		FlowField					field;
+		/** Requests whose path was written */
+		int							resolved;
+		final IntArray				cells		= new IntArray();
+
+		Job(GoalGroup group) {
+			this.group = group;
+		}
+
+		/**
+		 * @return True when every request has its path or is known to have none
+		 */
+		boolean run(long deadline) {
+			if (search != null) {
+				if (!search.run(deadline))
+					return false;
+				if (search.isFound()) {
+					cells.clear();
+					search.getPath(cells);
+					setPath(requests.first(), cells);
+				}
+				return true;
+			}
+
+			if (!field.isComplete() && !field.run(deadline))
+				return false;
+			while (resolved < requests.size) {
+				if (resolved % 16 == 15 && System.nanoTime() >= deadline)
+					return false;
+				resolve(requests.get(resolved++));
+			}
+			return true;
+		}
+
+		/**
+		 * Writes the path of a request by following the flow field from its start
+		 */
+		private void resolve(PathRequest request) {
+			cells.clear();
+			int cell = request.startCell;
+			for (int steps = grid.getCellCount(); cell != -1 && steps > 0; steps--) {
+				cells.add(cell);
+				cell = field.next(cell);
+			}
+			if (cells.peek() == request.goalCell)
+				setPath(request, cells);
+		}
+
+		/**
+		 * Writes a path through cells, keeping only the cells where the
+		 * straight line from the previous point would cross a blocked cell
+		 */
+		private void setPath(PathRequest request, IntArray cells) {
+			NavPath path = request.path;
+			path.clear();
+			path.add(request.startX, request.startZ);
+
+			int anchor = 0;
+			while (anchor < cells.size - 1) {
+				int next = anchor + 1;
+				while (next + 1 < cells.size && grid.lineOfSight(cells.get(anchor), cells.get(next + 1)))
+					next++;
+				if (next < cells.size - 1)
+					path.add(grid.getCenterX(cells.get(next)), grid.getCenterZ(cells.get(next)));
+				anchor = next;
+			}
+
+			path.add(request.goalX, request.goalZ);
+			request.found = true;
+		}
+	}
+
+	/**
+	 * Runs jobs with the budget of each frame, then waits for the next one
+	 */
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			long lastFrame = -1;
+			while (running) {
+				synchronized (lock) {
+					while (running && (frame == lastFrame || runnable.isEmpty())) {
+						try {
+							lock.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					lastFrame = frame;
+				}
+				runJobs(budgetNanos);
+			}
+		}
+	}
+}
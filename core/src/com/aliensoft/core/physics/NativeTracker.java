@@ -0,0 +1,209 @@
+package com.aliensoft.core.physics;
+
+import java.util.IdentityHashMap;
+import java.util.Map.Entry;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.physics.bullet.BulletBase;
+import com.badlogic.gdx.physics.bullet.collision.btBroadphaseInterface;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionDispatcher;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionObject;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionShape;
+import com.badlogic.gdx.physics.bullet.collision.btDefaultCollisionConfiguration;
+import com.badlogic.gdx.physics.bullet.dynamics.btConstraintSolver;
+import com.badlogic.gdx.physics.bullet.dynamics.btDynamicsWorld;
+import com.badlogic.gdx.physics.bullet.dynamics.btRigidBody;
+import com.badlogic.gdx.physics.bullet.dynamics.btRigidBody.btRigidBodyConstructionInfo;
+import com.badlogic.gdx.physics.bullet.linearmath.btMotionState;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.ObjectMap;
+
+/**
+ * Counts the native bullet objects created by core, per type, with an
+ * estimate of their native size. The JVM heap only sees the small java
+ * wrappers, so leaks of native memory show up here instead.<br>
+ * Objects are registered with {@link #track(BulletBase)} when created and
+ * freed with {@link #free(BulletBase)}. In debug mode the allocation site of
+ * every object is kept, and {@link #logLeaks()} prints where the objects
+ * still alive were created.
+ */
+public final class NativeTracker {
+
+	private static final IdentityHashMap<BulletBase, Record>	live	= new IdentityHashMap<>();
+	private static final ObjectMap<Class<?>, TypeStats>			types	= new ObjectMap<>();
+	private static long											bytes;
+	private static boolean										debug;
+
+	private NativeTracker() {
+	}
+
+	/**
+	 * Keeps the allocation site of the objects tracked from now on
+	 */
+	public static synchronized void setDebug(boolean debug) {
+		NativeTracker.debug = debug;
+	}
+
+	public static synchronized boolean isDebug() {
+		return debug;
+	}
+
+	/**
+	 * Registers a native object
+	 *
+	 * @return handle
+	 */
+	public static synchronized <T extends BulletBase> T track(T handle) {
+		if (live.containsKey(handle))
+			return handle;
+
+		Record record = new Record(handle.getClass(), estimate(handle));
+		if (debug)
+			record.site = new Throwable("Allocated here");
+		live.put(handle, record);
+
+		TypeStats stats = types.get(record.type);
+		if (stats == null) {
+			stats = new TypeStats();
+			types.put(record.type, stats);
+		}
+		stats.count++;
+		stats.bytes += record.bytes;
+		bytes += record.bytes;
+		return handle;
+	}
+
+	/**
+	 * Disposes a native object and stops tracking it. Does nothing for null
+	 * or already freed objects. Bodies must be out of their world.
+	 */
+	public static void free(BulletBase handle) {
+		if (handle == null)
+			return;
+		synchronized (NativeTracker.class) {
+			Record record = live.remove(handle);
+			if (record != null) {
+				TypeStats stats = types.get(record.type);
+				stats.count--;
+				stats.bytes -= record.bytes;
+				bytes -= record.bytes;
+			}
+		}
+		if (!handle.isDisposed())
+			handle.dispose();
+	}
+
+	/**
+	 * @return The number of tracked objects not freed yet
+	 */
+	public static synchronized int getLiveCount() {
+		return live.size();
+	}
+
+	/**
+	 * @return The number of tracked objects of a class not freed yet,
+	 *         subclasses not included
+	 */
+	public static synchronized int getLiveCount(Class<? extends BulletBase> type) {
+		TypeStats stats = types.get(type);
+		return stats == null ? 0 : stats.count;
+	}
+
+	/**
+	 * @return The estimated native bytes of the tracked objects not freed yet
+	 */
+	public static synchronized long getLiveBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return One line per type with objects alive: its name, count and estimated bytes
+	 */
+	public static synchronized String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append(live.size()).append(" native objects, ~").append(bytes / 1024).append(" KB");
+		for (ObjectMap.Entry<Class<?>, TypeStats> entry : types.entries()) {
+			if (entry.value.count == 0)
+				continue;
+			report.append('\n').append(entry.key.getSimpleName()).append(": ").append(entry.value.count)
+					.append(" (~").append(entry.value.bytes / 1024).append(" KB)");
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Logs every object still alive, with its allocation site in debug mode.
+	 * Objects disposed without {@link #free(BulletBase)} are forgotten.
+	 *
+	 * @return The number of leaked objects
+	 */
+	public static int logLeaks() {
+		Array<Record> leaks = new Array<>();
+		Array<BulletBase> disposed = new Array<>();
+		synchronized (NativeTracker.class) {
+			for (Entry<BulletBase, Record> entry : live.entrySet()) {
+				if (entry.getKey().isDisposed())
+					disposed.add(entry.getKey());
+				else
+					leaks.add(entry.getValue());
+			}
+		}
+		for (BulletBase handle : disposed)
+			free(handle);
+
+		for (Record leak : leaks) {
+			String message = "Leaked " + leak.type.getSimpleName() + " (~" + leak.bytes + " bytes)";
+			if (leak.site != null)
+				Gdx.app.error("NativeTracker", message, leak.site);
+			else
+				Gdx.app.error("NativeTracker", message);
+		}
+		return leaks.size;
+	}
+
+	/**
+	 * Rough native size of an object, its own size plus the buffers it
+	 * allocates when created
+	 */
+	static int estimate(BulletBase handle) {
+		// Pools of 4096 persistent manifolds and 4096 collision algorithms
+		if (handle instanceof btDefaultCollisionConfiguration)
+			return 4 * 1024 * 1024;
+		// Double dispatch tables of the shape types
+		if (handle instanceof btCollisionDispatcher)
+			return 24 * 1024;
+		if (handle instanceof btDynamicsWorld)
+			return 1024;
+		if (handle instanceof btBroadphaseInterface)
+			return 1024;
+		if (handle instanceof btConstraintSolver)
+			return 512;
+		if (handle instanceof btRigidBody)
+			return 720;
+		if (handle instanceof btCollisionObject)
+			return 320;
+		if (handle instanceof btRigidBodyConstructionInfo)
+			return 208;
+		if (handle instanceof btCollisionShape)
+			return 96;
+		if (handle instanceof btMotionState)
+			return 32;
+		return 64;
+	}
+
+	private static class Record {
+		final Class<?>	type;
+		final int		bytes;
+		Throwable		site;
+
+		Record(Class<?> type, int bytes) {
+			this.type = type;
+			this.bytes = bytes;
+		}
+	}
+
+	private static class TypeStats {
+		int		count;
+		long	bytes;
+	}
+}
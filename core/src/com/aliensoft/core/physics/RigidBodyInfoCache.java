@@ -0,0 +1,64 @@
+package com.aliensoft.core.physics;
+
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionShape;
+import com.badlogic.gdx.physics.bullet.dynamics.btRigidBody.btRigidBodyConstructionInfo;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.ObjectMap;
+
+/**
+ * Caches rigid body construction infos by shape and mass.<br>
+ * The local inertia is calculated only once per pair, and every body created
+ * from the same pair shares one native construction info. Each
+ * {@link ShapeRegistry} owns a cache for its shapes and disposes it before
+ * them, so an entry never outlives its shape.
+ */
+public class RigidBodyInfoCache implements Disposable {
+
+	/** Masses are few per shape, so they are searched linearly */
+	private final ObjectMap<btCollisionShape, Array<btRigidBodyConstructionInfo>>	infos	= new ObjectMap<>();
+
+	private final Vector3														inertia	= new Vector3();
+
+	/**
+	 * Returns the construction info for a shape and mass, creating it the first time.
+	 * The info is owned by the cache and must not be disposed.
+	 */
+	public synchronized btRigidBodyConstructionInfo get(btCollisionShape shape, float mass) {
+		Array<btRigidBodyConstructionInfo> forShape = infos.get(shape);
+		if (forShape == null) {
+			forShape = new Array<>(false, 2);
+			infos.put(shape, forShape);
+		}
+
+		for (btRigidBodyConstructionInfo info : forShape)
+			if (info.getMass() == mass)
+				return info;
+
+		inertia.set(0, 0, 0);
+		if (mass > 0f)
+			shape.calculateLocalInertia(mass, inertia);
+		btRigidBodyConstructionInfo info = NativeTracker.track(new btRigidBodyConstructionInfo(mass, null, shape, inertia));
+		forShape.add(info);
+		return info;
+	}
+
+	/**
+	 * @return The number of cached construction infos
+	 */
+	public synchronized int size() {
+		int size = 0;
+		for (Array<btRigidBodyConstructionInfo> forShape : infos.values())
+			size += forShape.size;
+		return size;
+	}
+
+	@Override
+	public synchronized void dispose() {
+		for (Array<btRigidBodyConstructionInfo> forShape : infos.values())
+			for (btRigidBodyConstructionInfo info : forShape)
+				NativeTracker.free(info);
+		infos.clear();
+	}
+}
@@ -0,0 +1,59 @@
+package com.aliensoft.core.physics;
+
+/**
+ * Describes a primitive collision shape by its type and dimensions.<br>
+ * Used as the key of the {@link ShapeRegistry}.
+ */
+public class ShapeDescriptor {
+
+	public enum Type {
+		SPHERE, BOX, CAPSULE, CYLINDER
+	}
+
+	public Type		type;
+	/** Radius for spheres and capsules, half extents for boxes and cylinders */
+	public float	x, y, z;
+
+	public ShapeDescriptor() {
+	}
+
+	public ShapeDescriptor(Type type, float x, float y, float z) {
+		set(type, x, y, z);
+	}
+
+	public ShapeDescriptor(ShapeDescriptor other) {
+		set(other.type, other.x, other.y, other.z);
+	}
+
+	public ShapeDescriptor set(Type type, float x, float y, float z) {
+		this.type = type;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = type.hashCode();
+		result = 31 * result + Float.floatToIntBits(x);
+		result = 31 * result + Float.floatToIntBits(y);
+		result = 31 * result + Float.floatToIntBits(z);
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof ShapeDescriptor))
+			return false;
+		ShapeDescriptor other = (ShapeDescriptor) obj;
+		return type == other.type && Float.floatToIntBits(x) == Float.floatToIntBits(other.x)
+				&& Float.floatToIntBits(y) == Float.floatToIntBits(other.y)
+				&& Float.floatToIntBits(z) == Float.floatToIntBits(other.z);
+	}
+
+	@Override
+	public String toString() {
+		return type + "(" + x + ", " + y + ", " + z + ")";
+	}
+}
@@ -0,0 +1,125 @@
+package com.aliensoft.core.physics;
+
+import com.aliensoft.core.physics.ShapeDescriptor.Type;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.physics.bullet.collision.btBoxShape;
+import com.badlogic.gdx.physics.bullet.collision.btCapsuleShape;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionShape;
+import com.badlogic.gdx.physics.bullet.collision.btCylinderShape;
+import com.badlogic.gdx.physics.bullet.collision.btSphereShape;
+import com.badlogic.gdx.physics.bullet.dynamics.btRigidBody.btRigidBodyConstructionInfo;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.ObjectMap;
+
+/**
+ * Shares collision shapes between objects.<br>
+ * Asking twice for a shape with the same type and dimensions returns the
+ * same native shape, so thousands of identical objects use a single one.
+ * The registry owns the shapes and frees them on {@link #dispose()}, with the
+ * rigid body construction infos created for them.
+ */
+public class ShapeRegistry implements Disposable {
+
+	private final ObjectMap<ShapeDescriptor, btCollisionShape>	shapes		= new ObjectMap<>();
+	private final ObjectMap<btCollisionShape, ShapeDescriptor>	descriptors	= new ObjectMap<>();
+	private final RigidBodyInfoCache							infos		= new RigidBodyInfoCache();
+
+	/** Reused key so lookups don't allocate */
+	private final ShapeDescriptor								lookup		= new ShapeDescriptor();
+	private final Vector3										tmp			= new Vector3();
+
+	public btSphereShape sphere(float radius) {
+		return (btSphereShape) get(Type.SPHERE, radius, radius, radius);
+	}
+
+	public btBoxShape box(float halfX, float halfY, float halfZ) {
+		return (btBoxShape) get(Type.BOX, halfX, halfY, halfZ);
+	}
+
+	/**
+	 * A capsule along the y axis
+	 * 
+	 * @param radius
+	 * @param height
+	 *            The height of the cylindrical part
+	 */
+	public btCapsuleShape capsule(float radius, float height) {
+		return (btCapsuleShape) get(Type.CAPSULE, radius, height, radius);
+	}
+
+	/**
+	 * A cylinder along the y axis
+	 */
+	public btCylinderShape cylinder(float halfX, float halfY, float halfZ) {
+		return (btCylinderShape) get(Type.CYLINDER, halfX, halfY, halfZ);
+	}
+
+	/**
+	 * Returns the shape for a descriptor, creating it the first time
+	 */
+	public btCollisionShape get(ShapeDescriptor descriptor) {
+		return get(descriptor.type, descriptor.x, descriptor.y, descriptor.z);
+	}
+
+	public synchronized btCollisionShape get(Type type, float x, float y, float z) {
+		btCollisionShape shape = shapes.get(lookup.set(type, x, y, z));
+		if (shape == null) {
+			shape = create(lookup);
+			ShapeDescriptor key = new ShapeDescriptor(lookup);
+			shapes.put(key, shape);
+			descriptors.put(shape, key);
+		}
+		return shape;
+	}
+
+	/**
+	 * @return The descriptor of a shape created by this registry, null if the
+	 *         shape doesn't belong to it
+	 */
+	public synchronized ShapeDescriptor getDescriptor(btCollisionShape shape) {
+		return descriptors.get(shape);
+	}
+
+	/**
+	 * Returns the construction info shared by the bodies with a shape of this
+	 * registry and a mass. The info is owned by the registry and freed with
+	 * the shapes, bodies must be freed first.
+	 */
+	public btRigidBodyConstructionInfo getInfo(btCollisionShape shape, float mass) {
+		if (getDescriptor(shape) == null)
+			throw new GdxRuntimeException("The shape doesn't belong to this registry");
+		return infos.get(shape, mass);
+	}
+
+	/**
+	 * @return The number of distinct shapes
+	 */
+	public synchronized int size() {
+		return shapes.size;
+	}
+
+	private btCollisionShape create(ShapeDescriptor desc) {
+		switch (desc.type) {
+			case SPHERE:
+				return NativeTracker.track(new btSphereShape(desc.x));
+			case BOX:
+				return NativeTracker.track(new btBoxShape(tmp.set(desc.x, desc.y, desc.z)));
+			case CAPSULE:
+				return NativeTracker.track(new btCapsuleShape(desc.x, desc.y));
+			case CYLINDER:
+				return NativeTracker.track(new btCylinderShape(tmp.set(desc.x, desc.y, desc.z)));
+			default:
+				throw new IllegalArgumentException("Unknown shape type " + desc.type);
+		}
+	}
+
+	@Override
+	public synchronized void dispose() {
+		infos.dispose();
+		for (btCollisionShape shape : shapes.values())
+			NativeTracker.free(shape);
+		shapes.clear();
+		descriptors.clear();
+	}
+}
@@ -0,0 +1,373 @@
+package com.aliensoft.core.profiling;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.ObjectIntMap;
+import com.badlogic.gdx.utils.StreamUtils;
+
+/**
+ * Times the phases of each frame.<br>
+ * Phases are named scopes registered once with {@link #scope(String)}, then
+ * timed every frame with {@link #begin(int)} and {@link #end(int)} between
+ * {@link #beginFrame()} and {@link #endFrame()}. Scopes can be nested, a scope
+ * begun more than once in a frame adds up. The last frames of every scope are
+ * kept in a ring buffer for percentiles, the overlay and CSV export.<br>
+ * Recording doesn't allocate. Must only be used from one thread, usually the
+ * render thread.
+ */
+public class FrameProfiler {
+
+	public static final int			MAX_SCOPES		= 32;
+	public static final int			MAX_DEPTH		= 16;
+
+	/** Scope of the whole frame, from {@link #beginFrame()} to {@link #endFrame()} */
+	public static final int			FRAME			= 0;
+
+	private boolean					enabled			= true;
+	/** Applied on the next {@link #beginFrame()} */
+	private boolean					enabledNext		= true;
+
+	/* Scopes */
+	private final String[]			names			= new String[MAX_SCOPES];
+	private final ObjectIntMap<String>	ids			= new ObjectIntMap<>();
+	private int						scopeCount;
+	/** Nesting depth of each scope, set the first time it is begun */
+	private final int[]				depths			= new int[MAX_SCOPES];
+	/** Scopes in the order they were first begun, the order of a frame */
+	private final int[]				order			= new int[MAX_SCOPES];
+	private final boolean[]			seen			= new boolean[MAX_SCOPES];
+	private int						orderSize;
+
+	/* Current frame */
+	private final long[]			starts			= new long[MAX_SCOPES];
+	private final long[]			current			= new long[MAX_SCOPES];
+	private final int[]				stack			= new int[MAX_DEPTH];
+	private int						depth;
+	private boolean					inFrame;
+
+	/* History, nanoseconds per scope and frame */
+	private final long[][]			history;
+	private final long[]			sorted;
+	private long					frames;
+
+	private JfrFrameEvents			jfrEvents;
+
+	/**
+	 * Keeps the last 600 frames, 10 seconds at 60 fps
+	 */
+	public FrameProfiler() {
+		this(600);
+	}
+
+	/**
+	 * @param historySize
+	 *            The number of frames the percentiles are computed over
+	 */
+	public FrameProfiler(int historySize) {
+		history = new long[MAX_SCOPES][historySize];
+		sorted = new long[historySize];
+		scope("frame");
+	}
+
+	/**
+	 * Registers a scope. Registering a name twice returns the same scope.
+	 *
+	 * @param name
+	 *            The name shown in the overlay and the exports
+	 * @return The id passed to {@link #begin(int)} and {@link #end(int)}
+	 */
+	public int scope(String name) {
+		int id = ids.get(name, -1);
+		if (id != -1)
+			return id;
+		if (scopeCount == MAX_SCOPES)
+			throw new GdxRuntimeException("Too many profiler scopes: " + name);
+
+		id = scopeCount++;
+		names[id] = name;
+		ids.put(name, id);
+		return id;
+	}
+
+	/**
+	 * Starts recording a frame
+	 */
+	public void beginFrame() {
+		enabled = enabledNext;
+		if (!enabled)
+			return;
+		if (depth != 0)
+			throw new IllegalStateException("Scope " + names[stack[depth - 1]] + " was not ended");
+
+		for (int i = 0; i < scopeCount; i++)
+			current[i] = 0;
+		inFrame = true;
+		begin(FRAME);
+	}
+
+	/**
+	 * Ends the frame and adds it to the history
+	 */
+	public void endFrame() {
+		if (!enabled || !inFrame)
+			return;
+
+		end(FRAME);
+		inFrame = false;
+		int slot = (int) (frames % sorted.length);
+		for (int i = 0; i < scopeCount; i++)
+			history[i][slot] = current[i];
+		frames++;
+
+		if (jfrEvents != null)
+			jfrEvents.commit(this, frames - 1);
+	}
+
+	/**
+	 * Starts timing a scope
+	 *
+	 * @param scope
+	 *            A id from {@link #scope(String)}
+	 */
+	public void begin(int scope) {
+		if (!enabled || !inFrame)
+			return;
+		if (depth == MAX_DEPTH)
+			throw new IllegalStateException("Profiler scopes nested too deep");
+
+		if (!seen[scope]) {
+			seen[scope] = true;
+			depths[scope] = depth;
+			order[orderSize++] = scope;
+		}
+		stack[depth++] = scope;
+		starts[scope] = System.nanoTime();
+	}
+
+	/**
+	 * Stops timing a scope. Scopes must be ended in the reverse order they
+	 * were begun.
+	 *
+	 * @param scope
+	 *            A id from {@link #scope(String)}
+	 */
+	public void end(int scope) {
+		if (!enabled || !inFrame)
+			return;
+		if (depth == 0 || stack[depth - 1] != scope)
+			throw new IllegalStateException("Scope " + names[scope] + " is not the innermost open scope");
+
+		current[scope] += System.nanoTime() - starts[scope];
+		depth--;
+	}
+
+	/**
+	 * Disabled profilers ignore every call, so instrumented code costs a
+	 * branch. Changes take effect on the next frame.
+	 */
+	public void setEnabled(boolean enabled) {
+		enabledNext = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabledNext;
+	}
+
+	/**
+	 * Sends every recorded frame to Java Flight Recorder as custom events, one
+	 * per scope. Allocates, meant for recording sessions.
+	 *
+	 * @param export
+	 *            True to send the frames
+	 * @return False if the JVM doesn't have the JFR event API
+	 */
+	public boolean setJfrExport(boolean export) {
+		if (!export) {
+			jfrEvents = null;
+			return true;
+		}
+		if (jfrEvents == null)
+			jfrEvents = JfrFrameEvents.create();
+		return jfrEvents != null;
+	}
+
+	/**
+	 * @return The number of registered scopes, ids go from 0 to this - 1
+	 */
+	public int getScopeCount() {
+		return scopeCount;
+	}
+
+	public String getName(int scope) {
+		return names[scope];
+	}
+
+	/**
+	 * @return The number of scopes recorded at least once
+	 */
+	public int getRecordedScopeCount() {
+		return orderSize;
+	}
+
+	/**
+	 * @param index
+	 *            From 0 to {@link #getRecordedScopeCount()} - 1
+	 * @return The scope recorded in that position of a frame, outer scopes first
+	 */
+	public int getRecordedScope(int index) {
+		return order[index];
+	}
+
+	/**
+	 * @return The nesting depth of a scope, 0 for the frame
+	 */
+	public int getDepth(int scope) {
+		return depths[scope];
+	}
+
+	/**
+	 * @return The number of frames recorded since created
+	 */
+	public long getFrameCount() {
+		return frames;
+	}
+
+	/**
+	 * @return The number of frames in the history
+	 */
+	public int getHistorySize() {
+		return (int) Math.min(frames, sorted.length);
+	}
+
+	/**
+	 * @return The time of a scope in the last frame, in milliseconds
+	 */
+	public float getLast(int scope) {
+		if (frames == 0)
+			return 0f;
+		return history[scope][(int) ((frames - 1) % sorted.length)] / 1000000f;
+	}
+
+	/**
+	 * @return The average time of a scope over the history, in milliseconds
+	 */
+	public float getAverage(int scope) {
+		int size = getHistorySize();
+		if (size == 0)
+			return 0f;
+
+		long total = 0;
+		for (int i = 0; i < size; i++)
+			total += history[scope][i];
+		return total / (size * 1000000f);
+	}
+
+	/**
+	 * Computes a percentile of a scope over the history
+	 *
+	 * @param scope
+	 *            A id from {@link #scope(String)}
+	 * @param percentile
+	 *            From 0 to 1, 0.5 for the median
+	 * @return The time in milliseconds
+	 */
+	public float getPercentile(int scope, float percentile) {
+		int size = getHistorySize();
+		if (size == 0)
+			return 0f;
+
+		System.arraycopy(history[scope], 0, sorted, 0, size);
+		int k = Math.min(size - 1, Math.max(0, (int) Math.ceil(percentile * size) - 1));
+		return select(sorted, size, k) / 1000000f;
+	}
+
+	/**
+	 * Finds the k-th smallest value, partially reordering the array
+	 */
+	private static long select(long[] values, int size, int k) {
+		int left = 0, right = size - 1;
+		while (right > left) {
+			long pivot = values[(left + right) >>> 1];
+			int i = left, j = right;
+			while (i <= j) {
+				while (values[i] < pivot)
+					i++;
+				while (values[j] > pivot)
+					j--;
+				if (i <= j) {
+					long swap = values[i];
+					values[i++] = values[j];
+					values[j--] = swap;
+				}
+			}
+			if (k <= j)
+				right = j;
+			else if (k >= i)
+				left = i;
+			else
+				break;
+		}
+		return values[k];
+	}
+
+	/**
+	 * Writes the history as CSV, one line per frame from the oldest, the frame
+	 * index then one column per scope in milliseconds
+	 */
+	public void writeCsv(Writer writer) throws IOException {
+		writer.write("index");
+		for (int i = 0; i < orderSize; i++) {
+			writer.write(',');
+			writer.write(names[order[i]]);
+		}
+		writer.write('\n');
+
+		int size = getHistorySize();
+		for (long frame = frames - size; frame < frames; frame++) {
+			int slot = (int) (frame % sorted.length);
+			writer.write(Long.toString(frame));
+			for (int i = 0; i < orderSize; i++) {
+				writer.write(',');
+				writeMillis(writer, history[order[i]][slot]);
+			}
+			writer.write('\n');
+		}
+	}
+
+	/**
+	 * Writes nanoseconds as milliseconds with three decimals
+	 */
+	private static void writeMillis(Writer writer, long nanos) throws IOException {
+		long micros = nanos / 1000;
+		writer.write(Long.toString(micros / 1000));
+		writer.write('.');
+		int fraction = (int) (micros % 1000);
+		writer.write('0' + fraction / 100);
+		writer.write('0' + fraction / 10 % 10);
+		writer.write('0' + fraction % 10);
+	}
+
+	/**
+	 * Writes the history to a CSV file, see {@link #writeCsv(Writer)}
+	 */
+	public void exportCsv(FileHandle file) {
+		Writer writer = file.writer(false, "UTF-8");
+		try {
+			writeCsv(writer);
+		} catch (IOException e) {
+			throw new GdxRuntimeException("Couldn't export the profiler to " + file, e);
+		} finally {
+			StreamUtils.closeQuietly(writer);
+		}
+	}
+
+	/**
+	 * @return The time of a scope in a frame of the history, in nanoseconds
+	 */
+	long getNanos(int scope, long frame) {
+		return history[scope][(int) (frame % sorted.length)];
+	}
+}
@@ -0,0 +1,84 @@
+package com.aliensoft.core.profiling;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sends the scopes of each frame to Java Flight Recorder as a custom event
+ * type, "com.aliensoft.FrameScope" in the LeftZDead category.<br>
+ * The JFR event API only exists on newer JVMs and the project builds for older
+ * ones, so it is reached through reflection.
+ */
+class JfrFrameEvents {
+
+	private final Object	factory;
+	private final Method	newEvent;
+	private final Method	set;
+	private final Method	commit;
+
+	private JfrFrameEvents(Object factory, Method newEvent, Method set, Method commit) {
+		this.factory = factory;
+		this.newEvent = newEvent;
+		this.set = set;
+		this.commit = commit;
+	}
+
+	/**
+	 * @return The event type, null if the JVM doesn't have the JFR event API
+	 */
+	static JfrFrameEvents create() {
+		try {
+			Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+			Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			Constructor<?> newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+			Constructor<?> newField = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+
+			List<Object> annotations = new ArrayList<>();
+			annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Name"), "com.aliensoft.FrameScope"));
+			annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Label"), "Frame Scope"));
+			annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Category"),
+					new String[] { "LeftZDead" }));
+			// The stack would only show the reflection calls of commit
+			annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.StackTrace"), false));
+
+			List<Object> fields = new ArrayList<>();
+			fields.add(newField.newInstance(String.class, "scope",
+					Arrays.asList(newAnnotation.newInstance(Class.forName("jdk.jfr.Label"), "Scope"))));
+			fields.add(newField.newInstance(long.class, "frame",
+					Arrays.asList(newAnnotation.newInstance(Class.forName("jdk.jfr.Label"), "Frame"))));
+			fields.add(newField.newInstance(long.class, "time", Arrays.asList(
+					newAnnotation.newInstance(Class.forName("jdk.jfr.Label"), "Time"),
+					newAnnotation.newInstance(Class.forName("jdk.jfr.Timespan"), "NANOSECONDS"))));
+
+			Object factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations,
+					fields);
+			return new JfrFrameEvents(factory, eventFactory.getMethod("newEvent"),
+					event.getMethod("set", int.class, Object.class), event.getMethod("commit"));
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Commits one event per scope recorded in a frame
+	 */
+	void commit(FrameProfiler profiler, long frame) {
+		try {
+			for (int i = 0; i < profiler.getRecordedScopeCount(); i++) {
+				int scope = profiler.getRecordedScope(i);
+				Object event = newEvent.invoke(factory);
+				set.invoke(event, 0, profiler.getName(scope));
+				set.invoke(event, 1, frame);
+				set.invoke(event, 2, profiler.getNanos(scope, frame));
+				commit.invoke(event);
+			}
+		} catch (Exception e) {
+			throw new IllegalStateException("Couldn't commit the profiler events", e);
+		}
+	}
+}
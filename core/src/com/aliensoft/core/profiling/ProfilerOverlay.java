@@ -0,0 +1,94 @@
+package com.aliensoft.core.profiling;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.Color;
+import com.badlogic.gdx.graphics.g2d.BitmapFont;
+import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.StringBuilder;
+
+/**
+ * Draws the scopes of a {@link FrameProfiler} in the top left corner of the
+ * screen, one line per scope with its last time and percentiles over the
+ * history, nested scopes indented. The text is rebuilt a few times per second
+ * without allocating.
+ */
+public class ProfilerOverlay implements Disposable {
+
+	private final FrameProfiler	profiler;
+	private final SpriteBatch	batch;
+	private final BitmapFont	font;
+
+	private final StringBuilder	text			= new StringBuilder();
+	/** Seconds between text refreshes */
+	private float				refreshInterval	= 0.5f;
+	private float				sinceRefresh	= Float.MAX_VALUE;
+
+	public ProfilerOverlay(FrameProfiler profiler) {
+		this.profiler = profiler;
+		batch = new SpriteBatch();
+		font = new BitmapFont();
+		font.setColor(Color.YELLOW);
+	}
+
+	/**
+	 * Draws the overlay over whatever was rendered this frame
+	 *
+	 * @param delta
+	 *            Seconds since the last call
+	 */
+	public void render(float delta) {
+		sinceRefresh += delta;
+		if (sinceRefresh >= refreshInterval) {
+			sinceRefresh = 0f;
+			refresh();
+		}
+
+		batch.getProjectionMatrix().setToOrtho2D(0, 0, Gdx.graphics.getWidth(), Gdx.graphics.getHeight());
+		batch.begin();
+		font.drawMultiLine(batch, text, 8f, Gdx.graphics.getHeight() - 8f);
+		batch.end();
+	}
+
+	private void refresh() {
+		text.setLength(0);
+		text.append("ms              last     p50     p95     p99\n");
+		for (int i = 0; i < profiler.getRecordedScopeCount(); i++) {
+			int scope = profiler.getRecordedScope(i);
+			int start = text.length();
+			for (int d = 0; d < profiler.getDepth(scope); d++)
+				text.append("  ");
+			text.append(profiler.getName(scope));
+			while (text.length() - start < 12)
+				text.append(' ');
+
+			appendMillis(profiler.getLast(scope));
+			appendMillis(profiler.getPercentile(scope, 0.5f));
+			appendMillis(profiler.getPercentile(scope, 0.95f));
+			appendMillis(profiler.getPercentile(scope, 0.99f));
+			text.append('\n');
+		}
+	}
+
+	/**
+	 * Appends a right aligned time with two decimals
+	 */
+	private void appendMillis(float millis) {
+		int hundredths = Math.round(millis * 100f);
+		text.append(hundredths / 100, 5, ' ').append('.').append(hundredths % 100, 2);
+	}
+
+	/**
+	 * @param refreshInterval
+	 *            Seconds between text refreshes, 0.5 by default
+	 */
+	public void setRefreshInterval(float refreshInterval) {
+		this.refreshInterval = refreshInterval;
+	}
+
+	@Override
+	public void dispose() {
+		batch.dispose();
+		font.dispose();
+	}
+}
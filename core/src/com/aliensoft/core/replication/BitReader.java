@@ -0,0 +1,50 @@
+package com.aliensoft.core.replication;
+
+/**
+ * Reads the values written by a {@link BitWriter}
+ */
+public class BitReader {
+
+	private byte[]	bytes;
+	private int		position;
+	private int		limit;
+
+	/**
+	 * Starts reading a packet
+	 *
+	 * @param bytes
+	 *            The packet, not copied
+	 * @param length
+	 *            The number of bytes in the packet
+	 */
+	public void set(byte[] bytes, int length) {
+		this.bytes = bytes;
+		position = 0;
+		limit = length * 8;
+	}
+
+	/**
+	 * @param bits
+	 *            From 1 to 32
+	 * @return The value, in the lowest bits
+	 */
+	public int read(int bits) {
+		if (position + bits > limit)
+			throw new IllegalStateException("Read past the end of the packet");
+
+		int value = 0;
+		while (bits > 0) {
+			int available = 8 - (position & 7);
+			int count = Math.min(available, bits);
+			int chunk = (bytes[position >>> 3] >>> (available - count)) & ((1 << count) - 1);
+			value = (value << count) | chunk;
+			bits -= count;
+			position += count;
+		}
+		return value;
+	}
+
+	public boolean readBoolean() {
+		return read(1) == 1;
+	}
+}
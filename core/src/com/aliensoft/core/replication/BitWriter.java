@@ -0,0 +1,73 @@
+package com.aliensoft.core.replication;
+
+/**
+ * Writes values of any bit count into a growable byte array, most significant
+ * bit first. Reused for every packet, so writing doesn't allocate once the
+ * array is big enough.
+ */
+public class BitWriter {
+
+	private byte[]	bytes;
+	private int		position;
+
+	public BitWriter(int capacity) {
+		bytes = new byte[capacity];
+	}
+
+	/**
+	 * Starts a new packet
+	 */
+	public void reset() {
+		position = 0;
+	}
+
+	/**
+	 * Writes the lowest bits of a value
+	 *
+	 * @param value
+	 *            The value, higher bits are ignored
+	 * @param bits
+	 *            From 1 to 32
+	 */
+	public void write(int value, int bits) {
+		ensureCapacity(position + bits);
+		while (bits > 0) {
+			int index = position >>> 3;
+			int free = 8 - (position & 7);
+			int count = Math.min(free, bits);
+			int chunk = (value >>> (bits - count)) & ((1 << count) - 1);
+			if (free == 8)
+				bytes[index] = 0;
+			bytes[index] |= chunk << (free - count);
+			bits -= count;
+			position += count;
+		}
+	}
+
+	public void writeBoolean(boolean value) {
+		write(value ? 1 : 0, 1);
+	}
+
+	private void ensureCapacity(int bits) {
+		int needed = (bits + 7) >>> 3;
+		if (needed > bytes.length) {
+			byte[] grown = new byte[Math.max(needed, bytes.length * 2)];
+			System.arraycopy(bytes, 0, grown, 0, bytes.length);
+			bytes = grown;
+		}
+	}
+
+	/**
+	 * @return The bytes written, valid up to {@link #getLength()}
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return The number of bytes written, the last one padded with zeros
+	 */
+	public int getLength() {
+		return (position + 7) >>> 3;
+	}
+}
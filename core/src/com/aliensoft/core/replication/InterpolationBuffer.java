@@ -0,0 +1,159 @@
+package com.aliensoft.core.replication;
+
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Quaternion;
+import com.badlogic.gdx.math.Vector3;
+
+/**
+ * Plays received snapshots back a little in the past so objects move smoothly
+ * between ticks even when packets arrive late or are lost.<br>
+ * The playback clock runs a delay behind the newest snapshot and is sped up or
+ * slowed down slightly to stay there. Transforms are interpolated between the
+ * two snapshots around the playback time.
+ */
+public class InterpolationBuffer {
+
+	private static final int		CAPACITY	= 32;
+
+	private final SnapshotCodec		codec;
+	private final float				tickSeconds;
+	private final float				delay;
+
+	private final Snapshot[]		snapshots	= new Snapshot[CAPACITY];
+	private int						newestTick	= -1;
+	private float					time;
+
+	/* Picked by advance() */
+	private Snapshot				from, to;
+	private float					alpha;
+
+	private final Vector3			position	= new Vector3();
+	private final Vector3			position2	= new Vector3();
+	private final Quaternion		rotation	= new Quaternion();
+	private final Quaternion		rotation2	= new Quaternion();
+
+	/**
+	 * @param codec
+	 *            The codec of the server
+	 * @param tickSeconds
+	 *            The tick of the server
+	 * @param delay
+	 *            Seconds the playback runs behind the newest snapshot, two or
+	 *            three ticks hide most lost packets
+	 */
+	public InterpolationBuffer(SnapshotCodec codec, float tickSeconds, float delay) {
+		this.codec = codec;
+		this.tickSeconds = tickSeconds;
+		this.delay = delay;
+		for (int i = 0; i < CAPACITY; i++)
+			snapshots[i] = new Snapshot();
+	}
+
+	/**
+	 * Adds a received snapshot, older ones than the newest are ignored
+	 */
+	public void add(Snapshot snapshot) {
+		if (snapshot.tick <= newestTick)
+			return;
+
+		if (newestTick == -1)
+			time = snapshot.tick * tickSeconds - delay;
+		snapshots[snapshot.tick % CAPACITY].set(snapshot);
+		newestTick = snapshot.tick;
+	}
+
+	/**
+	 * Advances the playback clock and picks the snapshots to interpolate
+	 *
+	 * @param delta
+	 *            Seconds since the last call
+	 */
+	public void advance(float delta) {
+		if (newestTick == -1)
+			return;
+
+		float target = newestTick * tickSeconds - delay;
+		float behind = target - time;
+		if (Math.abs(behind) > Math.max(delay, tickSeconds * 4))
+			time = target;
+		else if (behind > tickSeconds)
+			time += delta * 1.05f;
+		else if (behind < -tickSeconds)
+			time += delta * 0.95f;
+		else
+			time += delta;
+
+		pick();
+	}
+
+	private void pick() {
+		int tick = (int) Math.floor(time / tickSeconds);
+		from = null;
+		to = null;
+		for (int t = Math.min(tick, newestTick); t > newestTick - CAPACITY && t >= 0; t--)
+			if (snapshots[t % CAPACITY].tick == t) {
+				from = snapshots[t % CAPACITY];
+				break;
+			}
+		for (int t = from != null ? from.tick + 1 : Math.max(0, newestTick - CAPACITY + 1); t <= newestTick; t++)
+			if (snapshots[t % CAPACITY].tick == t) {
+				to = snapshots[t % CAPACITY];
+				break;
+			}
+
+		if (from == null) {
+			// Playback is before the oldest snapshot, hold it
+			from = to;
+			alpha = 0f;
+		} else if (to == null) {
+			// Past the newest snapshot, hold it instead of extrapolating
+			to = from;
+			alpha = 0f;
+		} else
+			alpha = Math.min(1f, (time - from.tick * tickSeconds) / ((to.tick - from.tick) * tickSeconds));
+	}
+
+	/**
+	 * @return The snapshot the objects are shown from, null before the first
+	 *         one. Its ids are the objects the client should show.
+	 */
+	public Snapshot getSnapshot() {
+		return from;
+	}
+
+	/**
+	 * Computes the transform of a object at the playback time
+	 *
+	 * @param id
+	 *            The network id
+	 * @param out
+	 *            Receives the transform
+	 * @return False if the object isn't in the current snapshot
+	 */
+	public boolean get(int id, Matrix4 out) {
+		if (from == null)
+			return false;
+		int i = from.indexOf(id);
+		if (i < 0)
+			return false;
+
+		position.set(codec.dequantize(from.x[i]), codec.dequantize(from.y[i]), codec.dequantize(from.z[i]));
+		SnapshotCodec.unpackRotation(from.rotations[i], rotation);
+
+		int j = to.indexOf(id);
+		if (j >= 0 && to != from && to.kinds[j] == from.kinds[i]) {
+			position2.set(codec.dequantize(to.x[j]), codec.dequantize(to.y[j]), codec.dequantize(to.z[j]));
+			position.lerp(position2, alpha);
+			rotation.slerp(SnapshotCodec.unpackRotation(to.rotations[j], rotation2), alpha);
+		}
+		out.set(position, rotation);
+		return true;
+	}
+
+	/**
+	 * @return The playback time in server seconds
+	 */
+	public float getTime() {
+		return time;
+	}
+}
@@ -0,0 +1,100 @@
+package com.aliensoft.core.replication;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.badlogic.gdx.math.RandomXS128;
+
+/**
+ * An in-memory connection for tests and local games. Packets can be delayed
+ * and dropped to see how replication behaves on a bad network. Each end draws
+ * its losses from a generator of its own, seeded for repeatable tests.<br>
+ * Thread safe, the two ends can be used from different threads.
+ */
+public class LoopbackTransport implements Transport {
+
+	private static class Packet {
+		final byte[]	data;
+		final long		deliverAt;
+
+		Packet(byte[] data, long deliverAt) {
+			this.data = data;
+			this.deliverAt = deliverAt;
+		}
+	}
+
+	private final ConcurrentLinkedQueue<Packet>	inbox;
+	private LoopbackTransport					remote;
+
+	private volatile long						latencyNanos;
+	private volatile float						lossRate;
+	private final RandomXS128					random		= new RandomXS128();
+
+	private LoopbackTransport(ConcurrentLinkedQueue<Packet> inbox) {
+		this.inbox = inbox;
+	}
+
+	/**
+	 * @return The two ends of a new connection
+	 */
+	public static LoopbackTransport[] createPair() {
+		LoopbackTransport a = new LoopbackTransport(new ConcurrentLinkedQueue<Packet>());
+		LoopbackTransport b = new LoopbackTransport(new ConcurrentLinkedQueue<Packet>());
+		a.remote = b;
+		b.remote = a;
+		return new LoopbackTransport[] { a, b };
+	}
+
+	/**
+	 * @param seconds
+	 *            Delay of the packets sent from this end
+	 */
+	public void setLatency(float seconds) {
+		latencyNanos = (long) (seconds * 1000000000L);
+	}
+
+	/**
+	 * @param lossRate
+	 *            Fraction of the packets sent from this end that are dropped
+	 */
+	public void setLossRate(float lossRate) {
+		this.lossRate = lossRate;
+	}
+
+	/**
+	 * @param seed
+	 *            Seed of the generator picking the dropped packets
+	 */
+	public void setSeed(long seed) {
+		synchronized (random) {
+			random.setSeed(seed);
+		}
+	}
+
+	@Override
+	public void send(byte[] data, int length) {
+		if (lossRate > 0f && drop())
+			return;
+
+		byte[] copy = new byte[length];
+		System.arraycopy(data, 0, copy, 0, length);
+		remote.inbox.add(new Packet(copy, System.nanoTime() + latencyNanos));
+	}
+
+	private boolean drop() {
+		synchronized (random) {
+			return random.nextFloat() < lossRate;
+		}
+	}
+
+	@Override
+	public int receive(byte[] buffer) {
+		// Every packet of one end has the same latency, so the head is always the first due
+		Packet packet = inbox.peek();
+		if (packet == null || packet.deliverAt > System.nanoTime())
+			return -1;
+
+		inbox.poll();
+		System.arraycopy(packet.data, 0, buffer, 0, packet.data.length);
+		return packet.data.length;
+	}
+}
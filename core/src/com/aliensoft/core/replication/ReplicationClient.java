@@ -0,0 +1,103 @@
+package com.aliensoft.core.replication;
+
+/**
+ * Receives the snapshots of a {@link ReplicationServer}.<br>
+ * Every decoded snapshot is kept as a possible baseline, acknowledged to the
+ * server and added to an {@link InterpolationBuffer} the game reads the
+ * transforms from. Late packets are dropped.
+ */
+public class ReplicationClient {
+
+	private final Transport				transport;
+	private final SnapshotCodec			codec;
+	private final InterpolationBuffer	interpolation;
+
+	/** Decoded snapshots, the baselines the server can use */
+	private final Snapshot[]			received	= new Snapshot[ReplicationServer.HISTORY];
+	private int							latestTick	= -1;
+
+	/* Reused for every packet */
+	private final byte[]				buffer		= new byte[ReplicationServer.MAX_PACKET_SIZE];
+	private final BitReader				reader		= new BitReader();
+	private final BitWriter				ackWriter	= new BitWriter(4);
+	private final int[]					header		= new int[2];
+
+	private int							droppedPackets;
+
+	/**
+	 * @param transport
+	 *            The connection to the server
+	 * @param codec
+	 *            Must match the codec of the server
+	 * @param tickSeconds
+	 *            The tick of the server
+	 * @param delay
+	 *            Seconds the interpolation runs behind the newest snapshot
+	 */
+	public ReplicationClient(Transport transport, SnapshotCodec codec, float tickSeconds, float delay) {
+		this.transport = transport;
+		this.codec = codec;
+		interpolation = new InterpolationBuffer(codec, tickSeconds, delay);
+		for (int i = 0; i < received.length; i++)
+			received[i] = new Snapshot();
+	}
+
+	/**
+	 * Decodes the packets that arrived and advances the interpolation
+	 *
+	 * @param delta
+	 *            Seconds since the last call
+	 */
+	public void update(float delta) {
+		int length;
+		while ((length = transport.receive(buffer)) != -1)
+			receive(length);
+		interpolation.advance(delta);
+	}
+
+	private void receive(int length) {
+		reader.set(buffer, length);
+		codec.readHeader(reader, header);
+		int tick = header[0], baselineTick = header[1];
+		if (tick <= latestTick)
+			return;
+
+		Snapshot baseline = null;
+		if (baselineTick != -1) {
+			baseline = received[baselineTick % received.length];
+			if (baseline.tick != baselineTick) {
+				// Only happens if the baseline was overwritten, a later full snapshot recovers
+				droppedPackets++;
+				return;
+			}
+		}
+
+		Snapshot snapshot = received[tick % received.length];
+		snapshot.tick = tick;
+		codec.decode(reader, baseline, snapshot);
+		latestTick = tick;
+		interpolation.add(snapshot);
+
+		ackWriter.reset();
+		ackWriter.write(tick, 32);
+		transport.send(ackWriter.getBytes(), ackWriter.getLength());
+	}
+
+	public InterpolationBuffer getInterpolation() {
+		return interpolation;
+	}
+
+	/**
+	 * @return The tick of the newest snapshot received, -1 before the first
+	 */
+	public int getLatestTick() {
+		return latestTick;
+	}
+
+	/**
+	 * @return Packets that couldn't be decoded because their baseline was missing
+	 */
+	public int getDroppedPackets() {
+		return droppedPackets;
+	}
+}
@@ -0,0 +1,223 @@
+package com.aliensoft.core.replication;
+
+import com.aliensoft.core.GameObject;
+import com.badlogic.gdx.math.Quaternion;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.ObjectMap;
+
+/**
+ * Sends the transforms of a set of objects to clients every tick.<br>
+ * Each tick a quantized {@link Snapshot} of the objects is kept in a short
+ * history. Every client is sent the snapshot as a delta against the last
+ * snapshot it acknowledged, or in full when it has none in the history, so a
+ * lost packet only costs a bigger next packet. Sleeping bodies are not read
+ * again, they keep their last quantized transform and cost two bits. The ids
+ * of removed objects are reused oldest first, once no client can hold a
+ * snapshot with the removed object, so two objects never blend into one.<br>
+ * Clients send back the tick of each snapshot they decode, see {@link ReplicationClient}.
+ */
+public class ReplicationServer {
+
+	/** Ticks kept as baselines, a client acking older ticks gets full snapshots */
+	public static final int		HISTORY				= 64;
+	/** Ticks a freed id waits before it is reused, no baseline is older */
+	public static final int		REUSE_DELAY			= HISTORY;
+	/** Largest packet, the UDP limit */
+	public static final int		MAX_PACKET_SIZE		= 65507;
+
+	/** A replicated object and its last quantized transform */
+	private static class Entity {
+		GameObject	object;
+		int			id, kind;
+		int			x, y, z, rotation;
+		boolean		captured;
+	}
+
+	/** A client and the last snapshot it acknowledged */
+	private static class Connection {
+		final Transport	transport;
+		int				ackedTick	= -1;
+
+		Connection(Transport transport) {
+			this.transport = transport;
+		}
+	}
+
+	private final SnapshotCodec						codec;
+
+	/** Replicated objects, ascending ids */
+	private final Array<Entity>						entities	= new Array<>();
+	private final ObjectMap<GameObject, Entity>		byObject	= new ObjectMap<>();
+	/** Freed ids and the ticks they were freed at, oldest first */
+	private final IntArray							freeIds		= new IntArray();
+	private final IntArray							freeTicks	= new IntArray();
+	private int										nextId;
+
+	private final Snapshot[]						history		= new Snapshot[HISTORY];
+	private final Array<Connection>					connections	= new Array<>();
+	private int										tick;
+
+	/* Reused every tick */
+	private final BitWriter							writer		= new BitWriter(1024);
+	private final BitReader							reader		= new BitReader();
+	private final byte[]							ackBuffer	= new byte[MAX_PACKET_SIZE];
+	private final Vector3							position	= new Vector3();
+	private final Quaternion						rotation	= new Quaternion();
+
+	private int										bytesSent;
+
+	public ReplicationServer(SnapshotCodec codec) {
+		this.codec = codec;
+		for (int i = 0; i < HISTORY; i++)
+			history[i] = new Snapshot();
+	}
+
+	/**
+	 * Starts replicating a object
+	 *
+	 * @param object
+	 *            The object, its transform is read every tick
+	 * @param kind
+	 *            Game defined type sent with new objects, from 0 to 255
+	 * @return The network id of the object, the id clients know it by
+	 */
+	public int add(GameObject object, int kind) {
+		Entity entity = byObject.get(object);
+		if (entity != null)
+			return entity.id;
+
+		int id;
+		if (freeIds.size > 0 && tick - freeTicks.first() >= REUSE_DELAY) {
+			id = freeIds.removeIndex(0);
+			freeTicks.removeIndex(0);
+		} else
+			id = nextId++;
+		if (id > SnapshotCodec.MAX_ID)
+			throw new IllegalStateException("Too many replicated objects");
+
+		entity = new Entity();
+		entity.object = object;
+		entity.id = id;
+		entity.kind = kind;
+		byObject.put(object, entity);
+
+		int index = entities.size;
+		while (index > 0 && entities.get(index - 1).id > id)
+			index--;
+		entities.insert(index, entity);
+		return id;
+	}
+
+	/**
+	 * Stops replicating a object, clients remove it on the next snapshot
+	 *
+	 * @return False if the object wasn't replicated
+	 */
+	public boolean remove(GameObject object) {
+		Entity entity = byObject.remove(object);
+		if (entity == null)
+			return false;
+
+		entities.removeValue(entity, true);
+		freeIds.add(entity.id);
+		freeTicks.add(tick);
+		return true;
+	}
+
+	/**
+	 * Adds a client. It gets full snapshots until it acknowledges one.
+	 */
+	public void addClient(Transport transport) {
+		connections.add(new Connection(transport));
+	}
+
+	public boolean removeClient(Transport transport) {
+		for (int i = 0; i < connections.size; i++)
+			if (connections.get(i).transport == transport) {
+				connections.removeIndex(i);
+				return true;
+			}
+		return false;
+	}
+
+	/**
+	 * Captures the objects and sends the snapshot to every client. Call once
+	 * per simulation tick, after the scene is updated.
+	 */
+	public void update() {
+		Snapshot snapshot = capture();
+		bytesSent = 0;
+		for (Connection connection : connections) {
+			receiveAcks(connection);
+
+			Snapshot baseline = null;
+			if (connection.ackedTick != -1) {
+				Snapshot acked = history[connection.ackedTick % HISTORY];
+				if (acked.tick == connection.ackedTick)
+					baseline = acked;
+			}
+
+			writer.reset();
+			codec.encode(snapshot, baseline, writer);
+			connection.transport.send(writer.getBytes(), writer.getLength());
+			bytesSent += writer.getLength();
+		}
+		tick++;
+	}
+
+	private Snapshot capture() {
+		Snapshot snapshot = history[tick % HISTORY];
+		snapshot.reset(tick, entities.size);
+		for (Entity entity : entities) {
+			GameObject object = entity.object;
+			// A sleeping body didn't move since it was last read
+			if (!entity.captured || object.body == null || object.body.isActive()) {
+				object.getTransform().getTranslation(position);
+				object.getTransform().getRotation(rotation, true);
+				entity.x = codec.quantize(position.x);
+				entity.y = codec.quantize(position.y);
+				entity.z = codec.quantize(position.z);
+				entity.rotation = SnapshotCodec.packRotation(rotation);
+				entity.captured = true;
+			}
+			snapshot.add(entity.id, entity.kind, entity.x, entity.y, entity.z, entity.rotation);
+		}
+		return snapshot;
+	}
+
+	private void receiveAcks(Connection connection) {
+		int length;
+		while ((length = connection.transport.receive(ackBuffer)) != -1) {
+			if (length != 4)
+				continue;
+			reader.set(ackBuffer, length);
+			int acked = reader.read(32);
+			// Acks arrive out of order, only newer ones are useful
+			if (acked > connection.ackedTick && acked < tick)
+				connection.ackedTick = acked;
+		}
+	}
+
+	/**
+	 * @return The tick of the next snapshot
+	 */
+	public int getTick() {
+		return tick;
+	}
+
+	/**
+	 * @return The number of replicated objects
+	 */
+	public int size() {
+		return entities.size;
+	}
+
+	/**
+	 * @return The bytes sent to all clients in the last update
+	 */
+	public int getBytesSent() {
+		return bytesSent;
+	}
+}
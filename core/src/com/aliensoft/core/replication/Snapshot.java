@@ -0,0 +1,99 @@
+package com.aliensoft.core.replication;
+
+/**
+ * The quantized state of every replicated object at one tick, ordered by id.<br>
+ * Server and client keep the same quantized values, so deltas against a
+ * snapshot decode to exactly what the server encoded.
+ */
+public class Snapshot {
+
+	/** Tick of the snapshot, -1 while the slot is unused */
+	public int		tick	= -1;
+	public int		size;
+
+	/* One entry per object, ascending ids */
+	public int[]	ids		= new int[0];
+	/** Game defined type, tells the client what to create for a new object */
+	public int[]	kinds	= new int[0];
+	public int[]	x		= new int[0];
+	public int[]	y		= new int[0];
+	public int[]	z		= new int[0];
+	/** Smallest three packed rotation, see {@link SnapshotCodec#packRotation} */
+	public int[]	rotations	= new int[0];
+
+	/**
+	 * Empties the snapshot and makes room for a number of objects
+	 */
+	public void reset(int tick, int capacity) {
+		this.tick = tick;
+		size = 0;
+		if (ids.length < capacity) {
+			int length = Math.max(capacity, ids.length * 2);
+			ids = new int[length];
+			kinds = new int[length];
+			x = new int[length];
+			y = new int[length];
+			z = new int[length];
+			rotations = new int[length];
+		}
+	}
+
+	/**
+	 * Appends a object, ids must be added in ascending order
+	 */
+	public void add(int id, int kind, int qx, int qy, int qz, int rotation) {
+		if (size == ids.length)
+			grow();
+		ids[size] = id;
+		kinds[size] = kind;
+		x[size] = qx;
+		y[size] = qy;
+		z[size] = qz;
+		rotations[size] = rotation;
+		size++;
+	}
+
+	private void grow() {
+		int tick = this.tick, size = this.size;
+		int[] ids = this.ids, kinds = this.kinds, x = this.x, y = this.y, z = this.z, rotations = this.rotations;
+		reset(tick, Math.max(16, size * 2));
+		System.arraycopy(ids, 0, this.ids, 0, size);
+		System.arraycopy(kinds, 0, this.kinds, 0, size);
+		System.arraycopy(x, 0, this.x, 0, size);
+		System.arraycopy(y, 0, this.y, 0, size);
+		System.arraycopy(z, 0, this.z, 0, size);
+		System.arraycopy(rotations, 0, this.rotations, 0, size);
+		this.size = size;
+	}
+
+	/**
+	 * Copies another snapshot
+	 */
+	public void set(Snapshot other) {
+		reset(other.tick, other.size);
+		System.arraycopy(other.ids, 0, ids, 0, other.size);
+		System.arraycopy(other.kinds, 0, kinds, 0, other.size);
+		System.arraycopy(other.x, 0, x, 0, other.size);
+		System.arraycopy(other.y, 0, y, 0, other.size);
+		System.arraycopy(other.z, 0, z, 0, other.size);
+		System.arraycopy(other.rotations, 0, rotations, 0, other.size);
+		size = other.size;
+	}
+
+	/**
+	 * @return The index of a object, negative if it isn't in the snapshot
+	 */
+	public int indexOf(int id) {
+		int low = 0, high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (ids[mid] < id)
+				low = mid + 1;
+			else if (ids[mid] > id)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+}
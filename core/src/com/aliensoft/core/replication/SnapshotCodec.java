@@ -0,0 +1,305 @@
+package com.aliensoft.core.replication;
+
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Quaternion;
+
+/**
+ * Quantizes transforms and encodes snapshots as deltas against a baseline.<br>
+ * Positions are fixed point over a cube around the origin. Rotations use the
+ * smallest three encoding: the largest quaternion component is dropped, it is
+ * rebuilt from the unit length, and the other three fit in 10 bits each.<br>
+ * Against a baseline an object that didn't change costs two bits, a small
+ * move a few bytes and only new objects are sent in full. Objects in the
+ * baseline and missing from the snapshot were removed.
+ */
+public class SnapshotCodec {
+
+	public static final int		ID_BITS				= 16;
+	public static final int		MAX_ID				= (1 << ID_BITS) - 1;
+	public static final int		KIND_BITS			= 8;
+
+	private static final int	COMPONENT_BITS		= 10;
+	private static final int	COMPONENT_MAX		= (1 << COMPONENT_BITS) - 1;
+	/** The three smallest components of a unit quaternion are within this range */
+	private static final float	COMPONENT_RANGE		= 0.70710677f;
+
+	/** Bits per axis of a position delta small enough for the short form */
+	private static final int	SMALL_DELTA_BITS	= 7;
+
+	private final float			extent;
+	private final int			positionBits;
+	private final int			positionMax;
+	private final float			positionScale;
+
+	/**
+	 * Covers positions within 1024 units of the origin with about 2 mm precision
+	 */
+	public SnapshotCodec() {
+		this(1024f, 20);
+	}
+
+	/**
+	 * @param extent
+	 *            Positions are clamped to this distance from the origin on each axis
+	 * @param positionBits
+	 *            Bits per axis, the precision is 2 * extent / 2^positionBits
+	 */
+	public SnapshotCodec(float extent, int positionBits) {
+		this.extent = extent;
+		this.positionBits = positionBits;
+		positionMax = (1 << positionBits) - 1;
+		positionScale = positionMax / (2f * extent);
+	}
+
+	public int quantize(float position) {
+		return MathUtils.clamp(Math.round((position + extent) * positionScale), 0, positionMax);
+	}
+
+	public float dequantize(int position) {
+		return position / positionScale - extent;
+	}
+
+	/**
+	 * Packs a rotation in 32 bits: the index of the dropped component, then
+	 * the other three in order
+	 */
+	public static int packRotation(Quaternion rotation) {
+		float x = rotation.x, y = rotation.y, z = rotation.z, w = rotation.w;
+		float length = (float) Math.sqrt(x * x + y * y + z * z + w * w);
+		if (length == 0f) {
+			int zero = packComponent(0f);
+			return 3 << 30 | zero << 20 | zero << 10 | zero;
+		}
+
+		int largest = 0;
+		float max = Math.abs(x);
+		if (Math.abs(y) > max) {
+			largest = 1;
+			max = Math.abs(y);
+		}
+		if (Math.abs(z) > max) {
+			largest = 2;
+			max = Math.abs(z);
+		}
+		if (Math.abs(w) > max)
+			largest = 3;
+
+		// q and -q are the same rotation, make the dropped component positive
+		float sign = component(rotation, largest) < 0 ? -1f / length : 1f / length;
+		int packed = largest;
+		for (int i = 0; i < 4; i++)
+			if (i != largest)
+				packed = (packed << COMPONENT_BITS) | packComponent(component(rotation, i) * sign);
+		return packed;
+	}
+
+	/**
+	 * Unpacks a rotation packed by {@link #packRotation(Quaternion)}
+	 *
+	 * @return out
+	 */
+	public static Quaternion unpackRotation(int packed, Quaternion out) {
+		int largest = packed >>> 30;
+		float a = unpackComponent(packed >>> 20), b = unpackComponent(packed >>> 10), c = unpackComponent(packed);
+		float d = (float) Math.sqrt(Math.max(0f, 1f - a * a - b * b - c * c));
+		switch (largest) {
+			case 0:
+				return out.set(d, a, b, c);
+			case 1:
+				return out.set(a, d, b, c);
+			case 2:
+				return out.set(a, b, d, c);
+			default:
+				return out.set(a, b, c, d);
+		}
+	}
+
+	private static float component(Quaternion q, int index) {
+		switch (index) {
+			case 0:
+				return q.x;
+			case 1:
+				return q.y;
+			case 2:
+				return q.z;
+			default:
+				return q.w;
+		}
+	}
+
+	private static int packComponent(float value) {
+		float normalized = (value + COMPONENT_RANGE) / (2f * COMPONENT_RANGE);
+		return MathUtils.clamp(Math.round(normalized * COMPONENT_MAX), 0, COMPONENT_MAX);
+	}
+
+	private static float unpackComponent(int bits) {
+		return (bits & COMPONENT_MAX) / (float) COMPONENT_MAX * 2f * COMPONENT_RANGE - COMPONENT_RANGE;
+	}
+
+	/**
+	 * Encodes a snapshot
+	 *
+	 * @param current
+	 *            The snapshot to send
+	 * @param baseline
+	 *            A snapshot the receiver has, null to send everything
+	 * @param out
+	 *            Receives the packet, not reset
+	 */
+	public void encode(Snapshot current, Snapshot baseline, BitWriter out) {
+		out.write(current.tick, 32);
+		out.write(baseline != null ? baseline.tick : -1, 32);
+		out.write(current.size, ID_BITS + 1);
+
+		int previousId = -1;
+		int b = 0;
+		for (int i = 0; i < current.size; i++) {
+			int id = current.ids[i];
+			if (id == previousId + 1)
+				out.writeBoolean(true);
+			else {
+				out.writeBoolean(false);
+				out.write(id, ID_BITS);
+			}
+			previousId = id;
+
+			if (baseline != null)
+				while (b < baseline.size && baseline.ids[b] < id)
+					b++;
+			if (baseline == null || b == baseline.size || baseline.ids[b] != id) {
+				writeFull(current, i, out);
+				continue;
+			}
+
+			boolean moved = current.x[i] != baseline.x[b] || current.y[i] != baseline.y[b]
+					|| current.z[i] != baseline.z[b];
+			boolean turned = current.rotations[i] != baseline.rotations[b];
+			boolean respawned = current.kinds[i] != baseline.kinds[b];
+			if (!moved && !turned && !respawned) {
+				out.writeBoolean(false);
+				continue;
+			}
+			out.writeBoolean(true);
+
+			// The id was reused by another kind of object
+			out.writeBoolean(respawned);
+			if (respawned) {
+				writeFull(current, i, out);
+				continue;
+			}
+
+			out.writeBoolean(moved);
+			if (moved)
+				writePositionDelta(current.x[i] - baseline.x[b], current.y[i] - baseline.y[b], current.z[i]
+						- baseline.z[b], current, i, out);
+			out.writeBoolean(turned);
+			if (turned)
+				out.write(current.rotations[i], 32);
+		}
+	}
+
+	private void writeFull(Snapshot snapshot, int i, BitWriter out) {
+		out.write(snapshot.kinds[i], KIND_BITS);
+		out.write(snapshot.x[i], positionBits);
+		out.write(snapshot.y[i], positionBits);
+		out.write(snapshot.z[i], positionBits);
+		out.write(snapshot.rotations[i], 32);
+	}
+
+	private void writePositionDelta(int dx, int dy, int dz, Snapshot snapshot, int i, BitWriter out) {
+		int zx = zigzag(dx), zy = zigzag(dy), zz = zigzag(dz);
+		boolean small = (zx | zy | zz) >>> SMALL_DELTA_BITS == 0;
+		out.writeBoolean(small);
+		if (small) {
+			out.write(zx, SMALL_DELTA_BITS);
+			out.write(zy, SMALL_DELTA_BITS);
+			out.write(zz, SMALL_DELTA_BITS);
+		} else {
+			out.write(snapshot.x[i], positionBits);
+			out.write(snapshot.y[i], positionBits);
+			out.write(snapshot.z[i], positionBits);
+		}
+	}
+
+	/**
+	 * Reads the tick and the baseline tick of a packet, the reader is left at
+	 * the start of the body for {@link #decode(BitReader, Snapshot, Snapshot)}
+	 *
+	 * @param header
+	 *            Receives the tick then the baseline tick, -1 if there is none
+	 */
+	public void readHeader(BitReader in, int[] header) {
+		header[0] = in.read(32);
+		header[1] = in.read(32);
+	}
+
+	/**
+	 * Decodes the body of a packet
+	 *
+	 * @param in
+	 *            A reader past the header
+	 * @param baseline
+	 *            The snapshot of the baseline tick of the header, null if it is -1
+	 * @param out
+	 *            Receives the snapshot, its tick must already be set
+	 */
+	public void decode(BitReader in, Snapshot baseline, Snapshot out) {
+		int count = in.read(ID_BITS + 1);
+		out.reset(out.tick, count);
+
+		int previousId = -1;
+		int b = 0;
+		for (int i = 0; i < count; i++) {
+			int id = in.readBoolean() ? previousId + 1 : in.read(ID_BITS);
+			previousId = id;
+
+			if (baseline != null)
+				while (b < baseline.size && baseline.ids[b] < id)
+					b++;
+			if (baseline == null || b == baseline.size || baseline.ids[b] != id) {
+				readFull(id, in, out);
+				continue;
+			}
+
+			if (!in.readBoolean()) {
+				out.add(id, baseline.kinds[b], baseline.x[b], baseline.y[b], baseline.z[b], baseline.rotations[b]);
+				continue;
+			}
+			if (in.readBoolean()) {
+				readFull(id, in, out);
+				continue;
+			}
+
+			int x = baseline.x[b], y = baseline.y[b], z = baseline.z[b];
+			if (in.readBoolean()) {
+				if (in.readBoolean()) {
+					x += unzigzag(in.read(SMALL_DELTA_BITS));
+					y += unzigzag(in.read(SMALL_DELTA_BITS));
+					z += unzigzag(in.read(SMALL_DELTA_BITS));
+				} else {
+					x = in.read(positionBits);
+					y = in.read(positionBits);
+					z = in.read(positionBits);
+				}
+			}
+			int rotation = in.readBoolean() ? in.read(32) : baseline.rotations[b];
+			out.add(id, baseline.kinds[b], x, y, z, rotation);
+		}
+	}
+
+	private void readFull(int id, BitReader in, Snapshot out) {
+		int kind = in.read(KIND_BITS);
+		int x = in.read(positionBits);
+		int y = in.read(positionBits);
+		int z = in.read(positionBits);
+		out.add(id, kind, x, y, z, in.read(32));
+	}
+
+	private static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
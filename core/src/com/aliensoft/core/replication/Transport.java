@@ -0,0 +1,22 @@
+package com.aliensoft.core.replication;
+
+/**
+ * Sends and receives unreliable, unordered packets, like UDP. One transport
+ * is one end of a connection.
+ */
+public interface Transport {
+
+	/**
+	 * Sends a packet. The bytes are copied or sent before returning.
+	 */
+	void send(byte[] data, int length);
+
+	/**
+	 * Receives the next packet without blocking
+	 *
+	 * @param buffer
+	 *            Receives the packet
+	 * @return The packet length, -1 if no packet arrived
+	 */
+	int receive(byte[] buffer);
+}
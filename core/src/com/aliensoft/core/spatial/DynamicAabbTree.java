@@ -0,0 +1,505 @@
+package com.aliensoft.core.spatial;
+
+import com.badlogic.gdx.math.Frustum;
+import com.badlogic.gdx.math.Plane;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.utils.Array;
+
+/**
+ * A dynamic bounding volume hierarchy of axis aligned boxes (based on the
+ * Box2D/Bullet dynamic tree).<br>
+ * Leaves store a fattened box so objects that move a little don't need to be
+ * reinserted every frame. Nodes live in flat arrays and are recycled through
+ * a free list, so moving proxies doesn't allocate.
+ *
+ * @param <T>
+ *            The type of the user data stored in the leaves
+ */
+public class DynamicAabbTree<T> {
+
+	private static final int	NULL_NODE	= -1;
+
+	private static final int	OUTSIDE		= 0;
+	private static final int	INTERSECT	= 1;
+	private static final int	INSIDE		= 2;
+
+	/** How much each leaf box is grown on every side */
+	private final float			margin;
+
+	private float[]				minX, minY, minZ, maxX, maxY, maxZ;
+	private int[]				parent, child1, child2, height;
+	private Object[]			userData;
+
+	private int					root		= NULL_NODE;
+	private int					freeList;
+	private int					nodeCapacity;
+	private int					proxyCount;
+
+	private int[]				stack		= new int[64];
+	private int[]				leafStack	= new int[64];
+
+	public DynamicAabbTree() {
+		this(0.2f, 64);
+	}
+
+	/**
+	 * @param margin
+	 *            How much the leaf boxes are fattened on each side
+	 * @param initialCapacity
+	 *            Initial number of nodes
+	 */
+	public DynamicAabbTree(float margin, int initialCapacity) {
+		this.margin = margin;
+		allocate(Math.max(initialCapacity, 16));
+	}
+
+	/**
+	 * Creates a proxy for a box
+	 *
+	 * @param box
+	 *            The tight box of the object
+	 * @param data
+	 *            The user data returned by the queries
+	 * @return The proxy id, used to move and destroy the proxy
+	 */
+	public int createProxy(BoundingBox box, T data) {
+		int node = allocateNode();
+		setFatBox(node, box);
+		userData[node] = data;
+		height[node] = 0;
+		insertLeaf(node);
+		proxyCount++;
+		return node;
+	}
+
+	/**
+	 * Removes a proxy from the tree
+	 *
+	 * @param proxy
+	 *            The id returned by {@link #createProxy(BoundingBox, Object)}
+	 */
+	public void destroyProxy(int proxy) {
+		removeLeaf(proxy);
+		freeNode(proxy);
+		proxyCount--;
+	}
+
+	/**
+	 * Updates the box of a proxy. The tree is only changed if the box
+	 * left the fattened box of the leaf.
+	 *
+	 * @param proxy
+	 *            The proxy to move
+	 * @param box
+	 *            The new tight box
+	 * @return True if the proxy was reinserted
+	 */
+	public boolean moveProxy(int proxy, BoundingBox box) {
+		if (minX[proxy] <= box.min.x && minY[proxy] <= box.min.y && minZ[proxy] <= box.min.z
+				&& maxX[proxy] >= box.max.x && maxY[proxy] >= box.max.y && maxZ[proxy] >= box.max.z)
+			return false;
+
+		removeLeaf(proxy);
+		setFatBox(proxy, box);
+		insertLeaf(proxy);
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T getUserData(int proxy) {
+		return (T) userData[proxy];
+	}
+
+	/**
+	 * Writes the fattened box of a proxy into out
+	 */
+	public BoundingBox getFatBounds(int proxy, BoundingBox out) {
+		out.min.set(minX[proxy], minY[proxy], minZ[proxy]);
+		out.max.set(maxX[proxy], maxY[proxy], maxZ[proxy]);
+		return out.set(out.min, out.max);
+	}
+
+	/**
+	 * @return The number of proxies in the tree
+	 */
+	public int size() {
+		return proxyCount;
+	}
+
+	/**
+	 * Adds the user data of every leaf that touches the frustum to out.
+	 * Subtrees completely inside the frustum are added without further tests.
+	 *
+	 * @param frustum
+	 *            The frustum to test against
+	 * @param out
+	 *            Receives the visible user data. It is not cleared.
+	 */
+	public void query(Frustum frustum, Array<T> out) {
+		if (root == NULL_NODE)
+			return;
+
+		int top = 0;
+		stack[top++] = root;
+		while (top > 0) {
+			int node = stack[--top];
+			int side = classify(frustum, node);
+			if (side == OUTSIDE)
+				continue;
+
+			if (side == INSIDE) {
+				collectLeaves(node, out);
+			} else if (child1[node] == NULL_NODE) {
+				out.add(getUserData(node));
+			} else {
+				top = push(top, child1[node]);
+				top = push(top, child2[node]);
+			}
+		}
+	}
+
+	/**
+	 * Adds the user data of every leaf that overlaps the box to out.
+	 */
+	public void query(BoundingBox box, Array<T> out) {
+		if (root == NULL_NODE)
+			return;
+
+		int top = 0;
+		stack[top++] = root;
+		while (top > 0) {
+			int node = stack[--top];
+			if (minX[node] > box.max.x || maxX[node] < box.min.x || minY[node] > box.max.y
+					|| maxY[node] < box.min.y || minZ[node] > box.max.z || maxZ[node] < box.min.z)
+				continue;
+
+			if (child1[node] == NULL_NODE) {
+				out.add(getUserData(node));
+			} else {
+				top = push(top, child1[node]);
+				top = push(top, child2[node]);
+			}
+		}
+	}
+
+	/**
+	 * Removes every proxy
+	 */
+	public void clear() {
+		root = NULL_NODE;
+		proxyCount = 0;
+		for (int i = 0; i < nodeCapacity; i++) {
+			userData[i] = null;
+			height[i] = -1;
+			parent[i] = i + 1;
+		}
+		parent[nodeCapacity - 1] = NULL_NODE;
+		freeList = 0;
+	}
+
+	private void collectLeaves(int subtree, Array<T> out) {
+		int top = 0;
+		leafStack = push(leafStack, top++, subtree);
+		while (top > 0) {
+			int node = leafStack[--top];
+			if (child1[node] == NULL_NODE) {
+				out.add(getUserData(node));
+			} else {
+				leafStack = push(leafStack, top++, child1[node]);
+				leafStack = push(leafStack, top++, child2[node]);
+			}
+		}
+	}
+
+	private int classify(Frustum frustum, int node) {
+		float cx = (minX[node] + maxX[node]) * 0.5f;
+		float cy = (minY[node] + maxY[node]) * 0.5f;
+		float cz = (minZ[node] + maxZ[node]) * 0.5f;
+		float hx = (maxX[node] - minX[node]) * 0.5f;
+		float hy = (maxY[node] - minY[node]) * 0.5f;
+		float hz = (maxZ[node] - minZ[node]) * 0.5f;
+
+		int result = INSIDE;
+		for (Plane plane : frustum.planes) {
+			float nx = plane.normal.x, ny = plane.normal.y, nz = plane.normal.z;
+			float dist = nx * cx + ny * cy + nz * cz + plane.d;
+			float radius = Math.abs(nx) * hx + Math.abs(ny) * hy + Math.abs(nz) * hz;
+			if (dist + radius < 0)
+				return OUTSIDE;
+			if (dist - radius < 0)
+				result = INTERSECT;
+		}
+		return result;
+	}
+
+	private int push(int top, int node) {
+		stack = push(stack, top, node);
+		return top + 1;
+	}
+
+	private static int[] push(int[] stack, int top, int node) {
+		if (top == stack.length) {
+			int[] grown = new int[stack.length * 2];
+			System.arraycopy(stack, 0, grown, 0, stack.length);
+			stack = grown;
+		}
+		stack[top] = node;
+		return stack;
+	}
+
+	private void setFatBox(int node, BoundingBox box) {
+		minX[node] = box.min.x - margin;
+		minY[node] = box.min.y - margin;
+		minZ[node] = box.min.z - margin;
+		maxX[node] = box.max.x + margin;
+		maxY[node] = box.max.y + margin;
+		maxZ[node] = box.max.z + margin;
+	}
+
+	private void insertLeaf(int leaf) {
+		if (root == NULL_NODE) {
+			root = leaf;
+			parent[root] = NULL_NODE;
+			return;
+		}
+
+		// Find the best sibling using the surface area heuristic
+		int index = root;
+		while (child1[index] != NULL_NODE) {
+			int c1 = child1[index];
+			int c2 = child2[index];
+
+			float area = area(index);
+			float combinedArea = combinedArea(index, leaf);
+
+			// Cost of creating a new parent for this node and the new leaf
+			float cost = 2f * combinedArea;
+			// Minimum cost of pushing the leaf further down the tree
+			float inheritanceCost = 2f * (combinedArea - area);
+
+			float cost1 = descendCost(c1, leaf) + inheritanceCost;
+			float cost2 = descendCost(c2, leaf) + inheritanceCost;
+
+			if (cost < cost1 && cost < cost2)
+				break;
+
+			index = cost1 < cost2 ? c1 : c2;
+		}
+
+		int sibling = index;
+		int oldParent = parent[sibling];
+		int newParent = allocateNode();
+		parent[newParent] = oldParent;
+		userData[newParent] = null;
+		combine(newParent, leaf, sibling);
+		height[newParent] = height[sibling] + 1;
+
+		if (oldParent != NULL_NODE) {
+			if (child1[oldParent] == sibling)
+				child1[oldParent] = newParent;
+			else
+				child2[oldParent] = newParent;
+		} else {
+			root = newParent;
+		}
+		child1[newParent] = sibling;
+		child2[newParent] = leaf;
+		parent[sibling] = newParent;
+		parent[leaf] = newParent;
+
+		refit(parent[leaf]);
+	}
+
+	private void removeLeaf(int leaf) {
+		if (leaf == root) {
+			root = NULL_NODE;
+			return;
+		}
+
+		int p = parent[leaf];
+		int grandParent = parent[p];
+		int sibling = child1[p] == leaf ? child2[p] : child1[p];
+
+		if (grandParent != NULL_NODE) {
+			if (child1[grandParent] == p)
+				child1[grandParent] = sibling;
+			else
+				child2[grandParent] = sibling;
+			parent[sibling] = grandParent;
+			freeNode(p);
+			refit(grandParent);
+		} else {
+			root = sibling;
+			parent[sibling] = NULL_NODE;
+			freeNode(p);
+		}
+	}
+
+	/**
+	 * Walks back to the root fixing heights and boxes, balancing on the way
+	 */
+	private void refit(int index) {
+		while (index != NULL_NODE) {
+			index = balance(index);
+
+			int c1 = child1[index];
+			int c2 = child2[index];
+			height[index] = 1 + Math.max(height[c1], height[c2]);
+			combine(index, c1, c2);
+
+			index = parent[index];
+		}
+	}
+
+	/**
+	 * Performs a left or right rotation if node A is imbalanced.
+	 *
+	 * @return the new root of the subtree
+	 */
+	private int balance(int a) {
+		if (child1[a] == NULL_NODE || height[a] < 2)
+			return a;
+
+		int b = child1[a];
+		int c = child2[a];
+		int balance = height[c] - height[b];
+
+		if (balance > 1)
+			return rotate(a, c, b);
+		if (balance < -1)
+			return rotate(a, b, c);
+		return a;
+	}
+
+	/**
+	 * Promotes the higher child up, the other child stays under a.
+	 */
+	private int rotate(int a, int up, int stay) {
+		int f = child1[up];
+		int g = child2[up];
+
+		// Swap a and up
+		child1[up] = a;
+		parent[up] = parent[a];
+		parent[a] = up;
+
+		if (parent[up] != NULL_NODE) {
+			if (child1[parent[up]] == a)
+				child1[parent[up]] = up;
+			else
+				child2[parent[up]] = up;
+		} else {
+			root = up;
+		}
+
+		// Keep the higher grandchild under up
+		int keep = height[f] > height[g] ? f : g;
+		int move = keep == f ? g : f;
+
+		child2[up] = keep;
+		if (child1[a] == up)
+			child1[a] = move;
+		else
+			child2[a] = move;
+		parent[move] = a;
+
+		combine(a, stay, move);
+		height[a] = 1 + Math.max(height[stay], height[move]);
+		combine(up, a, keep);
+		height[up] = 1 + Math.max(height[a], height[keep]);
+
+		return up;
+	}
+
+	private float descendCost(int child, int leaf) {
+		if (child1[child] == NULL_NODE)
+			return combinedArea(child, leaf);
+		return combinedArea(child, leaf) - area(child);
+	}
+
+	private void combine(int target, int a, int b) {
+		minX[target] = Math.min(minX[a], minX[b]);
+		minY[target] = Math.min(minY[a], minY[b]);
+		minZ[target] = Math.min(minZ[a], minZ[b]);
+		maxX[target] = Math.max(maxX[a], maxX[b]);
+		maxY[target] = Math.max(maxY[a], maxY[b]);
+		maxZ[target] = Math.max(maxZ[a], maxZ[b]);
+	}
+
+	private float area(int node) {
+		float dx = maxX[node] - minX[node];
+		float dy = maxY[node] - minY[node];
+		float dz = maxZ[node] - minZ[node];
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	private float combinedArea(int a, int b) {
+		float dx = Math.max(maxX[a], maxX[b]) - Math.min(minX[a], minX[b]);
+		float dy = Math.max(maxY[a], maxY[b]) - Math.min(minY[a], minY[b]);
+		float dz = Math.max(maxZ[a], maxZ[b]) - Math.min(minZ[a], minZ[b]);
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	private int allocateNode() {
+		if (freeList == NULL_NODE)
+			allocate(nodeCapacity * 2);
+
+		int node = freeList;
+		freeList = parent[node];
+		parent[node] = NULL_NODE;
+		child1[node] = NULL_NODE;
+		child2[node] = NULL_NODE;
+		height[node] = 0;
+		return node;
+	}
+
+	private void freeNode(int node) {
+		userData[node] = null;
+		height[node] = -1;
+		parent[node] = freeList;
+		freeList = node;
+	}
+
+	private void allocate(int capacity) {
+		int old = nodeCapacity;
+		minX = grow(minX, capacity);
+		minY = grow(minY, capacity);
+		minZ = grow(minZ, capacity);
+		maxX = grow(maxX, capacity);
+		maxY = grow(maxY, capacity);
+		maxZ = grow(maxZ, capacity);
+		parent = grow(parent, capacity);
+		child1 = grow(child1, capacity);
+		child2 = grow(child2, capacity);
+		height = grow(height, capacity);
+
+		Object[] data = new Object[capacity];
+		if (userData != null)
+			System.arraycopy(userData, 0, data, 0, old);
+		userData = data;
+
+		// Link the new nodes into the free list
+		for (int i = old; i < capacity - 1; i++) {
+			parent[i] = i + 1;
+			height[i] = -1;
+		}
+		parent[capacity - 1] = NULL_NODE;
+		height[capacity - 1] = -1;
+		freeList = old;
+		nodeCapacity = capacity;
+	}
+
+	private static float[] grow(float[] array, int capacity) {
+		float[] grown = new float[capacity];
+		if (array != null)
+			System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		int[] grown = new int[capacity];
+		if (array != null)
+			System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+}
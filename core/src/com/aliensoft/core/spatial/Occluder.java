@@ -0,0 +1,132 @@
+package com.aliensoft.core.spatial;
+
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Mesh;
+import com.badlogic.gdx.graphics.VertexAttribute;
+import com.badlogic.gdx.graphics.VertexAttributes.Usage;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.model.MeshPart;
+import com.badlogic.gdx.graphics.g3d.model.Node;
+import com.badlogic.gdx.graphics.g3d.model.NodePart;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.utils.FloatArray;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.ShortArray;
+
+/**
+ * A mesh that hides what is behind it, rasterized by an {@link OcclusionBuffer}.
+ * Occluders should be a few big triangles inside the visible geometry, like a
+ * box per wall, never bigger than what they stand for.
+ */
+public class Occluder {
+
+	/** Local positions, 3 floats per vertex */
+	final float[]			positions;
+	/** Triangle list */
+	final short[]			indices;
+	final Matrix4			transform;
+
+	private final BoundingBox	localBounds	= new BoundingBox();
+	final BoundingBox			worldBounds	= new BoundingBox();
+
+	/**
+	 * @param positions
+	 *            Local positions, 3 floats per vertex
+	 * @param indices
+	 *            Three indices per triangle
+	 * @param transform
+	 *            The world transform, kept by reference, call {@link #update()} after changing it
+	 */
+	public Occluder(float[] positions, short[] indices, Matrix4 transform) {
+		if (indices.length % 3 != 0)
+			throw new GdxRuntimeException("Occluders are triangle lists");
+		this.positions = positions;
+		this.indices = indices;
+		this.transform = transform;
+
+		localBounds.inf();
+		for (int i = 0; i < positions.length; i += 3)
+			localBounds.ext(positions[i], positions[i + 1], positions[i + 2]);
+		update();
+	}
+
+	/**
+	 * A box occluder
+	 *
+	 * @param box
+	 *            The local bounds of the box
+	 */
+	public static Occluder box(BoundingBox box, Matrix4 transform) {
+		float[] positions = new float[8 * 3];
+		for (int i = 0; i < 8; i++) {
+			positions[i * 3] = (i & 1) == 0 ? box.min.x : box.max.x;
+			positions[i * 3 + 1] = (i & 2) == 0 ? box.min.y : box.max.y;
+			positions[i * 3 + 2] = (i & 4) == 0 ? box.min.z : box.max.z;
+		}
+		short[] indices = { 0, 2, 3, 0, 3, 1, 4, 5, 7, 4, 7, 6, 0, 1, 5, 0, 5, 4, 2, 6, 7, 2, 7, 3, 0, 4, 6, 0,
+				6, 2, 1, 3, 7, 1, 7, 5 };
+		return new Occluder(positions, indices, transform);
+	}
+
+	/**
+	 * An occluder with the triangles of a model, usually a simplified model
+	 * made for occlusion. The meshes must keep their vertices on the CPU.
+	 */
+	public static Occluder fromModel(Model model, Matrix4 transform) {
+		FloatArray positions = new FloatArray();
+		ShortArray indices = new ShortArray();
+		for (Node node : model.nodes)
+			addNode(node, positions, indices);
+		return new Occluder(positions.toArray(), indices.toArray(), transform);
+	}
+
+	private static void addNode(Node node, FloatArray positions, ShortArray indices) {
+		Vector3 position = new Vector3();
+		for (NodePart part : node.parts) {
+			MeshPart meshPart = part.meshPart;
+			if (meshPart.primitiveType != GL20.GL_TRIANGLES)
+				continue;
+			Mesh mesh = meshPart.mesh;
+			VertexAttribute attribute = mesh.getVertexAttribute(Usage.Position);
+			int stride = mesh.getVertexSize() / 4, offset = attribute.offset / 4;
+			float[] vertices = mesh.getVertices(new float[mesh.getNumVertices() * stride]);
+			short[] meshIndices = null;
+			if (mesh.getNumIndices() > 0)
+				mesh.getIndices(meshIndices = new short[mesh.getNumIndices()]);
+
+			// Only the vertices of the part, with the node transform applied
+			int first = positions.size / 3;
+			for (int i = 0; i < meshPart.numVertices; i++) {
+				int vertex = meshIndices != null ? meshIndices[meshPart.indexOffset + i] & 0xFFFF
+						: meshPart.indexOffset + i;
+				position.set(vertices[vertex * stride + offset], vertices[vertex * stride + offset + 1],
+						vertices[vertex * stride + offset + 2]).mul(node.globalTransform);
+				positions.add(position.x);
+				positions.add(position.y);
+				positions.add(position.z);
+				indices.add((short) (first + i));
+			}
+			if (positions.size / 3 > Short.MAX_VALUE)
+				throw new GdxRuntimeException("Occluder models are limited to " + Short.MAX_VALUE + " vertices");
+		}
+		for (Node child : node.children)
+			addNode(child, positions, indices);
+	}
+
+	/**
+	 * Refreshes the world bounds after the transform changed
+	 */
+	public void update() {
+		worldBounds.set(localBounds).mul(transform);
+	}
+
+	public BoundingBox getBounds(BoundingBox out) {
+		return out.set(worldBounds);
+	}
+
+	public int getTriangleCount() {
+		return indices.length / 3;
+	}
+}
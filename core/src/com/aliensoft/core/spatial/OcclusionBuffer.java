@@ -0,0 +1,452 @@
+package com.aliensoft.core.spatial;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+
+/**
+ * A low resolution depth buffer rasterized on the CPU from a few
+ * {@link Occluder}s, to skip objects hidden behind walls before they are sent
+ * to the GPU.<br>
+ * Depth is the normalized device depth of the camera, from -1 at the near
+ * plane to 1 at the far plane, so perspective and orthographic cameras work
+ * the same. Each pixel keeps the nearest occluder, and each 8x8 tile the
+ * farthest pixel of the tile, so a box behind full tiles is rejected without
+ * reading its pixels.<br>
+ * Rows are rasterized as spans solved from the edges of the triangle, with an
+ * inner loop the JIT vectorizes. With a pool the rows are split in bands of
+ * whole tiles rasterized in parallel, every band walks all the triangles.<br>
+ * Render once per frame with {@link #render(Camera)}, then test bounds with
+ * {@link #isVisible(BoundingBox)} on the same thread.
+ */
+public class OcclusionBuffer {
+
+	/** Size of the tiles keeping the farthest depth */
+	public static final int				TILE			= 8;
+
+	/** Floats per screen space triangle, x y z of each vertex */
+	private static final int			STRIDE			= 9;
+
+	private final int					width, height;
+	private final int					tilesX, tilesY;
+	final float[]						depth;
+	private final float[]				tileMax;
+
+	private final Array<Occluder>		occluders		= new Array<>();
+
+	/* Triangles of the last render in screen space */
+	private float[]						triangles		= new float[STRIDE * 256];
+	private int							triangleCount;
+	/* Clip space vertices of the occluder being set up, 4 floats each */
+	private float[]						clip			= new float[4 * 64];
+	/* The polygon left of a triangle after near clipping, 4 floats per vertex */
+	private final float[]				polygon			= new float[4 * 4];
+
+	private final Matrix4				viewProjection	= new Matrix4();
+	private final Matrix4				tmpMatrix		= new Matrix4();
+	private final float[]				corners			= new float[4 * 8];
+
+	private final ForkJoinPool			pool;
+	private final Band[]				bands;
+	private final RasterizeAll			rasterizeAll	= new RasterizeAll();
+
+	/* Stats of the last render and the tests since */
+	private int							renderedOccluders;
+	private int							testedBounds;
+	private int							occludedBounds;
+
+	/**
+	 * A buffer rasterized on the calling thread
+	 *
+	 * @param width
+	 *            Width in pixels, rounded up to whole tiles
+	 * @param height
+	 *            Height in pixels, rounded up to whole tiles
+	 */
+	public OcclusionBuffer(int width, int height) {
+		this(width, height, null);
+	}
+
+	/**
+	 * @param pool
+	 *            The pool the rows are rasterized on, shared with other
+	 *            systems, null to rasterize on the calling thread
+	 */
+	public OcclusionBuffer(int width, int height, ForkJoinPool pool) {
+		if (width <= 0 || height <= 0)
+			throw new GdxRuntimeException("Invalid occlusion buffer size: " + width + "x" + height);
+		tilesX = (width + TILE - 1) / TILE;
+		tilesY = (height + TILE - 1) / TILE;
+		this.width = tilesX * TILE;
+		this.height = tilesY * TILE;
+		depth = new float[this.width * this.height];
+		tileMax = new float[tilesX * tilesY];
+		this.pool = pool;
+
+		// A couple of bands per thread so a busy thread doesn't hold the others
+		int count = pool == null ? 1 : Math.min(tilesY, pool.getParallelism() * 2);
+		bands = new Band[count];
+		for (int i = 0; i < count; i++)
+			bands[i] = new Band(tilesY * i / count, tilesY * (i + 1) / count);
+	}
+
+	public void addOccluder(Occluder occluder) {
+		occluders.add(occluder);
+	}
+
+	public boolean removeOccluder(Occluder occluder) {
+		return occluders.removeValue(occluder, true);
+	}
+
+	public void clearOccluders() {
+		occluders.clear();
+	}
+
+	public Array<Occluder> getOccluders() {
+		return occluders;
+	}
+
+	/**
+	 * Rasterizes the occluders seen by the camera. The camera must be updated.
+	 */
+	public void render(Camera cam) {
+		viewProjection.set(cam.combined);
+		triangleCount = 0;
+		renderedOccluders = 0;
+		testedBounds = 0;
+		occludedBounds = 0;
+
+		for (Occluder occluder : occluders) {
+			if (!cam.frustum.boundsInFrustum(occluder.worldBounds))
+				continue;
+			renderedOccluders++;
+			setup(occluder);
+		}
+
+		if (pool == null || triangleCount == 0)
+			bands[0].rasterize(0, tilesY);
+		else {
+			rasterizeAll.reinitialize();
+			pool.invoke(rasterizeAll);
+		}
+	}
+
+	/**
+	 * Transforms the vertices of an occluder to clip space, clips its
+	 * triangles by the near plane and adds them in screen space
+	 */
+	private void setup(Occluder occluder) {
+		float[] m = tmpMatrix.set(viewProjection).mul(occluder.transform).val;
+		float[] positions = occluder.positions;
+		int vertexCount = positions.length / 3;
+		if (clip.length < vertexCount * 4)
+			clip = new float[vertexCount * 4];
+
+		float[] clip = this.clip;
+		for (int i = 0, p = 0, c = 0; i < vertexCount; i++, p += 3, c += 4) {
+			float x = positions[p], y = positions[p + 1], z = positions[p + 2];
+			clip[c] = m[Matrix4.M00] * x + m[Matrix4.M01] * y + m[Matrix4.M02] * z + m[Matrix4.M03];
+			clip[c + 1] = m[Matrix4.M10] * x + m[Matrix4.M11] * y + m[Matrix4.M12] * z + m[Matrix4.M13];
+			clip[c + 2] = m[Matrix4.M20] * x + m[Matrix4.M21] * y + m[Matrix4.M22] * z + m[Matrix4.M23];
+			clip[c + 3] = m[Matrix4.M30] * x + m[Matrix4.M31] * y + m[Matrix4.M32] * z + m[Matrix4.M33];
+		}
+
+		short[] indices = occluder.indices;
+		for (int i = 0; i < indices.length; i += 3) {
+			int a = (indices[i] & 0xFFFF) * 4, b = (indices[i + 1] & 0xFFFF) * 4, c = (indices[i + 2] & 0xFFFF) * 4;
+			float da = clip[a + 2] + clip[a + 3], db = clip[b + 2] + clip[b + 3], dc = clip[c + 2] + clip[c + 3];
+			if (da >= 0f && db >= 0f && dc >= 0f) {
+				addTriangle(clip, a, clip, b, clip, c);
+				continue;
+			}
+			if (da < 0f && db < 0f && dc < 0f)
+				continue;
+
+			// Keeps the part in front of the near plane, z >= -w
+			int count = 0;
+			count = clipEdge(clip, a, da, clip, b, db, count);
+			count = clipEdge(clip, b, db, clip, c, dc, count);
+			count = clipEdge(clip, c, dc, clip, a, da, count);
+			for (int v = 2; v < count; v++)
+				addTriangle(polygon, 0, polygon, (v - 1) * 4, polygon, v * 4);
+		}
+	}
+
+	/**
+	 * Adds the start of an edge if it is in front of the near plane and the
+	 * point the edge crosses the plane
+	 */
+	private int clipEdge(float[] from, int a, float da, float[] to, int b, float db, int count) {
+		float[] polygon = this.polygon;
+		if (da >= 0f) {
+			System.arraycopy(from, a, polygon, count * 4, 4);
+			count++;
+		}
+		if ((da >= 0f) != (db >= 0f)) {
+			float t = da / (da - db);
+			for (int k = 0; k < 4; k++)
+				polygon[count * 4 + k] = from[a + k] + (to[b + k] - from[a + k]) * t;
+			count++;
+		}
+		return count;
+	}
+
+	private void addTriangle(float[] va, int a, float[] vb, int b, float[] vc, int c) {
+		if (va[a + 3] <= 0f || vb[b + 3] <= 0f || vc[c + 3] <= 0f)
+			return;
+		if (triangles.length < (triangleCount + 1) * STRIDE)
+			triangles = Arrays.copyOf(triangles, triangles.length * 2);
+
+		int t = triangleCount++ * STRIDE;
+		toScreen(va, a, t);
+		toScreen(vb, b, t + 3);
+		toScreen(vc, c, t + 6);
+	}
+
+	private void toScreen(float[] v, int i, int t) {
+		float w = 1f / v[i + 3];
+		triangles[t] = (v[i] * w * 0.5f + 0.5f) * width;
+		triangles[t + 1] = (v[i + 1] * w * 0.5f + 0.5f) * height;
+		triangles[t + 2] = v[i + 2] * w;
+	}
+
+	/**
+	 * Tests world bounds against the occluders of the last render.
+	 * Conservative: bounds crossing the near plane are always visible.
+	 *
+	 * @return False if the bounds are behind the occluders or out of the screen
+	 */
+	public boolean isVisible(BoundingBox bounds) {
+		testedBounds++;
+		float[] m = viewProjection.val;
+		float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i < 8; i++) {
+			float x = (i & 1) == 0 ? bounds.min.x : bounds.max.x;
+			float y = (i & 2) == 0 ? bounds.min.y : bounds.max.y;
+			float z = (i & 4) == 0 ? bounds.min.z : bounds.max.z;
+			float cw = m[Matrix4.M30] * x + m[Matrix4.M31] * y + m[Matrix4.M32] * z + m[Matrix4.M33];
+			float cz = m[Matrix4.M20] * x + m[Matrix4.M21] * y + m[Matrix4.M22] * z + m[Matrix4.M23];
+			if (cw <= 0f || cz < -cw)
+				return true;
+
+			float w = 1f / cw;
+			float sx = ((m[Matrix4.M00] * x + m[Matrix4.M01] * y + m[Matrix4.M02] * z + m[Matrix4.M03]) * w * 0.5f + 0.5f)
+					* width;
+			float sy = ((m[Matrix4.M10] * x + m[Matrix4.M11] * y + m[Matrix4.M12] * z + m[Matrix4.M13]) * w * 0.5f + 0.5f)
+					* height;
+			minX = Math.min(minX, sx);
+			maxX = Math.max(maxX, sx);
+			minY = Math.min(minY, sy);
+			maxY = Math.max(maxY, sy);
+			minZ = Math.min(minZ, cz * w);
+		}
+
+		// Every pixel the screen rectangle of the bounds touches
+		int x0 = Math.max(0, (int) Math.floor(minX)), x1 = Math.min(width - 1, (int) Math.floor(maxX));
+		int y0 = Math.max(0, (int) Math.floor(minY)), y1 = Math.min(height - 1, (int) Math.floor(maxY));
+		if (x0 > x1 || y0 > y1) {
+			occludedBounds++;
+			return false;
+		}
+
+		for (int ty = y0 / TILE; ty <= y1 / TILE; ty++) {
+			for (int tx = x0 / TILE; tx <= x1 / TILE; tx++) {
+				if (tileMax[ty * tilesX + tx] < minZ)
+					continue;
+				int rowStart = Math.max(y0, ty * TILE), rowEnd = Math.min(y1, ty * TILE + TILE - 1);
+				int start = Math.max(x0, tx * TILE), end = Math.min(x1, tx * TILE + TILE - 1);
+				for (int y = rowStart; y <= rowEnd; y++)
+					for (int i = y * width + start, last = y * width + end; i <= last; i++)
+						if (depth[i] >= minZ)
+							return true;
+			}
+		}
+		occludedBounds++;
+		return false;
+	}
+
+	/**
+	 * @return Width in pixels, a multiple of {@link #TILE}
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return Height in pixels, a multiple of {@link #TILE}
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return The depth of a pixel, 1 where no occluder was rasterized
+	 */
+	public float getDepth(int x, int y) {
+		return depth[y * width + x];
+	}
+
+	/**
+	 * @return The number of occluders rasterized in the last render
+	 */
+	public int getRenderedOccluderCount() {
+		return renderedOccluders;
+	}
+
+	/**
+	 * @return The number of triangles rasterized in the last render, after clipping
+	 */
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+
+	/**
+	 * @return The number of bounds tested since the last render
+	 */
+	public int getTestedCount() {
+		return testedBounds;
+	}
+
+	/**
+	 * @return The number of bounds found hidden since the last render
+	 */
+	public int getOccludedCount() {
+		return occludedBounds;
+	}
+
+	/**
+	 * Rasterizes every triangle over a band of whole tile rows
+	 */
+	private class Band extends RecursiveAction {
+		private static final long	serialVersionUID	= 1L;
+
+		final int					tileStart, tileEnd;
+
+		Band(int tileStart, int tileEnd) {
+			this.tileStart = tileStart;
+			this.tileEnd = tileEnd;
+		}
+
+		@Override
+		protected void compute() {
+			rasterize(tileStart, tileEnd);
+		}
+
+		void rasterize(int tileStart, int tileEnd) {
+			int rowStart = tileStart * TILE, rowEnd = tileEnd * TILE;
+			Arrays.fill(depth, rowStart * width, rowEnd * width, 1f);
+			float[] triangles = OcclusionBuffer.this.triangles;
+			for (int t = 0, end = triangleCount * STRIDE; t < end; t += STRIDE)
+				rasterizeTriangle(triangles, t, rowStart, rowEnd);
+			updateTiles(tileStart, tileEnd);
+		}
+
+		private void rasterizeTriangle(float[] tri, int t, int rowStart, int rowEnd) {
+			float x0 = tri[t], y0 = tri[t + 1], z0 = tri[t + 2];
+			float x1 = tri[t + 3], y1 = tri[t + 4], z1 = tri[t + 5];
+			float x2 = tri[t + 6], y2 = tri[t + 7], z2 = tri[t + 8];
+
+			// Both windings are rasterized, turned counter clockwise
+			float area = (x1 - x0) * (y2 - y0) - (x2 - x0) * (y1 - y0);
+			if (area == 0f)
+				return;
+			if (area < 0f) {
+				float x = x1, y = y1, z = z1;
+				x1 = x2;
+				y1 = y2;
+				z1 = z2;
+				x2 = x;
+				y2 = y;
+				z2 = z;
+				area = -area;
+			}
+
+			int yMin = Math.max(rowStart, (int) Math.ceil(Math.min(y0, Math.min(y1, y2)) - 0.5f));
+			int yMax = Math.min(rowEnd - 1, (int) Math.floor(Math.max(y0, Math.max(y1, y2)) - 0.5f));
+			if (yMin > yMax)
+				return;
+
+			// The depth plane, interpolated linearly in screen space
+			float dzdx = ((z1 - z0) * (y2 - y0) - (z2 - z0) * (y1 - y0)) / area;
+			float dzdy = ((z2 - z0) * (x1 - x0) - (z1 - z0) * (x2 - x0)) / area;
+			float[] depth = OcclusionBuffer.this.depth;
+			int width = OcclusionBuffer.this.width;
+
+			for (int y = yMin; y <= yMax; y++) {
+				float yc = y + 0.5f;
+				float left = Float.NEGATIVE_INFINITY, right = Float.POSITIVE_INFINITY;
+
+				// Inside where every edge function is positive, each edge limits one side
+				float dy = y1 - y0;
+				float e = (x1 - x0) * (yc - y0);
+				if (dy > 0f)
+					right = Math.min(right, x0 + e / dy);
+				else if (dy < 0f)
+					left = Math.max(left, x0 + e / dy);
+				else if (e < 0f)
+					continue;
+
+				dy = y2 - y1;
+				e = (x2 - x1) * (yc - y1);
+				if (dy > 0f)
+					right = Math.min(right, x1 + e / dy);
+				else if (dy < 0f)
+					left = Math.max(left, x1 + e / dy);
+				else if (e < 0f)
+					continue;
+
+				dy = y0 - y2;
+				e = (x0 - x2) * (yc - y2);
+				if (dy > 0f)
+					right = Math.min(right, x2 + e / dy);
+				else if (dy < 0f)
+					left = Math.max(left, x2 + e / dy);
+				else if (e < 0f)
+					continue;
+
+				int start = Math.max(0, (int) Math.ceil(left - 0.5f));
+				int end = Math.min(width - 1, (int) Math.floor(right - 0.5f));
+				if (start > end)
+					continue;
+
+				// No dependency between pixels, the JIT turns it into SIMD
+				float base = z0 + dzdx * (0.5f - x0) + dzdy * (yc - y0);
+				int row = y * width;
+				for (int x = start; x <= end; x++)
+					depth[row + x] = Math.min(depth[row + x], base + dzdx * x);
+			}
+		}
+
+		private void updateTiles(int tileStart, int tileEnd) {
+			float[] depth = OcclusionBuffer.this.depth;
+			int width = OcclusionBuffer.this.width;
+			for (int ty = tileStart; ty < tileEnd; ty++) {
+				for (int tx = 0; tx < tilesX; tx++) {
+					float max = Float.NEGATIVE_INFINITY;
+					for (int y = ty * TILE; y < ty * TILE + TILE; y++)
+						for (int i = y * width + tx * TILE, last = i + TILE; i < last; i++)
+							max = Math.max(max, depth[i]);
+					tileMax[ty * tilesX + tx] = max;
+				}
+			}
+		}
+	}
+
+	private class RasterizeAll extends RecursiveAction {
+		private static final long	serialVersionUID	= 1L;
+
+		@Override
+		protected void compute() {
+			for (Band band : bands)
+				band.reinitialize();
+			invokeAll(bands);
+		}
+	}
+}
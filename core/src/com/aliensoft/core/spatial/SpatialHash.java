@@ -0,0 +1,96 @@
+package com.aliensoft.core.spatial;
+
+import com.badlogic.gdx.math.MathUtils;
+
+/**
+ * A uniform grid of points on the XZ plane, hashed into a fixed number of
+ * buckets.<br>
+ * The hash is rebuilt from scratch with {@link #build(float[], float[], int, float)}
+ * by a counting sort, so the entries of a bucket are contiguous in one flat
+ * array and rebuilding doesn't allocate once the arrays are big enough. Distinct
+ * cells can share a bucket, queries must check the distance to the entries.
+ * Once built it is only read, so it can be queried from many threads.
+ */
+public class SpatialHash {
+
+	private float	inverseCellSize;
+	private int		mask;
+
+	/** Start of each bucket in entries, the last element is the entry count */
+	private int[]	starts		= new int[1];
+	private int[]	entries		= new int[0];
+	/** Bucket of each point while building */
+	private int[]	pointBuckets	= new int[0];
+
+	/**
+	 * Hashes points
+	 *
+	 * @param x
+	 *            X of each point
+	 * @param z
+	 *            Z of each point
+	 * @param count
+	 *            Number of points, entries are their indices
+	 * @param cellSize
+	 *            Side of the cells, usually the query radius
+	 */
+	public void build(float[] x, float[] z, int count, float cellSize) {
+		inverseCellSize = 1f / cellSize;
+		int buckets = MathUtils.nextPowerOfTwo(Math.max(count * 2, 16));
+		mask = buckets - 1;
+		if (starts.length < buckets + 1)
+			starts = new int[buckets + 1];
+		if (entries.length < count) {
+			entries = new int[count];
+			pointBuckets = new int[count];
+		}
+
+		for (int b = 0; b <= buckets; b++)
+			starts[b] = 0;
+		for (int i = 0; i < count; i++) {
+			int bucket = bucket(cell(x[i]), cell(z[i]));
+			pointBuckets[i] = bucket;
+			starts[bucket]++;
+		}
+		// Ends of the buckets, then filled backwards so they become the starts
+		for (int b = 1; b <= buckets; b++)
+			starts[b] += starts[b - 1];
+		for (int i = count - 1; i >= 0; i--)
+			entries[--starts[pointBuckets[i]]] = i;
+	}
+
+	/**
+	 * @return The cell coordinate of a position on X or Z
+	 */
+	public int cell(float coordinate) {
+		return MathUtils.floor(coordinate * inverseCellSize);
+	}
+
+	/**
+	 * @return The bucket a cell is hashed to
+	 */
+	public int bucket(int cellX, int cellZ) {
+		return (cellX * 73856093 ^ cellZ * 19349663) & mask;
+	}
+
+	/**
+	 * @return The index of the first entry of a bucket
+	 */
+	public int getStart(int bucket) {
+		return starts[bucket];
+	}
+
+	/**
+	 * @return The index after the last entry of a bucket
+	 */
+	public int getEnd(int bucket) {
+		return starts[bucket + 1];
+	}
+
+	/**
+	 * @return The point index stored at an entry
+	 */
+	public int getEntry(int index) {
+		return entries[index];
+	}
+}
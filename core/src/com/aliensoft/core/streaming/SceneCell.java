@@ -0,0 +1,21 @@
+package com.aliensoft.core.streaming;
+
+import com.aliensoft.core.SceneFile;
+
+/**
+ * The contents of one cell of a streamed world, a scene file loaded by a
+ * {@link SceneCellLoader}. Holds no native or GL resources, the objects and
+ * decorations are created from it by the {@link WorldStreamer}.
+ */
+public class SceneCell {
+
+	private final SceneFile.Contents	contents;
+
+	SceneCell(SceneFile.Contents contents) {
+		this.contents = contents;
+	}
+
+	public SceneFile.Contents getContents() {
+		return contents;
+	}
+}
@@ -0,0 +1,83 @@
+package com.aliensoft.core.streaming;
+
+import com.aliensoft.core.SceneFile;
+import com.badlogic.gdx.assets.AssetDescriptor;
+import com.badlogic.gdx.assets.AssetLoaderParameters;
+import com.badlogic.gdx.assets.AssetManager;
+import com.badlogic.gdx.assets.loaders.AsynchronousAssetLoader;
+import com.badlogic.gdx.assets.loaders.FileHandleResolver;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.ObjectMap;
+import com.badlogic.gdx.utils.ObjectSet;
+
+/**
+ * Loads the cells of a streamed world with an {@link AssetManager}.<br>
+ * The scene file is mapped and its string table read on the loading thread
+ * of the manager. Model names the {@link SceneFile} doesn't know are asset
+ * paths, they are loaded as dependencies of the cell so cells share them and
+ * they are unloaded with the last cell using them.
+ */
+public class SceneCellLoader extends AsynchronousAssetLoader<SceneCell, SceneCellLoader.SceneCellParameter> {
+
+	private final SceneFile							sceneFile;
+	/** Cells read by getDependencies, waiting for loadSync */
+	private final ObjectMap<String, SceneFile.Contents>	pending		= new ObjectMap<>();
+	/** Models of the scene file that came from the manager */
+	private final ObjectSet<String>					assetModels	= new ObjectSet<>();
+
+	/**
+	 * @param sceneFile
+	 *            Creates the objects, knows the models that are not assets
+	 */
+	public SceneCellLoader(FileHandleResolver resolver, SceneFile sceneFile) {
+		super(resolver);
+		this.sceneFile = sceneFile;
+	}
+
+	/**
+	 * The loaders of libGDX 1.4.1 return raw descriptors, a parameterized
+	 * array wouldn't override them
+	 */
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Array<AssetDescriptor> getDependencies(String fileName, FileHandle file, SceneCellParameter parameter) {
+		SceneFile.Contents contents = SceneFile.read(file);
+		Array<AssetDescriptor> dependencies = new Array<>();
+		synchronized (this) {
+			pending.put(fileName, contents);
+			for (String name : contents.getModelNames(new Array<String>()))
+				if (isAsset(name))
+					dependencies.add(new AssetDescriptor<>(name, Model.class));
+		}
+		return dependencies;
+	}
+
+	@Override
+	public void loadAsync(AssetManager manager, String fileName, FileHandle file, SceneCellParameter parameter) {
+	}
+
+	@Override
+	public SceneCell loadSync(AssetManager manager, String fileName, FileHandle file, SceneCellParameter parameter) {
+		SceneFile.Contents contents;
+		synchronized (this) {
+			contents = pending.remove(fileName);
+			// A model unloaded with its last cell was loaded again, the scene file gets the new one
+			for (String name : contents.getModelNames(new Array<String>())) {
+				if (isAsset(name)) {
+					sceneFile.addModel(name, manager.get(name, Model.class));
+					assetModels.add(name);
+				}
+			}
+		}
+		return new SceneCell(contents);
+	}
+
+	private boolean isAsset(String name) {
+		return assetModels.contains(name) || sceneFile.getModel(name) == null;
+	}
+
+	public static class SceneCellParameter extends AssetLoaderParameters<SceneCell> {
+	}
+}
@@ -0,0 +1,469 @@
+package com.aliensoft.core.streaming;
+
+import java.util.Comparator;
+
+import com.aliensoft.core.BulletScene;
+import com.aliensoft.core.GameObject;
+import com.aliensoft.core.SceneFile;
+import com.badlogic.gdx.assets.AssetManager;
+import com.badlogic.gdx.assets.loaders.FileHandleResolver;
+import com.badlogic.gdx.files.FileHandle;
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.Disposable;
+import com.badlogic.gdx.utils.GdxRuntimeException;
+import com.badlogic.gdx.utils.LongArray;
+import com.badlogic.gdx.utils.LongMap;
+import com.badlogic.gdx.utils.TimeUtils;
+
+/**
+ * Loads and unloads the parts of a big world around a moving point, usually
+ * the camera.<br>
+ * The world is split in square cells on the XZ plane, one scene file per cell
+ * (see {@link #writeCells}). Cells within the load radius of the point, or of
+ * where it will be after the look-ahead time at its current speed, are loaded
+ * by the {@link AssetManager}: the files are read and the models they use are
+ * loaded on its executor thread. Loaded cells get their objects and
+ * decorations created on the calling thread, a few at a time within a budget
+ * per {@link #update(Vector3, float)}, and cells past the unload radius are
+ * removed the same way. The gap between both radii keeps cells on the border
+ * from loading and unloading every frame.<br>
+ * Streamed decorations must not be baked, baked ones can't be removed.
+ */
+public class WorldStreamer implements Disposable {
+
+	/* Cell states */
+	private static final int				UNLOADED		= 0;
+	private static final int				LOADING			= 1;
+	private static final int				CREATING		= 2;
+	private static final int				LOADED			= 3;
+	private static final int				REMOVING		= 4;
+
+	/** Objects or decorations created or removed between two budget checks */
+	private static final int				CHUNK			= 16;
+	/** Weight of a new velocity sample */
+	private static final float				SMOOTHING		= 0.2f;
+
+	private final BulletScene				scene;
+	private final AssetManager				assets;
+	private final SceneFile					sceneFile;
+	private final float						cellSize;
+	private final LongMap<Cell>				cells			= new LongMap<>();
+
+	/* Settings */
+	private float							loadRadius;
+	private float							unloadRadius;
+	private float							lookAhead		= 1f;
+	private long							budgetNanos		= 2000000L;
+	private int								maxPending		= 4;
+
+	/* Update */
+	private final Vector3					last			= new Vector3();
+	private boolean							hasLast;
+	private final Vector3					velocity		= new Vector3();
+	private final Vector3					ahead			= new Vector3();
+	private final Array<Cell>				wanted			= new Array<>();
+	private final Array<Cell>				active			= new Array<>();
+	private int								pending;
+	private int								loadedCount;
+
+	/**
+	 * Registers a {@link SceneCellLoader} in the asset manager
+	 *
+	 * @param resolver
+	 *            Resolves the paths of the cells and models, like the resolver of the manager
+	 * @param sceneFile
+	 *            Creates the objects, models it has no name for are loaded as assets
+	 * @param cellSize
+	 *            The side of the cells, the one the cell files were written with
+	 */
+	public WorldStreamer(BulletScene scene, AssetManager assets, FileHandleResolver resolver, SceneFile sceneFile,
+			float cellSize) {
+		this.scene = scene;
+		this.assets = assets;
+		this.sceneFile = sceneFile;
+		this.cellSize = cellSize;
+		loadRadius = cellSize * 2f;
+		unloadRadius = cellSize * 3f;
+		assets.setLoader(SceneCell.class, new SceneCellLoader(resolver, sceneFile));
+	}
+
+	/**
+	 * Adds a cell to the world
+	 *
+	 * @param path
+	 *            The path of its scene file, for the asset manager
+	 */
+	public void addCell(int x, int z, String path) {
+		long key = key(x, z);
+		if (cells.containsKey(key))
+			throw new GdxRuntimeException("Cell " + x + "_" + z + " already added");
+		cells.put(key, new Cell(x, z, path));
+	}
+
+	/**
+	 * Adds every cell file of a directory, named as {@link #writeCells} does
+	 *
+	 * @return The number of cells added
+	 */
+	public int addCells(FileHandle directory) {
+		int count = 0;
+		for (FileHandle file : directory.list(".scene")) {
+			String[] coords = file.nameWithoutExtension().split("_");
+			if (coords.length != 2)
+				continue;
+			try {
+				addCell(Integer.parseInt(coords[0]), Integer.parseInt(coords[1]), file.path());
+				count++;
+			} catch (NumberFormatException e) {
+				// Not a cell
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Splits objects and decorations in cells by position and writes one
+	 * scene file per cell, named "x_z.scene"
+	 *
+	 * @param objects
+	 *            Objects with a body, not in a simulated world. They keep their
+	 *            IDs, which must not collide with the generated IDs of objects
+	 *            created while streaming, see {@link GameObject#setObjectID(String)}
+	 * @param decorations
+	 *            Decorations with a model named in the scene file
+	 * @return The number of cell files written
+	 */
+	public static int writeCells(SceneFile sceneFile, Iterable<GameObject> objects,
+			Iterable<ModelInstance> decorations, float cellSize, FileHandle directory) {
+		LongMap<Array<GameObject>> cellObjects = new LongMap<>();
+		LongMap<Array<ModelInstance>> cellDecorations = new LongMap<>();
+		Vector3 position = new Vector3();
+
+		for (GameObject object : objects) {
+			object.getTransform().getTranslation(position);
+			long key = key(position, cellSize);
+			if (!cellObjects.containsKey(key))
+				cellObjects.put(key, new Array<GameObject>());
+			cellObjects.get(key).add(object);
+		}
+		for (ModelInstance decoration : decorations) {
+			decoration.transform.getTranslation(position);
+			long key = key(position, cellSize);
+			if (!cellDecorations.containsKey(key))
+				cellDecorations.put(key, new Array<ModelInstance>());
+			cellDecorations.get(key).add(decoration);
+		}
+
+		LongArray keys = new LongArray();
+		for (LongMap.Entry<Array<GameObject>> entry : cellObjects.entries())
+			keys.add(entry.key);
+		for (LongMap.Entry<Array<ModelInstance>> entry : cellDecorations.entries())
+			if (!cellObjects.containsKey(entry.key))
+				keys.add(entry.key);
+
+		directory.mkdirs();
+		for (int i = 0; i < keys.size; i++) {
+			long key = keys.get(i);
+			Array<GameObject> cellObjectList = cellObjects.get(key, new Array<GameObject>());
+			Array<ModelInstance> cellDecorationList = cellDecorations.get(key, new Array<ModelInstance>());
+			sceneFile.save(cellObjectList, cellDecorationList,
+					directory.child(cellX(key) + "_" + cellZ(key) + ".scene"));
+		}
+		return keys.size;
+	}
+
+	/**
+	 * Requests the cells around a point, creates and removes objects of
+	 * loaded and far cells within the budget. Call once per frame from the
+	 * render thread.
+	 *
+	 * @param position
+	 *            Where the world is seen from
+	 * @param delta
+	 *            Seconds since the last update
+	 */
+	public void update(Vector3 position, float delta) {
+		long deadline = TimeUtils.nanoTime() + budgetNanos;
+
+		// Look ahead along the movement, bounded so a teleport doesn't request half the world
+		if (hasLast && delta > 0f) {
+			ahead.set(position).sub(last).scl(1f / delta);
+			velocity.lerp(ahead, SMOOTHING);
+		}
+		last.set(position);
+		hasLast = true;
+		ahead.set(velocity).scl(lookAhead);
+		float maxAhead = loadRadius;
+		if (ahead.len2() > maxAhead * maxAhead)
+			ahead.nor().scl(maxAhead);
+		ahead.add(position);
+
+		wanted.clear();
+		active.clear();
+		for (Cell cell : cells.values()) {
+			cell.distance = Math.min(distance(cell, position), distance(cell, ahead));
+			boolean far = cell.distance > unloadRadius;
+			switch (cell.state) {
+			case UNLOADED:
+				if (cell.distance <= loadRadius)
+					wanted.add(cell);
+				break;
+			case LOADING:
+				if (assets.isLoaded(cell.path, SceneCell.class)) {
+					pending--;
+					cell.asset = assets.get(cell.path, SceneCell.class);
+					cell.state = CREATING;
+					cell.nextObject = 0;
+					cell.nextDecoration = 0;
+				} else if (far) {
+					// Cancelled, or dropped once loaded
+					assets.unload(cell.path);
+					pending--;
+					cell.state = UNLOADED;
+				}
+				break;
+			case LOADED:
+				if (far) {
+					cell.state = REMOVING;
+					loadedCount--;
+				}
+				break;
+			case CREATING:
+				if (far)
+					cell.state = REMOVING;
+				break;
+			}
+			if (cell.state == CREATING || cell.state == REMOVING)
+				active.add(cell);
+		}
+
+		// The closest cells first, for loading and for creating
+		wanted.sort(Cell.BY_DISTANCE);
+		for (int i = 0; i < wanted.size && pending < maxPending; i++) {
+			Cell cell = wanted.get(i);
+			assets.load(cell.path, SceneCell.class);
+			cell.state = LOADING;
+			pending++;
+		}
+		assets.update();
+
+		// Removals first, they free what creations allocate
+		active.sort(Cell.BY_STATE_DISTANCE);
+		boolean progressed = false;
+		for (int i = 0; i < active.size; i++) {
+			Cell cell = active.get(i);
+			while (cell.state == CREATING || cell.state == REMOVING) {
+				// At least one chunk per update, so a budget too small still streams
+				if (progressed && TimeUtils.nanoTime() > deadline)
+					return;
+				if (cell.state == REMOVING)
+					remove(cell);
+				else
+					create(cell);
+				progressed = true;
+			}
+		}
+	}
+
+	/**
+	 * Creates the next chunk of a cell
+	 */
+	private void create(Cell cell) {
+		SceneFile.Contents contents = cell.asset.getContents();
+		int objectCount = Math.min(CHUNK, contents.getObjectCount() - cell.nextObject);
+		if (objectCount > 0) {
+			sceneFile.createObjects(contents, cell.nextObject, objectCount, scene, cell.objects);
+			cell.nextObject += objectCount;
+			return;
+		}
+		int decorationCount = Math.min(CHUNK, contents.getDecorationCount() - cell.nextDecoration);
+		if (decorationCount > 0) {
+			sceneFile.createDecorations(contents, cell.nextDecoration, decorationCount, scene, cell.decorations);
+			cell.nextDecoration += decorationCount;
+			return;
+		}
+		cell.state = LOADED;
+		loadedCount++;
+	}
+
+	/**
+	 * Removes the next chunk of a cell, unloads it once empty
+	 */
+	private void remove(Cell cell) {
+		if (cell.objects.size > 0) {
+			final Array<GameObject> removed = new Array<>(CHUNK);
+			for (int i = 0; i < CHUNK && cell.objects.size > 0; i++) {
+				GameObject object = cell.objects.pop();
+				scene.removeObject(object);
+				removed.add(object);
+			}
+			// After the bodies left the world, on the physics thread if there is one
+			scene.post(new Runnable() {
+				@Override
+				public void run() {
+					for (GameObject object : removed)
+						object.dispose();
+				}
+			});
+			return;
+		}
+		if (cell.decorations.size > 0) {
+			for (int i = 0; i < CHUNK && cell.decorations.size > 0; i++)
+				scene.unregisterDecorationObject(cell.decorations.pop());
+			return;
+		}
+		cell.asset = null;
+		// Unloads the models no other cell uses
+		assets.unload(cell.path);
+		cell.state = UNLOADED;
+	}
+
+	/**
+	 * @param loadRadius
+	 *            Cells whose center is closer are loaded, in world units
+	 * @param unloadRadius
+	 *            Cells whose center is farther are unloaded, at least the load radius
+	 */
+	public void setRadii(float loadRadius, float unloadRadius) {
+		this.loadRadius = loadRadius;
+		this.unloadRadius = Math.max(loadRadius, unloadRadius);
+	}
+
+	/**
+	 * @param seconds
+	 *            How far ahead along its movement the point is also streamed around
+	 */
+	public void setLookAhead(float seconds) {
+		lookAhead = seconds;
+	}
+
+	/**
+	 * @param millis
+	 *            Time each update may spend creating and removing objects
+	 */
+	public void setBudget(float millis) {
+		budgetNanos = (long) (millis * 1000000L);
+	}
+
+	/**
+	 * @param maxPending
+	 *            Most cells being loaded by the asset manager at once
+	 */
+	public void setMaxPending(int maxPending) {
+		this.maxPending = maxPending;
+	}
+
+	public float getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * @return The number of cells added
+	 */
+	public int getCellCount() {
+		return cells.size;
+	}
+
+	/**
+	 * @return The number of cells with all their objects in the scene
+	 */
+	public int getLoadedCount() {
+		return loadedCount;
+	}
+
+	/**
+	 * @return The number of cells being loaded by the asset manager
+	 */
+	public int getPendingCount() {
+		return pending;
+	}
+
+	/**
+	 * @return The number of streamed objects in the scene
+	 */
+	public int getObjectCount() {
+		int count = 0;
+		for (Cell cell : cells.values())
+			count += cell.objects.size;
+		return count;
+	}
+
+	/**
+	 * Removes every cell from the scene and unloads it, without budget
+	 */
+	@Override
+	public void dispose() {
+		for (Cell cell : cells.values()) {
+			if (cell.state == LOADING) {
+				assets.unload(cell.path);
+				cell.state = UNLOADED;
+			}
+			while (cell.state == CREATING || cell.state == LOADED || cell.state == REMOVING) {
+				cell.state = REMOVING;
+				remove(cell);
+			}
+		}
+		pending = 0;
+		loadedCount = 0;
+	}
+
+	/**
+	 * Distance on the XZ plane from the center of a cell
+	 */
+	private float distance(Cell cell, Vector3 point) {
+		float dx = (cell.x + 0.5f) * cellSize - point.x;
+		float dz = (cell.z + 0.5f) * cellSize - point.z;
+		return (float) Math.sqrt(dx * dx + dz * dz);
+	}
+
+	private static long key(Vector3 position, float cellSize) {
+		return key(MathUtils.floor(position.x / cellSize), MathUtils.floor(position.z / cellSize));
+	}
+
+	private static long key(int x, int z) {
+		return (long) x << 32 | (z & 0xFFFFFFFFL);
+	}
+
+	private static int cellX(long key) {
+		return (int) (key >> 32);
+	}
+
+	private static int cellZ(long key) {
+		return (int) key;
+	}
+
+	private static class Cell {
+		static final Comparator<Cell>	BY_DISTANCE			= new Comparator<Cell>() {
+																			@Override
+																			public int compare(Cell a, Cell b) {
+																				return Float.compare(a.distance, b.distance);
+																			}
+																		};
+		static final Comparator<Cell>	BY_STATE_DISTANCE	= new Comparator<Cell>() {
+																			@Override
+																			public int compare(Cell a, Cell b) {
+																				if (a.state != b.state)
+																					return a.state == REMOVING ? -1 : 1;
+																				return Float.compare(a.distance, b.distance);
+																			}
+																		};
+
+		final int								x, z;
+		final String							path;
+		int										state;
+		float									distance;
+		SceneCell								asset;
+		int										nextObject, nextDecoration;
+		final Array<GameObject>					objects				= new Array<>();
+		final Array<ModelInstance>				decorations			= new Array<>();
+
+		Cell(int x, int z, String path) {
+			this.x = x;
+			this.z = z;
+			this.path = path;
+		}
+	}
+}
@@ -1,14 +1,33 @@
 package com.aliensoft.test;
 
 import com.aliensoft.core.BulletScene;
+import com.aliensoft.core.ContactEventListener;
+import com.aliensoft.core.ContactEvents;
+import com.aliensoft.core.DespawnPolicy;
 import com.aliensoft.core.GameObject;
-import com.aliensoft.core.GameObjectRenderer;
+import com.aliensoft.core.GameObjectPool;
+import com.aliensoft.core.InstancedModelRenderer;
+import com.aliensoft.core.QueryBatch;
+import com.aliensoft.core.SceneFile;
 import com.aliensoft.core.camera.FPSpectatorCameraController;
+import com.aliensoft.core.lighting.CascadedShadows;
+import com.aliensoft.core.lighting.EnvironmentShadows;
+import com.aliensoft.core.physics.NativeTracker;
+import com.aliensoft.core.physics.ShapeRegistry;
+import com.aliensoft.core.profiling.FrameProfiler;
+import com.aliensoft.core.profiling.ProfilerOverlay;
+import com.aliensoft.core.spatial.OcclusionBuffer;
+import com.aliensoft.core.spatial.Occluder;
+import com.aliensoft.core.streaming.WorldStreamer;
 import com.badlogic.gdx.ApplicationAdapter;
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.Input.Buttons;
+import com.badlogic.gdx.Input.Keys;
 import com.badlogic.gdx.InputAdapter;
 import com.badlogic.gdx.InputMultiplexer;
+import com.badlogic.gdx.assets.AssetManager;
+import com.badlogic.gdx.assets.loaders.resolvers.LocalFileHandleResolver;
+import com.badlogic.gdx.files.FileHandle;
 import com.badlogic.gdx.graphics.Color;
 import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.PerspectiveCamera;
@@ -16,18 +35,23 @@ import com.badlogic.gdx.graphics.VertexAttributes.Usage;
 import com.badlogic.gdx.graphics.g3d.Environment;
 import com.badlogic.gdx.graphics.g3d.Material;
 import com.badlogic.gdx.graphics.g3d.Model;
+import com.badlogic.gdx.graphics.g3d.ModelInstance;
 import com.badlogic.gdx.graphics.g3d.attributes.ColorAttribute;
 import com.badlogic.gdx.graphics.g3d.environment.DirectionalLight;
+import com.badlogic.gdx.graphics.g3d.environment.PointLight;
 import com.badlogic.gdx.graphics.g3d.utils.ModelBuilder;
+import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.physics.bullet.Bullet;
-import com.badlogic.gdx.physics.bullet.collision.btBoxShape;
+import com.badlogic.gdx.physics.bullet.collision.btBroadphaseInterface;
 import com.badlogic.gdx.physics.bullet.collision.btCollisionConfiguration;
 import com.badlogic.gdx.physics.bullet.collision.btCollisionDispatcher;
 import com.badlogic.gdx.physics.bullet.collision.btDbvtBroadphase;
 import com.badlogic.gdx.physics.bullet.collision.btDefaultCollisionConfiguration;
 import com.badlogic.gdx.physics.bullet.collision.btDispatcher;
-import com.badlogic.gdx.physics.bullet.collision.btSphereShape;
+import com.badlogic.gdx.physics.bullet.dynamics.btConstraintSolver;
 import com.badlogic.gdx.physics.bullet.dynamics.btDiscreteDynamicsWorld;
 import com.badlogic.gdx.physics.bullet.dynamics.btSequentialImpulseConstraintSolver;
 
@@ -36,14 +60,39 @@ public class LZDGameBulletTest extends ApplicationAdapter {
 	public PerspectiveCamera			cam;
 	public Model						floorModel;
 	public Model						ballModel;
+	public Model						pillarModel;
+	public Model						wallModel;
 	private FPSpectatorCameraController	camController;
 
 	private BulletScene					scene;
+	private ShapeRegistry				shapes;
+	private GameObjectPool				ballPool;
+	private GameObjectPool				shotPool;
+	private AssetManager				assets;
+	private CascadedShadows				shadows;
+	private WorldStreamer				streamer;
+	private FrameProfiler				profiler;
+	private ProfilerOverlay				profilerOverlay;
+	private boolean						showProfiler;
+	/** Logs the contacts and hits every frame they happen, toggled with F5 */
+	private boolean						logEvents;
+	private int							physicsScope, cameraScope, renderScope;
+	private InstancedModelRenderer		instancedRenderer;
+	/** The instanced draws of the first frame with balls are logged once */
+	private boolean						instancingLogged;
+	private final Vector3				tmp			= new Vector3();
+	private final Color					tmpColor	= new Color();
 
 	btCollisionConfiguration			collisionConfig;
 	btDispatcher						dispatcher;
+	btBroadphaseInterface				broadphase;
+	btConstraintSolver					solver;
 
 	GameObject							floor;
+	GameObject							wall;
+
+	/** Hitscan shots, the middle button fires one */
+	final QueryBatch					shots		= new QueryBatch(16);
 
 	btDiscreteDynamicsWorld				world;
 
@@ -51,14 +100,27 @@ public class LZDGameBulletTest extends ApplicationAdapter {
 	final static short					OBJECT_FLAG	= 1 << 9;
 	final static short					ALL_FLAG	= -1;
 
+	/** Side of the streamed cells of the pillar field around the floor */
+	final static float					CELL_SIZE	= 40f;
+
+	/** Step the world on its own thread instead of the render thread */
+	final static boolean				ASYNC_PHYSICS	= true;
+
 	@Override
 	public void create () {
 		Bullet.init();
+		// Leaked bullet objects are logged with their allocation site on exit
+		NativeTracker.setDebug(true);
 
 		lights = new Environment();
 		lights.set(new ColorAttribute(ColorAttribute.AmbientLight, 0.2f, 0.2f, 0.2f, 1f));
 		lights.add(new DirectionalLight().set(0.7f, 0.7f, 0.7f, -1f, -0.8f, -0.2f));
-		// lights.add(new PointLight().set(Color.BLUE, 0f, 10f, 4f, 50f));
+		// Point lights are assigned to clusters, adding more doesn't recompile the shaders
+		for (int i = 0; i < 24; i++) {
+			float angle = i * MathUtils.PI2 / 24f;
+			tmpColor.set(MathUtils.random(), MathUtils.random(), MathUtils.random(), 1f);
+			lights.add(new PointLight().set(tmpColor, MathUtils.cos(angle) * 25f, 3f, MathUtils.sin(angle) * 25f, 20f));
+		}
 
 		cam = new PerspectiveCamera(67, Gdx.graphics.getWidth(), Gdx.graphics.getHeight());
 		cam.position.set(10f, 10f, 10f);
@@ -82,65 +144,227 @@ public class LZDGameBulletTest extends ApplicationAdapter {
 				new Material(ColorAttribute.createDiffuse(Color.BLACK), ColorAttribute
 						.createSpecular(Color.BLUE)),
 						Usage.Position | Usage.Normal);
+		pillarModel = modelBuilder.createBox(
+				2f,
+				12f,
+				2f,
+				new Material(ColorAttribute.createDiffuse(Color.GRAY)),
+				Usage.Position | Usage.Normal);
+		wallModel = modelBuilder.createBox(
+				30f,
+				8f,
+				1f,
+				new Material(ColorAttribute.createDiffuse(Color.GRAY)),
+				Usage.Position | Usage.Normal);
 
 		camController = new FPSpectatorCameraController(cam);
 		camController.setVelocity(20f);
 		Gdx.input.setInputProcessor(new InputMultiplexer(new BallSpawnerProcessor(), camController));
 
-		scene = new BulletScene();
+		collisionConfig = NativeTracker.track(new btDefaultCollisionConfiguration());
+		dispatcher = NativeTracker.track(new btCollisionDispatcher(collisionConfig));
+		broadphase = NativeTracker.track(new btDbvtBroadphase());
+		solver = NativeTracker.track(new btSequentialImpulseConstraintSolver());
+
+		world = NativeTracker.track(new btDiscreteDynamicsWorld(dispatcher, broadphase, solver, collisionConfig));
+		world.setGravity(new Vector3(0, -10f, 0));
+
+		scene = new BulletScene(world);
 		scene.create();
-		scene.registerRenderer(new GameObjectRenderer());
 
-		collisionConfig = new btDefaultCollisionConfiguration();
-		dispatcher = new btCollisionDispatcher(collisionConfig);
+		// F3 shows the frame phases, F4 exports them to profile.csv, F5 logs the floor contacts and hitscan hits
+		profiler = new FrameProfiler();
+		physicsScope = profiler.scope("physics");
+		cameraScope = profiler.scope("camera");
+		renderScope = profiler.scope("render");
+		scene.setProfiler(profiler);
+		profilerOverlay = new ProfilerOverlay(profiler);
+		// Falls back to the model batch when the context can't draw instances
+		instancedRenderer = new InstancedModelRenderer(GameObject.class);
+		scene.registerRenderer(instancedRenderer);
+		if (!instancedRenderer.isSupported())
+			Gdx.app.log("Render", "No instanced draws, objects are rendered through the model batch");
+		// The floor and pillars are cached in the shadow map, only the balls are drawn every frame
+		shadows = new CascadedShadows(1024, 3, 150f, 300f);
+		EnvironmentShadows.set(lights, shadows);
+		scene.setShadows(shadows);
+		// Compile every shader before the first frame
+		scene.getShaderVariants().addModel(floorModel, lights);
+		scene.getShaderVariants().addModel(ballModel, lights);
+		scene.getShaderVariants().addModel(pillarModel, lights);
+		scene.getShaderVariants().addModel(wallModel, lights);
+		if (instancedRenderer.isSupported()) {
+			scene.getShaderVariants().addInstancedModel(floorModel, lights);
+			scene.getShaderVariants().addInstancedModel(ballModel, lights);
+			scene.getShaderVariants().addInstancedModel(pillarModel, lights);
+			scene.getShaderVariants().addInstancedModel(wallModel, lights);
+		}
+		scene.precompileShaders();
+
+		shapes = new ShapeRegistry();
 
-		world = new btDiscreteDynamicsWorld(dispatcher, new btDbvtBroadphase(),
-				new btSequentialImpulseConstraintSolver(), collisionConfig);
-		world.setGravity(new Vector3(0, -10f, 0));
+		floor = new GameObject(floorModel, shapes.getInfo(shapes.box(40f, 0.5f, 40f), 0f));
+		floor.enableMotionState();
+		scene.addObject(floor, GROUND_FLAG, ALL_FLAG);
+
+		wall = new GameObject(wallModel, shapes.getInfo(shapes.box(15f, 4f, 0.5f), 0f));
+		wall.translate(tmp.set(0f, 4.5f, -25f));
+		scene.addObject(wall, GROUND_FLAG, ALL_FLAG);
+
+		// The wall hides the pillars and balls behind it, the floor what fell under it
+		OcclusionBuffer occlusion = new OcclusionBuffer(256, 128);
+		occlusion.addOccluder(Occluder.box(wallModel.calculateBoundingBox(new BoundingBox()), wall.getTransform()));
+		occlusion.addOccluder(Occluder.box(floorModel.calculateBoundingBox(new BoundingBox()), floor.getTransform()));
+		scene.setOcclusionBuffer(occlusion);
+
+		// Logs the balls hitting the floor when enabled, contacts between balls are never reported
+		ContactEvents contacts = scene.enableContactEvents(1024);
+		contacts.watch(floor, OBJECT_FLAG);
+		contacts.addListener(new ContactEventListener() {
+			@Override
+			public void contactBegin(GameObject object, GameObject other) {
+				if (logEvents)
+					Gdx.app.debug("Contacts", other.getObjectID() + " hit the floor");
+			}
+
+			@Override
+			public void contactPersist(GameObject object, GameObject other) {
+			}
 
-		floor = new GameObject(floorModel, new btBoxShape(new Vector3(40f, 0.5f, 40f)), 0f);
-		scene.registerObject(floor);
-		world.addRigidBody(floor.body, GROUND_FLAG, ALL_FLAG);
+			@Override
+			public void contactEnd(GameObject object, GameObject other) {
+			}
+		});
+
+		// Balls that fall off the floor or live too long are recycled
+		DespawnPolicy ballPolicy = new DespawnPolicy()
+				.setMaxLive(500)
+				.setTimeToLive(30f)
+				.setBounds(new BoundingBox(new Vector3(-100f, -20f, -100f), new Vector3(100f, 100f, 100f)));
+		ballPool = new GameObjectPool(scene, ballModel, shapes.getInfo(shapes.sphere(0.5f), 5f), OBJECT_FLAG,
+				ALL_FLAG, ballPolicy);
+		shotPool = new GameObjectPool(scene, ballModel, shapes.getInfo(shapes.sphere(0.5f), 50f), OBJECT_FLAG,
+				ALL_FLAG, ballPolicy);
+
+		// The pillar field is streamed around the camera from local cell files
+		SceneFile sceneFile = new SceneFile(shapes);
+		sceneFile.addModel("pillar", pillarModel);
+		FileHandle cellDirectory = Gdx.files.local("world");
+		if (!cellDirectory.exists())
+			writePillarField(sceneFile, cellDirectory);
+		LocalFileHandleResolver resolver = new LocalFileHandleResolver();
+		assets = new AssetManager(resolver);
+		streamer = new WorldStreamer(scene, assets, resolver, sceneFile, CELL_SIZE);
+		streamer.setRadii(CELL_SIZE * 2.5f, CELL_SIZE * 3.5f);
+		streamer.addCells(cellDirectory);
+
+		if (ASYNC_PHYSICS)
+			scene.startPhysicsThread(1f / 60f);
+	}
+
+	/**
+	 * Writes the cells of a field of pillars around the floor
+	 */
+	private void writePillarField(SceneFile sceneFile, FileHandle directory) {
+		Array<GameObject> pillars = new Array<>();
+		for (int x = -300; x <= 300; x += 12) {
+			for (int z = -300; z <= 300; z += 12) {
+				if (Math.abs(x) < 50 && Math.abs(z) < 50)
+					continue;
+				GameObject pillar = new GameObject(pillarModel, shapes.getInfo(shapes.box(1f, 6f, 1f), 0f));
+				// Named so the IDs of the balls created meanwhile never collide with them
+				pillar.setObjectID("pillar_" + x + "_" + z);
+				pillar.translate(tmp.set(x, 6f, z));
+				pillars.add(pillar);
+			}
+		}
+		WorldStreamer.writeCells(sceneFile, pillars, new Array<ModelInstance>(), CELL_SIZE, directory);
+		for (GameObject pillar : pillars)
+			pillar.dispose();
 	}
 
 	public void spawnBall() {
-		GameObject nBall = new GameObject(ballModel, new btSphereShape(0.5f), 5f);
-		nBall.translate(new Vector3(0, 10f, 0));
-		scene.registerObject(nBall);
-		world.addRigidBody(nBall.body, OBJECT_FLAG, ALL_FLAG);
+		ballPool.spawn(tmp.set(0, 10f, 0));
 	}
 
 	public void shootBall() {
-		GameObject nBall = new GameObject(ballModel, new btSphereShape(0.5f), 50f);
-		nBall.translate(new Vector3(cam.position));
-		scene.registerObject(nBall);
-		world.addRigidBody(nBall.body, OBJECT_FLAG, ALL_FLAG);
-		nBall.body.applyCentralImpulse(new Vector3(cam.direction).scl(1500f));
+		shotPool.spawn(cam.position, tmp.set(cam.direction).scl(1500f));
+	}
+
+	/**
+	 * Casts a ray along the view instead of spawning a body
+	 */
+	public void fireHitscan() {
+		if (shots.size() > 0 && !shots.isDone())
+			return;
+		shots.addRay(cam.position, tmp.set(cam.direction).scl(200f).add(cam.position), OBJECT_FLAG, ALL_FLAG);
+		scene.query(shots);
 	}
 
 	@Override
 	public void dispose() {
+		scene.stopPhysicsThread();
+		shots.dispose();
+		streamer.dispose();
+		assets.dispose();
+		ballPool.dispose();
+		shotPool.dispose();
+		// Also frees the floor and the wall
 		scene.dispose();
 		floorModel.dispose();
-		floor.dispose();
-		collisionConfig.dispose();
-		dispatcher.dispose();
-		world.dispose();
-		scene.dispose();
+		ballModel.dispose();
+		pillarModel.dispose();
+		wallModel.dispose();
+		NativeTracker.free(world);
+		NativeTracker.free(solver);
+		NativeTracker.free(broadphase);
+		NativeTracker.free(dispatcher);
+		NativeTracker.free(collisionConfig);
+		shapes.dispose();
+		profilerOverlay.dispose();
+		shadows.dispose();
+		NativeTracker.logLeaks();
 	}
 
 	@Override
 	public void render() {
+		profiler.beginFrame();
 		Gdx.gl.glViewport(0, 0, Gdx.graphics.getWidth(), Gdx.graphics.getHeight());
 		Gdx.gl.glClear(GL20.GL_COLOR_BUFFER_BIT | GL20.GL_DEPTH_BUFFER_BIT);
 
 		final float delta = Math.min(1f / 30f, Gdx.graphics.getDeltaTime());
-		world.stepSimulation(delta, 5, 1f / 60f);
+		profiler.begin(physicsScope);
+		if (scene.getPhysicsThread() == null)
+			world.stepSimulation(delta, 5, 1f / 60f);
+		profiler.end(physicsScope);
 
 		scene.update();
+		if (shots.isDone()) {
+			GameObject hit = shots.getHitObject(0);
+			if (hit != null && logEvents)
+				Gdx.app.debug("Hitscan", "Hit " + hit.getObjectID() + " at " + shots.getHitPoint(0, tmp));
+			shots.clear();
+		}
+		ballPool.update(delta);
+		shotPool.update(delta);
 
+		profiler.begin(cameraScope);
 		camController.update();
+		profiler.end(cameraScope);
+		streamer.update(cam.position, delta);
+
+		profiler.begin(renderScope);
 		scene.render(lights, cam, Gdx.graphics.getDeltaTime());
+		profiler.end(renderScope);
+		if (!instancingLogged && instancedRenderer.getDrawCalls() > 0) {
+			instancingLogged = true;
+			Gdx.app.log("Render", "Drew " + instancedRenderer.getDrawnInstances() + " instances in "
+					+ instancedRenderer.getDrawCalls() + " instanced draw calls");
+		}
+		profiler.endFrame();
+
+		if (showProfiler)
+			profilerOverlay.render(Gdx.graphics.getDeltaTime());
 	}
 
 	private class BallSpawnerProcessor extends InputAdapter {
@@ -151,7 +375,27 @@ public class LZDGameBulletTest extends ApplicationAdapter {
 
 			if (button == Buttons.RIGHT)
 				shootBall();
+
+			if (button == Buttons.MIDDLE)
+				fireHitscan();
 			return true;
 		}
+
+		@Override
+		public boolean keyDown(int keycode) {
+			if (keycode == Keys.F3) {
+				showProfiler = !showProfiler;
+				return true;
+			}
+			if (keycode == Keys.F4) {
+				profiler.exportCsv(Gdx.files.local("profile.csv"));
+				return true;
+			}
+			if (keycode == Keys.F5) {
+				logEvents = !logEvents;
+				return true;
+			}
+			return false;
+		}
 	}
 }
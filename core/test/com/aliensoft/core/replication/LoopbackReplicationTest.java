@@ -0,0 +1,146 @@
+package com.aliensoft.core.replication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.aliensoft.core.GameObject;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.Quaternion;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
+
+public class LoopbackReplicationTest {
+
+	/** A power of two, so the playback time lands exactly on the ticks */
+	private static final float	TICK				= 1 / 32f;
+	/** Playback is snapped to the newest snapshot by a delta this big */
+	private static final float	SNAP				= 1000f;
+
+	private final SnapshotCodec	codec				= new SnapshotCodec();
+	private final Vector3		position			= new Vector3();
+	private final Quaternion	rotation			= new Quaternion();
+	private final Matrix4		received			= new Matrix4();
+	private final Vector3		receivedPosition	= new Vector3();
+	private final Quaternion	receivedRotation	= new Quaternion();
+
+	@Test
+	public void snapshotsSurvivePacketLoss() {
+		LoopbackTransport[] pair = LoopbackTransport.createPair();
+		pair[0].setSeed(1);
+		pair[1].setSeed(2);
+		pair[0].setLossRate(0.3f);
+		pair[1].setLossRate(0.3f);
+
+		ReplicationServer server = new ReplicationServer(codec);
+		server.addClient(pair[0]);
+		ReplicationClient client = new ReplicationClient(pair[1], codec, TICK, 0f);
+
+		Array<GameObject> objects = new Array<>();
+		IntArray ids = new IntArray();
+		for (int i = 0; i < 20; i++)
+			add(server, objects, ids, i);
+		IntArray removed = new IntArray();
+
+		int arrived = 0;
+		for (int tick = 0; tick < 400; tick++) {
+			if (tick == 150) {
+				// Respawns with new objects while the client may miss the removal
+				for (int i = 0; i < 5; i++) {
+					removed.add(ids.get(i));
+					server.remove(objects.get(i));
+				}
+				for (int i = 0; i < 5; i++) {
+					objects.set(i, new GameObject());
+					int id = server.add(objects.get(i), 9);
+					assertFalse("Freed ids wait before they are reused", removed.contains(id));
+					ids.set(i, id);
+				}
+			}
+			for (int i = 0; i < objects.size; i++)
+				move(objects.get(i), i, tick);
+
+			server.update();
+			client.update(SNAP);
+			if (client.getLatestTick() != server.getTick() - 1)
+				continue;
+
+			arrived++;
+			InterpolationBuffer interpolation = client.getInterpolation();
+			for (int i = 0; i < objects.size; i++) {
+				assertTrue(interpolation.get(ids.get(i), received));
+				assertTransform(objects.get(i).getTransform(), received);
+			}
+			if (tick > 150)
+				for (int i = 0; i < removed.size; i++)
+					assertFalse(interpolation.get(removed.get(i), received));
+		}
+
+		// About 30% of the snapshots and acks are lost
+		assertTrue(arrived > 200);
+		assertTrue(arrived < 350);
+		assertEquals(0, client.getDroppedPackets());
+	}
+
+	@Test
+	public void freedIdsAreReusedOldestFirstAfterADelay() {
+		ReplicationServer server = new ReplicationServer(codec);
+		GameObject first = new GameObject(), second = new GameObject();
+		int firstId = server.add(first, 0);
+		int secondId = server.add(second, 0);
+		server.remove(second);
+		server.update();
+		server.remove(first);
+
+		// The second id was freed at tick 0
+		while (server.getTick() < ReplicationServer.REUSE_DELAY - 1)
+			server.update();
+		int id = server.add(new GameObject(), 0);
+		assertNotEquals(firstId, id);
+		assertNotEquals(secondId, id);
+
+		server.update();
+		assertEquals(secondId, server.add(new GameObject(), 0));
+		// Freed one tick later
+		assertNotEquals(firstId, server.add(new GameObject(), 0));
+		server.update();
+		assertEquals(firstId, server.add(new GameObject(), 0));
+	}
+
+	private static void add(ReplicationServer server, Array<GameObject> objects, IntArray ids, int kind) {
+		GameObject object = new GameObject();
+		objects.add(object);
+		ids.add(server.add(object, kind));
+	}
+
+	/**
+	 * Some objects stay still, some move a little every tick and some jump
+	 * far, so every delta form is sent
+	 */
+	private void move(GameObject object, int index, int tick) {
+		if (index % 4 == 0 && tick > 0)
+			return;
+		float jump = index % 4 == 1 && tick % 20 == 0 ? 300f : 0f;
+		position.set(index * 2f + jump, MathUtils.sin(tick * 0.1f) * index, tick * 0.05f - 500f);
+		rotation.setEulerAngles(tick * 3f, index * 10f, tick);
+		object.getTransform().set(position, rotation);
+	}
+
+	private void assertTransform(Matrix4 expected, Matrix4 actual) {
+		expected.getTranslation(position);
+		actual.getTranslation(receivedPosition);
+		assertEquals(codec.dequantize(codec.quantize(position.x)), receivedPosition.x, 0.0001f);
+		assertEquals(codec.dequantize(codec.quantize(position.y)), receivedPosition.y, 0.0001f);
+		assertEquals(codec.dequantize(codec.quantize(position.z)), receivedPosition.z, 0.0001f);
+
+		expected.getRotation(rotation, true);
+		actual.getRotation(receivedRotation, true);
+		float angle = 2f * (float) Math.acos(Math.min(1f, Math.abs(rotation.dot(receivedRotation))));
+		assertTrue(angle < 0.01f);
+	}
+}
@@ -0,0 +1,160 @@
+package com.aliensoft.core.replication;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.badlogic.gdx.math.Quaternion;
+import com.badlogic.gdx.math.RandomXS128;
+
+public class SnapshotCodecTest {
+
+	/** Radians, the 10 bit components put rotations within 0.3 degrees */
+	private static final float	MAX_ROTATION_ERROR	= 0.005f;
+
+	private final SnapshotCodec	codec				= new SnapshotCodec();
+	private final BitWriter		writer				= new BitWriter(64);
+	private final BitReader		reader				= new BitReader();
+	private final int[]			header				= new int[2];
+
+	@Test
+	public void randomRotationsStayWithinTheErrorBound() {
+		RandomXS128 random = new RandomXS128(1);
+		Quaternion rotation = new Quaternion();
+		for (int i = 0; i < 100000; i++) {
+			rotation.set((float) random.nextGaussian(), (float) random.nextGaussian(),
+					(float) random.nextGaussian(), (float) random.nextGaussian()).nor();
+			assertRoundTrip(rotation);
+		}
+	}
+
+	@Test
+	public void edgeRotationsStayWithinTheErrorBound() {
+		float half = 0.70710677f;
+		assertRoundTrip(new Quaternion(0, 0, 0, 1));
+		assertRoundTrip(new Quaternion(0, 0, 0, -1));
+		assertRoundTrip(new Quaternion(1, 0, 0, 0));
+		assertRoundTrip(new Quaternion(0, -1, 0, 0));
+		// Ties between the largest components
+		assertRoundTrip(new Quaternion(0.5f, 0.5f, 0.5f, 0.5f));
+		assertRoundTrip(new Quaternion(-0.5f, 0.5f, -0.5f, 0.5f));
+		assertRoundTrip(new Quaternion(half, half, 0, 0));
+		assertRoundTrip(new Quaternion(0, 0, -half, half));
+		// Not normalized
+		assertRoundTrip(new Quaternion(0, 3, 0, 4));
+	}
+
+	@Test
+	public void zeroRotationDecodesToIdentity() {
+		Quaternion decoded = SnapshotCodec.unpackRotation(SnapshotCodec.packRotation(new Quaternion(0, 0, 0, 0)),
+				new Quaternion());
+		assertEquals(1f, Math.abs(decoded.w), 0.01f);
+	}
+
+	@Test
+	public void positionDeltasAtTheLimitsOfTheSmallForm() {
+		int base = 500000;
+		int[] deltas = { 0, 1, -1, 63, -64, 64, -65, 1000, -1000 };
+		for (int delta : deltas) {
+			Snapshot baseline = snapshot(0);
+			baseline.add(7, 1, base, base, base, 0);
+			Snapshot current = snapshot(1);
+			current.add(7, 1, base + delta, base - delta, base, 0);
+			assertSnapshot(current, roundTrip(current, baseline));
+		}
+	}
+
+	@Test
+	public void smallDeltasUseTheShortForm() {
+		Snapshot baseline = snapshot(0);
+		baseline.add(0, 0, 1000, 1000, 1000, 0);
+
+		Snapshot small = snapshot(1);
+		small.add(0, 0, 1063, 936, 1000, 0);
+		roundTrip(small, baseline);
+		int smallLength = writer.getLength();
+
+		Snapshot big = snapshot(1);
+		big.add(0, 0, 1064, 935, 1000, 0);
+		roundTrip(big, baseline);
+		assertTrue(writer.getLength() > smallLength);
+	}
+
+	@Test
+	public void deltasAcrossTheWholeRange() {
+		int max = codec.quantize(Float.MAX_VALUE);
+		Snapshot baseline = snapshot(0);
+		baseline.add(1, 0, 0, max, 0, 0);
+		Snapshot current = snapshot(1);
+		current.add(1, 0, max, 0, max, -1);
+		assertSnapshot(current, roundTrip(current, baseline));
+		assertSnapshot(baseline, roundTrip(baseline, current));
+	}
+
+	@Test
+	public void fullSnapshotsRoundTrip() {
+		Snapshot current = snapshot(3);
+		current.add(0, 0, 0, 0, 0, 0);
+		current.add(1, 255, 1, 2, 3, Integer.MIN_VALUE);
+		current.add(40, 12, 77, 88, 99, 12345);
+		current.add(SnapshotCodec.MAX_ID, 3, 10, 20, 30, -1);
+		assertSnapshot(current, roundTrip(current, null));
+	}
+
+	@Test
+	public void removedAndRespawnedObjects() {
+		Snapshot baseline = snapshot(0);
+		baseline.add(1, 0, 10, 10, 10, 5);
+		baseline.add(2, 0, 20, 20, 20, 5);
+		baseline.add(3, 0, 30, 30, 30, 5);
+
+		// 2 is removed, 3 is reused by another kind and 4 is new
+		Snapshot current = snapshot(1);
+		current.add(1, 0, 10, 10, 10, 5);
+		current.add(3, 1, 31, 30, 30, 5);
+		current.add(4, 2, 40, 40, 40, 6);
+		assertSnapshot(current, roundTrip(current, baseline));
+	}
+
+	private void assertRoundTrip(Quaternion rotation) {
+		Quaternion expected = new Quaternion(rotation).nor();
+		Quaternion decoded = SnapshotCodec.unpackRotation(SnapshotCodec.packRotation(rotation), new Quaternion());
+		assertEquals(1f, decoded.len(), 0.0001f);
+		float angle = 2f * (float) Math.acos(Math.min(1f, Math.abs(expected.dot(decoded))));
+		assertTrue("Rotation " + rotation + " decoded as " + decoded, angle < MAX_ROTATION_ERROR);
+	}
+
+	private Snapshot roundTrip(Snapshot current, Snapshot baseline) {
+		writer.reset();
+		codec.encode(current, baseline, writer);
+		reader.set(writer.getBytes(), writer.getLength());
+		codec.readHeader(reader, header);
+		assertEquals(current.tick, header[0]);
+		assertEquals(baseline != null ? baseline.tick : -1, header[1]);
+
+		Snapshot decoded = new Snapshot();
+		decoded.tick = header[0];
+		codec.decode(reader, baseline, decoded);
+		return decoded;
+	}
+
+	private static Snapshot snapshot(int tick) {
+		Snapshot snapshot = new Snapshot();
+		snapshot.reset(tick, 4);
+		return snapshot;
+	}
+
+	static void assertSnapshot(Snapshot expected, Snapshot actual) {
+		assertEquals(expected.tick, actual.tick);
+		assertEquals(expected.size, actual.size);
+		for (int i = 0; i < expected.size; i++) {
+			assertEquals(expected.ids[i], actual.ids[i]);
+			assertEquals(expected.kinds[i], actual.kinds[i]);
+			assertEquals(expected.x[i], actual.x[i]);
+			assertEquals(expected.y[i], actual.y[i]);
+			assertEquals(expected.z[i], actual.z[i]);
+			assertEquals(expected.rotations[i], actual.rotations[i]);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package com.aliensoft.core.spatial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.badlogic.gdx.graphics.Camera;
+import com.badlogic.gdx.graphics.OrthographicCamera;
+import com.badlogic.gdx.graphics.PerspectiveCamera;
+import com.badlogic.gdx.math.Matrix4;
+import com.badlogic.gdx.math.RandomXS128;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.utils.GdxNativesLoader;
+
+public class OcclusionBufferTest {
+
+	@BeforeClass
+	public static void loadNatives() {
+		// Matrix4 multiplies natively
+		GdxNativesLoader.load();
+	}
+
+	@Test
+	public void wallHidesWhatIsBehindIt() {
+		OcclusionBuffer buffer = new OcclusionBuffer(256, 128);
+		buffer.addOccluder(Occluder.box(box(0, 0, 0, 5, 4, 0.5f), new Matrix4().setToTranslation(0, 2, 0)));
+		buffer.render(perspective(0, 2, 10, 0, 2, 0));
+
+		assertFalse(buffer.isVisible(cube(0, 2, -5, 1)));
+		assertFalse(buffer.isVisible(cube(1, 1, -50, 0.5f)));
+		assertTrue(buffer.isVisible(cube(0, 2, 3, 1)));
+		assertTrue(buffer.isVisible(cube(12, 2, -5, 1)));
+		assertTrue(buffer.isVisible(cube(0, 20, -20, 1)));
+		// Partly behind the edge of the wall
+		assertTrue(buffer.isVisible(cube(7, 2, -5, 1)));
+		// Around the camera
+		assertTrue(buffer.isVisible(cube(0, 2, 10, 1)));
+		// An occluder never hides itself
+		assertTrue(buffer.isVisible(box(0, 2, 0, 5, 4, 0.5f)));
+		assertEquals(12, buffer.getTriangleCount());
+	}
+
+	@Test
+	public void occludersCrossingTheNearPlaneAreClipped() {
+		OcclusionBuffer buffer = new OcclusionBuffer(256, 128);
+		buffer.addOccluder(Occluder.box(box(0, 0, 0, 5, 4, 0.5f), new Matrix4().setToTranslation(0, 2, 0)));
+		buffer.render(perspective(4.9f, 2, 0.6f, 10, 2, -10));
+
+		assertFalse(buffer.isVisible(cube(4, 2, -10, 1)));
+		assertTrue(buffer.isVisible(cube(15, 2, -5, 1)));
+	}
+
+	@Test
+	public void orthographicCameras() {
+		OrthographicCamera cam = new OrthographicCamera(40, 40);
+		cam.position.set(0, 50, 0);
+		cam.direction.set(0, -1, 0);
+		cam.up.set(0, 0, -1);
+		cam.near = 1;
+		cam.far = 100;
+		cam.update();
+
+		OcclusionBuffer buffer = new OcclusionBuffer(128, 128);
+		buffer.addOccluder(Occluder.box(box(0, 0, 0, 10, 0.5f, 10), new Matrix4()));
+		buffer.render(cam);
+
+		assertFalse(buffer.isVisible(cube(0, -5, 0, 1)));
+		assertTrue(buffer.isVisible(cube(0, 2, 0, 1)));
+		assertTrue(buffer.isVisible(cube(15, -5, 0, 1)));
+	}
+
+	@Test
+	public void emptyBufferHidesNothing() {
+		OcclusionBuffer buffer = new OcclusionBuffer(64, 32);
+		buffer.render(perspective(0, 2, 10, 0, 2, 0));
+
+		assertEquals(1f, buffer.getDepth(0, 0), 0f);
+		assertTrue(buffer.isVisible(cube(0, 2, -50, 1)));
+	}
+
+	@Test
+	public void poolRasterizesTheSameDepthAsOneThread() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			OcclusionBuffer single = new OcclusionBuffer(256, 128);
+			OcclusionBuffer banded = new OcclusionBuffer(256, 128, pool);
+			RandomXS128 random = new RandomXS128(7);
+			for (int i = 0; i < 200; i++) {
+				Occluder occluder = Occluder.box(
+						cube(random.nextFloat() * 100f - 50f, 2, -5f - random.nextFloat() * 95f, 2), new Matrix4());
+				single.addOccluder(occluder);
+				banded.addOccluder(occluder);
+			}
+
+			Camera cam = perspective(0, 2, 10, 0, 2, 0);
+			for (int frame = 0; frame < 3; frame++) {
+				cam.rotate(Vector3.Y, 10f);
+				cam.update();
+				single.render(cam);
+				banded.render(cam);
+
+				assertEquals(single.getTriangleCount(), banded.getTriangleCount());
+				for (int y = 0; y < single.getHeight(); y++)
+					for (int x = 0; x < single.getWidth(); x++)
+						assertEquals("Pixel " + x + ", " + y, single.getDepth(x, y), banded.getDepth(x, y), 0f);
+
+				for (int i = 0; i < 1000; i++) {
+					BoundingBox bounds = cube(random.nextFloat() * 100f - 50f, 2, -5f - random.nextFloat() * 95f,
+							0.5f);
+					assertEquals(single.isVisible(bounds), banded.isVisible(bounds));
+				}
+				assertEquals(single.getOccludedCount(), banded.getOccludedCount());
+			}
+			assertTrue(single.getOccludedCount() > 0);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static PerspectiveCamera perspective(float x, float y, float z, float targetX, float targetY,
+			float targetZ) {
+		PerspectiveCamera cam = new PerspectiveCamera(67, 800, 600);
+		cam.position.set(x, y, z);
+		cam.lookAt(targetX, targetY, targetZ);
+		cam.near = 0.1f;
+		cam.far = 300f;
+		cam.update();
+		return cam;
+	}
+
+	private static BoundingBox cube(float x, float y, float z, float halfSize) {
+		return box(x, y, z, halfSize, halfSize, halfSize);
+	}
+
+	private static BoundingBox box(float x, float y, float z, float halfX, float halfY, float halfZ) {
+		return new BoundingBox(new Vector3(x - halfX, y - halfY, z - halfZ), new Vector3(x + halfX, y + halfY, z
+				+ halfZ));
+	}
+}
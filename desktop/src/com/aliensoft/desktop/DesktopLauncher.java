@@ -1,5 +1,6 @@
 package com.aliensoft.desktop;
 
+import com.aliensoft.core.Instancing;
 import com.aliensoft.test.LZDGameBulletTest;
 import com.badlogic.gdx.backends.lwjgl.LwjglApplication;
 import com.badlogic.gdx.backends.lwjgl.LwjglApplicationConfiguration;
@@ -7,6 +8,8 @@ import com.badlogic.gdx.backends.lwjgl.LwjglApplicationConfiguration;
 public class DesktopLauncher {
 	public static void main (String[] arg) {
 		LwjglApplicationConfiguration config = new LwjglApplicationConfiguration();
+		// The GL30 core profile can't run the shaders of gdx, instances are drawn through extensions instead
+		Instancing.setExtension(new LwjglInstancing());
 		// new LwjglApplication(new LZDGame(), config);
 		new LwjglApplication(new LZDGameBulletTest(), config);
 	}
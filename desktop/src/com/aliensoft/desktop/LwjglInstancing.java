@@ -0,0 +1,37 @@
+package com.aliensoft.desktop;
+
+import org.lwjgl.opengl.ARBDrawInstanced;
+import org.lwjgl.opengl.ARBInstancedArrays;
+import org.lwjgl.opengl.ContextCapabilities;
+import org.lwjgl.opengl.GLContext;
+
+import com.aliensoft.core.Instancing;
+
+/**
+ * Instanced draws on the GL 2.x context of the LWJGL backend, through the
+ * ARB_instanced_arrays and ARB_draw_instanced extensions
+ */
+public class LwjglInstancing extends Instancing {
+
+	@Override
+	public boolean isSupported() {
+		ContextCapabilities caps = GLContext.getCapabilities();
+		return caps.GL_ARB_instanced_arrays && caps.GL_ARB_draw_instanced;
+	}
+
+	@Override
+	public void glVertexAttribDivisor(int index, int divisor) {
+		ARBInstancedArrays.glVertexAttribDivisorARB(index, divisor);
+	}
+
+	@Override
+	public void glDrawElementsInstanced(int mode, int count, int type, int indicesOffset, int instanceCount) {
+		// Reads the indices from the bound element buffer
+		ARBDrawInstanced.glDrawElementsInstancedARB(mode, count, type, indicesOffset, instanceCount);
+	}
+
+	@Override
+	public void glDrawArraysInstanced(int mode, int first, int count, int instanceCount) {
+		ARBDrawInstanced.glDrawArraysInstancedARB(mode, first, count, instanceCount);
+	}
+}
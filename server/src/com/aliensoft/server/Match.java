@@ -0,0 +1,124 @@
+package com.aliensoft.server;
+
+import com.aliensoft.core.BulletScene;
+import com.aliensoft.core.DespawnPolicy;
+import com.aliensoft.core.GameObject;
+import com.aliensoft.core.GameObjectPool;
+import com.aliensoft.core.physics.ShapeRegistry;
+import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.math.Vector3;
+import com.badlogic.gdx.math.collision.BoundingBox;
+import com.badlogic.gdx.physics.bullet.collision.btBroadphaseInterface;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionConfiguration;
+import com.badlogic.gdx.physics.bullet.collision.btCollisionDispatcher;
+import com.badlogic.gdx.physics.bullet.collision.btDbvtBroadphase;
+import com.badlogic.gdx.physics.bullet.collision.btDefaultCollisionConfiguration;
+import com.badlogic.gdx.physics.bullet.collision.btDispatcher;
+import com.badlogic.gdx.physics.bullet.dynamics.btConstraintSolver;
+import com.badlogic.gdx.physics.bullet.dynamics.btDiscreteDynamicsWorld;
+import com.badlogic.gdx.physics.bullet.dynamics.btSequentialImpulseConstraintSolver;
+import com.badlogic.gdx.utils.Disposable;
+
+/**
+ * One authoritative world: a bullet world, the scene syncing its objects and
+ * the game rules. The scene is never created, so nothing touches GL. A match
+ * is only ticked by the worker that owns it.
+ */
+public class Match implements Disposable {
+
+	final static short							GROUND_FLAG	= 1 << 8;
+	final static short							OBJECT_FLAG	= 1 << 9;
+	final static short							ALL_FLAG	= -1;
+
+	/** Ticks between two spawned balls */
+	private static final int					SPAWN_TICKS	= 2;
+
+	private final int							id;
+
+	private final btCollisionConfiguration		collisionConfig;
+	private final btDispatcher					dispatcher;
+	private final btBroadphaseInterface			broadphase;
+	private final btConstraintSolver			solver;
+	private final btDiscreteDynamicsWorld		world;
+	private final BulletScene					scene;
+
+	private final GameObject					floor;
+	private final GameObjectPool				ballPool;
+
+	private long								ticks;
+	private final Vector3						tmp			= new Vector3();
+
+	/**
+	 * @param id
+	 *            The match number, for the logs
+	 * @param shapes
+	 *            Shapes shared by every match, must be filled before the matches tick
+	 * @param balls
+	 *            Balls kept alive in the match
+	 */
+	public Match(int id, ShapeRegistry shapes, int balls) {
+		this.id = id;
+
+		collisionConfig = new btDefaultCollisionConfiguration();
+		dispatcher = new btCollisionDispatcher(collisionConfig);
+		broadphase = new btDbvtBroadphase();
+		solver = new btSequentialImpulseConstraintSolver();
+		world = new btDiscreteDynamicsWorld(dispatcher, broadphase, solver, collisionConfig);
+		world.setGravity(tmp.set(0, -10f, 0));
+		scene = new BulletScene(world);
+
+		floor = new GameObject(null, shapes.getInfo(shapes.box(40f, 0.5f, 40f), 0f));
+		floor.enableMotionState();
+		scene.addObject(floor, GROUND_FLAG, ALL_FLAG);
+
+		DespawnPolicy policy = new DespawnPolicy()
+				.setMaxLive(balls)
+				.setBounds(new BoundingBox(new Vector3(-100f, -20f, -100f), new Vector3(100f, 100f, 100f)));
+		ballPool = new GameObjectPool(scene, null, shapes.getInfo(shapes.sphere(0.5f), 5f), OBJECT_FLAG, ALL_FLAG,
+				policy);
+		ballPool.preallocate(balls);
+	}
+
+	/**
+	 * Advances the match by one tick
+	 *
+	 * @param tickSeconds
+	 *            The fixed time step
+	 */
+	public void tick(float tickSeconds) {
+		if (ticks % SPAWN_TICKS == 0)
+			ballPool.spawn(tmp.set(MathUtils.random(-20f, 20f), 10f, MathUtils.random(-20f, 20f)));
+
+		world.stepSimulation(tickSeconds, 1, tickSeconds);
+		scene.update();
+		ballPool.update(tickSeconds);
+		ticks++;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public long getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * @return The scene of the match, for replication
+	 */
+	public BulletScene getScene() {
+		return scene;
+	}
+
+	@Override
+	public void dispose() {
+		ballPool.dispose();
+		// Also frees the floor
+		scene.dispose();
+		world.dispose();
+		solver.dispose();
+		broadphase.dispose();
+		dispatcher.dispose();
+		collisionConfig.dispose();
+	}
+}
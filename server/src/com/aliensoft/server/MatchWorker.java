@@ -0,0 +1,125 @@
+package com.aliensoft.server;
+
+import java.util.concurrent.locks.LockSupport;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.utils.Array;
+
+/**
+ * Ticks a set of matches at a fixed rate on its own thread.<br>
+ * Ticks are scheduled from the start time, not from the end of the last tick,
+ * so the rate doesn't drift. A worker that falls more than a few ticks behind
+ * drops the missed ticks instead of running them back to back.
+ */
+public class MatchWorker implements Runnable {
+
+	/** Ticks a worker can run late back to back before dropping them */
+	private static final int	MAX_CATCH_UP	= 5;
+
+	private final Array<Match>	matches			= new Array<>();
+	private final long			tickNanos;
+	private final float			tickSeconds;
+
+	private Thread				thread;
+	private volatile boolean	running;
+
+	/* Stats, written by the worker and read by the stats log */
+	private volatile long		ticks;
+	private volatile long		busyNanos;
+	private volatile long		droppedTicks;
+
+	/**
+	 * @param tickRate
+	 *            Ticks per second
+	 */
+	public MatchWorker(int tickRate) {
+		tickNanos = 1000000000L / tickRate;
+		tickSeconds = 1f / tickRate;
+	}
+
+	/**
+	 * Gives a match to this worker. Must be called before {@link #start(String)}.
+	 */
+	public void add(Match match) {
+		if (thread != null)
+			throw new IllegalStateException("Matches must be added before the worker starts");
+		matches.add(match);
+	}
+
+	public void start(String name) {
+		running = true;
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the worker and waits for the current tick to finish
+	 */
+	public void stop() {
+		running = false;
+		if (thread == null)
+			return;
+
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+
+	@Override
+	public void run() {
+		long next = System.nanoTime();
+		while (running) {
+			long start = System.nanoTime();
+			if (start < next) {
+				LockSupport.parkNanos(next - start);
+				continue;
+			}
+
+			try {
+				for (Match match : matches)
+					match.tick(tickSeconds);
+			} catch (RuntimeException e) {
+				Gdx.app.error("MatchWorker", "Tick failed, stopping " + thread.getName(), e);
+				running = false;
+				return;
+			}
+
+			long end = System.nanoTime();
+			busyNanos += end - start;
+			ticks++;
+
+			next += tickNanos;
+			if (end - next > MAX_CATCH_UP * tickNanos) {
+				droppedTicks += (end - next) / tickNanos;
+				next = end;
+			}
+		}
+	}
+
+	public int getMatchCount() {
+		return matches.size;
+	}
+
+	public long getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * @return Nanoseconds spent ticking since started
+	 */
+	public long getBusyNanos() {
+		return busyNanos;
+	}
+
+	/**
+	 * @return Ticks skipped because the worker was too far behind
+	 */
+	public long getDroppedTicks() {
+		return droppedTicks;
+	}
+}
@@ -0,0 +1,48 @@
+package com.aliensoft.server;
+
+/**
+ * Settings of a {@link SimulationServer}
+ */
+public class ServerConfig {
+
+	/** Number of matches hosted by the process */
+	public int		matches		= 8;
+
+	/** Simulation ticks per second of every match */
+	public int		tickRate	= 60;
+
+	/** Threads the matches are spread over, one per core by default */
+	public int		workers		= Runtime.getRuntime().availableProcessors();
+
+	/** Balls each match keeps alive, the simulated load */
+	public int		ballsPerMatch	= 200;
+
+	/** Seconds between two stats lines in the log */
+	public float	statsInterval	= 5f;
+
+	/**
+	 * Reads options of the form --name value, unknown options are an error
+	 */
+	public static ServerConfig parse(String[] args) {
+		ServerConfig config = new ServerConfig();
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 == args.length)
+				throw new IllegalArgumentException("Missing value for " + args[i]);
+
+			String value = args[i + 1];
+			if (args[i].equals("--matches"))
+				config.matches = Integer.parseInt(value);
+			else if (args[i].equals("--tick-rate"))
+				config.tickRate = Integer.parseInt(value);
+			else if (args[i].equals("--workers"))
+				config.workers = Integer.parseInt(value);
+			else if (args[i].equals("--balls"))
+				config.ballsPerMatch = Integer.parseInt(value);
+			else if (args[i].equals("--stats-interval"))
+				config.statsInterval = Float.parseFloat(value);
+			else
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+		}
+		return config;
+	}
+}
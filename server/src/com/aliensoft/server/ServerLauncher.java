@@ -0,0 +1,14 @@
+package com.aliensoft.server;
+
+import com.badlogic.gdx.backends.headless.HeadlessApplication;
+import com.badlogic.gdx.backends.headless.HeadlessApplicationConfiguration;
+
+public class ServerLauncher {
+	public static void main(String[] arg) {
+		ServerConfig config = ServerConfig.parse(arg);
+		HeadlessApplicationConfiguration headless = new HeadlessApplicationConfiguration();
+		// The application loop only logs, the matches tick on their own threads
+		headless.renderInterval = 0.25f;
+		new HeadlessApplication(new SimulationServer(config), headless);
+	}
+}
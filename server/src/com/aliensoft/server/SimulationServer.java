@@ -0,0 +1,89 @@
+package com.aliensoft.server;
+
+import com.aliensoft.core.physics.ShapeRegistry;
+import com.badlogic.gdx.ApplicationAdapter;
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.physics.bullet.Bullet;
+import com.badlogic.gdx.utils.Array;
+
+/**
+ * Hosts many matches in one process without a GPU.<br>
+ * Every match has its own bullet world, and the matches are spread over one
+ * worker thread per core. Worlds don't share state, so the workers never wait
+ * on each other; only the collision shapes and construction infos, which
+ * bullet never changes while stepping, are shared.
+ */
+public class SimulationServer extends ApplicationAdapter {
+
+	private final ServerConfig			config;
+
+	private ShapeRegistry				shapes;
+	private final Array<Match>			matches		= new Array<>();
+	private final Array<MatchWorker>	workers		= new Array<>();
+
+	private float						sinceStats;
+	private long						lastTicks;
+	private long						lastBusyNanos;
+
+	public SimulationServer(ServerConfig config) {
+		this.config = config;
+	}
+
+	@Override
+	public void create() {
+		Bullet.init();
+		shapes = new ShapeRegistry();
+
+		int workerCount = Math.max(1, Math.min(config.workers, config.matches));
+		for (int i = 0; i < workerCount; i++)
+			workers.add(new MatchWorker(config.tickRate));
+
+		// Matches are created here so the shared shapes are ready before any worker runs
+		for (int i = 0; i < config.matches; i++) {
+			Match match = new Match(i, shapes, config.ballsPerMatch);
+			matches.add(match);
+			workers.get(i % workerCount).add(match);
+		}
+
+		for (int i = 0; i < workerCount; i++)
+			workers.get(i).start("match-worker-" + i);
+
+		Gdx.app.log("SimulationServer", config.matches + " matches at " + config.tickRate + " Hz on " + workerCount
+				+ " workers");
+	}
+
+	@Override
+	public void render() {
+		sinceStats += Gdx.graphics.getDeltaTime();
+		if (sinceStats < config.statsInterval)
+			return;
+
+		long ticks = 0, busyNanos = 0, dropped = 0;
+		for (MatchWorker worker : workers) {
+			ticks += worker.getTicks();
+			busyNanos += worker.getBusyNanos();
+			dropped += worker.getDroppedTicks();
+		}
+
+		long newTicks = ticks - lastTicks;
+		float tickMillis = newTicks == 0 ? 0f : (busyNanos - lastBusyNanos) / (newTicks * 1000000f);
+		float load = tickMillis * config.tickRate / 1000f;
+		Gdx.app.log("SimulationServer", String.format("%.1f ticks/s per worker, %.2f ms per tick, %.0f%% load, %d dropped",
+				newTicks / sinceStats / workers.size, tickMillis, load * 100f, dropped));
+
+		lastTicks = ticks;
+		lastBusyNanos = busyNanos;
+		sinceStats = 0f;
+	}
+
+	@Override
+	public void dispose() {
+		for (MatchWorker worker : workers)
+			worker.stop();
+		workers.clear();
+		for (Match match : matches)
+			match.dispose();
+		matches.clear();
+		shapes.dispose();
+	}
+}